@@ -15,7 +15,7 @@
 
 package com.fastbootmobile.encore.api.chartlyrics;
 
-import com.fastbootmobile.encore.api.common.HttpGet;
+import com.fastbootmobile.encore.api.common.ApiGateway;
 import com.fastbootmobile.encore.api.common.RateLimitException;
 
 import java.io.IOException;
@@ -32,7 +32,7 @@ public class ChartLyricsClient {
     private static final Pattern PATTERN_ARTIST = Pattern.compile("<LyricArtist>(.*)</LyricArtist>", Pattern.MULTILINE | Pattern.DOTALL);
 
     public static LyricsResponse getSongLyrics(String artist, String title) throws IOException, RateLimitException {
-        String lyricsXml = HttpGet.get(BASE_URL, "artist=" + URLEncoder.encode(artist, "UTF-8") + "&song=" + URLEncoder.encode(title, "UTF-8"), true);
+        String lyricsXml = ApiGateway.getDefault().get(BASE_URL, "artist=" + URLEncoder.encode(artist, "UTF-8") + "&song=" + URLEncoder.encode(title, "UTF-8"), ApiGateway.TTL_MONTH);
 
         Matcher matcher_song = PATTERN_SONG.matcher(lyricsXml);
         Matcher matcher_artist = PATTERN_ARTIST.matcher(lyricsXml);
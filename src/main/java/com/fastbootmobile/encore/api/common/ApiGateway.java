@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.api.common;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gateway for the requests to the metadata web APIs (MusicBrainz, Freebase, ...). Responses are
+ * cached in memory and on disk for a time chosen by the caller for each endpoint, and stale
+ * responses are revalidated with a conditional request when the server provided validators.
+ * Requests to each host go through a token bucket, so that we stay under the rate limits of
+ * the services instead of hitting them: callers wait for their turn rather than failing, and
+ * concurrent requests for the same URL are only sent once.
+ */
+public class ApiGateway {
+    private static final String TAG = "ApiGateway";
+    private static final boolean DEBUG = false;
+    private static final ApiGateway INSTANCE = new ApiGateway();
+
+    public static final long TTL_DAY = TimeUnit.DAYS.toMillis(1);
+    public static final long TTL_WEEK = TimeUnit.DAYS.toMillis(7);
+    public static final long TTL_MONTH = TimeUnit.DAYS.toMillis(30);
+
+    private static final int MEMORY_CACHE_SIZE = 512 * 1024;
+    private static final long MAX_DISK_SIZE = 8 * 1024 * 1024;
+    private static final int WRITES_BETWEEN_TRIMS = 64;
+    private static final int MAX_RATE_LIMIT_RETRIES = 2;
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * Requests per second and burst size allowed for each host. Hosts not listed here get the
+     * default rate.
+     */
+    private static final Map<String, double[]> HOST_RATES = new HashMap<>();
+    private static final double[] DEFAULT_RATE = {5, 5};
+    static {
+        // https://musicbrainz.org/doc/XML_Web_Service/Rate_Limiting
+        HOST_RATES.put("musicbrainz.org", new double[] {1, 1});
+        HOST_RATES.put("musicbrains.org", new double[] {1, 1});
+        HOST_RATES.put("coverartarchive.org", new double[] {2, 4});
+        HOST_RATES.put("www.googleapis.com", new double[] {2, 4});
+        HOST_RATES.put("ajax.googleapis.com", new double[] {1, 2});
+    }
+
+    private final LruCache<String, Entry> mMemoryCache;
+    private final Map<String, TokenBucket> mBuckets = new HashMap<>();
+    private final Set<String> mInFlight = new HashSet<>();
+    // Disk cache trims list the cache directory, they run one at a time in the background
+    private final ExecutorService mTrimExecutor = Executors.newSingleThreadExecutor();
+    private volatile File mCacheDir;
+    private int mWritesSinceTrim = 0;
+
+    /**
+     * A cached response
+     */
+    private static class Entry {
+        final long mFetchedAt;
+        final String mETag;
+        final long mLastModified;
+        final byte[] mBody;
+
+        Entry(long fetchedAt, String etag, long lastModified, byte[] body) {
+            mFetchedAt = fetchedAt;
+            mETag = etag;
+            mLastModified = lastModified;
+            mBody = body;
+        }
+
+        boolean isFresh(long ttl) {
+            final long age = System.currentTimeMillis() - mFetchedAt;
+            return age >= 0 && age < ttl;
+        }
+
+        boolean hasValidators() {
+            return mETag != null || mLastModified > 0;
+        }
+    }
+
+    /**
+     * Token bucket limiting the request rate to a host. Callers reserve a token and are told how
+     * long to wait for it, so that they're served in order.
+     */
+    private static class TokenBucket {
+        private final double mRate;
+        private final double mBurst;
+        private double mTokens;
+        private long mLastRefill;
+
+        TokenBucket(double rate, double burst) {
+            mRate = rate;
+            mBurst = burst;
+            mTokens = burst;
+            mLastRefill = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * @return The time to wait before using the reserved token, in milliseconds
+         */
+        synchronized long reserve() {
+            refill();
+            mTokens -= 1;
+            return mTokens >= 0 ? 0 : (long) Math.ceil(-mTokens * 1000 / mRate);
+        }
+
+        /**
+         * Empties the bucket after the server told us we went over its limit
+         */
+        synchronized void penalize() {
+            refill();
+            mTokens = Math.min(mTokens, -mBurst);
+        }
+
+        private void refill() {
+            final long now = SystemClock.elapsedRealtime();
+            mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mRate / 1000);
+            mLastRefill = now;
+        }
+    }
+
+    /**
+     * @return The default instance
+     */
+    public static ApiGateway getDefault() {
+        return INSTANCE;
+    }
+
+    private ApiGateway() {
+        mMemoryCache = new LruCache<String, Entry>(MEMORY_CACHE_SIZE) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return key.length() * 2 + value.mBody.length;
+            }
+        };
+    }
+
+    /**
+     * Enables the disk cache. Until then, responses are only cached in memory.
+     * @param ctx A valid context
+     */
+    public void initialize(Context ctx) {
+        File dir = new File(ctx.getCacheDir(), "api");
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Cannot create the API cache directory");
+            return;
+        }
+
+        synchronized (this) {
+            mCacheDir = dir;
+            scheduleDiskTrim();
+        }
+        Log.d(TAG, "API cache initialized in " + dir.getPath());
+    }
+
+    /**
+     * Downloads the data from the provided URL, or returns it from the cache
+     * @param inUrl The URL to get from
+     * @param query The query field. '?' + query will be appended automatically, and the query data
+     *              MUST be encoded properly.
+     * @param ttl How long a cached response can be used without checking with the server
+     * @return A string with the data, empty if the server returned an error
+     */
+    public String get(String inUrl, String query, long ttl) throws IOException, RateLimitException {
+        return new String(getBytes(inUrl, query, ttl));
+    }
+
+    /**
+     * Downloads the data from the provided URL, or returns it from the cache
+     * @see #get(String, String, long)
+     */
+    public byte[] getBytes(String inUrl, String query, long ttl)
+            throws IOException, RateLimitException {
+        final String url = inUrl + (query.isEmpty() ? "" : ("?" + query));
+
+        Entry entry = getCached(url);
+        if (entry != null && entry.isFresh(ttl)) {
+            return entry.mBody;
+        }
+
+        // Only one request per URL at a time: the other callers will find the response cached
+        acquireUrl(url);
+        try {
+            entry = getCached(url);
+            if (entry != null && entry.isFresh(ttl)) {
+                return entry.mBody;
+            }
+
+            return fetch(url, entry).mBody;
+        } finally {
+            releaseUrl(url);
+        }
+    }
+
+    /**
+     * Removes a response from the cache, for instance when it turns out to contain an error
+     */
+    public void invalidate(String inUrl, String query) {
+        final String url = inUrl + (query.isEmpty() ? "" : ("?" + query));
+        mMemoryCache.remove(url);
+
+        final File file = getFile(url);
+        if (file != null && file.exists() && !file.delete()) {
+            Log.w(TAG, "Cannot delete " + file.getPath());
+        }
+    }
+
+    private Entry fetch(String url, Entry stale) throws IOException, RateLimitException {
+        final TokenBucket bucket = getBucket(new URL(url).getHost());
+        final HttpClient client = HttpClient.getDefault();
+
+        for (int attempt = 0; ; ++attempt) {
+            final long wait = bucket.reserve();
+            if (wait > 0) {
+                if (DEBUG) Log.d(TAG, "Waiting " + wait + "ms for " + url);
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            final HttpClient.Response response;
+            try {
+                if (stale != null && stale.hasValidators()) {
+                    response = client.get(url, false, stale.mETag, stale.mLastModified);
+                } else {
+                    response = client.get(url, false, null, 0);
+                }
+            } catch (RateLimitException e) {
+                bucket.penalize();
+                if (attempt < MAX_RATE_LIMIT_RETRIES) {
+                    Log.w(TAG, "Rate limited by " + url + ", retrying");
+                    continue;
+                } else if (stale != null) {
+                    return stale;
+                }
+                throw e;
+            }
+
+            final int status = response.getStatus();
+            final Entry entry;
+            if (response.isNotModified() && stale != null) {
+                entry = new Entry(System.currentTimeMillis(), stale.mETag, stale.mLastModified,
+                        stale.mBody);
+            } else if (status == HttpURLConnection.HTTP_OK
+                    || status == HttpURLConnection.HTTP_NOT_FOUND) {
+                // Missing resources are cached as well, to avoid asking for them again
+                entry = new Entry(System.currentTimeMillis(), response.getETag(),
+                        response.getLastModified(), response.getBody());
+            } else if (stale != null) {
+                Log.w(TAG, "Using stale response for " + url + " (" + status + ")");
+                return stale;
+            } else {
+                return new Entry(System.currentTimeMillis(), null, 0, response.getBody());
+            }
+
+            putCached(url, entry);
+            return entry;
+        }
+    }
+
+    private Entry getCached(String url) {
+        Entry entry = mMemoryCache.get(url);
+        if (entry != null) {
+            return entry;
+        }
+
+        final File file = getFile(url);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_VERSION || !url.equals(in.readUTF())) {
+                    return null;
+                }
+
+                final long fetchedAt = in.readLong();
+                final String etag = in.readBoolean() ? in.readUTF() : null;
+                final long lastModified = in.readLong();
+                final byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+
+                entry = new Entry(fetchedAt, etag, lastModified, body);
+                mMemoryCache.put(url, entry);
+                return entry;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read cached response for " + url, e);
+            if (!file.delete()) {
+                Log.w(TAG, "Cannot delete " + file.getPath());
+            }
+            return null;
+        }
+    }
+
+    private void putCached(String url, Entry entry) {
+        mMemoryCache.put(url, entry);
+
+        final File file = getFile(url);
+        if (file == null) {
+            return;
+        }
+
+        // Write to a temporary file first, so that a crash can't leave a partial file
+        final File temp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeUTF(url);
+                out.writeLong(entry.mFetchedAt);
+                out.writeBoolean(entry.mETag != null);
+                if (entry.mETag != null) {
+                    out.writeUTF(entry.mETag);
+                }
+                out.writeLong(entry.mLastModified);
+                out.writeInt(entry.mBody.length);
+                out.write(entry.mBody);
+            } finally {
+                out.close();
+            }
+
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot rename " + temp.getPath());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write cached response for " + url, e);
+            if (temp.exists() && !temp.delete()) {
+                Log.w(TAG, "Cannot delete " + temp.getPath());
+            }
+            return;
+        }
+
+        synchronized (this) {
+            if (++mWritesSinceTrim >= WRITES_BETWEEN_TRIMS) {
+                scheduleDiskTrim();
+            }
+        }
+    }
+
+    /**
+     * Trims the disk cache on the trim executor. Must be called with the instance lock held.
+     */
+    private void scheduleDiskTrim() {
+        mWritesSinceTrim = 0;
+        mTrimExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                trimDiskCache();
+            }
+        });
+    }
+
+    /**
+     * Deletes the least recently written responses until the cache fits in its maximum size.
+     * Only called from the trim executor.
+     */
+    private void trimDiskCache() {
+        final File dir = mCacheDir;
+        if (dir == null) {
+            return;
+        }
+
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+
+        if (size > MAX_DISK_SIZE) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File lhs, File rhs) {
+                    final long lhsTime = lhs.lastModified();
+                    final long rhsTime = rhs.lastModified();
+                    return lhsTime < rhsTime ? -1 : (lhsTime == rhsTime ? 0 : 1);
+                }
+            });
+
+            for (File file : files) {
+                if (size <= MAX_DISK_SIZE) {
+                    break;
+                }
+                final long length = file.length();
+                if (file.delete()) {
+                    size -= length;
+                }
+            }
+        }
+    }
+
+    private File getFile(String url) {
+        final File dir = mCacheDir;
+        return dir != null ? new File(dir, hash(url)) : null;
+    }
+
+    private synchronized TokenBucket getBucket(String host) {
+        TokenBucket bucket = mBuckets.get(host);
+        if (bucket == null) {
+            double[] rate = HOST_RATES.get(host);
+            if (rate == null) {
+                rate = DEFAULT_RATE;
+            }
+            bucket = new TokenBucket(rate[0], rate[1]);
+            mBuckets.put(host, bucket);
+        }
+        return bucket;
+    }
+
+    private void acquireUrl(String url) throws InterruptedIOException {
+        synchronized (mInFlight) {
+            while (mInFlight.contains(url)) {
+                try {
+                    mInFlight.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            mInFlight.add(url);
+        }
+    }
+
+    private void releaseUrl(String url) {
+        synchronized (mInFlight) {
+            mInFlight.remove(url);
+            mInFlight.notifyAll();
+        }
+    }
+
+    private static String hash(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(url.getBytes());
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(String.format("%02x", b & 0xFF));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+}
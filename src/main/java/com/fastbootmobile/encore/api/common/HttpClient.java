@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.api.common;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * HTTP client used by the web APIs. Responses are read in bulk through pooled buffers, and
+ * connections are released without being disconnected so that the platform can reuse them
+ * (keep-alive). Responses can also be streamed, for instance to decode images straight from
+ * the socket, and requests can be made conditional with the validators of a previous response.
+ * The number of concurrent requests to a single host is limited, to be nice with the web
+ * services and to avoid starving other hosts.
+ */
+public class HttpClient {
+    private static final String TAG = "HttpClient";
+    private static final HttpClient INSTANCE = new HttpClient();
+
+    private static final String USER_AGENT = "OmniMusic/1.0-dev (http://www.omnirom.org)";
+    private static final int MAX_STALE = 60 * 60 * 24 * 28; // tolerate 4-weeks stale
+    private static final int MAX_REDIRECTS = 5;
+    private static final int MAX_REQUESTS_PER_HOST = 4;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 8;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ArrayDeque<byte[]> mChunkPool = new ArrayDeque<>();
+    private final Map<String, Semaphore> mHostPermits = new HashMap<>();
+
+    /**
+     * Response of a request. Streamed responses must be closed once consumed, as they hold a
+     * connection and a request slot for their host.
+     */
+    public static class Response implements Closeable {
+        private final int mStatus;
+        private final String mETag;
+        private final long mLastModified;
+        private final int mContentLength;
+        private byte[] mBody;
+        private InputStream mStream;
+
+        Response(int status, String etag, long lastModified, int contentLength) {
+            mStatus = status;
+            mETag = etag;
+            mLastModified = lastModified;
+            mContentLength = contentLength;
+        }
+
+        /**
+         * @return The HTTP status code of the response
+         */
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * @return true if the server answered a conditional request with 304 Not Modified
+         */
+        public boolean isNotModified() {
+            return mStatus == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        /**
+         * @return The ETag of the response, or null if the server didn't provide one
+         */
+        public String getETag() {
+            return mETag;
+        }
+
+        /**
+         * @return The Last-Modified date of the response, or 0 if the server didn't provide one
+         */
+        public long getLastModified() {
+            return mLastModified;
+        }
+
+        /**
+         * @return The length of the body announced by the server, or -1 if unknown
+         */
+        public int getContentLength() {
+            return mContentLength;
+        }
+
+        /**
+         * @return The body of a buffered response. Empty if the request failed.
+         */
+        public byte[] getBody() {
+            return mBody != null ? mBody : EMPTY;
+        }
+
+        /**
+         * @return The body of a streamed response, or null if the request failed
+         */
+        public InputStream getStream() {
+            return mStream;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mStream != null) {
+                mStream.close();
+            }
+        }
+    }
+
+    /**
+     * @return The default instance
+     */
+    public static HttpClient getDefault() {
+        return INSTANCE;
+    }
+
+    private HttpClient() {
+        // Keep-alive is on by default, and the platform keeps up to 5 idle connections per
+        // route: the MAX_REQUESTS_PER_HOST connections of a host can all be reused without
+        // touching the process-wide http.* properties, which other clients depend on
+    }
+
+    /**
+     * Downloads the data from the provided URL.
+     * @param url The URL to get from
+     * @param cached Whether or not the HTTP response cache may be used
+     * @return A byte array of the data, empty if the server returned an error
+     */
+    public byte[] getBytes(String url, boolean cached) throws IOException, RateLimitException {
+        return get(url, cached, null, 0).getBody();
+    }
+
+    /**
+     * Downloads the data from the provided URL, unless it didn't change since the previous
+     * response. The HTTP response cache is bypassed for conditional requests.
+     * @param url The URL to get from
+     * @param cached Whether or not the HTTP response cache may be used
+     * @param etag The ETag of the previous response, or null
+     * @param lastModified The Last-Modified date of the previous response, or 0
+     * @return The response, with its body fully read
+     */
+    public Response get(String url, boolean cached, String etag, long lastModified)
+            throws IOException, RateLimitException {
+        Response response = execute(url, cached, etag, lastModified, false);
+        response.close();
+        return response;
+    }
+
+    /**
+     * Opens the data from the provided URL as a stream. The returned response must be closed.
+     * @param url The URL to get from
+     * @param cached Whether or not the HTTP response cache may be used
+     * @return The response. Its stream is null if the server returned an error.
+     */
+    public Response open(String url, boolean cached) throws IOException, RateLimitException {
+        return execute(url, cached, null, 0, true);
+    }
+
+    private Response execute(String inUrl, boolean cached, String etag, long lastModified,
+                             boolean stream) throws IOException, RateLimitException {
+        String formattedUrl = inUrl;
+
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; ++redirects) {
+            Log.d(TAG, "Formatted URL: " + formattedUrl);
+
+            final URL url = new URL(formattedUrl);
+            final Semaphore permits = acquireHost(url.getHost());
+            boolean handedOff = false;
+            HttpURLConnection connection = null;
+
+            try {
+                connection = (HttpURLConnection) url.openConnection();
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                connection.setRequestProperty("User-Agent", USER_AGENT);
+                connection.setInstanceFollowRedirects(true);
+
+                final boolean conditional = etag != null || lastModified > 0;
+                connection.setUseCaches(cached && !conditional);
+                if (cached && !conditional) {
+                    connection.addRequestProperty("Cache-Control", "max-stale=" + MAX_STALE);
+                }
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified > 0) {
+                    connection.setIfModifiedSince(lastModified);
+                }
+
+                final int status = connection.getResponseCode();
+                final Response response = new Response(status, connection.getHeaderField("ETag"),
+                        connection.getLastModified(), connection.getContentLength());
+
+                // MusicBrainz returns 503 Unavailable on rate limit errors
+                if (status == HttpURLConnection.HTTP_OK) {
+                    if (stream) {
+                        response.mStream = new ReleasingInputStream(connection.getInputStream(),
+                                permits);
+                        handedOff = true;
+                    } else {
+                        response.mBody = readBody(connection.getInputStream(),
+                                response.mContentLength);
+                    }
+                    return response;
+                } else if (status == HttpURLConnection.HTTP_NOT_MODIFIED
+                        || status == HttpURLConnection.HTTP_NOT_FOUND
+                        || status == HttpURLConnection.HTTP_FORBIDDEN) {
+                    discardBody(connection);
+                    return response;
+                } else if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+                    discardBody(connection);
+                    throw new RateLimitException();
+                } else if (status == HttpURLConnection.HTTP_MOVED_TEMP
+                        || status == HttpURLConnection.HTTP_MOVED_PERM
+                        || status == 307 /* HTTP/1.1 TEMPORARY REDIRECT */
+                        || status == HttpURLConnection.HTTP_SEE_OTHER) {
+                    // Redirects across protocols aren't followed by HttpURLConnection
+                    final String location = connection.getHeaderField("Location");
+                    discardBody(connection);
+                    if (location == null) {
+                        Log.e(TAG, "Redirect without location from " + formattedUrl);
+                        return response;
+                    }
+                    formattedUrl = new URL(url, location).toString();
+                    Log.d(TAG, "Redirected to: " + formattedUrl);
+                } else {
+                    Log.e(TAG, "Error when fetching: " + formattedUrl + " (" + status + ")");
+                    discardBody(connection);
+                    return response;
+                }
+            } catch (IOException e) {
+                // The connection is in an unknown state, don't let it go back to the pool
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                throw e;
+            } finally {
+                if (!handedOff) {
+                    permits.release();
+                }
+            }
+        }
+
+        throw new IOException("Too many redirects for " + inUrl);
+    }
+
+    /**
+     * Reads the whole body. When the length is known, the data is read straight into the
+     * output array, otherwise it's read in pooled chunks.
+     */
+    private byte[] readBody(InputStream in, int contentLength) throws IOException {
+        try {
+            if (contentLength > 0) {
+                byte[] output = new byte[contentLength];
+                int length = readFully(in, output, 0);
+                if (length < contentLength) {
+                    return Arrays.copyOf(output, length);
+                }
+
+                // Transparent decompression may make the body larger than announced
+                int read;
+                while ((read = in.read()) != -1) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                    output[length++] = (byte) read;
+                    length = readFully(in, output, length);
+                    if (length < output.length) {
+                        break;
+                    }
+                }
+                return length == output.length ? output : Arrays.copyOf(output, length);
+            } else {
+                return readChunked(in);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] readChunked(InputStream in) throws IOException {
+        final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        int lastLength = 0;
+
+        try {
+            while (true) {
+                byte[] chunk = acquireChunk();
+                chunks.add(chunk);
+                lastLength = readFully(in, chunk, 0);
+                if (lastLength < chunk.length) {
+                    break;
+                }
+            }
+
+            final byte[] output = new byte[(chunks.size() - 1) * CHUNK_SIZE + lastLength];
+            int offset = 0;
+            for (byte[] chunk : chunks) {
+                final int length = Math.min(CHUNK_SIZE, output.length - offset);
+                System.arraycopy(chunk, 0, output, offset, length);
+                offset += length;
+            }
+            return output;
+        } finally {
+            for (byte[] chunk : chunks) {
+                releaseChunk(chunk);
+            }
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int offset) throws IOException {
+        int read;
+        while (offset < buffer.length && (read = in.read(buffer, offset, buffer.length - offset)) != -1) {
+            offset += read;
+        }
+        return offset;
+    }
+
+    /**
+     * Reads what's left of an error or redirect body, so that the connection can be reused
+     */
+    private void discardBody(HttpURLConnection connection) {
+        InputStream in = connection.getErrorStream();
+        try {
+            if (in == null) {
+                in = connection.getInputStream();
+            }
+        } catch (IOException e) {
+            return;
+        }
+
+        if (in == null) {
+            return;
+        }
+
+        final byte[] chunk = acquireChunk();
+        try {
+            while (in.read(chunk) != -1) {
+                // Discard
+            }
+        } catch (IOException ignore) {
+        } finally {
+            releaseChunk(chunk);
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private byte[] acquireChunk() {
+        synchronized (mChunkPool) {
+            byte[] chunk = mChunkPool.poll();
+            return chunk != null ? chunk : new byte[CHUNK_SIZE];
+        }
+    }
+
+    private void releaseChunk(byte[] chunk) {
+        synchronized (mChunkPool) {
+            if (mChunkPool.size() < MAX_POOLED_CHUNKS) {
+                mChunkPool.push(chunk);
+            }
+        }
+    }
+
+    private Semaphore acquireHost(String host) throws InterruptedIOException {
+        Semaphore permits;
+        synchronized (mHostPermits) {
+            permits = mHostPermits.get(host);
+            if (permits == null) {
+                permits = new Semaphore(MAX_REQUESTS_PER_HOST, true);
+                mHostPermits.put(host, permits);
+            }
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for " + host);
+        }
+        return permits;
+    }
+
+    /**
+     * Stream releasing the request slot of its host once closed
+     */
+    private static class ReleasingInputStream extends FilterInputStream {
+        private Semaphore mPermits;
+
+        ReleasingInputStream(InputStream in, Semaphore permits) {
+            super(in);
+            mPermits = permits;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                synchronized (this) {
+                    if (mPermits != null) {
+                        mPermits.release();
+                        mPermits = null;
+                    }
+                }
+            }
+        }
+    }
+}
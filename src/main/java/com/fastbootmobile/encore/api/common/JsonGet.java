@@ -38,4 +38,18 @@ public class JsonGet {
             throws IOException, JSONException, RateLimitException {
         return new JSONObject(HttpGet.get(url, query, cached));
     }
+
+    /**
+     * Downloads a JSON object from the provided URL through the {@link ApiGateway}, or returns it
+     * from its cache.
+     * @param url The URL to get from
+     * @param query The query field. '?' + query will be appended automatically, and the query data
+     *              will be encoded properly.
+     * @param ttl How long a cached response can be used without checking with the server
+     * @return A json object
+     */
+    public static JSONObject getObject(String url, String query, long ttl)
+            throws IOException, JSONException, RateLimitException {
+        return new JSONObject(ApiGateway.getDefault().get(url, query, ttl));
+    }
 }
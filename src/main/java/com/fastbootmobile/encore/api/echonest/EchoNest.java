@@ -40,24 +40,40 @@ import com.fastbootmobile.encore.providers.ProviderAggregator;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
 /**
- * EchoNest Glue class between jEN and the data we use in OmniMusic
+ * EchoNest Glue class between jEN and the data we use in OmniMusic. Artist info is kept in
+ * bounded in-memory caches.
  * TODO: Cache artist info on disk
  */
 public class EchoNest {
     private static final String TAG = "EchoNest";
     private static final boolean DEBUG = false;
 
+    private static final int MAX_CACHED_ARTISTS = 200;
+
     private EchoNestAPI mEchoNest;
-    private static final Map<String, Artist> sArtistSearchCache = new HashMap<>();
-    private static final Map<Artist, Biography> sArtistBiographyCache = new HashMap<>();
-    private static final Map<Artist, Map<String, String>> sArtistUrlsCache = new HashMap<>();
-    private static final Map<Artist, List<Artist>> sArtistSimilarCache = new HashMap<>();
-    private static final Map<Artist, Map<String, String>> sArtistForeignIDs = new HashMap<>();
+    private static final Map<String, Artist> sArtistSearchCache = createCache();
+    private static final Map<Artist, Biography> sArtistBiographyCache = createCache();
+    private static final Map<Artist, Map<String, String>> sArtistUrlsCache = createCache();
+    private static final Map<Artist, List<Artist>> sArtistSimilarCache = createCache();
+    private static final Map<Artist, Map<String, String>> sArtistForeignIDs = createCache();
+
+    /**
+     * @return A map evicting its least recently used entries past {@link #MAX_CACHED_ARTISTS}
+     */
+    private static <K, V> Map<K, V> createCache() {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > MAX_CACHED_ARTISTS;
+            }
+        };
+    }
 
     /**
      * Initializes an EchoNest API client with the EchoNest API key
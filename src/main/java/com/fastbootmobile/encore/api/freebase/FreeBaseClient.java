@@ -20,6 +20,7 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import com.fastbootmobile.encore.api.common.ApiGateway;
 import com.fastbootmobile.encore.api.common.JsonGet;
 import com.fastbootmobile.encore.api.common.RateLimitException;
 
@@ -56,7 +57,7 @@ public class FreeBaseClient {
 
         JSONObject object = JsonGet.getObject(API_ENDPOINT,
                 "query=" + ecArtist + "&filter=" + ecFilter + "&limit=1",
-                true);
+                ApiGateway.TTL_MONTH);
 
         JSONArray result = object.getJSONArray("result");
         if (result.length() > 0) {
@@ -67,7 +68,8 @@ public class FreeBaseClient {
             // for that topic. We do one more query to not end up with an ugly "NO IMAGE" result.
             // We do take the risk however by allowing the image anyway if we go above the rate limit
             // of Google's API, as the topic endpoint is rate-limited and we're not using any API key.
-            object = JsonGet.getObject(TOPIC_ENDPOINT + metaId, "filter=/common/topic/image&limit=1", true);
+            object = JsonGet.getObject(TOPIC_ENDPOINT + metaId, "filter=/common/topic/image&limit=1",
+                    ApiGateway.TTL_MONTH);
 
             if (object.has("property") || object.has("error")) {
                 return IMAGE_ENDPOINT + metaId + "?maxwidth=800&maxheight=800";
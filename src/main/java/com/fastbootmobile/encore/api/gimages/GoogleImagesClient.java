@@ -20,6 +20,7 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import com.fastbootmobile.encore.api.common.ApiGateway;
 import com.fastbootmobile.encore.api.common.JsonGet;
 import com.fastbootmobile.encore.api.common.RateLimitException;
 
@@ -42,7 +43,7 @@ public class GoogleImagesClient {
         String queryUrl = "https://ajax.googleapis.com/ajax/services/search/images?v=1.0&q="
                 + URLEncoder.encode(query, "UTF-8") + "&imgsz=large";
 
-        JSONObject obj = JsonGet.getObject(queryUrl, "", true);
+        JSONObject obj = JsonGet.getObject(queryUrl, "", ApiGateway.TTL_WEEK);
         JSONArray results = obj.getJSONObject("responseData").getJSONArray("results");
 
         if (results.length() > 0) {
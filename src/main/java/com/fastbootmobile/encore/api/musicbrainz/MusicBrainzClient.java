@@ -20,17 +20,15 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import com.fastbootmobile.encore.api.common.ApiGateway;
 import com.fastbootmobile.encore.api.common.JsonGet;
-import com.fastbootmobile.encore.api.common.Pair;
 import com.fastbootmobile.encore.api.common.RateLimitException;
 
 import java.io.IOException;
 import java.net.URLEncoder;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
- * MusicBrainz API Client
+ * MusicBrainz API Client. Responses are cached and rate-limited by the {@link ApiGateway}.
  */
 public class MusicBrainzClient {
 
@@ -38,9 +36,8 @@ public class MusicBrainzClient {
     private static final String MAIN_EP = "http://musicbrains.org/ws/2";
     private static final String COVER_EP = "http://coverartarchive.org/release/";
 
-    private static final Map<Pair<String, String>, AlbumInfo[]> mAlbumInfoCache
-            = new HashMap<>();
-    private static final Map<String, String> mAlbumArtCache = new HashMap<>();
+    private static final long RELEASE_TTL = ApiGateway.TTL_WEEK;
+    private static final long COVER_TTL = ApiGateway.TTL_MONTH;
 
     /**
      * Retrieves the album information from MusicBrainz. This method is synchronous and must be
@@ -51,10 +48,6 @@ public class MusicBrainzClient {
      * from musicbrainz, or null in case of error
      */
     public static AlbumInfo[] getAlbum(String artist, String album) throws RateLimitException {
-        if (mAlbumInfoCache.containsKey(Pair.create(artist, album))) {
-            return mAlbumInfoCache.get(Pair.create(artist, album));
-        }
-
         if (artist == null && album == null) {
             return null;
         }
@@ -67,7 +60,8 @@ public class MusicBrainzClient {
             if (album != null && !album.isEmpty()) {
                 query += URLEncoder.encode(" AND release:\"" + album + "\"", "UTF-8");
             }
-            JSONObject object = JsonGet.getObject(MAIN_EP + "/release/", "fmt=json&query=" + query, true);
+            final String params = "fmt=json&query=" + query;
+            JSONObject object = JsonGet.getObject(MAIN_EP + "/release/", params, RELEASE_TTL);
 
             if (object.has("releases")) {
                 JSONArray releases = object.getJSONArray("releases");
@@ -91,16 +85,15 @@ public class MusicBrainzClient {
                         infoArray[i] = info;
                     }
 
-                    mAlbumInfoCache.put(Pair.create(artist, album), infoArray);
                     return infoArray;
                 }
             } else if (object.has("error")) {
                 Log.w(TAG, "Rate limited by the API, will retry later");
+                ApiGateway.getDefault().invalidate(MAIN_EP + "/release/", params);
                 throw new RateLimitException();
             }
 
             // AlbumArtCache will retry with something else if needed
-            mAlbumInfoCache.put(Pair.create(artist, album), null);
             return null;
         } catch (IOException e) {
             Log.e(TAG, "Unable to get album info (rate limit?)", e);
@@ -119,26 +112,19 @@ public class MusicBrainzClient {
      * @return An album art URL, or null if none found
      */
     public static String getAlbumArtUrl(String albumId) throws RateLimitException {
-        if (mAlbumArtCache.containsKey(albumId)) {
-            return mAlbumArtCache.get(albumId);
-        }
-
         try {
-            JSONObject object = JsonGet.getObject(COVER_EP + albumId, "", true);
+            JSONObject object = JsonGet.getObject(COVER_EP + albumId, "", COVER_TTL);
 
             // We take the very first art here, no matter if it's front or back. Eventually some
             // day, we might filter only front art.
             JSONArray images = object.getJSONArray("images");
             JSONObject image = images.getJSONObject(0);
 
-            String output = image.getJSONObject("thumbnails").getString("large");
-            mAlbumArtCache.put(albumId, output);
-            return output;
+            return image.getJSONObject("thumbnails").getString("large");
         } catch (IOException e) {
-            mAlbumArtCache.put(albumId, null);
             return null;
         } catch (JSONException e) {
-            mAlbumArtCache.put(albumId, null);
+            // Also covers releases without art, whose (empty) response is cached by the gateway
             return null;
         }
     }
@@ -21,6 +21,7 @@ import android.net.http.HttpResponseCache;
 import android.os.Build;
 import android.util.Log;
 
+import com.fastbootmobile.encore.api.common.ApiGateway;
 import com.fastbootmobile.encore.api.echonest.AutoMixManager;
 import com.fastbootmobile.encore.art.ImageCache;
 import com.fastbootmobile.encore.framework.PluginsLookup;
@@ -111,6 +112,9 @@ public class OmniMusic extends Application {
                 Log.w(TAG, "HTTP response cache installation failed", e);
             }
 
+            // Setup metadata API cache
+            ApiGateway.getDefault().initialize(getApplicationContext());
+
             // Setup image cache
             ImageCache.getDefault().initialize(getApplicationContext());
 
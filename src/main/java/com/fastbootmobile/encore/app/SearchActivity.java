@@ -106,8 +106,8 @@ public class SearchActivity extends AppActivity {
                     @Override
                     public void run() {
                         mActiveFragment.resetResults();
-                        mActiveFragment.setArguments(query);
-                        ProviderAggregator.getDefault().startSearch(query);
+                        mActiveFragment.setArguments(query,
+                                ProviderAggregator.getDefault().startSearch(query));
                     }
                 }, 200);
 
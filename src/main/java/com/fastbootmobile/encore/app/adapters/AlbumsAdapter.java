@@ -39,15 +39,13 @@ import com.fastbootmobile.encore.providers.ProviderAggregator;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 /**
  * Adapter for ListView to show a list of albums
  */
 public class AlbumsAdapter extends BaseAdapter {
-    private final List<Album> mAlbums;
+    private final SortedListModel<Album> mModel;
     private final Handler mHandler;
     private final int mDefaultArtColor;
 
@@ -100,19 +98,6 @@ public class AlbumsAdapter extends BaseAdapter {
         }
     };
 
-    private Comparator<Album> mComparator = new Comparator<Album>() {
-        @Override
-        public int compare(Album album, Album album2) {
-            if (album.getName() != null && album2.getName() != null) {
-                return album.getName().compareTo(album2.getName());
-            } else if (album.getName() == null) {
-                return -1;
-            } else {
-                return 1;
-            }
-        }
-    };
-
     /**
      * ViewHolder class for Albums
      */
@@ -139,25 +124,22 @@ public class AlbumsAdapter extends BaseAdapter {
      * Default constructor
      */
     public AlbumsAdapter(Resources res) {
-        mAlbums = new ArrayList<>();
+        mModel = new SortedListModel<>(new SortedListModel.KeyProvider<Album>() {
+            @Override
+            public String getSortKey(Album album) {
+                return album.getName();
+            }
+        });
         mHandler = new Handler();
         mDefaultArtColor = res.getColor(R.color.default_album_art_background);
     }
 
     /**
-     * Sorts the list of albums alphabetically
-     */
-    private void sortList() {
-        Collections.sort(mAlbums, mComparator);
-    }
-
-    /**
-     * Adds an album to the adapter
+     * Adds an album to the adapter if it isn't already existing
      * @param a The album to add
      */
     public void addItem(Album a) {
-        mAlbums.add(a);
-        sortList();
+        mModel.add(a, null);
     }
 
     /**
@@ -166,43 +148,51 @@ public class AlbumsAdapter extends BaseAdapter {
      * @return True if the item has been added, false otherwise
      */
     public boolean addItemUnique(Album a) {
-        if (!mAlbums.contains(a)) {
-            mAlbums.add(a);
-            sortList();
-            return true;
-        } else {
-            return false;
-        }
+        return mModel.add(a, null);
     }
 
     /**
-     * Add all the elements of the input collection into the adapter
+     * Add all the elements of the input collection into the adapter, if they're not already there
      * @param ps The elements to add
      */
     public void addAll(Collection<Album> ps) {
-        mAlbums.addAll(ps);
-        sortList();
+        mModel.addAll(ps, null);
     }
 
     /**
-     * Add all the elements of the input collection assuming they're not already in the adapter
+     * Add all the loaded elements of the input collection assuming they're not already in the
+     * adapter
      * @param ps The elements to add
-     * @return True if at least one iteam has been aded
+     * @return True if at least one item has been added
      */
     public boolean addAllUnique(List<Album> ps) {
-        boolean didChange = false;
+        return merge(prepare(ps));
+    }
+
+    /**
+     * Sorts the loaded albums of the collection ahead of merging them into the adapter. Can be
+     * called from any thread.
+     * @param ps The albums to add
+     * @return The batch to pass to {@link #merge(SortedListModel.Batch)}
+     */
+    public SortedListModel.Batch<Album> prepare(Collection<Album> ps) {
+        List<Album> loaded = new ArrayList<>(ps.size());
         for (Album p : ps) {
-            if (!mAlbums.contains(p) && p.isLoaded()) {
-                mAlbums.add(p);
-                didChange = true;
+            if (p != null && p.isLoaded()) {
+                loaded.add(p);
             }
         }
+        return mModel.prepare(loaded);
+    }
 
-        if (didChange) {
-            sortList();
-        }
-
-        return didChange;
+    /**
+     * Merges albums sorted by {@link #prepare(Collection)} into the adapter. Must be called from
+     * the UI thread, and followed by {@link #notifyDataSetChanged()} if albums were added.
+     * @param batch The sorted albums
+     * @return True if at least one item has been added
+     */
+    public boolean merge(SortedListModel.Batch<Album> batch) {
+        return mModel.merge(batch, null) > 0;
     }
 
     /**
@@ -211,7 +201,7 @@ public class AlbumsAdapter extends BaseAdapter {
      * @return true if the adapter contains the provided album
      */
     public boolean contains(Album p) {
-        return mAlbums.contains(p);
+        return mModel.contains(p);
     }
 
     /**
@@ -219,7 +209,7 @@ public class AlbumsAdapter extends BaseAdapter {
      */
     @Override
     public int getCount() {
-        return mAlbums.size();
+        return mModel.size();
     }
 
     /**
@@ -227,7 +217,7 @@ public class AlbumsAdapter extends BaseAdapter {
      */
     @Override
     public Album getItem(int position) {
-        return mAlbums.get(position);
+        return mModel.get(position);
     }
 
     /**
@@ -235,7 +225,7 @@ public class AlbumsAdapter extends BaseAdapter {
      */
     @Override
     public long getItemId(int position) {
-        return mAlbums.get(position).getRef().hashCode();
+        return mModel.get(position).getRef().hashCode();
     }
 
     /**
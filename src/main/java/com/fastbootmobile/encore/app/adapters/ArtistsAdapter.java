@@ -41,11 +41,7 @@ import com.fastbootmobile.encore.app.ui.AlbumArtImageView;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.utils.Utils;
 
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
 
 
 /**
@@ -149,45 +145,35 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
         }
     };
 
-    private final List<Artist> mArtists;
+    private final SortedListModel<Artist> mModel;
     private final Handler mHandler;
-    private final Comparator<Artist> mComparator;
+
+    private final SortedListModel.Listener mInsertListener = new SortedListModel.Listener() {
+        @Override
+        public void onItemRangeInserted(int position, int count) {
+            notifyItemRangeInserted(position, count);
+        }
+    };
 
     /**
      * Default constructor
      */
     public ArtistsAdapter() {
-        mArtists = new ArrayList<>();
         mHandler = new Handler();
-        mComparator = new Comparator<Artist>() {
+        mModel = new SortedListModel<>(new SortedListModel.KeyProvider<Artist>() {
             @Override
-            public int compare(Artist artist, Artist artist2) {
-                if (artist.isLoaded() && artist2.isLoaded() && artist.getName() != null
-                        && artist2.getName() != null) {
-                    return artist.getName().toLowerCase().compareTo(artist2.getName().toLowerCase());
-                } else {
-                    return artist.getRef().compareTo(artist2.getRef());
-                }
+            public String getSortKey(Artist artist) {
+                return artist.isLoaded() ? artist.getName() : null;
             }
-        };
-    }
-
-    /**
-     * Sorts the list in alphabetical order
-     */
-    private void sortList() {
-        Collections.sort(mArtists, mComparator);
+        });
     }
 
     /**
-     * Adds an item to the adapter
+     * Adds an item to the adapter if it's not already there
      * @param a The artist to add
      */
     public void addItem(Artist a) {
-        synchronized (mArtists) {
-            mArtists.add(a);
-            sortList();
-        }
+        mModel.add(a, null);
     }
 
     /**
@@ -195,23 +181,15 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
      * @param a The artist to add
      */
     public void addItemUnique(Artist a) {
-        synchronized (mArtists) {
-            if (!mArtists.contains(a)) {
-                mArtists.add(a);
-                sortList();
-            }
-        }
+        mModel.add(a, null);
     }
 
     /**
-     * Add all the elements of the collection to the adapter
+     * Add all the elements of the collection to the adapter, if they're not already there
      * @param ps The collection of Artist to add
      */
     public void addAll(Collection<Artist> ps) {
-        synchronized (mArtists) {
-            mArtists.addAll(ps);
-            sortList();
-        }
+        mModel.addAll(ps, null);
     }
 
     /**
@@ -219,19 +197,26 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
      * @param ps The collection of Artist to add
      */
     public void addAllUnique(Collection<Artist> ps) {
-        synchronized (mArtists) {
-            boolean didChange = false;
-            for (Artist p : ps) {
-                if (!mArtists.contains(p) && p != null) {
-                    mArtists.add(p);
-                    didChange = true;
-                }
-            }
+        mModel.addAll(ps, null);
+    }
 
-            if (didChange) {
-                sortList();
-            }
-        }
+    /**
+     * Sorts artists ahead of merging them into the adapter. Can be called from any thread.
+     * @param ps The artists to add
+     * @return The batch to pass to {@link #merge(SortedListModel.Batch)}
+     */
+    public SortedListModel.Batch<Artist> prepare(Collection<Artist> ps) {
+        return mModel.prepare(ps);
+    }
+
+    /**
+     * Merges artists sorted by {@link #prepare(Collection)} into the adapter, and notifies the
+     * inserted ranges. Must be called from the UI thread.
+     * @param batch The sorted artists
+     * @return The number of artists inserted
+     */
+    public int merge(SortedListModel.Batch<Artist> batch) {
+        return mModel.merge(batch, mInsertListener);
     }
 
     /**
@@ -240,9 +225,25 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
      * @return true if the adapter contains the item, false otherwise
      */
     public boolean contains(final Artist p) {
-        synchronized (mArtists) {
-            return mArtists.contains(p);
+        return mModel.contains(p);
+    }
+
+    /**
+     * Updates an artist of the adapter, moving it if its name changed, and notifies the change.
+     * Must be called from the UI thread.
+     * @param a The updated artist
+     */
+    public void update(final Artist a) {
+        final int from = mModel.indexOf(a);
+        if (from < 0) {
+            return;
+        }
+
+        final int to = mModel.update(a);
+        if (from != to) {
+            notifyItemMoved(from, to);
         }
+        notifyItemChanged(to);
     }
 
     /**
@@ -251,9 +252,7 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
      * @return The index of the item, or -1 if not found
      */
     public int indexOf(final Artist a) {
-        synchronized (mArtists) {
-            return mArtists.indexOf(a);
-        }
+        return mModel.indexOf(a);
     }
 
     /**
@@ -313,9 +312,7 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
      */
     @Override
     public int getItemCount() {
-        synchronized (mArtists) {
-            return mArtists.size();
-        }
+        return mModel.size();
     }
 
     /**
@@ -324,8 +321,6 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
      * @return The {@link com.fastbootmobile.encore.model.Artist} at the provided position
      */
     public Artist getItem(int position) {
-        synchronized (mArtists) {
-            return mArtists.get(position);
-        }
+        return mModel.get(position);
     }
 }
\ No newline at end of file
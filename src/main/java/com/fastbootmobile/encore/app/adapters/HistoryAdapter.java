@@ -41,6 +41,7 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
@@ -60,8 +61,7 @@ public class HistoryAdapter extends BaseAdapter {
         }
     };
 
-    private ListenLogger mLogger;
-    private List<ListenLogger.LogEntry> mEntries;
+    private List<ListenLogger.LogEntry> mEntries = new ArrayList<>();
     private View.OnClickListener mAlbumArtClickListener = new View.OnClickListener() {
         @TargetApi(Build.VERSION_CODES.LOLLIPOP)
         @Override
@@ -98,10 +98,14 @@ public class HistoryAdapter extends BaseAdapter {
         }
     };
 
-    public HistoryAdapter(Context ctx) {
-        mLogger = new ListenLogger(ctx);
-        mEntries = mLogger.getEntries(250);
-        sortByTime(mEntries);
+    /**
+     * Sets the entries to display. The entries are read from the database in the background
+     * by the fragment, see {@link ListenLogger#getEntries(int)}.
+     * @param entries The entries, most recent first
+     */
+    public void setEntries(List<ListenLogger.LogEntry> entries) {
+        mEntries = entries;
+        notifyDataSetChanged();
     }
 
     @Override
@@ -32,19 +32,19 @@ import com.fastbootmobile.encore.app.ui.AlbumArtImageView;
 import com.fastbootmobile.encore.app.ui.PlayPauseDrawable;
 import com.fastbootmobile.encore.framework.ListenLogger;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
+import com.fastbootmobile.encore.framework.PlaybackQueueMirror;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.service.PlaybackService;
 
-import java.util.List;
-
 /**
- * Adapter for playback queue
+ * Adapter for playback queue, backed by the {@link PlaybackQueueMirror}. Call
+ * notifyDataSetChanged() when the mirror changes.
  */
 public class PlaybackQueueAdapter extends BaseAdapter {
     private ListenLogger mListenLogger;
-    private List<Song> mQueue;
+    private final PlaybackQueueMirror mQueue = PlaybackQueueMirror.getDefault();
     private ViewHolder mCurrentTrackTag;
     private View.OnClickListener mPlayFabClickListener;
     private View.OnClickListener mNextClickListener;
@@ -88,36 +88,18 @@ public class PlaybackQueueAdapter extends BaseAdapter {
         return mCurrentTrackTag;
     }
 
-    public void setPlaybackQueue(List<Song> queue) {
-        synchronized (this) {
-            mQueue = queue;
-            notifyDataSetChanged();
-        }
-    }
-
     @Override
     public int getCount() {
-        synchronized (this) {
-            if (mQueue != null) {
-                return mQueue.size();
-            } else {
-                return 0;
-            }
-        }
+        return mQueue.size();
     }
 
+    /**
+     * @return The song at the provided position, or null if it hasn't been read from the
+     * playback service yet
+     */
     @Override
     public Song getItem(int position) {
-        synchronized (this) {
-            final ProviderAggregator aggregator = ProviderAggregator.getDefault();
-            Song copy = mQueue.get(position);
-
-            if (copy != null) {
-                return aggregator.retrieveSong(copy.getRef(), copy.getProvider());
-            } else {
-                return null;
-            }
-        }
+        return mQueue.getSong(position);
     }
 
     @Override
@@ -133,11 +115,8 @@ public class PlaybackQueueAdapter extends BaseAdapter {
 
         final ProviderAggregator aggregator = ProviderAggregator.getDefault();
         final Resources res = parent.getResources();
-        final Song item;
-        synchronized (this) {
-             item = getItem(position);
-        }
-        final boolean isCurrent = position == PlaybackProxy.getCurrentTrackIndex();
+        final Song item = getItem(position);
+        final boolean isCurrent = position == mQueue.getCurrentIndex();
 
         ViewHolder tag;
 
@@ -219,13 +198,14 @@ public class PlaybackQueueAdapter extends BaseAdapter {
             mCurrentTrackTag = tag;
         }
 
-        if (tag.btnThumbs != null && mListenLogger.isLiked(item.getRef())) {
+        if (tag.btnThumbs != null && item != null && mListenLogger.isLiked(item.getRef())) {
             tag.btnThumbs.setImageResource(R.drawable.ic_thumbs_up);
         } else if (tag.btnThumbs != null) {
             tag.btnThumbs.setImageResource(R.drawable.ic_thumbs_up_gray);
         }
 
-        if (tag.btnThumbsDown != null && mListenLogger.isDisliked(item.getRef())) {
+        if (tag.btnThumbsDown != null && item != null
+                && mListenLogger.isDisliked(item.getRef())) {
             tag.btnThumbsDown.setImageResource(R.drawable.ic_thumb_down);
         } else if (tag.btnThumbsDown != null) {
             tag.btnThumbsDown.setImageResource(R.drawable.ic_thumb_down_gray);
@@ -206,6 +206,16 @@ public class SearchAdapter extends BaseExpandableListAdapter {
         return mMaxCount[group];
     }
 
+    /**
+     * Replaces the current adapter's results with the provided results
+     *
+     * @param searchResults The new results
+     */
+    public void setResults(List<SearchResult> searchResults) {
+        clear();
+        appendResults(searchResults);
+    }
+
     /**
      * Add the results to the current adapter's results
      *
@@ -38,8 +38,6 @@ import com.fastbootmobile.encore.utils.Utils;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -63,6 +61,7 @@ public class SongsListAdapter extends BaseAdapter {
     }
 
     protected List<Song> mSongs;
+    private final SortedListModel<Song> mModel;
     private boolean mShowAlbumArt;
     private RotateAnimation mSyncRotateAnimation;
 
@@ -75,23 +74,36 @@ public class SongsListAdapter extends BaseAdapter {
         }
     };
 
-    private Comparator<Song> mComparator = new Comparator<Song>() {
+    private static final SortedListModel.KeyProvider<Song> SORT_KEY_PROVIDER
+            = new SortedListModel.KeyProvider<Song>() {
         @Override
-        public int compare(Song lhs, Song rhs) {
-            if (lhs.isLoaded() && rhs.isLoaded()) {
-                return lhs.getTitle().compareTo(rhs.getTitle());
-            } else {
-                return lhs.getRef().compareTo(rhs.getRef());
-            }
+        public String getSortKey(Song song) {
+            return song.isLoaded() ? song.getTitle() : null;
         }
     };
 
     /**
-     * Default constructor
+     * Default constructor. Songs are displayed in the order they're added.
      * @param showAlbumArt Whether or not to show album art in front of each item
      */
     public SongsListAdapter(boolean showAlbumArt) {
-        mSongs = new ArrayList<>();
+        this(showAlbumArt, false);
+    }
+
+    /**
+     * @param showAlbumArt Whether or not to show album art in front of each item
+     * @param sorted Whether to keep the songs sorted alphabetically. Large lists should then be
+     *               added through {@link #prepare(Collection)} and
+     *               {@link #merge(SortedListModel.Batch, SortedListModel.Listener)}.
+     */
+    public SongsListAdapter(boolean showAlbumArt, boolean sorted) {
+        if (sorted) {
+            mModel = new SortedListModel<>(SORT_KEY_PROVIDER);
+            mSongs = mModel.getItems();
+        } else {
+            mModel = null;
+            mSongs = new ArrayList<>();
+        }
         mShowAlbumArt = showAlbumArt;
     }
 
@@ -99,7 +111,11 @@ public class SongsListAdapter extends BaseAdapter {
      * Clear the current displayed songs
      */
     public void clear() {
-        mSongs.clear();
+        if (mModel != null) {
+            mModel.clear();
+        } else {
+            mSongs.clear();
+        }
     }
 
     public List<Song> getItems() {
@@ -111,7 +127,9 @@ public class SongsListAdapter extends BaseAdapter {
      * @param song The song to add
      */
     public void put(Song song) {
-        if (!mSongs.contains(song)) {
+        if (mModel != null) {
+            mModel.add(song, null);
+        } else if (!mSongs.contains(song)) {
             mSongs.add(song);
         }
     }
@@ -123,10 +141,52 @@ public class SongsListAdapter extends BaseAdapter {
     }
 
     /**
-     * Sorts songs alphabetically
+     * Sorts the provided songs, ahead of merging them. Only available on sorted adapters, and can
+     * be called from any thread.
+     * @param songs The songs to add
+     * @return The batch to pass to {@link #merge(SortedListModel.Batch, SortedListModel.Listener)}
+     */
+    public SortedListModel.Batch<Song> prepare(Collection<Song> songs) {
+        if (mModel == null) {
+            throw new IllegalStateException("This adapter isn't sorted");
+        }
+        return mModel.prepare(songs);
+    }
+
+    /**
+     * Merges songs sorted by {@link #prepare(Collection)} into the list. Must be called from the
+     * UI thread, and followed by {@link #notifyDataSetChanged()} if songs were inserted.
+     * @param batch The sorted songs
+     * @param listener The listener notified of the positions of the inserted songs, or null
+     * @return The number of songs inserted
+     */
+    public int merge(SortedListModel.Batch<Song> batch, SortedListModel.Listener listener) {
+        if (mModel == null) {
+            throw new IllegalStateException("This adapter isn't sorted");
+        }
+        return mModel.merge(batch, listener);
+    }
+
+    /**
+     * Moves a song to the position matching its updated title. Only available on sorted
+     * adapters, must be called from the UI thread, and followed by {@link #notifyDataSetChanged()}
+     * if the song moved or is displayed.
+     * @param song The updated song
+     * @return The new position of the song, or -1 if the adapter doesn't contain it
+     */
+    public int update(Song song) {
+        if (mModel == null) {
+            throw new IllegalStateException("This adapter isn't sorted");
+        }
+        return mModel.update(song);
+    }
+
+    /**
+     * @param song The song to look for
+     * @return The position of the song, or -1 if the adapter doesn't contain it
      */
-    public void sortAll() {
-        Collections.sort(mSongs, mComparator);
+    public int indexOf(Song song) {
+        return mModel != null ? mModel.indexOf(song) : mSongs.indexOf(song);
     }
 
     /**
@@ -135,7 +195,7 @@ public class SongsListAdapter extends BaseAdapter {
      * @return true if the adapter contains the song, false otherwise
      */
     public boolean contains(Song s) {
-        return mSongs.contains(s);
+        return mModel != null ? mModel.contains(s) : mSongs.contains(s);
     }
 
     /**
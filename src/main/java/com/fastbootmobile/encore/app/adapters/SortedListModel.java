@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.app.adapters;
+
+import com.fastbootmobile.encore.model.BoundEntity;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sorted backing store for the library lists. Items are sorted by the collation key of their
+ * name, then by reference, and each reference is only stored once.
+ *
+ * Adding items is done in two steps: {@link #prepare(Collection)} computes the collation keys
+ * and sorts the new items, and can be called from any thread. {@link #merge(Batch, Listener)}
+ * then merges them into the list in linear time, and must be called from the thread reading the
+ * model (usually the UI thread). The positions of the inserted items are reported as ranges, so
+ * that adapters don't have to reload the whole list. Items whose sort key changed, for instance
+ * items which were added before being loaded, are moved to their new position by
+ * {@link #update(BoundEntity)}.
+ */
+public class SortedListModel<T extends BoundEntity> {
+
+    /**
+     * Interface providing the string an item is sorted by
+     */
+    public interface KeyProvider<T> {
+        /**
+         * @param item The item
+         * @return The string to sort the item by, or null to put the item at the end of the list
+         */
+        String getSortKey(T item);
+    }
+
+    /**
+     * Interface notified of the items inserted by {@link #merge(Batch, Listener)}
+     */
+    public interface Listener {
+        /**
+         * Called once the list has been updated, for each range of consecutive inserted items,
+         * in ascending order of position
+         * @param position The position of the first inserted item
+         * @param count The number of inserted items
+         */
+        void onItemRangeInserted(int position, int count);
+    }
+
+    /**
+     * A sorted batch of items, ready to be merged
+     */
+    public static class Batch<T> {
+        private final List<Entry<T>> mEntries;
+
+        private Batch(List<Entry<T>> entries) {
+            mEntries = entries;
+        }
+
+        /**
+         * @return The number of items in the batch
+         */
+        public int size() {
+            return mEntries.size();
+        }
+    }
+
+    private static class Entry<T> {
+        final T item;
+        final String ref;
+        final CollationKey key;
+
+        Entry(T item, String ref, CollationKey key) {
+            this.item = item;
+            this.ref = ref;
+            this.key = key;
+        }
+    }
+
+    private static final Comparator<Entry<?>> ENTRY_COMPARATOR = new Comparator<Entry<?>>() {
+        @Override
+        public int compare(Entry<?> lhs, Entry<?> rhs) {
+            if (lhs.key != null && rhs.key != null) {
+                final int result = lhs.key.compareTo(rhs.key);
+                if (result != 0) {
+                    return result;
+                }
+            } else if (lhs.key != null) {
+                return -1;
+            } else if (rhs.key != null) {
+                return 1;
+            }
+
+            return lhs.ref.compareTo(rhs.ref);
+        }
+    };
+
+    private final KeyProvider<T> mKeyProvider;
+    private final Map<String, Entry<T>> mEntriesByRef = new HashMap<>();
+    private Entry<T>[] mEntries = newArray(16);
+    private int mSize;
+    private Collator mUpdateCollator;
+
+    private final List<T> mItems = new AbstractList<T>() {
+        @Override
+        public T get(int location) {
+            return SortedListModel.this.get(location);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    };
+
+    /**
+     * Creates an empty model
+     * @param keyProvider The provider of the sort keys of the items
+     */
+    public SortedListModel(KeyProvider<T> keyProvider) {
+        mKeyProvider = keyProvider;
+    }
+
+    /**
+     * Computes the sort keys of the provided items and sorts them. This doesn't modify the model,
+     * and can be called from any thread.
+     * @param items The items to add. Null items are ignored.
+     * @return The batch to pass to {@link #merge(Batch, Listener)}
+     */
+    public Batch<T> prepare(Collection<? extends T> items) {
+        // Collators aren't thread-safe, get a new one each time
+        final Collator collator = Collator.getInstance();
+        collator.setStrength(Collator.SECONDARY);
+
+        final List<Entry<T>> entries = new ArrayList<>(items.size());
+        for (T item : items) {
+            if (item != null && item.getRef() != null) {
+                final String sortKey = mKeyProvider.getSortKey(item);
+                entries.add(new Entry<>(item, item.getRef(),
+                        sortKey != null ? collator.getCollationKey(sortKey) : null));
+            }
+        }
+
+        Collections.sort(entries, ENTRY_COMPARATOR);
+        return new Batch<>(entries);
+    }
+
+    /**
+     * Merges a prepared batch into the model. Items already in the model are skipped.
+     * @param batch The batch returned by {@link #prepare(Collection)}
+     * @param listener The listener notified of the inserted ranges, or null
+     * @return The number of items inserted
+     */
+    public int merge(Batch<T> batch, Listener listener) {
+        final List<Entry<T>> incoming = new ArrayList<>(batch.mEntries.size());
+        for (Entry<T> entry : batch.mEntries) {
+            if (!mEntriesByRef.containsKey(entry.ref)) {
+                mEntriesByRef.put(entry.ref, entry);
+                incoming.add(entry);
+            }
+        }
+
+        final int count = incoming.size();
+        if (count == 0) {
+            return 0;
+        }
+
+        if (mSize + count > mEntries.length) {
+            Entry<T>[] entries = newArray(Math.max(mSize + count, mEntries.length * 2));
+            System.arraycopy(mEntries, 0, entries, 0, mSize);
+            mEntries = entries;
+        }
+
+        // Insert from the end: look up the position of each new item among the old ones, and
+        // shift the old items after it in one copy. Old items before the first insertion point
+        // don't move. Ranges are found in descending order, as pairs of (position, count).
+        final int[] ranges = new int[count * 2];
+        int rangeCount = 0;
+        int oldEnd = mSize;
+
+        for (int i = count - 1; i >= 0; --i) {
+            final Entry<T> entry = incoming.get(i);
+            final int position = insertionPoint(entry, oldEnd);
+
+            System.arraycopy(mEntries, position, mEntries, position + i + 1, oldEnd - position);
+            mEntries[position + i] = entry;
+
+            if (rangeCount > 0 && ranges[rangeCount - 2] == position + i + 1) {
+                ranges[rangeCount - 2]--;
+                ranges[rangeCount - 1]++;
+            } else {
+                ranges[rangeCount++] = position + i;
+                ranges[rangeCount++] = 1;
+            }
+            oldEnd = position;
+        }
+        mSize += count;
+
+        if (listener != null) {
+            for (int i = rangeCount - 2; i >= 0; i -= 2) {
+                listener.onItemRangeInserted(ranges[i], ranges[i + 1]);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Adds all the provided items. Prefer {@link #prepare(Collection)} and
+     * {@link #merge(Batch, Listener)} for large collections, to compute the keys off the UI thread.
+     * @return The number of items inserted
+     */
+    public int addAll(Collection<? extends T> items, Listener listener) {
+        return merge(prepare(items), listener);
+    }
+
+    /**
+     * Adds an item if it's not already in the model
+     * @return true if the item has been added
+     */
+    public boolean add(T item, Listener listener) {
+        return merge(prepare(Collections.singletonList(item)), listener) > 0;
+    }
+
+    /**
+     * Replaces an item of the model, and moves it to the position matching its current sort key.
+     * Items whose sort key didn't change keep their position. Must be called from the thread
+     * reading the model.
+     * @param item The updated item
+     * @return The new position of the item, or -1 if no item with the same reference is in the
+     * model
+     */
+    public int update(T item) {
+        final int from = indexOf(item);
+        if (from < 0) {
+            return -1;
+        }
+
+        if (mUpdateCollator == null) {
+            mUpdateCollator = Collator.getInstance();
+            mUpdateCollator.setStrength(Collator.SECONDARY);
+        }
+
+        final Entry<T> previous = mEntries[from];
+        final String sortKey = mKeyProvider.getSortKey(item);
+        final CollationKey key = sortKey != null ? mUpdateCollator.getCollationKey(sortKey) : null;
+
+        if (key == null ? previous.key == null
+                : previous.key != null && key.compareTo(previous.key) == 0) {
+            // Same place in the list, only the item changed
+            if (previous.item != item) {
+                final Entry<T> entry = new Entry<>(item, previous.ref, previous.key);
+                mEntriesByRef.put(entry.ref, entry);
+                mEntries[from] = entry;
+            }
+            return from;
+        }
+
+        final Entry<T> entry = new Entry<>(item, item.getRef(), key);
+        mEntriesByRef.put(entry.ref, entry);
+
+        // Take the old entry out, then binary-insert the new one among the others
+        System.arraycopy(mEntries, from + 1, mEntries, from, mSize - from - 1);
+        final int to = insertionPoint(entry, mSize - 1);
+        System.arraycopy(mEntries, to, mEntries, to + 1, mSize - 1 - to);
+        mEntries[to] = entry;
+
+        return to;
+    }
+
+    /**
+     * @return true if an item with the same reference is in the model
+     */
+    public boolean contains(T item) {
+        return item != null && mEntriesByRef.containsKey(item.getRef());
+    }
+
+    /**
+     * Returns the position of an item, in logarithmic time
+     * @param item The item to look for
+     * @return The position of the item with the same reference, or -1 if not found
+     */
+    public int indexOf(T item) {
+        final Entry<T> entry = item != null ? mEntriesByRef.get(item.getRef()) : null;
+        if (entry == null) {
+            return -1;
+        }
+
+        final int position = insertionPoint(entry, mSize) - 1;
+        return position >= 0 && mEntries[position] == entry ? position : -1;
+    }
+
+    public T get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("Invalid position " + position + ", size is "
+                    + mSize);
+        }
+        return mEntries[position].item;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return A read-only view of the items, in order. The view follows the changes of the model.
+     */
+    public List<T> getItems() {
+        return Collections.unmodifiableList(mItems);
+    }
+
+    /**
+     * Removes all the items
+     */
+    public void clear() {
+        for (int i = 0; i < mSize; ++i) {
+            mEntries[i] = null;
+        }
+        mSize = 0;
+        mEntriesByRef.clear();
+    }
+
+    /**
+     * @return The position of the first of the end first items which sorts after the entry
+     */
+    private int insertionPoint(Entry<T> entry, int end) {
+        int low = 0;
+        int high = end;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (ENTRY_COMPARATOR.compare(mEntries[mid], entry) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Entry<T>[] newArray(int size) {
+        return (Entry<T>[]) new Entry[size];
+    }
+}
@@ -33,6 +33,7 @@ import android.widget.ImageView;
 import com.fastbootmobile.encore.app.AlbumActivity;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.AlbumsAdapter;
+import com.fastbootmobile.encore.app.adapters.SortedListModel;
 import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
@@ -154,12 +155,15 @@ public class AlbumsFragment extends Fragment implements ILocalCallback, Provider
      */
     @Override
     public void onAlbumUpdate(final List<Album> a) {
-        // AddAllUnique only adds loaded entities
-        if (mAdapter.addAllUnique(a)) {
+        // Only loaded entities are kept. Sort them here, and merge them on the UI thread.
+        final SortedListModel.Batch<Album> albums = mAdapter.prepare(a);
+        if (albums.size() > 0) {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    mAdapter.notifyDataSetChanged();
+                    if (mAdapter.merge(albums)) {
+                        mAdapter.notifyDataSetChanged();
+                    }
                 }
             });
         }
@@ -212,10 +216,10 @@ public class AlbumsFragment extends Fragment implements ILocalCallback, Provider
         });
     }
 
-    private class GetAlbumsTask extends AsyncTask<Void, Void, List<Album>> {
+    private class GetAlbumsTask extends AsyncTask<Void, Void, SortedListModel.Batch<Album>> {
 
         @Override
-        protected List<Album> doInBackground(Void... params) {
+        protected SortedListModel.Batch<Album> doInBackground(Void... params) {
             List<Album> outputList = new ArrayList<>();
             List<Album> cachedAlbums = ProviderAggregator.getDefault().getCache().getAllAlbums();
 
@@ -224,13 +228,12 @@ public class AlbumsFragment extends Fragment implements ILocalCallback, Provider
                         album.getProvider()));
             }
 
-            return outputList;
+            return mAdapter.prepare(outputList);
         }
 
         @Override
-        protected void onPostExecute(List<Album> albums) {
-            mAdapter.addAllUnique(albums);
-            mAdapter.notifyDataSetChanged();
+        protected void onPostExecute(SortedListModel.Batch<Album> albums) {
+            mAdapter.merge(albums);
 
             if (mAdapterSet) {
                 mAdapter.notifyDataSetChanged();
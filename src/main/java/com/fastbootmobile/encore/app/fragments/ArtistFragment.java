@@ -76,8 +76,10 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.ProviderCache;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
+import com.fastbootmobile.encore.providers.UpdateFilter;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
 import com.fastbootmobile.encore.service.PlaybackService;
 import com.fastbootmobile.encore.utils.Utils;
@@ -129,6 +131,37 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
         }
     };
 
+    /**
+     * Only let through the updates related to the displayed artist. Artist updates are all
+     * accepted as the similar artists tab also needs them.
+     */
+    private UpdateFilter mUpdateFilter = new UpdateFilter() {
+        @Override
+        public boolean acceptSong(Song song) {
+            return mArtist.getRef().equals(song.getArtist());
+        }
+
+        @Override
+        public boolean acceptAlbum(Album album) {
+            // Only look at the cache, songs we don't know yet might be from the artist
+            final ProviderCache cache = ProviderAggregator.getDefault().getCache();
+            Iterator<String> songs = album.songs();
+            while (songs.hasNext()) {
+                String songRef = songs.next();
+                Song song = cache.getSong(songRef);
+                if (song == null || !song.isLoaded()
+                        || mArtist.getRef().equals(song.getArtist())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean acceptPlaylist(Playlist playlist) {
+            return false;
+        }
+    };
 
     private BasePlaybackCallback mPlaybackCallback = new BasePlaybackCallback() {
         @Override
@@ -646,7 +679,7 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
 
         // Register for updates
         PlaybackProxy.addCallback(mPlaybackCallback);
-        ProviderAggregator.getDefault().addUpdateCallback(this);
+        ProviderAggregator.getDefault().addUpdateCallback(this, mUpdateFilter);
     }
 
     /**
@@ -747,19 +780,10 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
      */
     @Override
     public void onSongUpdate(List<Song> s) {
-        boolean hasThisArtist = false;
-        for (Song song : s) {
-            if (mArtist.getRef().equals(song.getArtist())) {
-                hasThisArtist = true;
-                break;
-            }
-        }
-
-        if (hasThisArtist) {
-            // TODO: Instead of updating everything, update only the relevant entries
-            mHandler.removeCallbacks(mUpdateAlbumsRunnable);
-            mHandler.postDelayed(mUpdateAlbumsRunnable, 300);
-        }
+        // Only songs of this artist get through the update filter
+        // TODO: Instead of updating everything, update only the relevant entries
+        mHandler.removeCallbacks(mUpdateAlbumsRunnable);
+        mHandler.postDelayed(mUpdateAlbumsRunnable, 300);
     }
 
     /**
@@ -767,29 +791,10 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
      */
     @Override
     public void onAlbumUpdate(List<Album> a) {
-        boolean hasThisArtist = false;
-        final ProviderAggregator aggregator = ProviderAggregator.getDefault();
-        for (Album album : a) {
-            Iterator<String> songs = album.songs();
-            while (songs.hasNext()) {
-                String songRef = songs.next();
-                Song song = aggregator.retrieveSong(songRef, album.getProvider());
-                if (song != null && mArtist.getRef().equals(song.getArtist())) {
-                    hasThisArtist = true;
-                    break;
-                }
-            }
-
-            if (hasThisArtist) {
-                break;
-            }
-        }
-
-        if (hasThisArtist) {
-            // TODO: Instead of updating everything, update only the relevant entries
-            mHandler.removeCallbacks(mUpdateAlbumsRunnable);
-            mHandler.postDelayed(mUpdateAlbumsRunnable, 300);
-        }
+        // Only albums containing songs of this artist get through the update filter
+        // TODO: Instead of updating everything, update only the relevant entries
+        mHandler.removeCallbacks(mUpdateAlbumsRunnable);
+        mHandler.postDelayed(mUpdateAlbumsRunnable, 300);
     }
 
     @Override
@@ -30,6 +30,7 @@ import android.view.ViewGroup;
 
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.ArtistsAdapter;
+import com.fastbootmobile.encore.app.adapters.SortedListModel;
 import com.fastbootmobile.encore.app.ui.SpaceItemDecorator;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Album;
@@ -39,6 +40,7 @@ import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
+import com.fastbootmobile.encore.providers.LibrarySnapshot;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 
@@ -148,10 +150,7 @@ public class ArtistsListFragment extends Fragment implements ILocalCallback {
             @Override
             public void run() {
                 for (Artist a : artists) {
-                    int index = mAdapter.indexOf(a);
-                    if (index >= 0) {
-                        mAdapter.notifyItemChanged(index);
-                    }
+                    mAdapter.update(a);
                 }
             }
         });
@@ -171,16 +170,29 @@ public class ArtistsListFragment extends Fragment implements ILocalCallback {
     public void onSearchResult(List<SearchResult> searchResult) {
     }
 
-    private class GetArtistsTask extends AsyncTask<Void, Void, List<Artist>> {
+    private class GetArtistsTask extends AsyncTask<Void, Void, SortedListModel.Batch<Artist>> {
 
         @Override
-        protected List<Artist> doInBackground(Void... params) {
+        protected SortedListModel.Batch<Artist> doInBackground(Void... params) {
             List<ProviderConnection> providers = PluginsLookup.getDefault().getAvailableProviders();
             final List<Artist> artists = new ArrayList<>();
+            final LibrarySnapshot.Receiver receiver = new LibrarySnapshot.BaseReceiver() {
+                @Override
+                public void onArtists(List<Artist> providerArtists) {
+                    artists.addAll(providerArtists);
+                }
+            };
+
             for (ProviderConnection providerConnection : providers) {
                 try {
                     IMusicProvider provider = providerConnection.getBinder();
                     if (provider != null) {
+                        // Get the artists in one transfer if the provider supports it
+                        if (ProviderAggregator.getDefault().fetchLibrary(providerConnection,
+                                LibrarySnapshot.CONTENT_ARTISTS, false, receiver)) {
+                            continue;
+                        }
+
                         List<Artist> providerArtists = provider.getArtists();
                         if (providerArtists != null) {
                             artists.addAll(providerArtists);
@@ -193,15 +205,14 @@ public class ArtistsListFragment extends Fragment implements ILocalCallback {
                 }
             }
 
-            mAdapter.addAllUnique(artists);
-            return artists;
+            return mAdapter.prepare(artists);
         }
 
         @Override
-        protected void onPostExecute(List<Artist> artists) {
-            if (mAdapterSet) {
-                mAdapter.notifyDataSetChanged();
-            } else {
+        protected void onPostExecute(SortedListModel.Batch<Artist> artists) {
+            mAdapter.merge(artists);
+
+            if (!mAdapterSet) {
                 mAdapterSet = true;
                 mArtistLayout.setAdapter(mAdapter);
             }
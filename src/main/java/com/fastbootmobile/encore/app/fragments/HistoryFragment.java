@@ -16,6 +16,8 @@
 package com.fastbootmobile.encore.app.fragments;
 
 import android.app.Activity;
+import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.support.v4.app.Fragment;
@@ -59,8 +61,9 @@ public class HistoryFragment extends Fragment implements ILocalCallback {
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
         ListView rootView = (ListView) inflater.inflate(R.layout.fragment_history, container, false);
-        mAdapter = new HistoryAdapter(container.getContext());
+        mAdapter = new HistoryAdapter();
         rootView.setAdapter(mAdapter);
+        new GetHistoryTask(container.getContext()).execute();
         rootView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
@@ -133,4 +136,23 @@ public class HistoryFragment extends Fragment implements ILocalCallback {
     @Override
     public void onSearchResult(List<SearchResult> searchResult) {
     }
+
+    private class GetHistoryTask extends AsyncTask<Void, Void, List<ListenLogger.LogEntry>> {
+        private final Context mContext;
+
+        GetHistoryTask(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        protected List<ListenLogger.LogEntry> doInBackground(Void... params) {
+            ListenLogger logger = new ListenLogger(mContext);
+            return HistoryAdapter.sortByTime(logger.getEntries(250));
+        }
+
+        @Override
+        protected void onPostExecute(List<ListenLogger.LogEntry> entries) {
+            mAdapter.setEntries(entries);
+        }
+    }
 }
\ No newline at end of file
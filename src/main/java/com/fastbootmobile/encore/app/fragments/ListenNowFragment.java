@@ -56,6 +56,7 @@ import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
+import com.fastbootmobile.encore.providers.LibrarySnapshot;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.utils.Utils;
@@ -295,7 +296,20 @@ public class ListenNowFragment extends Fragment implements ILocalCallback {
 
                 // Get the list of songs first
                 final List<ProviderConnection> providers = plugins.getAvailableProviders();
+                final LibrarySnapshot.Receiver receiver = new LibrarySnapshot.BaseReceiver() {
+                    @Override
+                    public void onSongs(List<Song> providerSongs) {
+                        songs.addAll(providerSongs);
+                    }
+                };
+
                 for (ProviderConnection provider : providers) {
+                    // Get all the songs in one transfer if the provider supports it
+                    if (ProviderAggregator.getDefault().fetchLibrary(provider,
+                            LibrarySnapshot.CONTENT_SONGS, false, receiver)) {
+                        continue;
+                    }
+
                     int limit = 50;
                     int offset = 0;
 
@@ -50,6 +50,7 @@ import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
 import com.fastbootmobile.encore.app.ui.PlayPauseDrawable;
 import com.fastbootmobile.encore.framework.ListenLogger;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
+import com.fastbootmobile.encore.framework.PlaybackQueueMirror;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.Playlist;
@@ -63,7 +64,6 @@ import com.fastbootmobile.encore.service.PlaybackService;
 import com.fastbootmobile.encore.utils.Utils;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -112,7 +112,6 @@ public class PlaybackQueueFragment extends Fragment {
         @Override
         public void onSongStarted(final boolean buffering, Song s) throws RemoteException {
             mHandler.sendEmptyMessage(MSG_UPDATE_SEEKBAR);
-            mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
             mHandler.obtainMessage(MSG_UPDATE_PLAYSTATE,
                     buffering ? PLAYSTATE_ARG1_BUFFERING : PLAYSTATE_ARG1_NOT_BUFFERING,
                     PlayPauseDrawable.SHAPE_PAUSE).sendToTarget();
@@ -130,28 +129,19 @@ public class PlaybackQueueFragment extends Fragment {
             mHandler.obtainMessage(MSG_UPDATE_PLAYSTATE,
                     PLAYSTATE_ARG1_NOT_BUFFERING, PlayPauseDrawable.SHAPE_PAUSE).sendToTarget();
         }
+    };
 
+    private PlaybackQueueMirror.Listener mQueueListener = new PlaybackQueueMirror.Listener() {
         @Override
-        public void onPlaybackQueueChanged() throws RemoteException {
-            mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
+        public void onQueueMirrorChanged() {
+            updateQueueLayout();
         }
     };
 
     private ILocalCallback mProviderCallback = new ILocalCallback() {
         @Override
         public void onSongUpdate(List<Song> s) {
-            boolean contains = false;
-            final List<Song> playbackQueue = PlaybackProxy.getCurrentPlaybackQueue();
-            for (Song song : s) {
-                if (playbackQueue.contains(song)) {
-                    contains = true;
-                    break;
-                }
-            }
-
-            if (contains) {
-                mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
-            }
+            mHandler.obtainMessage(MSG_SONGS_UPDATED, s).sendToTarget();
         }
 
         @Override
@@ -168,24 +158,7 @@ public class PlaybackQueueFragment extends Fragment {
 
         @Override
         public void onArtistUpdate(List<Artist> a) {
-            boolean contains = false;
-            List<Song> playbackQueue = PlaybackProxy.getCurrentPlaybackQueue();
-            for (Song song : playbackQueue) {
-                for (Artist artist : a) {
-                    if (artist.getRef().equals(song.getArtist())) {
-                        contains = true;
-                        break;
-                    }
-                }
-
-                if (contains) {
-                    break;
-                }
-            }
-
-            if (contains) {
-                mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
-            }
+            mHandler.obtainMessage(MSG_ARTISTS_UPDATED, a).sendToTarget();
         }
 
         @Override
@@ -200,8 +173,9 @@ public class PlaybackQueueFragment extends Fragment {
     private static final int SEEK_UPDATE_DELAY = 1000/15;
 
     private static final int MSG_UPDATE_SEEKBAR = 1;
-    private static final int MSG_UPDATE_QUEUE = 2;
+    private static final int MSG_SONGS_UPDATED = 2;
     private static final int MSG_UPDATE_PLAYSTATE = 3;
+    private static final int MSG_ARTISTS_UPDATED = 4;
 
     private static final int PLAYSTATE_ARG1_NOT_BUFFERING = 0;
     private static final int PLAYSTATE_ARG1_BUFFERING = 1;
@@ -220,6 +194,7 @@ public class PlaybackQueueFragment extends Fragment {
     private View.OnClickListener mDislikeClickListener;
     private View.OnClickListener mAlbumArtClickListener;
     private View.OnClickListener mShuffleClickListener;
+    private int mScrolledTrackIndex = -1;
 
     private static class PlaybackQueueHandler extends Handler {
         private WeakReference<PlaybackQueueFragment> mParent;
@@ -229,10 +204,19 @@ public class PlaybackQueueFragment extends Fragment {
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_UPDATE_QUEUE:
-                    mParent.get().updateQueueLayout();
+                case MSG_SONGS_UPDATED:
+                    if (mParent.get().isShowingSongs((List<Song>) msg.obj)) {
+                        mParent.get().updateQueueLayout();
+                    }
+                    break;
+
+                case MSG_ARTISTS_UPDATED:
+                    if (mParent.get().isShowingArtists((List<Artist>) msg.obj)) {
+                        mParent.get().updateQueueLayout();
+                    }
                     break;
 
                 case MSG_UPDATE_SEEKBAR:
@@ -482,10 +466,9 @@ public class PlaybackQueueFragment extends Fragment {
 
         ProviderAggregator.getDefault().addUpdateCallback(mProviderCallback);
 
-        if (!mHandler.hasMessages(MSG_UPDATE_QUEUE)) {
-            mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
-            mHandler.sendEmptyMessageDelayed(MSG_UPDATE_QUEUE, 500);
-        }
+        // The mirror notifies us once it's up to date with the service
+        mScrolledTrackIndex = -1;
+        PlaybackQueueMirror.getDefault().addListener(mQueueListener);
     }
 
     @Override
@@ -495,27 +478,77 @@ public class PlaybackQueueFragment extends Fragment {
         // Remove callback on various places
         PlaybackProxy.removeCallback(mPlaybackListener);
         ProviderAggregator.getDefault().removeUpdateCallback(mProviderCallback);
+        PlaybackQueueMirror.getDefault().removeListener(mQueueListener);
 
         // Stop updating the seekbar
         mHandler.removeMessages(MSG_UPDATE_SEEKBAR);
     }
 
     public void updateQueueLayout() {
-        final List<Song> songs = new ArrayList<>(PlaybackProxy.getCurrentPlaybackQueue());
-        mAdapter.setPlaybackQueue(songs);
+        if (mRootView == null) {
+            return;
+        }
+
+        final PlaybackQueueMirror queue = PlaybackQueueMirror.getDefault();
+        mAdapter.notifyDataSetChanged();
 
-        final int trackIndex = PlaybackProxy.getCurrentTrackIndex();
-        if (trackIndex >= 0) {
+        // Only scroll when the current track moves, not every time songs are read
+        final int trackIndex = queue.getCurrentIndex();
+        if (trackIndex >= 0 && trackIndex != mScrolledTrackIndex) {
+            mScrolledTrackIndex = trackIndex;
             mListView.smoothScrollToPosition(trackIndex + 1);
         }
 
-        if (songs.size() <= 0) {
+        if (queue.isSynced() && queue.size() <= 0) {
             mRootView.findViewById(R.id.txtEmptyQueue).setVisibility(View.VISIBLE);
         } else {
             mRootView.findViewById(R.id.txtEmptyQueue).setVisibility(View.GONE);
         }
     }
 
+    /**
+     * @return true if one of the songs is visible in the queue
+     */
+    private boolean isShowingSongs(List<Song> songs) {
+        if (mListView == null) {
+            return false;
+        }
+
+        final PlaybackQueueMirror queue = PlaybackQueueMirror.getDefault();
+        final int last = Math.min(mListView.getLastVisiblePosition(), queue.size() - 1);
+        for (int i = Math.max(0, mListView.getFirstVisiblePosition()); i <= last; ++i) {
+            final String ref = queue.getRef(i);
+            for (Song song : songs) {
+                if (ref != null && ref.equals(song.getRef())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a song of one of the artists is visible in the queue
+     */
+    private boolean isShowingArtists(List<Artist> artists) {
+        if (mListView == null) {
+            return false;
+        }
+
+        final int last = Math.min(mListView.getLastVisiblePosition(), mAdapter.getCount() - 1);
+        for (int i = Math.max(0, mListView.getFirstVisiblePosition()); i <= last; ++i) {
+            final Song song = mAdapter.getItem(i);
+            if (song == null) continue;
+
+            for (Artist artist : artists) {
+                if (artist != null && artist.getRef().equals(song.getArtist())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public void updateSeekbar() {
         PlaybackQueueAdapter.ViewHolder tag = mAdapter.getCurrentTrackTag();
 
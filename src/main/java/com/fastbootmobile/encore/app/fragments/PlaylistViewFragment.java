@@ -67,8 +67,10 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.ProviderCache;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
+import com.fastbootmobile.encore.providers.UpdateFilter;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
 import com.fastbootmobile.encore.service.PlaybackService;
 import com.fastbootmobile.encore.utils.Utils;
@@ -107,6 +109,51 @@ public class PlaylistViewFragment extends MaterialReelBaseFragment implements IL
     private TextView mTvPlaylistName;
     private boolean mIsSpecialPlaylist;
 
+    /**
+     * Only let through the updates related to the displayed playlist
+     */
+    private UpdateFilter mUpdateFilter = new UpdateFilter() {
+        @Override
+        public boolean acceptSong(Song song) {
+            return containsSong(song.getRef());
+        }
+
+        @Override
+        public boolean acceptAlbum(Album album) {
+            return false;
+        }
+
+        @Override
+        public boolean acceptArtist(Artist artist) {
+            // Only look at the cache, songs we don't know yet might be from the artist
+            final ProviderCache cache = ProviderAggregator.getDefault().getCache();
+            Iterator<String> songsRef = mPlaylist.songs();
+            while (songsRef.hasNext()) {
+                Song song = cache.getSong(songsRef.next());
+                if (song == null || !song.isLoaded()
+                        || artist.getRef().equals(song.getArtist())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean acceptPlaylist(Playlist playlist) {
+            return playlist.equals(mPlaylist);
+        }
+
+        private boolean containsSong(String ref) {
+            Iterator<String> songsRef = mPlaylist.songs();
+            while (songsRef.hasNext()) {
+                if (ref.equals(songsRef.next())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    };
+
     private static class PlaylistViewHandler extends Handler {
         private WeakReference<PlaylistViewFragment> mParent;
 
@@ -429,7 +476,8 @@ public class PlaylistViewFragment extends MaterialReelBaseFragment implements IL
     public void onResume() {
         super.onResume();
 
-        ProviderAggregator.getDefault().addUpdateCallback(PlaylistViewFragment.this);
+        ProviderAggregator.getDefault().addUpdateCallback(PlaylistViewFragment.this,
+                mUpdateFilter);
         PlaybackProxy.addCallback(mPlaybackCallback);
         updateFabStatus();
 
@@ -776,31 +824,12 @@ public class PlaylistViewFragment extends MaterialReelBaseFragment implements IL
 
     @Override
     public void onSongUpdate(List<Song> s) {
-        // We check if the song belongs to this playlist
-        boolean hasPlaylist = false;
-        Iterator<String> songsRef = mPlaylist.songs();
-        while (songsRef.hasNext()) {
-            String ref = songsRef.next();
-            for (Song song : s) {
-                if (song.getRef().equals(ref)) {
-                    hasPlaylist = true;
-                    break;
-                }
-            }
-
-            if (hasPlaylist) {
-                break;
-            }
+        // Only songs of this playlist get through the update filter
+        if (!mHandler.hasMessages(UPDATE_DATA_SET)) {
+            mHandler.sendEmptyMessage(UPDATE_DATA_SET);
         }
-
-        // It does, update the list then
-        if (hasPlaylist) {
-            if (!mHandler.hasMessages(UPDATE_DATA_SET)) {
-                mHandler.sendEmptyMessage(UPDATE_DATA_SET);
-            }
-            if (!mHandler.hasMessages(UPDATE_OFFLINE_STATUS)) {
-                mHandler.sendEmptyMessage(UPDATE_OFFLINE_STATUS);
-            }
+        if (!mHandler.hasMessages(UPDATE_OFFLINE_STATUS)) {
+            mHandler.sendEmptyMessage(UPDATE_OFFLINE_STATUS);
         }
     }
 
@@ -810,14 +839,12 @@ public class PlaylistViewFragment extends MaterialReelBaseFragment implements IL
 
     @Override
     public void onPlaylistUpdate(final List<Playlist> p) {
-        // If the currently watched playlist is updated, update me
-        if (p.contains(mPlaylist)) {
-            if (!mHandler.hasMessages(UPDATE_DATA_SET)) {
-                mHandler.sendEmptyMessage(UPDATE_DATA_SET);
-            }
-            if (!mHandler.hasMessages(UPDATE_OFFLINE_STATUS)) {
-                mHandler.sendEmptyMessage(UPDATE_OFFLINE_STATUS);
-            }
+        // Only this playlist gets through the update filter
+        if (!mHandler.hasMessages(UPDATE_DATA_SET)) {
+            mHandler.sendEmptyMessage(UPDATE_DATA_SET);
+        }
+        if (!mHandler.hasMessages(UPDATE_OFFLINE_STATUS)) {
+            mHandler.sendEmptyMessage(UPDATE_OFFLINE_STATUS);
         }
     }
 
@@ -827,30 +854,9 @@ public class PlaylistViewFragment extends MaterialReelBaseFragment implements IL
 
     @Override
     public void onArtistUpdate(List<Artist> a) {
-        // We check if the artists belongs to this playlist
-        boolean hasPlaylist = false;
-        Iterator<String> songsRef = mPlaylist.songs();
-        final ProviderAggregator aggregator = ProviderAggregator.getDefault();
-        while (songsRef.hasNext()) {
-            String ref = songsRef.next();
-            Song song = aggregator.retrieveSong(ref, mPlaylist.getProvider());
-            for (Artist artist : a) {
-                if (song != null && artist.getRef().equals(song.getArtist())) {
-                    hasPlaylist = true;
-                    break;
-                }
-            }
-
-            if (hasPlaylist) {
-                break;
-            }
-        }
-
-        // It does, update the list then
-        if (hasPlaylist) {
-            if (!mHandler.hasMessages(UPDATE_DATA_SET)) {
-                mHandler.sendEmptyMessage(UPDATE_DATA_SET);
-            }
+        // Only artists of songs of this playlist get through the update filter
+        if (!mHandler.hasMessages(UPDATE_DATA_SET)) {
+            mHandler.sendEmptyMessage(UPDATE_DATA_SET);
         }
     }
 
@@ -63,6 +63,7 @@ public class SearchFragment extends Fragment implements ILocalCallback {
 
     private static final int MSG_UPDATE_RESULTS = 1;
     private static final int MSG_DATASET_CHANGED = 2;
+    private static final int MSG_SEARCH_COMPLETE = 3;
 
     public static final String KEY_SPECIAL_MORE = "__encore_plus";
 
@@ -70,8 +71,16 @@ public class SearchFragment extends Fragment implements ILocalCallback {
     private Handler mHandler;
     private List<SearchResult> mSearchResults;
     private String mQuery;
+    private int mGeneration;
     private ProgressBar mLoadingBar;
-    private int mNumProvidersResponse;
+
+    private ProviderAggregator.SearchCompleteListener mSearchCompleteListener =
+            new ProviderAggregator.SearchCompleteListener() {
+        @Override
+        public void onSearchComplete(int generation) {
+            mHandler.obtainMessage(MSG_SEARCH_COMPLETE, generation, 0).sendToTarget();
+        }
+    };
 
     private static class SearchHandler extends Handler {
         private WeakReference<SearchFragment> mParent;
@@ -86,6 +95,8 @@ public class SearchFragment extends Fragment implements ILocalCallback {
                 mParent.get().updateSearchResults();
             } else if (msg.what == MSG_DATASET_CHANGED) {
                 mParent.get().mAdapter.notifyDataSetChanged();
+            } else if (msg.what == MSG_SEARCH_COMPLETE) {
+                mParent.get().onSearchComplete(msg.arg1);
             }
         }
     }
@@ -99,8 +110,20 @@ public class SearchFragment extends Fragment implements ILocalCallback {
         setRetainInstance(true);
     }
 
-    public void setArguments(String query) {
+    /**
+     * @param query The terms of the search
+     * @param generation The generation of the search, as returned by
+     *                   {@link ProviderAggregator#startSearch(String)}
+     */
+    public void setArguments(String query, int generation) {
         mQuery = query;
+        mGeneration = generation;
+
+        // Providers may not stream anything, so we can't wait for results to hide the progress
+        if (mLoadingBar != null) {
+            mLoadingBar.setVisibility(ProviderAggregator.getDefault().isSearchComplete(generation)
+                    ? View.GONE : View.VISIBLE);
+        }
     }
 
     @Override
@@ -155,7 +178,7 @@ public class SearchFragment extends Fragment implements ILocalCallback {
 
         // Restore previous search results, in case we're rotating
         if (mSearchResults != null) {
-            mAdapter.appendResults(mSearchResults);
+            mAdapter.setResults(mSearchResults);
             mAdapter.notifyDataSetChanged();
         }
 
@@ -166,12 +189,15 @@ public class SearchFragment extends Fragment implements ILocalCallback {
     public void onAttach(Activity activity) {
         super.onAttach(activity);
         ProviderAggregator.getDefault().addUpdateCallback(this);
+        ProviderAggregator.getDefault().registerSearchCompleteListener(mSearchCompleteListener);
     }
 
     @Override
     public void onDetach() {
         super.onDetach();
         ProviderAggregator.getDefault().removeUpdateCallback(this);
+        ProviderAggregator.getDefault().unregisterSearchCompleteListener(mSearchCompleteListener);
+        mHandler.removeMessages(MSG_SEARCH_COMPLETE);
     }
 
     public void resetResults() {
@@ -369,12 +395,17 @@ public class SearchFragment extends Fragment implements ILocalCallback {
             if (searchResult.getQuery().equals(mQuery)) {
                 mSearchResults = searchResults;
                 mHandler.sendEmptyMessage(MSG_UPDATE_RESULTS);
-                mNumProvidersResponse++;
                 break;
             }
         }
     }
 
+    private void onSearchComplete(int generation) {
+        if (generation == mGeneration && mLoadingBar != null) {
+            mLoadingBar.setVisibility(View.GONE);
+        }
+    }
+
     private void updateSearchResults() {
         final Activity act = getActivity();
 
@@ -382,7 +413,7 @@ public class SearchFragment extends Fragment implements ILocalCallback {
             getActivity().setTitle("'" + mSearchResults.get(0).getQuery() + "'");
             getActivity().setProgressBarIndeterminateVisibility(false);
 
-            if (mNumProvidersResponse >= 2) {
+            if (ProviderAggregator.getDefault().isSearchComplete(mGeneration)) {
                 mLoadingBar.setVisibility(View.GONE);
             }
         } else {
@@ -390,7 +421,7 @@ public class SearchFragment extends Fragment implements ILocalCallback {
         }
 
         if (mAdapter != null) {
-            mAdapter.appendResults(mSearchResults);
+            mAdapter.setResults(mSearchResults);
             mAdapter.notifyDataSetChanged();
         }
     }
@@ -33,10 +33,18 @@ import android.widget.ListView;
 
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.adapters.SongsListAdapter;
+import com.fastbootmobile.encore.app.adapters.SortedListModel;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.framework.PluginsLookup;
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
+import com.fastbootmobile.encore.providers.LibrarySnapshot;
+import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
 import com.fastbootmobile.encore.utils.Utils;
@@ -66,6 +74,56 @@ public class SongsFragment extends Fragment {
         }
     };
 
+    private ILocalCallback mLocalCallback = new ILocalCallback() {
+        @Override
+        public void onSongUpdate(final List<Song> s) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Songs listed before being loaded are moved to their place by title. Only
+                    // refresh the list if a song moved, or if an updated song is on screen.
+                    final int first = mListView.getFirstVisiblePosition();
+                    final int last = mListView.getLastVisiblePosition();
+                    boolean changed = false;
+                    for (Song song : s) {
+                        final int from = mSongsListAdapter.indexOf(song);
+                        if (from >= 0) {
+                            final int to = mSongsListAdapter.update(song);
+                            changed |= from != to || (to >= first && to <= last);
+                        }
+                    }
+                    if (changed) {
+                        mSongsListAdapter.notifyDataSetChanged();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onAlbumUpdate(List<Album> a) {
+        }
+
+        @Override
+        public void onPlaylistUpdate(List<Playlist> p) {
+        }
+
+        @Override
+        public void onPlaylistRemoved(String ref) {
+        }
+
+        @Override
+        public void onArtistUpdate(List<Artist> a) {
+        }
+
+        @Override
+        public void onProviderConnected(IMusicProvider provider) {
+        }
+
+        @Override
+        public void onSearchResult(List<SearchResult> searchResult) {
+        }
+    };
+
     private AdapterView.OnItemClickListener mItemClickListener = new AdapterView.OnItemClickListener() {
         @Override
         public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
@@ -105,7 +163,7 @@ public class SongsFragment extends Fragment {
         mListView = (ListView) root.findViewById(R.id.songsList);
         mListView.setFastScrollEnabled(true);
 
-        mSongsListAdapter = new SongsListAdapter(true);
+        mSongsListAdapter = new SongsListAdapter(true, true);
 
         new GetAllSongsTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 
@@ -125,9 +183,28 @@ public class SongsFragment extends Fragment {
         PlaybackProxy.removeCallback(mPlaybackCallback);
     }
 
-    private class GetAllSongsTask extends AsyncTask<Void, List<Song>, List<Song>> {
+    @Override
+    public void onResume() {
+        super.onResume();
+        ProviderAggregator.getDefault().addUpdateCallback(mLocalCallback);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        ProviderAggregator.getDefault().removeUpdateCallback(mLocalCallback);
+    }
+
+    private class GetAllSongsTask extends AsyncTask<Void, SortedListModel.Batch<Song>, Void> {
+        private final LibrarySnapshot.Receiver mSnapshotReceiver = new LibrarySnapshot.BaseReceiver() {
+            @Override
+            public void onSongs(List<Song> songs) {
+                publishProgress(mSongsListAdapter.prepare(songs));
+            }
+        };
+
         @Override
-        protected List<Song> doInBackground(Void... params) {
+        protected Void doInBackground(Void... params) {
             android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
             List<ProviderConnection> providers = PluginsLookup.getDefault().getAvailableProviders();
@@ -136,6 +213,12 @@ public class SongsFragment extends Fragment {
                 try {
                     IMusicProvider provider = providerConnection.getBinder();
                     if (provider != null) {
+                        // Get all the songs in one transfer if the provider supports it
+                        if (ProviderAggregator.getDefault().fetchLibrary(providerConnection,
+                                LibrarySnapshot.CONTENT_SONGS, false, mSnapshotReceiver)) {
+                            continue;
+                        }
+
                         int limit = 100;
                         int offset = 0;
 
@@ -154,7 +237,8 @@ public class SongsFragment extends Fragment {
                                     }
                                 }
 
-                                publishProgress(new ArrayList<>(songsToAdd));
+                                // Sort the page here, the UI thread only has to merge it
+                                publishProgress(mSongsListAdapter.prepare(songsToAdd));
                                 songsToAdd.clear();
 
                                 if (songs.size() < limit) {
@@ -184,34 +268,63 @@ public class SongsFragment extends Fragment {
                 }
             }
 
-            return songsToAdd;
+            return null;
         }
 
         @Override
-        protected void onProgressUpdate(List<Song>... values) {
-            List<Song> songs = values[0];
-            if (songs.size() > 0) {
-                onPostExecute(songs);
+        protected void onProgressUpdate(SortedListModel.Batch<Song>... values) {
+            SortedListModel.Batch<Song> batch = values[0];
+            if (batch.size() > 0) {
+                mergeSongs(batch);
             }
         }
 
         @Override
-        protected void onPostExecute(List<Song> songs) {
-            mSongsListAdapter.putAll(songs);
-            mSongsListAdapter.sortAll();
+        protected void onPostExecute(Void result) {
+            if (!mAdapterSet) {
+                showList();
+            }
+        }
 
-            if (mAdapterSet) {
-                mSongsListAdapter.notifyDataSetChanged();
-            } else {
-                mListView.setAdapter(mSongsListAdapter);
+        private void mergeSongs(SortedListModel.Batch<Song> batch) {
+            if (!mAdapterSet) {
+                mSongsListAdapter.merge(batch, null);
+                showList();
+                return;
+            }
 
-                View root = getView();
-                if (root != null) {
-                    root.findViewById(R.id.songsProgress).setVisibility(View.GONE);
+            // Keep the first visible song in place when songs are inserted above it
+            final int firstVisible = mListView.getFirstVisiblePosition();
+            final View firstView = mListView.getChildAt(0);
+            final int top = firstView != null ? firstView.getTop() : 0;
+            final int[] newFirstVisible = new int[] { firstVisible };
+
+            int inserted = mSongsListAdapter.merge(batch, new SortedListModel.Listener() {
+                @Override
+                public void onItemRangeInserted(int position, int count) {
+                    if (position <= newFirstVisible[0]) {
+                        newFirstVisible[0] += count;
+                    }
                 }
+            });
 
-                mAdapterSet = true;
+            if (inserted > 0) {
+                mSongsListAdapter.notifyDataSetChanged();
+                if (firstView != null && newFirstVisible[0] != firstVisible) {
+                    mListView.setSelectionFromTop(newFirstVisible[0], top);
+                }
+            }
+        }
+
+        private void showList() {
+            mListView.setAdapter(mSongsListAdapter);
+
+            View root = getView();
+            if (root != null) {
+                root.findViewById(R.id.songsProgress).setVisibility(View.GONE);
             }
+
+            mAdapterSet = true;
         }
     }
 }
@@ -104,6 +104,10 @@ public class AlbumArtImageView extends SquareImageView implements AlbumArtHelper
             mTask.cancel(true);
             mTask = null;
         }
+        if (mRunnable != null) {
+            mRunnable.cancel();
+            mRunnable = null;
+        }
     }
 
     @Override
@@ -123,7 +127,10 @@ public class AlbumArtImageView extends SquareImageView implements AlbumArtHelper
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
         if (DEBUG) Log.d(TAG, "onAttachedToWindow: mRequestedEntity=" + mRequestedEntity);
-        if (mRequestedEntity != null && mTask == null && mRunnable == null) {
+        if (mTask != null) {
+            // The art may have been requested before the view was shown
+            mTask.setPriority(getArtPriority());
+        } else if (mRequestedEntity != null && mRunnable == null) {
             BoundEntity ent = mRequestedEntity;
             mRequestedEntity = null;
             loadArtImpl(ent);
@@ -245,9 +252,8 @@ public class AlbumArtImageView extends SquareImageView implements AlbumArtHelper
             }
 
             if (Math.max(getMeasuredHeight(), getMeasuredWidth()) > 0) {
-                mRunnable.run(true);
+                mRunnable.run();
             } else {
-                mRunnable.setImmediate(true);
                 mHandler.post(mRunnable);
             }
         } else {
@@ -299,33 +305,38 @@ public class AlbumArtImageView extends SquareImageView implements AlbumArtHelper
         mTask = null;
     }
 
+    /**
+     * @return The priority at which the art of this view should be retrieved
+     */
+    private int getArtPriority() {
+        if (mCrossfade) {
+            // Crossfading views display the currently playing track
+            return AlbumArtHelper.PRIORITY_NOW_PLAYING;
+        } else if (getWindowToken() == null) {
+            // Not on screen yet, e.g. laid out ahead of scrolling
+            return AlbumArtHelper.PRIORITY_PREFETCH;
+        } else {
+            return AlbumArtHelper.PRIORITY_VISIBLE;
+        }
+    }
+
     public interface OnArtLoadedListener {
         void onArtLoaded(AlbumArtImageView view, BitmapDrawable drawable);
     }
 
     private class TaskRunnable implements Runnable {
         private BoundEntity mEntity;
-        private boolean mImmediate;
 
         public TaskRunnable(BoundEntity ent) {
             mEntity = ent;
         }
 
-        public void setImmediate(boolean immediate) {
-            mImmediate = immediate;
-        }
-
-        public void run(boolean immediate) {
-            mImmediate = immediate;
-            run();
-        }
-
         @Override
         public void run() {
             if (mRequestedEntity != null && mEntity != null && mRequestedEntity.equals(mEntity)) {
                 int size = Math.max(getMeasuredHeight(), getMeasuredWidth());
                 mTask = AlbumArtHelper.retrieveAlbumArt(getContext().getApplicationContext().getResources(),
-                        AlbumArtImageView.this, mEntity, size, mImmediate);
+                        AlbumArtImageView.this, mEntity, size, getArtPriority());
             }
         }
 
@@ -46,6 +46,7 @@ import com.fastbootmobile.encore.app.AlbumActivity;
 import com.fastbootmobile.encore.app.PlaybackQueueActivity;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
+import com.fastbootmobile.encore.framework.PlaybackQueueMirror;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.Playlist;
@@ -84,6 +85,7 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_UPDATE_QUEUE:
@@ -100,6 +102,18 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
                 case MSG_UPDATE_FAB:
                     mParent.get().updatePlayFab();
                     break;
+
+                case MSG_SONGS_UPDATED:
+                    if (mParent.get().isShowingSongs((List<Song>) msg.obj)) {
+                        sendEmptyMessage(MSG_UPDATE_QUEUE);
+                    }
+                    break;
+
+                case MSG_ARTISTS_UPDATED:
+                    if (mParent.get().isShowingArtists((List<Artist>) msg.obj)) {
+                        sendEmptyMessage(MSG_UPDATE_QUEUE);
+                    }
+                    break;
             }
         }
     }
@@ -107,18 +121,7 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
     private ILocalCallback mProviderCallback = new ILocalCallback() {
         @Override
         public void onSongUpdate(List<Song> s) {
-            boolean contains = false;
-            List<Song> playbackQueue = PlaybackProxy.getCurrentPlaybackQueue();
-            for (Song song : s) {
-                if (playbackQueue.contains(song)) {
-                    contains = true;
-                    break;
-                }
-            }
-
-            if (contains) {
-                mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
-            }
+            mHandler.obtainMessage(MSG_SONGS_UPDATED, s).sendToTarget();
         }
 
         @Override
@@ -135,26 +138,7 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
 
         @Override
         public void onArtistUpdate(List<Artist> a) {
-            boolean contains = false;
-            List<Song> playbackQueue = new ArrayList<>(PlaybackProxy.getCurrentPlaybackQueue());
-            for (Song song : playbackQueue) {
-                if (song == null) continue;
-
-                for (Artist artist : a) {
-                    if (artist != null && artist.getRef().equals(song.getArtist())) {
-                        contains = true;
-                        break;
-                    }
-                }
-
-                if (contains) {
-                    break;
-                }
-            }
-
-            if (contains) {
-                mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
-            }
+            mHandler.obtainMessage(MSG_ARTISTS_UPDATED, a).sendToTarget();
         }
 
         @Override
@@ -184,10 +168,16 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
             mHandler.sendEmptyMessage(MSG_UPDATE_FAB);
             mHandler.sendEmptyMessageDelayed(MSG_UPDATE_SEEK, SEEK_BAR_UPDATE_DELAY);
         }
+    };
 
+    private PlaybackQueueMirror.Listener mQueueListener = new PlaybackQueueMirror.Listener() {
         @Override
-        public void onPlaybackQueueChanged() throws RemoteException {
-            mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
+        public void onQueueMirrorChanged() {
+            // Songs read far from the current track don't change the bar
+            if (PlaybackQueueMirror.getDefault().getCurrentIndex() != mShownIndex
+                    || !getPeekRefs().equals(mShownRefs)) {
+                mHandler.sendEmptyMessage(MSG_UPDATE_QUEUE);
+            }
         }
     };
 
@@ -199,12 +189,17 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
     private static final int MSG_UPDATE_QUEUE = 1;
     private static final int MSG_UPDATE_SEEK = 2;
     private static final int MSG_UPDATE_FAB = 3;
+    private static final int MSG_SONGS_UPDATED = 4;
+    private static final int MSG_ARTISTS_UPDATED = 5;
 
     private boolean mIsPlaying;
     private LinearLayout mTracksLayout;
     private FabButton mPlayFab;
     private PlayPauseDrawable mPlayFabDrawable;
-    private List<Song> mLastQueue;
+    private int mRemainingCount = -1;
+    private int mShownIndex = -1;
+    private List<String> mShownRefs = new ArrayList<>();
+    private final List<Song> mShownSongs = new ArrayList<>();
     private PlayingBarHandler mHandler;
     private int mAnimationDuration;
     private boolean mWrapped;
@@ -239,6 +234,7 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
         mHandler.removeMessages(MSG_UPDATE_FAB);
 
         PlaybackProxy.removeCallback(mPlaybackCallback);
+        PlaybackQueueMirror.getDefault().removeListener(mQueueListener);
         ProviderAggregator.getDefault().removeUpdateCallback(mProviderCallback);
         mCallbackRegistered = false;
 
@@ -264,6 +260,7 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
         if (!mCallbackRegistered) {
             mCallbackRegistered = true;
             PlaybackProxy.addCallback(mPlaybackCallback);
+            PlaybackQueueMirror.getDefault().addListener(mQueueListener);
         }
 
         // We delay check if we have a queue and/or are playing to leave time to the
@@ -397,8 +394,8 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
     }
 
     public void updatePlayingQueue() {
-        List<Song> queue;
-        int currentIndex;
+        final PlaybackQueueMirror queue = PlaybackQueueMirror.getDefault();
+        final int currentIndex = Math.max(0, queue.getCurrentIndex());
 
         int playbackState = PlaybackProxy.getState();
         boolean isPlaying = ((playbackState == PlaybackService.STATE_BUFFERING)
@@ -406,12 +403,12 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
         boolean hidden = getContext().getSharedPreferences(SettingsKeys.PREF_SETTINGS, 0)
                 .getBoolean(SettingsKeys.KEY_PLAYBAR_HIDDEN, false) && !isPlaying;
 
-        // Do a copy
-        queue = new ArrayList<>(PlaybackProxy.getCurrentPlaybackQueue());
-        currentIndex = PlaybackProxy.getCurrentTrackIndex();
+        mShownIndex = queue.getCurrentIndex();
+        mShownRefs = getPeekRefs();
+        mShownSongs.clear();
 
         if (queue.size() > 0 && !hidden) {
-            mLastQueue = new ArrayList<>(queue);
+            mRemainingCount = Math.max(0, queue.size() - currentIndex);
             mTracksLayout.removeAllViews();
             mTracksLayout.setVisibility(View.VISIBLE);
 
@@ -421,21 +418,18 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
                     (LayoutInflater) getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             final ProviderAggregator aggregator = ProviderAggregator.getDefault();
 
-            for (int i = 0; i < currentIndex; ++i) {
-                if (queue.size() > 0) {
-                    queue.remove(0);
-                }
-                if (mLastQueue.size() > 0) {
-                    mLastQueue.remove(0);
-                }
-            }
             final int removedCount = currentIndex;
 
-            for (final Song song : queue) {
+            for (int i = currentIndex; i < queue.size(); ++i) {
                 if (shownCount == MAX_PEEK_QUEUE_SIZE) {
                     break;
                 }
 
+                final Song song = queue.getSong(i);
+                if (song != null) {
+                    mShownSongs.add(song);
+                }
+
                 final int itemIndex = shownCount;
                 View itemRoot = inflater.inflate(R.layout.item_playbar, mTracksLayout, false);
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -573,6 +567,41 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
         }
     }
 
+    /**
+     * @return The references of the songs shown in the bar, null for the ones not read yet
+     */
+    private List<String> getPeekRefs() {
+        final PlaybackQueueMirror queue = PlaybackQueueMirror.getDefault();
+        final int currentIndex = Math.max(0, queue.getCurrentIndex());
+        final int end = Math.min(queue.size(), currentIndex + MAX_PEEK_QUEUE_SIZE);
+
+        List<String> refs = new ArrayList<>(MAX_PEEK_QUEUE_SIZE);
+        for (int i = currentIndex; i < end; ++i) {
+            refs.add(queue.getRef(i));
+        }
+        return refs;
+    }
+
+    private boolean isShowingSongs(List<Song> songs) {
+        for (Song song : songs) {
+            if (song != null && mShownRefs.contains(song.getRef())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isShowingArtists(List<Artist> artists) {
+        for (Song song : mShownSongs) {
+            for (Artist artist : artists) {
+                if (artist != null && artist.getRef().equals(song.getArtist())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public void updatePlayFab() {
         int state = PlaybackProxy.getState();
 
@@ -666,9 +695,9 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
             return;
         }
 
-        if (wrapped && mLastQueue != null) {
+        if (wrapped && mRemainingCount >= 0) {
             final int itemHeight = getResources().getDimensionPixelSize(R.dimen.playing_bar_height);
-            final int translationY = itemHeight * Math.min(mLastQueue.size(), MAX_PEEK_QUEUE_SIZE);
+            final int translationY = itemHeight * Math.min(mRemainingCount, MAX_PEEK_QUEUE_SIZE);
             if (animation) {
                 animate().translationY(translationY)
                         .setDuration(mAnimationDuration)
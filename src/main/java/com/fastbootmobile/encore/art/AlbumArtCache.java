@@ -21,6 +21,7 @@ import android.graphics.BitmapFactory;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.fastbootmobile.encore.api.common.HttpClient;
 import com.fastbootmobile.encore.api.common.HttpGet;
 import com.fastbootmobile.encore.api.common.RateLimitException;
 import com.fastbootmobile.encore.api.freebase.FreeBaseClient;
@@ -44,8 +45,6 @@ import org.json.JSONException;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * Cache downloading and handling album art
@@ -55,8 +54,6 @@ public class AlbumArtCache {
     private static final AlbumArtCache INSTANCE = new AlbumArtCache();
     public static boolean CREATIVE_COMMONS = true;
 
-    private final List<BoundEntity> mRunningQueries = new ArrayList<>();
-
     /**
      * The art is not in the cache
      */
@@ -165,6 +162,26 @@ public class AlbumArtCache {
         return result;
     }
 
+    /**
+     * Downloads an image, decoding it straight from the connection
+     * @param url The URL of the image
+     * @return The image, or null if the server returned an error or if it couldn't be decoded
+     */
+    private static Bitmap downloadBitmap(final String url) throws IOException, RateLimitException {
+        final HttpClient.Response response = HttpClient.getDefault().open(url, true);
+        try {
+            if (response.getStream() == null) {
+                return null;
+            }
+
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inMutable = true;
+            return BitmapFactory.decodeStream(response.getStream(), null, opts);
+        } finally {
+            response.close();
+        }
+    }
+
     private boolean getFreeArt(final Resources res, final BoundEntity ent,
                                final IAlbumArtCacheListener listener) {
         new Thread() {
@@ -354,10 +371,7 @@ public class AlbumArtCache {
             if (url != null) {
                 // Download it
                 try {
-                    byte[] imageData = HttpGet.getBytes(url, "", true);
-                    BitmapFactory.Options opts = new BitmapFactory.Options();
-                    opts.inMutable = true;
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(imageData, 0, imageData.length, opts);
+                    Bitmap bitmap = downloadBitmap(url);
                     if (bitmap != null) {
                         result = true;
                         RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(listenerRef), bitmap);
@@ -440,10 +454,7 @@ public class AlbumArtCache {
 
             if (url != null) {
                 try {
-                    byte[] imageData = HttpGet.getBytes(url, "", true);
-                    BitmapFactory.Options opts = new BitmapFactory.Options();
-                    opts.inMutable = true;
-                    Bitmap image = BitmapFactory.decodeByteArray(imageData, 0, imageData.length, opts);
+                    Bitmap image = downloadBitmap(url);
                     if (image != null) {
                         result = true;
                         RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(artist), image);
@@ -524,38 +535,6 @@ public class AlbumArtCache {
         }
     }
 
-    /**
-     * Returns whether or not a query is currently running for the provided song
-     * @param song The song for which we need the album art
-     * @return true if a request is currently running, false if nothing is currently looking for
-     * that song's art
-     */
-    public boolean isQueryRunning(final BoundEntity song) {
-        synchronized (mRunningQueries) {
-            return mRunningQueries.contains(song);
-        }
-    }
-
-    /**
-     * Notifies an async task has started processing the art for the provided entity
-     * @param song The song for which we need the album art
-     */
-    public void notifyQueryRunning(final BoundEntity song) {
-        synchronized (mRunningQueries) {
-            mRunningQueries.add(song);
-        }
-    }
-
-    /**
-     * Notifies that the async task that started processing the art for the entity has done
-     * @param song The song for which we need the album art
-     */
-    public void notifyQueryStopped(final BoundEntity song) {
-        synchronized (mRunningQueries) {
-            mRunningQueries.remove(song);
-        }
-    }
-
     public interface IAlbumArtCacheListener {
         void onArtLoaded(BoundEntity ent, RecyclingBitmapDrawable result);
     }
@@ -16,105 +16,96 @@
 package com.fastbootmobile.encore.art;
 
 import android.content.res.Resources;
-import android.os.AsyncTask;
-import android.os.Build;
-import android.support.annotation.NonNull;
 
 import com.fastbootmobile.encore.model.BoundEntity;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-
 /**
  * Helper class allowing to easily download and fetch an album art or artist art
  */
 public class AlbumArtHelper {
     private static final String TAG = "AlbumArtHelper";
 
-    private static final int CORE_POOL_SIZE = 2;
-    private static final int PRI_CORE_POOL_SIZE = 2;
-    private static final int MAXIMUM_POOL_SIZE = 6;
-    private static final int PRI_MAXIMUM_POOL_SIZE = 3;
-    private static final int KEEP_ALIVE = 10;
-    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
-        private final AtomicInteger mCount = new AtomicInteger(1);
+    /**
+     * Priority of the art of the currently playing track (playback bar, notification, ...)
+     */
+    public static final int PRIORITY_NOW_PLAYING = 0;
 
-        public Thread newThread(@NonNull Runnable r) {
-            return new Thread(r, "Art AsyncTask #" + mCount.getAndIncrement());
-        }
-    };
-    private static final BlockingQueue<Runnable> sPoolWorkQueue =
-            new LinkedBlockingQueue<>(64);
-    private static final BlockingQueue<Runnable> sPriorityPoolWorkQueue =
-            new LinkedBlockingQueue<>(32);
-
-    static final Executor ART_POOL_EXECUTOR
-            = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
-            TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory);
-    static final Executor PRIORITY_ART_POOL_EXECUTOR
-            = new ThreadPoolExecutor(PRI_CORE_POOL_SIZE, PRI_MAXIMUM_POOL_SIZE, KEEP_ALIVE,
-            TimeUnit.SECONDS, sPriorityPoolWorkQueue, sThreadFactory);
+    /**
+     * Priority of the art displayed on screen
+     */
+    public static final int PRIORITY_VISIBLE = 1;
+
+    /**
+     * Priority of the art which isn't displayed yet, but likely will be
+     */
+    public static final int PRIORITY_PREFETCH = 2;
+
+    private static final ArtScheduler sScheduler = new ArtScheduler();
 
     public interface AlbumArtListener {
         void onArtLoaded(RecyclingBitmapDrawable output, BoundEntity request);
     }
 
-    public static class BackgroundResult {
-        public BoundEntity request;
-        public RecyclingBitmapDrawable bitmap;
-        public boolean retry;
-        public AlbumArtListener listener;
-        public int size;
+    /**
+     * Retrieves the art of an entity
+     * @param immediate True to retrieve it at the priority of the currently playing art, false to
+     *                  retrieve it at the priority of the art visible on screen
+     */
+    public static AlbumArtTask retrieveAlbumArt(Resources res, AlbumArtListener listener,
+                                                BoundEntity request, int size, boolean immediate) {
+        return retrieveAlbumArt(res, listener, request, size,
+                immediate ? PRIORITY_NOW_PLAYING : PRIORITY_VISIBLE);
     }
 
+    /**
+     * Retrieves the art of an entity. The listener is called on the main thread, unless the
+     * returned task is cancelled first.
+     * @param priority One of the PRIORITY_* constants
+     */
     public static AlbumArtTask retrieveAlbumArt(Resources res, AlbumArtListener listener,
-                                                BoundEntity request, int size, boolean immediate) {
+                                                BoundEntity request, int size, int priority) {
         AlbumArtRequest requestStructure = new AlbumArtRequest();
         requestStructure.entity = request;
         requestStructure.listener = listener;
         requestStructure.requestedSize = size;
         requestStructure.res = res;
-        AlbumArtTask task = new AlbumArtTask();
-
-        // On Android 4.2+, we use our custom executor. Android 4.1 and below uses the predefined
-        // pool, as the custom one causes the app to just crash without any kind of error message
-        // for no reason (at least in the emulator).
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            if (immediate) {
-                if (sPriorityPoolWorkQueue.remainingCapacity() == 0) {
-                    // Release a previous work to free up space in the queue
-                    sPriorityPoolWorkQueue.remove(sPriorityPoolWorkQueue.iterator().next());
-                }
-                task.executeOnExecutor(PRIORITY_ART_POOL_EXECUTOR, requestStructure);
-            } else {
-                if (sPoolWorkQueue.remainingCapacity() == 0) {
-                    // Release a previous work to free up space in the queue
-                    sPoolWorkQueue.remove(sPoolWorkQueue.iterator().next());
-                }
-                task.executeOnExecutor(ART_POOL_EXECUTOR, requestStructure);
-            }
-        } else {
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, requestStructure);
-        }
+        requestStructure.priority = priority;
 
+        AlbumArtTask task = new AlbumArtTask(requestStructure);
+        if (request != null) {
+            sScheduler.submit(task);
+        }
         return task;
     }
 
+    /**
+     * @return The number of requests waiting in the provided priority class
+     */
+    public static int getQueueDepth(int priority) {
+        return sScheduler.getQueueDepth(priority);
+    }
+
     public static void clearAlbumArtRequests() {
-        sPriorityPoolWorkQueue.clear();
-        sPoolWorkQueue.clear();
+        sScheduler.clear();
+    }
+
+    static void cancel(AlbumArtTask task) {
+        if (task.getRequest().entity != null) {
+            sScheduler.cancel(task);
+        }
     }
 
+    static void setPriority(AlbumArtTask task, int priority) {
+        if (task.getRequest().entity != null) {
+            sScheduler.setPriority(task, priority);
+        }
+    }
 
     static class AlbumArtRequest {
         Resources res;
         AlbumArtHelper.AlbumArtListener listener;
         int requestedSize;
+        int priority;
         BoundEntity entity;
     }
 }
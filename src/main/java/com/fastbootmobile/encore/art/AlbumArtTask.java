@@ -15,146 +15,47 @@
 
 package com.fastbootmobile.encore.art;
 
-import android.content.res.Resources;
-import android.os.AsyncTask;
-import android.os.Process;
-import android.util.Log;
-
-import com.fastbootmobile.encore.model.BoundEntity;
-
-import java.util.concurrent.RejectedExecutionException;
-
 /**
- * AsyncTask downloading the album art
+ * Handle on an art request queued in the {@link ArtScheduler}
  */
-public class AlbumArtTask extends AsyncTask<AlbumArtHelper.AlbumArtRequest, Void, AlbumArtHelper.BackgroundResult> {
-    private static final String TAG = "AlbumArtTask";
-
-    private static final int DELAY_BEFORE_RETRY = 500;
-    private static final Object sPauseWorkLock = new Object();
-    private static boolean sPauseWork = false;
-
-    private RecyclingBitmapDrawable mArtBitmap;
-    private AlbumArtCache.IAlbumArtCacheListener mCacheListener = new AlbumArtCache.IAlbumArtCacheListener() {
-        @Override
-        public void onArtLoaded(BoundEntity ent, RecyclingBitmapDrawable result) {
-            synchronized (AlbumArtTask.this) {
-                if (!isCancelled()) {
-                    mArtBitmap = result;
-                }
-                AlbumArtTask.this.notify();
-            }
-        }
-    };
-
-    @Override
-    protected AlbumArtHelper.BackgroundResult doInBackground(AlbumArtHelper.AlbumArtRequest... params) {
-        android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
-        AlbumArtHelper.AlbumArtRequest request = params[0];
-
-        // Wait here if work is paused and the task is not cancelled
-        synchronized (sPauseWorkLock) {
-            while (sPauseWork && !isCancelled()) {
-                try {
-                    sPauseWorkLock.wait();
-                } catch (InterruptedException ignored) {}
-            }
-        }
-
-        if (request.entity == null || isCancelled()) {
-            return null;
-        }
-
-        AlbumArtHelper.BackgroundResult output = new AlbumArtHelper.BackgroundResult();
-        output.request = request.entity;
-        output.listener = request.listener;
-        output.size = request.requestedSize;
+public class AlbumArtTask {
+    private final AlbumArtHelper.AlbumArtRequest mRequest;
+    private volatile boolean mCancelled = false;
 
-        final AlbumArtCache artCache = AlbumArtCache.getDefault();
-
-        if (artCache.isQueryRunning(request.entity)) {
-            output.retry = true;
-        } else {
-            // Notify other potential tasks we're processing this entity
-            artCache.notifyQueryRunning(request.entity);
-
-            // Get from the cache
-            synchronized (this) {
-                if (AlbumArtCache.getDefault().getArt(request.res, request.entity,
-                        request.requestedSize, mCacheListener)) {
-                    // Wait for the result
-                    if (mArtBitmap == null) {
-                        try {
-                            wait(6000);
-                        } catch (InterruptedException e) {
-                            // Interrupted, cancel
-                            cancel(true);
-                            return output;
-                        }
-                    }
-                }
-            }
-
-            // In all cases, we tell that this entity is loaded
-            artCache.notifyQueryStopped(request.entity);
-
-            // We now have a bitmap to display, so let's put it!
-            if (mArtBitmap != null) {
-                output.bitmap = mArtBitmap;
-                output.retry = false;
-            } else {
-                output.bitmap = null;
-                output.retry = false;
-            }
-        }
-
-        return output;
+    AlbumArtTask(AlbumArtHelper.AlbumArtRequest request) {
+        mRequest = request;
     }
 
-    @Override
-    protected void onCancelled(AlbumArtHelper.BackgroundResult result) {
-        final AlbumArtCache artCache = AlbumArtCache.getDefault();
-        if (result != null) {
-            artCache.notifyQueryStopped(result.request);
-
-            if (result.listener != null) {
-                result.listener.onArtLoaded(null, result.request);
-            }
-        }
+    AlbumArtHelper.AlbumArtRequest getRequest() {
+        return mRequest;
     }
 
-    @Override
-    protected void onPostExecute(final AlbumArtHelper.BackgroundResult result) {
-        super.onPostExecute(result);
-
-        if (!isCancelled() && result != null && result.listener != null) {
-            if (result.retry) {
-                // We retry to get it in a bit
-                final AlbumArtTask task = new AlbumArtTask();
-                AlbumArtHelper.AlbumArtRequest request = new AlbumArtHelper.AlbumArtRequest();
-                request.listener = result.listener;
-                request.entity = result.request;
-                request.requestedSize = result.size;
-                request.res = Resources.getSystem();
-
-                try {
-                    task.executeOnExecutor(AlbumArtHelper.ART_POOL_EXECUTOR, request);
-                } catch (RejectedExecutionException e) {
-                    Log.w(TAG, "Request restart has been denied", e);
-                }
-            } else {
-                result.listener.onArtLoaded(result.bitmap, result.request);
-            }
+    /**
+     * Cancels the request. The listener won't be called, and the art won't be retrieved unless
+     * another request needs it.
+     * @param mayInterruptIfRunning Unused, kept for compatibility with the AsyncTask API
+     * @return false if the request was already cancelled
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (mCancelled) {
+            return false;
         }
+        mCancelled = true;
+        AlbumArtHelper.cancel(this);
+        return true;
     }
 
+    public boolean isCancelled() {
+        return mCancelled;
+    }
 
-    public static void setPauseWork(boolean pause) {
-        synchronized (sPauseWorkLock) {
-            sPauseWork = pause;
-            if (!sPauseWork) {
-                sPauseWorkLock.notifyAll();
-            }
+    /**
+     * Moves the request into another priority class, if it hasn't started yet
+     * @param priority One of the AlbumArtHelper.PRIORITY_* constants
+     */
+    public void setPriority(int priority) {
+        if (!mCancelled) {
+            AlbumArtHelper.setPriority(this, priority);
         }
     }
 }
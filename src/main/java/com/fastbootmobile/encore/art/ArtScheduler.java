@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.BoundEntity;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Schedules the art requests on a small pool of worker threads. Requests are queued in one
+ * queue per priority class (see {@link AlbumArtHelper#PRIORITY_NOW_PLAYING} and friends), and
+ * the most recent request of the highest non-empty class runs first, so that the cells which
+ * just appeared on screen during a fling get their art before the ones which already scrolled
+ * away. Requests for the same art are merged into a single job, and cancelled requests are
+ * removed from the queues right away. Workers don't wait for the providers to answer: jobs
+ * complete when the cache calls back, or when they time out.
+ *
+ * When a queue is full, its oldest job moves down to the next priority class. Jobs pushed out
+ * of the last class are parked instead of being dropped: they run once the queues are empty,
+ * or as soon as their priority is raised again (e.g. when their view is attached).
+ */
+class ArtScheduler {
+    private static final String TAG = "ArtScheduler";
+    private static final boolean DEBUG = false;
+
+    private static final int WORKER_COUNT = 3;
+    private static final int JOB_TIMEOUT = 6000;
+
+    /**
+     * Maximum number of queued jobs for each priority class. Once a queue is full, its oldest
+     * job is dropped.
+     */
+    private static final int[] MAX_QUEUE_DEPTH = {8, 48, 32};
+
+    /**
+     * Maximum number of parked jobs. Past that, the oldest one completes without art, so that
+     * its requests can be made again.
+     */
+    private static final int MAX_PARKED = 256;
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<Job>[] mQueues;
+    private final ArrayDeque<Job> mParked = new ArrayDeque<>();
+    private final Map<String, Job> mJobs = new HashMap<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * All the requests for one art. Requests of different sizes share the job: the art is
+     * retrieved once, and the requests in other size buckets are then served from the cache.
+     */
+    private class Job implements AlbumArtCache.IAlbumArtCacheListener, Runnable {
+        final String mKey;
+        final Resources mRes;
+        final BoundEntity mEntity;
+        final int mSize;
+        final List<AlbumArtTask> mTasks = new ArrayList<>();
+        int mPriority;
+        boolean mParked;
+        boolean mRunning;
+        boolean mDone;
+
+        Job(String key, AlbumArtTask task) {
+            final AlbumArtHelper.AlbumArtRequest request = task.getRequest();
+            mKey = key;
+            mRes = request.res;
+            mEntity = request.entity;
+            mSize = request.requestedSize;
+            mPriority = request.priority;
+            mTasks.add(task);
+        }
+
+        @Override
+        public void onArtLoaded(BoundEntity ent, RecyclingBitmapDrawable result) {
+            complete(this, result);
+        }
+
+        @Override
+        public void run() {
+            // Timeout
+            if (DEBUG) Log.d(TAG, "Art request for " + mKey + " timed out");
+            complete(this, null);
+        }
+    }
+
+    private final Runnable mWorkerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            while (true) {
+                final Job job;
+                synchronized (mLock) {
+                    Job next;
+                    while ((next = pollLocked()) == null) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    job = next;
+                    job.mRunning = true;
+                }
+
+                execute(job);
+            }
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    ArtScheduler() {
+        mQueues = new ArrayDeque[MAX_QUEUE_DEPTH.length];
+        for (int i = 0; i < mQueues.length; ++i) {
+            mQueues[i] = new ArrayDeque<>();
+        }
+
+        for (int i = 0; i < WORKER_COUNT; ++i) {
+            Thread worker = new Thread(mWorkerRunnable, "Art worker #" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues the request of the provided task
+     */
+    void submit(AlbumArtTask task) {
+        final AlbumArtHelper.AlbumArtRequest request = task.getRequest();
+        final String key = AlbumArtCache.getDefault().getEntityArtKey(request.entity);
+        Job dropped = null;
+
+        synchronized (mLock) {
+            Job job = mJobs.get(key);
+            if (job == null) {
+                job = new Job(key, task);
+                mJobs.put(key, job);
+                dropped = pushLocked(job);
+            } else {
+                job.mTasks.add(task);
+                if (!job.mRunning) {
+                    // Move the job on top of its queue, or into the queue of the new priority
+                    unqueueLocked(job);
+                    job.mPriority = Math.min(job.mPriority, request.priority);
+                    dropped = pushLocked(job);
+                }
+            }
+
+            if (DEBUG) Log.d(TAG, "Queued " + key + " " + toStringLocked());
+        }
+
+        if (dropped != null) {
+            deliver(dropped.mTasks, null);
+        }
+    }
+
+    /**
+     * Removes the task from its job, and dequeues the job if no other task needs it
+     */
+    void cancel(AlbumArtTask task) {
+        final AlbumArtHelper.AlbumArtRequest request = task.getRequest();
+        final String key = AlbumArtCache.getDefault().getEntityArtKey(request.entity);
+
+        synchronized (mLock) {
+            Job job = mJobs.get(key);
+            if (job != null && job.mTasks.remove(task) && job.mTasks.isEmpty() && !job.mRunning) {
+                // A running job is left to complete, so that its result gets cached
+                unqueueLocked(job);
+                mJobs.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Moves the job of the task into another priority class, if it's still queued
+     */
+    void setPriority(AlbumArtTask task, int priority) {
+        final AlbumArtHelper.AlbumArtRequest request = task.getRequest();
+        final String key = AlbumArtCache.getDefault().getEntityArtKey(request.entity);
+        Job dropped = null;
+
+        synchronized (mLock) {
+            request.priority = priority;
+
+            Job job = mJobs.get(key);
+            if (job != null && !job.mRunning && job.mTasks.contains(task)
+                    && (priority < job.mPriority || job.mParked)) {
+                unqueueLocked(job);
+                job.mPriority = Math.min(job.mPriority, priority);
+                dropped = pushLocked(job);
+            }
+        }
+
+        if (dropped != null) {
+            deliver(dropped.mTasks, null);
+        }
+    }
+
+    /**
+     * Drops all the queued jobs, and notifies their requests without art so that they can be
+     * made again. Running jobs complete normally.
+     */
+    void clear() {
+        final List<AlbumArtTask> dropped = new ArrayList<>();
+
+        synchronized (mLock) {
+            for (ArrayDeque<Job> queue : mQueues) {
+                for (Job job : queue) {
+                    mJobs.remove(job.mKey);
+                    dropped.addAll(job.mTasks);
+                }
+                queue.clear();
+            }
+            for (Job job : mParked) {
+                job.mParked = false;
+                mJobs.remove(job.mKey);
+                dropped.addAll(job.mTasks);
+            }
+            mParked.clear();
+        }
+
+        deliver(dropped, null);
+    }
+
+    /**
+     * @return The number of jobs waiting in the queue of the provided priority class
+     */
+    int getQueueDepth(int priority) {
+        synchronized (mLock) {
+            return mQueues[priority].size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return toStringLocked();
+        }
+    }
+
+    private String toStringLocked() {
+        return "ArtScheduler[queued=" + mQueues[AlbumArtHelper.PRIORITY_NOW_PLAYING].size()
+                + "/" + mQueues[AlbumArtHelper.PRIORITY_VISIBLE].size()
+                + "/" + mQueues[AlbumArtHelper.PRIORITY_PREFETCH].size()
+                + ", parked=" + mParked.size() + ", jobs=" + mJobs.size() + "]";
+    }
+
+    /**
+     * Pushes the job on top of the queue of its priority class. If the queue is full, its oldest
+     * job moves down to the next class, or is parked if this is the last one.
+     * @return The job dropped because too many jobs are parked, if any
+     */
+    private Job pushLocked(Job job) {
+        Job dropped = null;
+        Job pushed = job;
+
+        while (pushed != null) {
+            final ArrayDeque<Job> queue = mQueues[pushed.mPriority];
+            Job overflow = null;
+            if (queue.size() >= MAX_QUEUE_DEPTH[pushed.mPriority]) {
+                overflow = queue.pollFirst();
+            }
+            if (pushed == job) {
+                queue.addLast(pushed);
+            } else {
+                // Moved down from a higher class: it's older than the jobs of this one
+                queue.addFirst(pushed);
+            }
+
+            if (overflow != null && overflow.mPriority + 1 < mQueues.length) {
+                overflow.mPriority++;
+            } else if (overflow != null) {
+                if (mParked.size() >= MAX_PARKED) {
+                    dropped = mParked.pollFirst();
+                    dropped.mParked = false;
+                    mJobs.remove(dropped.mKey);
+                }
+                overflow.mParked = true;
+                mParked.addLast(overflow);
+                overflow = null;
+            }
+            pushed = overflow;
+        }
+
+        mLock.notify();
+        return dropped;
+    }
+
+    /**
+     * Removes a job which isn't running from its queue, or from the parked jobs
+     */
+    private void unqueueLocked(Job job) {
+        if (job.mParked) {
+            mParked.remove(job);
+            job.mParked = false;
+        } else {
+            mQueues[job.mPriority].remove(job);
+        }
+    }
+
+    private Job pollLocked() {
+        for (ArrayDeque<Job> queue : mQueues) {
+            if (!queue.isEmpty()) {
+                return queue.pollLast();
+            }
+        }
+
+        final Job parked = mParked.pollLast();
+        if (parked != null) {
+            parked.mParked = false;
+        }
+        return parked;
+    }
+
+    private void execute(Job job) {
+        boolean pending;
+        try {
+            pending = AlbumArtCache.getDefault().getArt(job.mRes, job.mEntity, job.mSize, job);
+        } catch (Exception e) {
+            Log.e(TAG, "Error while retrieving art for " + job.mKey, e);
+            pending = false;
+        }
+
+        if (pending) {
+            synchronized (mLock) {
+                if (!job.mDone) {
+                    mMainHandler.postDelayed(job, JOB_TIMEOUT);
+                }
+            }
+        } else {
+            complete(job, null);
+        }
+    }
+
+    private void complete(Job job, RecyclingBitmapDrawable result) {
+        final List<AlbumArtTask> sameBucket = new ArrayList<>();
+        final List<AlbumArtTask> otherBuckets = new ArrayList<>();
+        final int bucket = ImageCache.getBucket(job.mSize);
+
+        synchronized (mLock) {
+            if (job.mDone) {
+                return;
+            }
+            job.mDone = true;
+            mMainHandler.removeCallbacks(job);
+            if (mJobs.get(job.mKey) == job) {
+                mJobs.remove(job.mKey);
+            }
+
+            for (AlbumArtTask task : job.mTasks) {
+                if (result != null
+                        && ImageCache.getBucket(task.getRequest().requestedSize) != bucket) {
+                    otherBuckets.add(task);
+                } else {
+                    sameBucket.add(task);
+                }
+            }
+        }
+
+        deliver(sameBucket, result);
+
+        // The art is now cached, so these requests will be served right away from the cache
+        for (AlbumArtTask task : otherBuckets) {
+            if (!task.isCancelled()) {
+                submit(task);
+            }
+        }
+    }
+
+    private void deliver(final List<AlbumArtTask> tasks, final RecyclingBitmapDrawable result) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (AlbumArtTask task : tasks) {
+                    final AlbumArtHelper.AlbumArtRequest request = task.getRequest();
+                    if (!task.isCancelled() && request.listener != null) {
+                        request.listener.onArtLoaded(result, request.entity);
+                    }
+                }
+            }
+        });
+    }
+}
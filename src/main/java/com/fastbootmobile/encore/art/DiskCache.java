@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of files. Keys are hashed into file names, and the index of the entries
+ * is kept in an append-only journal that is replayed on startup, so that the cache directory
+ * never needs to be listed. Files are written to a temporary file first, and only renamed to
+ * their final name once complete, so that a crash can't leave a truncated entry behind. Reads
+ * only reorder the entries in memory, and are journaled along with the next write.
+ */
+class DiskCache {
+    private static final String TAG = "DiskCache";
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String JOURNAL_HEADER = "encore.art.DiskCache 1";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String OP_PUT = "PUT";
+    private static final String OP_READ = "READ";
+    private static final String OP_DEL = "DEL";
+    private static final int JOURNAL_FLUSH_OPS = 32;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(0, 0.75f, true);
+    // Entries read since the journal was last flushed, least recently read first
+    private final LinkedHashSet<String> mPendingReads = new LinkedHashSet<>();
+    private Writer mJournal;
+    private long mSize;
+    private int mJournalOps;
+    private int mPendingJournalOps;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private long mBytesWritten;
+
+    static class Entry {
+        final String mName;
+        final long mSize;
+        final long mTimestamp;
+
+        Entry(String name, long size, long timestamp) {
+            mName = name;
+            mSize = size;
+            mTimestamp = timestamp;
+        }
+    }
+
+    /**
+     * @param directory The directory holding the cache files
+     * @param maxSize   The maximum size of the cache, in bytes
+     */
+    DiskCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Opens the cache, replaying the journal. If there's no journal, the directory is assumed to
+     * hold files of an unknown format and is wiped.
+     */
+    synchronized void open() {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Cannot mkdir the cache dir " + mDirectory.getPath());
+        }
+
+        final long start = System.currentTimeMillis();
+        final File journal = new File(mDirectory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+            } catch (IOException e) {
+                Log.w(TAG, "Journal is corrupted, clearing the cache", e);
+                deleteContents();
+                mEntries.clear();
+            }
+        } else {
+            deleteContents();
+        }
+
+        mSize = 0;
+        for (Entry entry : mEntries.values()) {
+            mSize += entry.mSize;
+        }
+
+        rebuildJournal();
+        trimToSize();
+
+        Log.d(TAG, "Opened disk cache with " + mEntries.size() + " entries, " + (mSize / 1024)
+                + " KB, in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * @return Whether or not the provided key is in the cache
+     */
+    synchronized boolean contains(String key) {
+        return mEntries.containsKey(hashKey(key));
+    }
+
+    /**
+     * Returns the file of the provided key, and marks it as recently used
+     *
+     * @param key The key of the entry
+     * @return The file, or null if the key isn't in the cache
+     */
+    synchronized File get(String key) {
+        final String name = hashKey(key);
+        final Entry entry = mEntries.get(name);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+
+        mHitCount++;
+        mPendingReads.remove(name);
+        mPendingReads.add(name);
+        return new File(mDirectory, name);
+    }
+
+    /**
+     * @return The time at which the entry of the provided key was written, or -1 if it's not in
+     * the cache
+     */
+    synchronized long getTimestamp(String key) {
+        final Entry entry = mEntries.get(hashKey(key));
+        return entry != null ? entry.mTimestamp : -1;
+    }
+
+    /**
+     * Returns a temporary file to write the entry of the provided key to. Once written, the
+     * file must be passed to {@link #commit(String, File)}.
+     */
+    File getTempFile(String key) {
+        return new File(mDirectory, hashKey(key) + '.' + Thread.currentThread().getId()
+                + TMP_SUFFIX);
+    }
+
+    /**
+     * Atomically moves a complete temporary file in place of the entry of the provided key
+     *
+     * @param key  The key of the entry
+     * @param temp The file obtained from {@link #getTempFile(String)}
+     * @return true if the entry was stored
+     */
+    synchronized boolean commit(String key, File temp) {
+        final String name = hashKey(key);
+        final File target = new File(mDirectory, name);
+        final long size = temp.length();
+
+        if (size == 0 || !temp.renameTo(target)) {
+            Log.e(TAG, "Cannot commit " + temp.getPath());
+            if (!temp.delete()) {
+                Log.w(TAG, "Cannot delete " + temp.getPath());
+            }
+            return false;
+        }
+
+        final Entry previous = mEntries.put(name,
+                new Entry(name, size, System.currentTimeMillis()));
+        if (previous != null) {
+            mSize -= previous.mSize;
+        }
+        mSize += size;
+        mBytesWritten += size;
+
+        appendJournal(OP_PUT + ' ' + name + ' ' + size + ' ' + System.currentTimeMillis());
+        flushJournal();
+        trimToSize();
+        return true;
+    }
+
+    /**
+     * Removes the entry of the provided key
+     */
+    synchronized void remove(String key) {
+        removeEntry(hashKey(key));
+        flushJournal();
+    }
+
+    /**
+     * Removes all the entries of the cache
+     */
+    synchronized void clear() {
+        closeJournal();
+        deleteContents();
+        mEntries.clear();
+        mSize = 0;
+        rebuildJournal();
+    }
+
+    synchronized long getSize() {
+        return mSize;
+    }
+
+    synchronized int getCount() {
+        return mEntries.size();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiskCache[entries=" + mEntries.size() + " size=" + mSize + "/" + mMaxSize
+                + " hits=" + mHitCount + " misses=" + mMissCount + " evictions=" + mEvictionCount
+                + " written=" + mBytesWritten + "]";
+    }
+
+    private void removeEntry(String name) {
+        final Entry entry = mEntries.remove(name);
+        mPendingReads.remove(name);
+        if (entry != null) {
+            mSize -= entry.mSize;
+            final File file = new File(mDirectory, name);
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Cannot delete " + file.getPath());
+            }
+            appendJournal(OP_DEL + ' ' + name);
+        }
+    }
+
+    private void trimToSize() {
+        boolean evicted = false;
+        final Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            final Entry entry = it.next().getValue();
+            it.remove();
+            mSize -= entry.mSize;
+            mEvictionCount++;
+            evicted = true;
+            mPendingReads.remove(entry.mName);
+
+            final File file = new File(mDirectory, entry.mName);
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Cannot delete " + file.getPath());
+            }
+            appendJournal(OP_DEL + ' ' + entry.mName);
+        }
+
+        if (evicted) {
+            flushJournal();
+        }
+    }
+
+    private void readJournal(File journal) throws IOException {
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journal), UTF8));
+        try {
+            if (!JOURNAL_HEADER.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split(" ");
+                try {
+                    if (OP_PUT.equals(parts[0]) && parts.length == 4) {
+                        mEntries.put(parts[1], new Entry(parts[1], Long.parseLong(parts[2]),
+                                Long.parseLong(parts[3])));
+                    } else if (OP_READ.equals(parts[0]) && parts.length == 2) {
+                        // Moves the entry to the most recently used position
+                        mEntries.get(parts[1]);
+                    } else if (OP_DEL.equals(parts[0]) && parts.length == 2) {
+                        mEntries.remove(parts[1]);
+                    }
+                } catch (NumberFormatException e) {
+                    // Truncated line, most likely the last one written before a crash
+                    Log.w(TAG, "Skipping journal line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes a compact journal holding only the current entries, in LRU order
+     */
+    private void rebuildJournal() {
+        closeJournal();
+
+        // The rebuilt journal is in LRU order already
+        mPendingReads.clear();
+
+        final File journal = new File(mDirectory, JOURNAL_FILE);
+        final File temp = new File(mDirectory, JOURNAL_FILE_TMP);
+        try {
+            Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(temp), UTF8));
+            try {
+                writer.write(JOURNAL_HEADER);
+                writer.write('\n');
+                for (Entry entry : mEntries.values()) {
+                    writer.write(OP_PUT + ' ' + entry.mName + ' ' + entry.mSize + ' '
+                            + entry.mTimestamp + '\n');
+                }
+            } finally {
+                writer.close();
+            }
+
+            if (!temp.renameTo(journal)) {
+                throw new IOException("Cannot rename " + temp.getPath());
+            }
+
+            mJournal = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(journal, true), UTF8));
+            mJournalOps = mEntries.size();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write the journal, the cache won't persist", e);
+            mJournal = null;
+        }
+    }
+
+    private void appendJournal(String line) {
+        if (mJournal == null) {
+            return;
+        }
+
+        if (!mPendingReads.isEmpty()) {
+            // Journal the reads first, so that replaying keeps the order of the operations
+            final String[] reads = mPendingReads.toArray(new String[mPendingReads.size()]);
+            mPendingReads.clear();
+            for (String name : reads) {
+                appendJournal(OP_READ + ' ' + name);
+            }
+            if (mJournal == null) {
+                return;
+            }
+        }
+
+        try {
+            mJournal.write(line);
+            mJournal.write('\n');
+            mJournalOps++;
+
+            if (++mPendingJournalOps >= JOURNAL_FLUSH_OPS) {
+                flushJournal();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot append to the journal", e);
+        }
+
+        // Compact the journal when it's mostly made of redundant operations
+        if (mJournalOps > 2000 && mJournalOps > mEntries.size() * 2) {
+            rebuildJournal();
+        }
+    }
+
+    private void flushJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.flush();
+                mPendingJournalOps = 0;
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot flush the journal", e);
+            }
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot close the journal", e);
+            }
+            mJournal = null;
+        }
+    }
+
+    private void deleteContents() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.e(TAG, "Cannot delete " + file.getPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes a key into a file name
+     */
+    static String hashKey(String key) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("MD5");
+            final byte[] digest = md.digest(key.getBytes(UTF8));
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // MD5 is always available on Android
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -32,7 +32,6 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.SoftReference;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -40,18 +39,28 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Image cache in the cache directory on internal storage
+ * Image cache in the cache directory on internal storage. Images are stored once in a few
+ * canonical sizes (see {@link #SIZE_BUCKETS}) when they're put in the cache, requested sizes are
+ * rounded up to the nearest bucket, and the memory cache is keyed by bucket so that the same
+ * image isn't decoded again for every slightly different view size.
  */
 @SuppressWarnings("SynchronizeOnNonFinalField")
 public class ImageCache {
     private static final String TAG = "ImageCache";
     private static final ImageCache INSTANCE = new ImageCache();
     private static final long EXPIRATION_TIME = TimeUnit.DAYS.toMillis(7);
+    private static final long MAX_DISK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Sizes, in pixels of the smallest side, in which images are stored. The largest bucket is
+     * the size of the full image, and is stored under the plain key.
+     */
+    private static final int[] SIZE_BUCKETS = {96, 256, 800};
+    private static final int LARGEST_BUCKET = SIZE_BUCKETS[SIZE_BUCKETS.length - 1];
 
     private static final boolean USE_MEMORY_CACHE = true;
 
-    private final ArrayList<String> mEntries;
-    private File mCacheDir;
+    private DiskCache mDiskCache;
     private Bitmap mDefaultArt;
 
     private final LruCache<String, RecyclingBitmapDrawable> mMemoryCache;
@@ -68,7 +77,6 @@ public class ImageCache {
      * Default constructor, creates an LRU cache of the specified size
      */
     public ImageCache() {
-        mEntries = new ArrayList<>();
         final int memoryCacheSize = (int) (Runtime.getRuntime().maxMemory() / 1024 / 3);
         Log.d(TAG, "Maximum image cache memory: " + memoryCacheSize + " KB (maxMemory=" + (Runtime.getRuntime().maxMemory() / 1024) + "KB)");
 
@@ -117,26 +125,8 @@ public class ImageCache {
      * @param ctx A valid context
      */
     public void initialize(Context ctx) {
-        mCacheDir = new File(ctx.getCacheDir(), "albumart");
-        if (!mCacheDir.exists() && !mCacheDir.mkdir()) {
-            Log.e(TAG, "Cannot mkdir the cache dir " + mCacheDir.getPath());
-        }
-
-        File[] entries = mCacheDir.listFiles();
-        if (entries != null) {
-            for (File entry : entries) {
-                if (System.currentTimeMillis() - entry.lastModified() > EXPIRATION_TIME
-                        && entry.getName().contains("playlist")) {
-                    // Expire playlist art regularly
-                    if (!entry.delete()) {
-                        // Couldn't delete the art... Let's load it anyway then
-                        mEntries.add(entry.getName());
-                    }
-                } else {
-                    mEntries.add(entry.getName());
-                }
-            }
-        }
+        mDiskCache = new DiskCache(new File(ctx.getCacheDir(), "albumart"), MAX_DISK_SIZE);
+        mDiskCache.open();
 
         mDefaultArt = ((BitmapDrawable) ctx.getResources()
                 .getDrawable(R.drawable.album_placeholder)).getBitmap();
@@ -155,16 +145,7 @@ public class ImageCache {
             }
         }
 
-        synchronized (mEntries) {
-            mEntries.clear();
-        }
-
-        File[] cacheFiles = mCacheDir.listFiles();
-        for (File file : cacheFiles) {
-            if (!file.delete()) {
-                Log.e(TAG, "Cannot delete " + file.getPath());
-            }
-        }
+        mDiskCache.clear();
     }
 
     /**
@@ -187,9 +168,13 @@ public class ImageCache {
      */
     public boolean hasInMemory(final String key) {
         if (USE_MEMORY_CACHE) {
-            RecyclingBitmapDrawable bmp;
-            bmp = mMemoryCache.get(sanitizeKey(key));
-            return bmp != null;
+            final String cleanKey = sanitizeKey(key);
+            for (int bucket : SIZE_BUCKETS) {
+                if (mMemoryCache.get(getMemoryKey(cleanKey, bucket)) != null) {
+                    return true;
+                }
+            }
+            return false;
         } else {
             return false;
         }
@@ -201,14 +186,34 @@ public class ImageCache {
      * @return true if the image is cached on the disk (well, flash storage)
      */
     public boolean hasOnDisk(final String key) {
-        synchronized (mEntries) {
-            return mEntries.contains(sanitizeKey(key));
+        return mDiskCache.contains(sanitizeKey(key));
+    }
+
+    /**
+     * @return The statistics of the disk cache, for debugging purposes
+     */
+    public String getDiskStats() {
+        return mDiskCache.toString();
+    }
+
+    /**
+     * Returns the size bucket in which images of the provided size are served
+     * @param reqSz The requested size, in pixels
+     * @return The smallest bucket at least as large as the requested size, or the largest bucket
+     */
+    public static int getBucket(final int reqSz) {
+        for (int bucket : SIZE_BUCKETS) {
+            if (reqSz <= bucket) {
+                return bucket;
+            }
         }
+        return LARGEST_BUCKET;
     }
 
     /**
      * Returns the image from the cache (either memory or disk)
      * @param key The key of the image to get
+     * @param reqSz The size at which the image will be displayed, rounded up to the nearest bucket
      * @return A bitmap corresponding to the key, or null if it's not in the cache
      */
     public RecyclingBitmapDrawable get(final Resources res , final String key, final int reqSz) {
@@ -217,54 +222,72 @@ public class ImageCache {
         }
 
         final String cleanKey = sanitizeKey(key);
+        final int bucket = getBucket(reqSz);
+        final String memoryKey = getMemoryKey(cleanKey, bucket);
 
-        boolean contains;
-        synchronized (mEntries) {
-            contains = mEntries.contains(cleanKey);
+        RecyclingBitmapDrawable item;
+        synchronized (mMemoryCache) {
+            // Check if we have it in memory
+            item = USE_MEMORY_CACHE ? mMemoryCache.get(memoryKey) : null;
         }
 
-        if (contains) {
-            RecyclingBitmapDrawable item;
-            synchronized (mMemoryCache) {
-                // Check if we have it in memory
-                item = USE_MEMORY_CACHE ? mMemoryCache.get(cleanKey + '_' + reqSz) : null;
+        if (item != null) {
+            return item;
+        }
+
+        if (cleanKey.contains("playlist") && mDiskCache.contains(cleanKey)
+                && System.currentTimeMillis() - mDiskCache.getTimestamp(cleanKey) > EXPIRATION_TIME) {
+            // Expire playlist art regularly
+            removeFromDisk(cleanKey);
+            return null;
+        }
+
+        // Use the variant of the bucket, or the next larger one if the source image was too
+        // small for that bucket to be stored (or if it has been evicted)
+        String diskKey = null;
+        File file = null;
+        for (int candidate : SIZE_BUCKETS) {
+            if (candidate < bucket) {
+                continue;
+            }
+            diskKey = getDiskKey(cleanKey, candidate);
+            file = mDiskCache.get(diskKey);
+            if (file != null) {
+                break;
             }
+        }
 
-            if (item == null) {
-                final String filePath = mCacheDir.getAbsolutePath() + "/" + cleanKey;
+        if (file == null) {
+            return null;
+        }
 
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(filePath, opts);
+        final String filePath = file.getAbsolutePath();
 
-                opts.inJustDecodeBounds = false;
-                ImageUtils.addInBitmapOptions(opts, this, reqSz, opts.outWidth, opts.outHeight);
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(filePath, opts);
 
-                try {
-                    Bitmap bmp = BitmapFactory.decodeFile(filePath, opts);
-                    if (bmp != null) {
-                        item = new RecyclingBitmapDrawable(res, bmp);
+        opts.inJustDecodeBounds = false;
+        ImageUtils.addInBitmapOptions(opts, this, bucket, opts.outWidth, opts.outHeight);
 
-                        if (USE_MEMORY_CACHE) {
-                            mMemoryCache.put(cleanKey + '_' + reqSz, item);
-                        }
-                    } else {
-                        mEntries.remove(cleanKey);
-                        File f = new File(filePath);
-                        if (!f.delete()) {
-                            Log.e(TAG, "Cannot delete corrupted art at " + filePath);
-                        }
-                    }
-                } catch (OutOfMemoryError e) {
-                    Log.e(TAG, "OutOfMemory when decoding input file", e);
-                    return null;
+        try {
+            Bitmap bmp = BitmapFactory.decodeFile(filePath, opts);
+            if (bmp != null) {
+                item = new RecyclingBitmapDrawable(res, bmp);
+
+                if (USE_MEMORY_CACHE) {
+                    mMemoryCache.put(memoryKey, item);
                 }
+            } else {
+                // Corrupted or missing file
+                mDiskCache.remove(diskKey);
             }
-
-            return item;
-        } else {
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "OutOfMemory when decoding input file", e);
             return null;
         }
+
+        return item;
     }
 
     /**
@@ -351,46 +374,107 @@ public class ImageCache {
         }
 
         if (USE_MEMORY_CACHE) {
-            mMemoryCache.put(cleanKey, bmp);
+            mMemoryCache.put(getMemoryKey(cleanKey, LARGEST_BUCKET), bmp);
         }
 
         if (!isDefaultArt) {
-            try {
-                FileOutputStream out = new FileOutputStream(mCacheDir.getAbsolutePath() + "/" + cleanKey);
-                Bitmap bitmap = bmp.getBitmap();
-
-                boolean shouldRecycle = false;
-                final float maxSize = 800;
-
-                if (bitmap.getWidth() > maxSize && bitmap.getHeight() > maxSize) {
-                    float ratio = (bitmap.getWidth() < bitmap.getHeight()) ?
-                            bitmap.getWidth() / maxSize : bitmap.getHeight() / maxSize;
-                    final int sWidth = (int) (bitmap.getWidth() / ratio);
-                    final int sHeight = (int) (bitmap.getHeight() / ratio);
-
-                    bitmap = Bitmap.createScaledBitmap(bitmap, sWidth, sHeight, true);
-                    shouldRecycle = true;
-
-                    Log.d(TAG, "Rescaled to " + sWidth + "x" + sHeight);
+            final Bitmap source = bmp.getBitmap();
+            final int sourceSize = Math.min(source.getWidth(), source.getHeight());
+
+            // Store the largest bucket first, then downscale it for the smaller buckets rather
+            // than the original image which may be much larger
+            Bitmap largest = scale(source, LARGEST_BUCKET);
+            if (!writeToDisk(getDiskKey(cleanKey, LARGEST_BUCKET), largest, asPNG)) {
+                if (largest != source) {
+                    largest.recycle();
                 }
+                return;
+            }
 
-                bitmap.compress(asPNG ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 90, out);
-                out.close();
+            for (int i = SIZE_BUCKETS.length - 2; i >= 0; --i) {
+                final int bucket = SIZE_BUCKETS[i];
+                if (sourceSize <= bucket) {
+                    // The image is already small enough, it will be served from a larger bucket.
+                    // Drop the variant of an image previously stored under the same key.
+                    mDiskCache.remove(getDiskKey(cleanKey, bucket));
+                    continue;
+                }
 
-                if (shouldRecycle) {
-                    // Scaled image will be used on reload
-                    bitmap.recycle();
+                Bitmap variant = scale(largest, bucket);
+                writeToDisk(getDiskKey(cleanKey, bucket), variant, asPNG);
+                if (variant != largest) {
+                    variant.recycle();
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to write the file to cache", e);
             }
 
-            synchronized (mEntries) {
-                mEntries.add(cleanKey);
+            if (largest != source) {
+                // Scaled image will be used on reload
+                largest.recycle();
             }
         }
     }
 
+    /**
+     * Scales down the bitmap so that its smallest side matches the provided size
+     * @return The scaled bitmap, or the bitmap itself if it's already small enough
+     */
+    private Bitmap scale(final Bitmap bitmap, final float maxSize) {
+        if (bitmap.getWidth() > maxSize && bitmap.getHeight() > maxSize) {
+            float ratio = (bitmap.getWidth() < bitmap.getHeight()) ?
+                    bitmap.getWidth() / maxSize : bitmap.getHeight() / maxSize;
+            final int sWidth = (int) (bitmap.getWidth() / ratio);
+            final int sHeight = (int) (bitmap.getHeight() / ratio);
+
+            Log.d(TAG, "Rescaled to " + sWidth + "x" + sHeight);
+            return Bitmap.createScaledBitmap(bitmap, sWidth, sHeight, true);
+        } else {
+            return bitmap;
+        }
+    }
+
+    /**
+     * Compresses the bitmap to the disk cache
+     * @return true if the bitmap has been written
+     */
+    private boolean writeToDisk(final String diskKey, final Bitmap bitmap, final boolean asPNG) {
+        // Write to a temporary file first, so that a crash can't leave a partial file
+        final File temp = mDiskCache.getTempFile(diskKey);
+        boolean written;
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            written = bitmap.compress(asPNG ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 90, out);
+            out.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the file to cache", e);
+            written = false;
+        }
+
+        if (written) {
+            mDiskCache.commit(diskKey, temp);
+        } else if (temp.exists() && !temp.delete()) {
+            Log.e(TAG, "Cannot delete " + temp.getPath());
+        }
+        return written;
+    }
+
+    /**
+     * Removes all the stored variants of an image
+     */
+    private void removeFromDisk(final String cleanKey) {
+        for (int bucket : SIZE_BUCKETS) {
+            mDiskCache.remove(getDiskKey(cleanKey, bucket));
+        }
+    }
+
+    private static String getMemoryKey(final String cleanKey, final int bucket) {
+        return cleanKey + '_' + bucket;
+    }
+
+    private static String getDiskKey(final String cleanKey, final int bucket) {
+        // Sanitized keys only contain word characters, so variants can't collide with other keys
+        return bucket == LARGEST_BUCKET ? cleanKey : cleanKey + '@' + bucket;
+    }
+
     /**
      * Sanitizes the key to remove out unwanted characters
      * @return A sanitized copy of the key
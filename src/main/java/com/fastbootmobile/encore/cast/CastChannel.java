@@ -23,6 +23,9 @@ import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 /**
  * Channel used to communicate with the Chromecast during a cast
  */
@@ -31,9 +34,27 @@ public class CastChannel implements Cast.MessageReceivedCallback {
     private static final String NAMESPACE = "urn:x-cast:com.fastbootmobile.encore.cast";
     private static final boolean DEBUG = true;
 
+    /**
+     * Interface notified of the messages sent by the receiver
+     */
+    public interface CastChannelListener {
+        /**
+         * Called on the main thread when the receiver sends a message
+         * @param command The command of the message
+         * @param message The whole message
+         */
+        void onCommandReceived(String command, JSONObject message);
+    }
+
+    private CastChannelListener mListener;
+
     public CastChannel() {
     }
 
+    public void setListener(CastChannelListener listener) {
+        mListener = listener;
+    }
+
     public String getNamespace() {
         return NAMESPACE;
     }
@@ -41,6 +62,15 @@ public class CastChannel implements Cast.MessageReceivedCallback {
     @Override
     public void onMessageReceived(CastDevice castDevice, String ns, String message) {
         if (DEBUG) Log.d(TAG, "Received message on " + ns + ": " + message);
+
+        if (mListener != null) {
+            try {
+                JSONObject object = new JSONObject(message);
+                mListener.onCommandReceived(object.optString("command"), object);
+            } catch (JSONException e) {
+                Log.w(TAG, "Ignoring malformed message from receiver: " + message);
+            }
+        }
     }
 
     public void sendMessage(GoogleApiClient client, String message) {
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.cast;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compresses the PCM stream sent to the cast receivers, using the platform encoders. Each
+ * encoded buffer is sent as one packet, made of a fixed header followed by the codec data:
+ *
+ * <pre>
+ *  0      version (1)
+ *  1      type: {@link #PACKET_CONFIG} (codec specific data) or {@link #PACKET_AUDIO}
+ *  2      codec: {@link #CODEC_ID_AAC} or {@link #CODEC_ID_OPUS}
+ *  3      channel count
+ *  4..7   sample rate, big endian
+ *  8..15  presentation time in microseconds, big endian
+ * </pre>
+ *
+ * The presentation time is derived from the number of samples fed to the encoder, so that the
+ * receiver can schedule the playback of each packet and size its jitter buffer. The config
+ * packet is repeated regularly so that receivers connecting in the middle of the stream can
+ * configure their decoder.
+ *
+ * PCM is queued without blocking: if the encoder has no free input buffer, the data is dropped,
+ * the same way a slow WebSocket client drops frames.
+ */
+public class CastEncoder {
+    private static final String TAG = "CastEncoder";
+
+    public static final String CODEC_PCM = "pcm";
+    public static final String CODEC_AAC = "aac";
+    public static final String CODEC_OPUS = "opus";
+
+    public static final int DEFAULT_BITRATE = 128000;
+
+    public static final int PACKET_CONFIG = 0;
+    public static final int PACKET_AUDIO = 1;
+
+    public static final int CODEC_ID_AAC = 1;
+    public static final int CODEC_ID_OPUS = 2;
+
+    public static final int HEADER_SIZE = 16;
+    private static final int PACKET_VERSION = 1;
+
+    private static final String MIME_AAC = "audio/mp4a-latm";
+    private static final String MIME_OPUS = "audio/opus";
+
+    private static final int MAX_INPUT_SIZE = 16384;
+    private static final long DRAIN_TIMEOUT_US = 10000;
+    private static final int CONFIG_INTERVAL = 100;
+
+    /**
+     * Interface receiving the encoded packets
+     */
+    public interface PacketListener {
+        /**
+         * Called on the encoder thread for each packet. The buffer is reused once this method
+         * returns.
+         * @param packet The packet data, header included
+         * @param length The length of the packet
+         */
+        void onPacket(byte[] packet, int length);
+    }
+
+    private final String mCodecName;
+    private final int mCodecId;
+    private final String mMime;
+    private final int mBitrate;
+    private final PacketListener mListener;
+
+    private MediaCodec mCodec;
+    private ByteBuffer[] mInputBuffers;
+    private Thread mDrainThread;
+    private volatile boolean mStopping;
+    private volatile boolean mFailed;
+    private int mSampleRate;
+    private int mChannels;
+    private long mSamplesQueued;
+    private long mDroppedBuffers;
+
+    // Only used by the drain thread
+    private byte[] mPacket = new byte[HEADER_SIZE + MAX_INPUT_SIZE];
+    private byte[] mConfig;
+    private int mPacketsSinceConfig;
+
+    /**
+     * @return The names of the codecs which can be used on this device, most efficient first.
+     * {@link #CODEC_PCM} is always supported.
+     */
+    public static String[] getSupportedCodecs() {
+        List<String> codecs = new ArrayList<>();
+        if (hasEncoder(MIME_OPUS)) {
+            codecs.add(CODEC_OPUS);
+        }
+        if (hasEncoder(MIME_AAC)) {
+            codecs.add(CODEC_AAC);
+        }
+        codecs.add(CODEC_PCM);
+        return codecs.toArray(new String[codecs.size()]);
+    }
+
+    private static boolean hasEncoder(String mime) {
+        final int count = MediaCodecList.getCodecCount();
+        for (int i = 0; i < count; ++i) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mime)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates an encoder. The codec itself is only created once the format of the PCM stream
+     * is known.
+     * @param codec The codec name, {@link #CODEC_AAC} or {@link #CODEC_OPUS}
+     * @param bitrate The target bitrate in bits per second, or 0 for the default
+     * @param listener The listener receiving the packets
+     */
+    public CastEncoder(String codec, int bitrate, PacketListener listener) {
+        if (CODEC_OPUS.equals(codec)) {
+            mMime = MIME_OPUS;
+            mCodecId = CODEC_ID_OPUS;
+        } else if (CODEC_AAC.equals(codec)) {
+            mMime = MIME_AAC;
+            mCodecId = CODEC_ID_AAC;
+        } else {
+            throw new IllegalArgumentException("Unsupported codec " + codec);
+        }
+
+        mCodecName = codec;
+        mBitrate = bitrate > 0 ? bitrate : DEFAULT_BITRATE;
+        mListener = listener;
+    }
+
+    public String getCodec() {
+        return mCodecName;
+    }
+
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    /**
+     * Queues PCM data to be encoded. Must always be called from the same thread.
+     * @param pcm 16-bits interleaved PCM data
+     * @param length The number of bytes to encode
+     * @param sampleRate The sample rate of the data
+     * @param channels The number of channels of the data
+     * @return false if the encoder couldn't be started, or if it failed since the last call:
+     * nothing more can be sent to the receiver in this format
+     */
+    public boolean write(byte[] pcm, int length, int sampleRate, int channels) {
+        if (mFailed) {
+            // The drain thread is gone, don't feed a dead codec
+            stopCodec();
+            return false;
+        }
+
+        if (mCodec == null || sampleRate != mSampleRate || channels != mChannels) {
+            stopCodec();
+            if (!startCodec(sampleRate, channels)) {
+                return false;
+            }
+        }
+
+        final int frameSize = 2 * channels;
+        int offset = 0;
+
+        while (offset < length) {
+            final int index;
+            try {
+                index = mCodec.dequeueInputBuffer(0);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Encoder failed", e);
+                mFailed = true;
+                stopCodec();
+                return false;
+            }
+
+            if (index < 0) {
+                // The encoder is late, drop what's left instead of blocking the audio thread
+                if (++mDroppedBuffers % 100 == 1) {
+                    Log.w(TAG, "Encoder too slow, " + mDroppedBuffers + " buffers dropped");
+                }
+                mSamplesQueued += (length - offset) / frameSize;
+                break;
+            }
+
+            ByteBuffer input = mInputBuffers[index];
+            input.clear();
+            int chunk = Math.min(length - offset, input.remaining());
+            chunk -= chunk % frameSize;
+            input.put(pcm, offset, chunk);
+
+            final long ptsUs = mSamplesQueued * 1000000L / sampleRate;
+            try {
+                mCodec.queueInputBuffer(index, 0, chunk, ptsUs, 0);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Encoder failed", e);
+                mFailed = true;
+                stopCodec();
+                return false;
+            }
+
+            mSamplesQueued += chunk / frameSize;
+            offset += chunk;
+        }
+
+        return true;
+    }
+
+    /**
+     * Stops the encoder and releases the codec
+     */
+    public void release() {
+        stopCodec();
+    }
+
+    private boolean startCodec(int sampleRate, int channels) {
+        MediaFormat format = MediaFormat.createAudioFormat(mMime, sampleRate, channels);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitrate);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MAX_INPUT_SIZE);
+        if (mCodecId == CODEC_ID_AAC) {
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                    MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        }
+
+        try {
+            mCodec = MediaCodec.createEncoderByType(mMime);
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.start();
+        } catch (Exception e) {
+            // SDK > 19, an IOException might be thrown
+            Log.e(TAG, "Unable to create " + mCodecName + " encoder", e);
+            if (mCodec != null) {
+                mCodec.release();
+                mCodec = null;
+            }
+            return false;
+        }
+
+        Log.d(TAG, "Encoding " + sampleRate + "Hz/" + channels + "ch to " + mCodecName
+                + " at " + mBitrate + "bps");
+
+        mInputBuffers = mCodec.getInputBuffers();
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mSamplesQueued = 0;
+        mConfig = null;
+        mPacketsSinceConfig = 0;
+        mStopping = false;
+        mFailed = false;
+
+        mDrainThread = new Thread(mDrainRunnable, "Cast encoder");
+        mDrainThread.start();
+        return true;
+    }
+
+    private void stopCodec() {
+        if (mCodec == null) {
+            return;
+        }
+
+        mStopping = true;
+        try {
+            mDrainThread.join();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for the encoder thread");
+        }
+        mDrainThread = null;
+
+        try {
+            mCodec.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Error while stopping the encoder", e);
+        }
+        mCodec.release();
+        mCodec = null;
+        mInputBuffers = null;
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+            final MediaCodec codec = mCodec;
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+
+            try {
+                while (!mStopping) {
+                    final int index = codec.dequeueOutputBuffer(info, DRAIN_TIMEOUT_US);
+
+                    if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                        outputBuffers = codec.getOutputBuffers();
+                    } else if (index >= 0) {
+                        if (info.size > 0) {
+                            ByteBuffer output = outputBuffers[index];
+                            output.position(info.offset);
+                            output.limit(info.offset + info.size);
+                            emit(output, info);
+                        }
+                        codec.releaseOutputBuffer(index, false);
+                    }
+                }
+            } catch (IllegalStateException e) {
+                // The next write() reports the failure, so that the receiver's stream gets closed
+                Log.e(TAG, "Encoder failed", e);
+                mFailed = true;
+            }
+        }
+    };
+
+    private void emit(ByteBuffer output, MediaCodec.BufferInfo info) {
+        final boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        final int length = HEADER_SIZE + info.size;
+
+        if (mPacket.length < length) {
+            mPacket = new byte[length];
+        }
+        writeHeader(mPacket, config ? PACKET_CONFIG : PACKET_AUDIO, info.presentationTimeUs);
+        output.get(mPacket, HEADER_SIZE, info.size);
+
+        if (config) {
+            mConfig = new byte[length];
+            System.arraycopy(mPacket, 0, mConfig, 0, length);
+            mPacketsSinceConfig = 0;
+        } else if (mConfig != null && ++mPacketsSinceConfig >= CONFIG_INTERVAL) {
+            // Let the receivers which joined in the meantime configure their decoder
+            mListener.onPacket(mConfig, mConfig.length);
+            mPacketsSinceConfig = 0;
+        }
+
+        mListener.onPacket(mPacket, length);
+    }
+
+    private void writeHeader(byte[] packet, int type, long ptsUs) {
+        packet[0] = (byte) PACKET_VERSION;
+        packet[1] = (byte) type;
+        packet[2] = (byte) mCodecId;
+        packet[3] = (byte) mChannels;
+        for (int i = 0; i < 4; ++i) {
+            packet[4 + i] = (byte) (mSampleRate >>> (24 - 8 * i));
+        }
+        for (int i = 0; i < 8; ++i) {
+            packet[8 + i] = (byte) (ptsUs >>> (56 - 8 * i));
+        }
+    }
+}
@@ -40,10 +40,13 @@ import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Module allowing casting to Chromecast and other MediaRouter-enabled receivers
@@ -57,6 +60,11 @@ public class CastModule extends MediaRouter.Callback {
     private static final String COMMAND_EVT_SONGSTARTED = "songstarted";
     private static final String COMMAND_EVT_PAUSED = "paused";
     private static final String COMMAND_EVT_RESUMED = "resumed";
+    private static final String COMMAND_FORMAT = "format";
+
+    private static final String JSON_KEY_CODECS = "codecs";
+    private static final String JSON_KEY_CODEC = "codec";
+    private static final String JSON_KEY_BITRATE = "bitrate";
 
     private Context mContext;
     private Handler mHandler;
@@ -64,6 +72,8 @@ public class CastModule extends MediaRouter.Callback {
     private MediaRouter mMediaRouter;
     private MediaRouteSelector mSelector;
     private CastDevice mSelectedDevice;
+    private String mReceiverAddress;
+    private List<String> mOfferedCodecs = new ArrayList<>();
     private GoogleApiClient mApiClient;
     private CastListener mCastListener;
     private ConnectionCallbacks mConnectionCallbacks;
@@ -137,6 +147,25 @@ public class CastModule extends MediaRouter.Callback {
 
         mCastListener = new CastListener();
         mCastChannel = new CastChannel();
+        mCastChannel.setListener(new CastChannel.CastChannelListener() {
+            @Override
+            public void onCommandReceived(String command, JSONObject message) {
+                if (COMMAND_FORMAT.equals(command)) {
+                    // The receiver picked one of the codecs we offered when connecting
+                    String codec = message.optString(JSON_KEY_CODEC, CastEncoder.CODEC_PCM);
+                    int bitrate = message.optInt(JSON_KEY_BITRATE, 0);
+                    Log.d(TAG, "Receiver requested " + codec + " at " + bitrate + "bps");
+
+                    if (mReceiverAddress == null) {
+                        Log.w(TAG, "Format requested while no receiver is selected");
+                    } else if (!mOfferedCodecs.contains(codec)) {
+                        Log.w(TAG, "Receiver requested " + codec + ", which wasn't offered");
+                    } else {
+                        PlaybackProxy.setCastTransport(mReceiverAddress, codec, bitrate);
+                    }
+                }
+            }
+        });
     }
 
     /**
@@ -164,7 +193,12 @@ public class CastModule extends MediaRouter.Callback {
         Log.d(TAG, "onRouteSelected: route=" + route);
 
         // secondary output device
+        resetCastTransport();
         mSelectedDevice = CastDevice.getFromBundle(route.getExtras());
+        mReceiverAddress = null;
+        if (mSelectedDevice != null) {
+            mReceiverAddress = mSelectedDevice.getIpAddress().getHostAddress();
+        }
         updateCast();
     }
 
@@ -182,6 +216,8 @@ public class CastModule extends MediaRouter.Callback {
             if ((mApiClient != null) && mApiClient.isConnected()) {
                 mApiClient.disconnect();
             }
+            resetCastTransport();
+            mReceiverAddress = null;
         } else {
             Log.d(TAG, "Acquiring controller for " + mSelectedDevice);
             try {
@@ -202,6 +238,15 @@ public class CastModule extends MediaRouter.Callback {
         }
     }
 
+    /**
+     * Switches the selected receiver back to the PCM stream
+     */
+    private void resetCastTransport() {
+        if (mReceiverAddress != null) {
+            PlaybackProxy.setCastTransport(mReceiverAddress, null, 0);
+        }
+    }
+
     private String getWiFiIpAddress() {
         WifiManager wifiMgr = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
         WifiInfo wifiInfo = wifiMgr.getConnectionInfo();
@@ -215,6 +260,17 @@ public class CastModule extends MediaRouter.Callback {
         try {
             object.put(JSON_KEY_COMMAND, COMMAND_CONNECT);
             object.put("address", getWiFiIpAddress());
+
+            // Receivers which know about compressed streams reply with a "format" command,
+            // the others just keep playing the PCM stream
+            JSONArray codecs = new JSONArray();
+            mOfferedCodecs.clear();
+            for (String codec : CastEncoder.getSupportedCodecs()) {
+                codecs.put(codec);
+                mOfferedCodecs.add(codec);
+            }
+            object.put(JSON_KEY_CODECS, codecs);
+            object.put(JSON_KEY_BITRATE, CastEncoder.DEFAULT_BITRATE);
         } catch (JSONException e) {
             Log.e(TAG, "Cannot build JSON object!", e);
         }
@@ -286,6 +342,7 @@ public class CastModule extends MediaRouter.Callback {
         public void onApplicationDisconnected(int statusCode) {
             Log.d(TAG, "onApplicationDisconnected: statusCode=" + statusCode);
             mIsAppUp = false;
+            resetCastTransport();
         }
     }
 
@@ -18,27 +18,54 @@ package com.fastbootmobile.encore.cast;
 import android.util.Log;
 
 import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
 import org.java_websocket.drafts.Draft;
 import org.java_websocket.drafts.Draft_10;
 import org.java_websocket.drafts.Draft_17;
 import org.java_websocket.drafts.Draft_75;
 import org.java_websocket.drafts.Draft_76;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
- * WebSocket Streaming server class to stream audio to Chromecast and webcast
+ * WebSocket Streaming server class to stream audio to Chromecast and webcast. Each PCM buffer is
+ * framed once into a pooled buffer, and the same frame is queued to all the clients: server to
+ * client frames aren't masked, so they're identical for every client speaking RFC 6455. Each
+ * client has a bounded queue in front of its socket, dropping its oldest frames when the client
+ * can't keep up, so that a slow receiver neither stalls the audio thread nor drifts away from
+ * the other receivers. Receivers which negotiated a compressed stream get their packets through
+ * {@link #write(InetAddress, byte[], int)}, and are skipped when writing the PCM stream.
  */
 public class WSStreamer extends WebSocketServer {
     private static final String TAG = "WSStreamer";
 
+    private static final int MAX_QUEUED_FRAMES = 16;
+    private static final int MAX_SOCKET_FRAMES = 4;
+    private static final int MAX_HEADER_SIZE = 10;
+
     private static final List<Draft> sWSSDrafts = new ArrayList<>();
 
+    private final Object mLock = new Object();
+    private final Map<WebSocket, ArrayDeque<ByteBuffer>> mQueues = new HashMap<>();
+    private final ArrayDeque<ByteBuffer> mFreeFrames = new ArrayDeque<>();
+    private final List<ByteBuffer> mUsedFrames = new ArrayList<>();
+    private final List<WebSocket> mClients = new ArrayList<>();
+    private final Map<byte[], Boolean> mReferenced = new IdentityHashMap<>();
+    private long mDroppedFrames = 0;
+
     static {
         sWSSDrafts.add(new Draft_10());
         sWSSDrafts.add(new Draft_17());
@@ -63,6 +90,9 @@ public class WSStreamer extends WebSocketServer {
     @Override
     public void onClose(WebSocket conn, int code, String s, boolean b) {
         Log.d(TAG, "Streaming client disconnected: " + s);
+        synchronized (mLock) {
+            mQueues.remove(conn);
+        }
     }
 
     @Override
@@ -76,18 +106,188 @@ public class WSStreamer extends WebSocketServer {
         Log.e(TAG, "Error occurred on socket", e);
     }
 
-    public void write(byte[] frames, int numframes) {
-        final Collection<WebSocket> clients = connections();
-        if (clients.size() > 0) {
-            byte[] specificFrames = new byte[numframes];
-            System.arraycopy(frames, 0, specificFrames, 0, numframes);
+    /**
+     * Streams PCM data to the connected clients
+     * @param frames The PCM data
+     * @param numframes The number of bytes to send
+     * @param skipped The addresses of the receivers which don't want the PCM stream
+     */
+    public void write(byte[] frames, int numframes, Collection<InetAddress> skipped) {
+        write(frames, numframes, null, skipped);
+    }
 
-            for (WebSocket client : clients) {
-                if (client.isOpen()) {
-                    client.send(specificFrames);
+    /**
+     * Streams data to the clients connected from a receiver only
+     * @param receiver The address of the receiver
+     * @param frames The data
+     * @param numframes The number of bytes to send
+     */
+    public void write(InetAddress receiver, byte[] frames, int numframes) {
+        write(frames, numframes, receiver, null);
+    }
+
+    /**
+     * Closes the connections of a receiver, so that it stops expecting the stream it negotiated
+     * @param receiver The address of the receiver
+     * @param reason The reason sent to the receiver
+     */
+    public void close(InetAddress receiver, String reason) {
+        final Collection<WebSocket> connections = connections();
+        final List<WebSocket> clients;
+        synchronized (connections) {
+            clients = new ArrayList<>(connections);
+        }
+
+        for (WebSocket client : clients) {
+            if (client.isOpen() && receiver.equals(getAddress(client))) {
+                client.close(CloseFrame.GOING_AWAY, reason);
+            }
+        }
+    }
+
+    private static InetAddress getAddress(WebSocket client) {
+        InetSocketAddress address = client.getRemoteSocketAddress();
+        return address != null ? address.getAddress() : null;
+    }
+
+    private void write(byte[] frames, int numframes, InetAddress receiver,
+                       Collection<InetAddress> skipped) {
+        final Collection<WebSocket> connections = connections();
+        synchronized (mLock) {
+            mClients.clear();
+            synchronized (connections) {
+                mClients.addAll(connections);
+            }
+            if (mClients.isEmpty()) {
+                return;
+            }
+
+            recycleFramesLocked();
+
+            ByteBuffer frame = null;
+            byte[] legacyCopy = null;
+
+            for (WebSocket client : mClients) {
+                if (!client.isOpen()) {
+                    continue;
+                }
+
+                final InetAddress address = getAddress(client);
+                if ((receiver != null && !receiver.equals(address))
+                        || (skipped != null && skipped.contains(address))) {
+                    continue;
+                }
+
+                if (client instanceof WebSocketImpl && client.getDraft() instanceof Draft_10) {
+                    if (frame == null) {
+                        frame = buildFrameLocked(frames, numframes);
+                    }
+
+                    ArrayDeque<ByteBuffer> queue = mQueues.get(client);
+                    if (queue == null) {
+                        queue = new ArrayDeque<>();
+                        mQueues.put(client, queue);
+                    }
+
+                    if (queue.size() >= MAX_QUEUED_FRAMES) {
+                        queue.pollFirst();
+                        if (++mDroppedFrames % 100 == 1) {
+                            Log.w(TAG, "Client too slow, " + mDroppedFrames + " frames dropped");
+                        }
+                    }
+                    queue.addLast(frame);
+
+                    flushLocked((WebSocketImpl) client, queue);
+                } else {
+                    // Legacy drafts have their own framing, and no binary frames
+                    if (legacyCopy == null) {
+                        legacyCopy = new byte[numframes];
+                        System.arraycopy(frames, 0, legacyCopy, 0, numframes);
+                    }
+                    client.send(legacyCopy);
                 }
             }
+
+            mClients.clear();
+        }
+    }
+
+    /**
+     * Moves the queued frames of a client to its socket queue, as long as the socket doesn't
+     * have too many frames already waiting to be written
+     */
+    private void flushLocked(WebSocketImpl client, ArrayDeque<ByteBuffer> queue) {
+        boolean queued = false;
+        while (!queue.isEmpty() && client.outQueue.size() < MAX_SOCKET_FRAMES) {
+            // Each client needs its own position in the frame
+            client.outQueue.add(queue.pollFirst().duplicate());
+            queued = true;
+        }
+
+        if (queued) {
+            onWriteDemand(client);
+        }
+    }
+
+    /**
+     * Builds an unmasked RFC 6455 binary frame into a pooled buffer
+     */
+    private ByteBuffer buildFrameLocked(byte[] payload, int length) {
+        ByteBuffer frame = mFreeFrames.pollFirst();
+        if (frame == null || frame.capacity() < length + MAX_HEADER_SIZE) {
+            frame = ByteBuffer.allocate(length + MAX_HEADER_SIZE);
+        }
+
+        frame.clear();
+        frame.put((byte) 0x82); // FIN, binary
+        if (length <= 125) {
+            frame.put((byte) length);
+        } else if (length <= 65535) {
+            frame.put((byte) 126);
+            frame.putShort((short) length);
+        } else {
+            frame.put((byte) 127);
+            frame.putLong(length);
         }
+        frame.put(payload, 0, length);
+        frame.flip();
+
+        mUsedFrames.add(frame);
+        return frame;
     }
 
+    /**
+     * Puts back in the pool the frames which are neither queued for a client, nor waiting to be
+     * written to a socket
+     */
+    private void recycleFramesLocked() {
+        if (mUsedFrames.isEmpty()) {
+            return;
+        }
+
+        for (ArrayDeque<ByteBuffer> queue : mQueues.values()) {
+            for (ByteBuffer frame : queue) {
+                mReferenced.put(frame.array(), Boolean.TRUE);
+            }
+        }
+        for (WebSocket client : mClients) {
+            if (client instanceof WebSocketImpl) {
+                for (ByteBuffer buffer : ((WebSocketImpl) client).outQueue) {
+                    if (buffer.hasArray()) {
+                        mReferenced.put(buffer.array(), Boolean.TRUE);
+                    }
+                }
+            }
+        }
+
+        Iterator<ByteBuffer> it = mUsedFrames.iterator();
+        while (it.hasNext()) {
+            ByteBuffer frame = it.next();
+            if (!mReferenced.containsKey(frame.array())) {
+                it.remove();
+                mFreeFrames.addLast(frame);
+            }
+        }
+        mReferenced.clear();
+    }
 }
@@ -16,26 +16,37 @@
 package com.fastbootmobile.encore.framework;
 
 import android.content.Context;
+import android.util.Log;
 
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.providers.BatchResult;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * This class generates automatic playlists from the listen logger
  */
 public class AutoPlaylistHelper {
+    private static final String TAG = "AutoPlaylistHelper";
+
     public static final String REF_SPECIAL_FAVORITES = "__omni:playlist:special:favorites";
     public static final String REF_SPECIAL_MOST_PLAYED = "__omni:playlist:special:mostplayed";
 
+    private static final int MOST_PLAYED_COUNT = 100;
+    // Leaves room for songs which can't be retrieved anymore
+    private static final int MOST_PLAYED_CANDIDATES = 150;
+    // Songs not retrieved by then are left out of the playlist
+    private static final long RETRIEVE_TIMEOUT_MS = 10000;
+
     /**
      * Generates and returns a playlist containing all the liked entries
      * @param ctx The context
@@ -53,11 +64,9 @@ public class AutoPlaylistHelper {
         playlist.setOfflineStatus(Playlist.OFFLINE_STATUS_NO);
         playlist.setIsLoaded(true);
 
-        for (ListenLogger.LogEntry like : likes) {
-            // Ensure the songs are cached as they're coming from multiple providers
-            if (aggregator.retrieveSong(like.getReference(), like.getIdentifier()) != null) {
-                playlist.addSong(like.getReference());
-            }
+        // Ensure the songs are cached as they're coming from multiple providers
+        for (Song song : retrieveSongs(aggregator, likes)) {
+            playlist.addSong(song.getRef());
         }
 
         return playlist;
@@ -72,7 +81,8 @@ public class AutoPlaylistHelper {
         final ProviderAggregator aggregator = ProviderAggregator.getDefault();
         final ListenLogger logger = new ListenLogger(ctx);
 
-        List<ListenLogger.LogEntry> likes = logger.getEntries(0);
+        // Counts are maintained by the logger, only the top of the list is read and retrieved
+        List<ListenLogger.LogEntry> mostPlayed = logger.getMostPlayedEntries(MOST_PLAYED_CANDIDATES);
 
         Playlist playlist = new Playlist(REF_SPECIAL_MOST_PLAYED);
         playlist.setName(ctx.getString(R.string.most_played));
@@ -80,35 +90,22 @@ public class AutoPlaylistHelper {
         playlist.setOfflineStatus(Playlist.OFFLINE_STATUS_NO);
         playlist.setIsLoaded(true);
 
-        HashMap<String, Integer> occurrences = new HashMap<>();
-        for (ListenLogger.LogEntry like : likes) {
-            final String ref = like.getReference();
-
-            // Ensure the songs are cached as they're coming from multiple providers
-            Song song = aggregator.retrieveSong(ref, like.getIdentifier());
-
-            // A null song indicates either the song has gone unavailable or the provider has been
-            // removed. We should not add it.
-            if (song != null) {
-                if (occurrences.containsKey(like.getReference())) {
-                    occurrences.put(ref, occurrences.get(ref) + 1);
-                } else {
-                    occurrences.put(ref, 1);
-                }
-            }
+        // Ensure the songs are cached as they're coming from multiple providers. A missing song
+        // indicates either the song has gone unavailable or the provider has been removed. We
+        // should not add it.
+        Set<String> available = new HashSet<>();
+        for (Song song : retrieveSongs(aggregator, mostPlayed)) {
+            available.add(song.getRef());
         }
 
         int number = 0;
-        TreeMap<String, Integer> sortedSongs = new TreeMap<>(new ValueComparator(occurrences));
-        sortedSongs.putAll(occurrences);
-
-        Set<String> references = sortedSongs.keySet();
-        for (String ref : references) {
-            if (ref != null) {
+        for (ListenLogger.LogEntry entry : mostPlayed) {
+            final String ref = entry.getReference();
+            if (ref != null && available.contains(ref)) {
                 playlist.addSong(ref);
                 ++number;
 
-                if (number == 100) {
+                if (number == MOST_PLAYED_COUNT) {
                     break;
                 }
             }
@@ -117,20 +114,29 @@ public class AutoPlaylistHelper {
         return playlist;
     }
 
-    private static class ValueComparator implements Comparator<String> {
-        private Map<String, Integer> mBase;
-
-        public ValueComparator(Map<String, Integer> base) {
-            mBase = base;
+    /**
+     * Retrieves the songs of the provided log entries in one batch
+     * @return The songs that could be retrieved in time
+     */
+    private static List<Song> retrieveSongs(ProviderAggregator aggregator,
+                                            List<ListenLogger.LogEntry> entries) {
+        List<String> refs = new ArrayList<>(entries.size());
+        List<ProviderIdentifier> providers = new ArrayList<>(entries.size());
+        for (ListenLogger.LogEntry entry : entries) {
+            refs.add(entry.getReference());
+            providers.add(entry.getIdentifier());
         }
 
-        // Note: this comparator imposes orderings that are inconsistent with equals.
-        public int compare(String a, String b) {
-            if (mBase.get(a) >= mBase.get(b)) {
-                return -1;
-            } else {
-                return 1;
-            } // returning 0 would merge keys
+        final BatchResult<Song> batch = aggregator.retrieveSongs(refs, providers, null);
+        try {
+            return batch.get(RETRIEVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Timed out while retrieving songs, using the ones retrieved so far");
+            batch.cancel(false);
+            return batch.getRetrieved();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while retrieving songs", e);
+            return new ArrayList<>();
         }
     }
 }
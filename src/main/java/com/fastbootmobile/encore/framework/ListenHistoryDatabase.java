@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.framework;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Database storing the listening history. Plays are appended to an history table indexed by
+ * time and song, and the play count and last play time of each song are maintained along, so
+ * that neither logging a play nor building the "Most played" list depend on the size of the
+ * history. Entries older than {@link #RETENTION} are pruned (at most once a day), and their
+ * plays are removed from the counts.
+ */
+class ListenHistoryDatabase extends SQLiteOpenHelper {
+    private static final String TAG = "ListenHistoryDatabase";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String DATABASE_NAME = "listen_history";
+
+    private static final String TABLE_HISTORY = "history";
+    private static final String TABLE_PLAY_COUNTS = "play_counts";
+
+    private static final String KEY_ID = "id";
+    private static final String KEY_TIMESTAMP = "timestamp";
+    private static final String KEY_SONG_REF = "song_ref";
+    private static final String KEY_PROVIDER = "provider";
+    private static final String KEY_PLAY_COUNT = "play_count";
+    private static final String KEY_LAST_PLAYED = "last_played";
+
+    private static final String CREATE_TABLE_HISTORY = "CREATE TABLE IF NOT EXISTS " +
+            TABLE_HISTORY + "(" + KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + KEY_TIMESTAMP + " INTEGER," + KEY_SONG_REF + " TEXT," + KEY_PROVIDER + " TEXT)";
+    private static final String CREATE_TABLE_PLAY_COUNTS = "CREATE TABLE IF NOT EXISTS " +
+            TABLE_PLAY_COUNTS + "(" + KEY_SONG_REF + " TEXT," + KEY_PROVIDER + " TEXT,"
+            + KEY_PLAY_COUNT + " INTEGER," + KEY_LAST_PLAYED + " INTEGER, PRIMARY KEY("
+            + KEY_SONG_REF + "," + KEY_PROVIDER + "))";
+    private static final String CREATE_INDEX_TIMESTAMP = "CREATE INDEX IF NOT EXISTS "
+            + "history_timestamp ON " + TABLE_HISTORY + "(" + KEY_TIMESTAMP + ")";
+    private static final String CREATE_INDEX_REF = "CREATE INDEX IF NOT EXISTS "
+            + "history_ref ON " + TABLE_HISTORY + "(" + KEY_SONG_REF + ")";
+    private static final String CREATE_INDEX_PLAY_COUNT = "CREATE INDEX IF NOT EXISTS "
+            + "play_counts_count ON " + TABLE_PLAY_COUNTS + "(" + KEY_PLAY_COUNT + " DESC, "
+            + KEY_LAST_PLAYED + " DESC)";
+
+    private static final String SQL_INSERT_PLAY = "INSERT INTO " + TABLE_HISTORY + "("
+            + KEY_TIMESTAMP + "," + KEY_SONG_REF + "," + KEY_PROVIDER + ") VALUES (?,?,?)";
+    private static final String SQL_INCREMENT_COUNT = "UPDATE " + TABLE_PLAY_COUNTS + " SET "
+            + KEY_PLAY_COUNT + " = " + KEY_PLAY_COUNT + " + 1, " + KEY_LAST_PLAYED + " = ? WHERE "
+            + KEY_SONG_REF + " = ? AND " + KEY_PROVIDER + " = ?";
+    private static final String SQL_DECREMENT_COUNT = "UPDATE " + TABLE_PLAY_COUNTS + " SET "
+            + KEY_PLAY_COUNT + " = " + KEY_PLAY_COUNT + " - ? WHERE " + KEY_SONG_REF + " = ? AND "
+            + KEY_PROVIDER + " = ?";
+
+    /**
+     * How long plays are kept in the history
+     */
+    static final long RETENTION = 31L * 24 * 60 * 60 * 1000;
+    private static final long PRUNE_INTERVAL = 24L * 60 * 60 * 1000;
+
+    // Legacy storage of the history, imported when the database is created
+    private static final String LEGACY_PREFS = "ListenLogger";
+    private static final String LEGACY_PREF_HISTORY_ENTRIES = "history_entries";
+
+    private static ListenHistoryDatabase sInstance;
+
+    private final Context mContext;
+    private SQLiteStatement mInsertStatement;
+    private SQLiteStatement mIncrementStatement;
+    private long mLastPrune;
+
+    /**
+     * Row of the history or of the play counts
+     */
+    static class Row {
+        final String songRef;
+        final String provider;
+        final long timestamp;
+        final int playCount;
+
+        Row(String songRef, String provider, long timestamp, int playCount) {
+            this.songRef = songRef;
+            this.provider = provider;
+            this.timestamp = timestamp;
+            this.playCount = playCount;
+        }
+    }
+
+    static synchronized ListenHistoryDatabase getDefault(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new ListenHistoryDatabase(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ListenHistoryDatabase(Context ctx) {
+        super(ctx, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = ctx;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_HISTORY);
+        db.execSQL(CREATE_TABLE_PLAY_COUNTS);
+        db.execSQL(CREATE_INDEX_TIMESTAMP);
+        db.execSQL(CREATE_INDEX_REF);
+        db.execSQL(CREATE_INDEX_PLAY_COUNT);
+
+        importLegacyHistory(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // We have no migrating plan for now
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_HISTORY);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_PLAY_COUNTS);
+        onCreate(db);
+    }
+
+    /**
+     * Logs a play
+     * @param songRef The reference of the song
+     * @param provider The serialized identifier of the provider of the song
+     * @param timestamp The time of the play
+     */
+    synchronized void addPlay(String songRef, String provider, long timestamp) {
+        final SQLiteDatabase db = getWritableDatabase();
+        if (mInsertStatement == null) {
+            mInsertStatement = db.compileStatement(SQL_INSERT_PLAY);
+            mIncrementStatement = db.compileStatement(SQL_INCREMENT_COUNT);
+        }
+
+        db.beginTransaction();
+        try {
+            insertPlay(db, mInsertStatement, mIncrementStatement, songRef, provider, timestamp);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (timestamp - mLastPrune > PRUNE_INTERVAL) {
+            prune(db, timestamp - RETENTION);
+            mLastPrune = timestamp;
+        }
+    }
+
+    /**
+     * @param limit The maximum number of plays to return, or 0 for all of them
+     * @return The plays, most recent first
+     */
+    synchronized List<Row> getPlays(int limit) {
+        final Cursor c = getReadableDatabase().query(TABLE_HISTORY,
+                new String[]{KEY_SONG_REF, KEY_PROVIDER, KEY_TIMESTAMP}, null, null, null, null,
+                KEY_TIMESTAMP + " DESC", limit > 0 ? Integer.toString(limit) : null);
+
+        List<Row> output = new ArrayList<>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                output.add(new Row(c.getString(0), c.getString(1), c.getLong(2), 1));
+            }
+        } finally {
+            c.close();
+        }
+        return output;
+    }
+
+    /**
+     * @param limit The maximum number of songs to return
+     * @return The most played songs, with their play count and last play time
+     */
+    synchronized List<Row> getMostPlayed(int limit) {
+        final Cursor c = getReadableDatabase().query(TABLE_PLAY_COUNTS,
+                new String[]{KEY_SONG_REF, KEY_PROVIDER, KEY_LAST_PLAYED, KEY_PLAY_COUNT},
+                KEY_PLAY_COUNT + " > 0", null, null, null,
+                KEY_PLAY_COUNT + " DESC, " + KEY_LAST_PLAYED + " DESC", Integer.toString(limit));
+
+        List<Row> output = new ArrayList<>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                output.add(new Row(c.getString(0), c.getString(1), c.getLong(2), c.getInt(3)));
+            }
+        } finally {
+            c.close();
+        }
+        return output;
+    }
+
+    private static void insertPlay(SQLiteDatabase db, SQLiteStatement insert,
+                                   SQLiteStatement increment, String songRef, String provider,
+                                   long timestamp) {
+        insert.bindLong(1, timestamp);
+        insert.bindString(2, songRef);
+        insert.bindString(3, provider);
+        insert.executeInsert();
+
+        increment.bindLong(1, timestamp);
+        increment.bindString(2, songRef);
+        increment.bindString(3, provider);
+        if (increment.executeUpdateDelete() == 0) {
+            ContentValues values = new ContentValues();
+            values.put(KEY_SONG_REF, songRef);
+            values.put(KEY_PROVIDER, provider);
+            values.put(KEY_PLAY_COUNT, 1);
+            values.put(KEY_LAST_PLAYED, timestamp);
+            db.insert(TABLE_PLAY_COUNTS, null, values);
+        }
+    }
+
+    /**
+     * Removes the plays older than the provided time, and their contribution to the counts
+     */
+    private void prune(SQLiteDatabase db, long before) {
+        final String[] args = new String[]{Long.toString(before)};
+
+        db.beginTransaction();
+        try {
+            final Cursor c = db.query(TABLE_HISTORY,
+                    new String[]{KEY_SONG_REF, KEY_PROVIDER, "COUNT(*)"},
+                    KEY_TIMESTAMP + " < ?", args, KEY_SONG_REF + "," + KEY_PROVIDER, null, null);
+            try {
+                if (c.getCount() > 0) {
+                    final SQLiteStatement decrement = db.compileStatement(SQL_DECREMENT_COUNT);
+                    while (c.moveToNext()) {
+                        decrement.bindLong(1, c.getLong(2));
+                        decrement.bindString(2, c.getString(0));
+                        decrement.bindString(3, c.getString(1));
+                        decrement.executeUpdateDelete();
+                    }
+                    decrement.close();
+                }
+            } finally {
+                c.close();
+            }
+
+            final int removed = db.delete(TABLE_HISTORY, KEY_TIMESTAMP + " < ?", args);
+            db.delete(TABLE_PLAY_COUNTS, KEY_PLAY_COUNT + " <= 0", null);
+            db.setTransactionSuccessful();
+
+            if (removed > 0) {
+                Log.d(TAG, "Pruned " + removed + " history entries");
+            }
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Moves the history stored by previous versions in the preferences into the database
+     */
+    private void importLegacyHistory(SQLiteDatabase db) {
+        final SharedPreferences prefs = mContext.getSharedPreferences(LEGACY_PREFS,
+                Context.MODE_PRIVATE);
+        final Set<String> entries = prefs.getStringSet(LEGACY_PREF_HISTORY_ENTRIES, null);
+        if (entries == null) {
+            return;
+        }
+
+        final long cutoff = System.currentTimeMillis() - RETENTION;
+        final SQLiteStatement insert = db.compileStatement(SQL_INSERT_PLAY);
+        final SQLiteStatement increment = db.compileStatement(SQL_INCREMENT_COUNT);
+        int imported = 0;
+
+        for (String entry : entries) {
+            try {
+                JSONObject obj = new JSONObject(entry);
+                long timestamp = obj.getLong("timestamp");
+                if (timestamp >= cutoff) {
+                    insertPlay(db, insert, increment, obj.getString("song_ref"),
+                            obj.getString("provider"), timestamp);
+                    ++imported;
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Cannot parse legacy history entry", e);
+            }
+        }
+
+        insert.close();
+        increment.close();
+
+        prefs.edit().remove(LEGACY_PREF_HISTORY_ENTRIES).apply();
+        Log.i(TAG, "Imported " + imported + " legacy history entries");
+    }
+}
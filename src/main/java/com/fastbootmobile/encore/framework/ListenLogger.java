@@ -32,25 +32,26 @@ import java.util.Set;
 import java.util.TreeSet;
 
 /**
- * Class handling logging of played and liked songs
+ * Class handling logging of played and liked songs. The history is stored in the
+ * {@link ListenHistoryDatabase}, the liked and disliked songs in the preferences.
  */
 public class ListenLogger {
     private static final String TAG = "ListenLogger";
     private static final boolean DEBUG = true;
 
     private static final String PREFS = "ListenLogger";
-    private static final String PREF_HISTORY_ENTRIES = "history_entries";
     private static final String PREF_LIKED_ENTRIES = "liked_entries";
     private static final String PREF_DISLIKED_ENTRIES = "disliked_entries";
 
-    private static final String KEY_TIMESTAMP = "timestamp";
     private static final String KEY_SONG_REF = "song_ref";
     private static final String KEY_PROVIDER = "provider";
 
     private SharedPreferences mPrefs;
+    private ListenHistoryDatabase mHistory;
 
     public ListenLogger(Context ctx) {
         mPrefs = ctx.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        mHistory = ListenHistoryDatabase.getDefault(ctx);
     }
 
     /**
@@ -58,75 +59,35 @@ public class ListenLogger {
      * @param song The song to add
      */
     public void addEntry(Song song) {
-        SharedPreferences.Editor editor = mPrefs.edit();
-        Set<String> entries = new TreeSet<>(mPrefs.getStringSet(PREF_HISTORY_ENTRIES,
-                new TreeSet<String>()));
-
-        JSONObject jsonRoot = new JSONObject();
-        try {
-            jsonRoot.put(KEY_TIMESTAMP, new Date().getTime());
-            jsonRoot.put(KEY_SONG_REF, song.getRef());
-            jsonRoot.put(KEY_PROVIDER, song.getProvider().serialize());
-        } catch (JSONException ignore) {}
-
-
-        entries.add(jsonRoot.toString());
-
-        // Remove old entries
-        final long now = new Date().getTime();
-        final long oneSec = 1000L;
-        final long oneMin = oneSec * 60;
-        final long oneHour = oneMin * 60;
-        final long oneDay = oneHour * 24;
-        final long oneMonth = oneDay * 31;
-
-        Set<String> removal = new TreeSet<>();
-        for (String entry : entries) {
-            try {
-                JSONObject obj = new JSONObject(entry);
-                long timestamp = obj.getLong(KEY_TIMESTAMP);
-                if (now - timestamp > oneMonth) {
-                    removal.add(entry);
-                }
-            } catch (JSONException e) {
-                Log.w(TAG, "Cannot parse JSON", e);
-            }
-        }
-
-        for (String entry : removal) {
-            entries.remove(entry);
-        }
-
-        editor.putStringSet(PREF_HISTORY_ENTRIES, entries);
-        editor.apply();
+        mHistory.addPlay(song.getRef(), song.getProvider().serialize(), new Date().getTime());
     }
 
     /**
-     * Fetches and builds a list of all the history entries
-     * @return A list of entries
+     * Fetches and builds a list of the most recent history entries
+     * @param limit The maximum number of entries to return, or 0 for all of them
+     * @return A list of entries, most recent first
      */
     public List<LogEntry> getEntries(int limit) {
-        Set<String> entries = mPrefs.getStringSet(PREF_HISTORY_ENTRIES, null);
-        List<LogEntry> output = new ArrayList<>();
-        if (entries != null) {
-            for (String entry : entries) {
-                try {
-                    JSONObject jsonObj = new JSONObject(entry);
-                    String songRef = jsonObj.getString(KEY_SONG_REF);
-                    String providerSerialized = jsonObj.getString(KEY_PROVIDER);
-                    long timestamp = jsonObj.getLong(KEY_TIMESTAMP);
-
-                    output.add(new LogEntry(songRef, providerSerialized, timestamp));
-                } catch (JSONException e) {
-                    Log.e(TAG, "JSON Exception while trying to get log entry", e);
-                }
-
-                if (limit > 0 && output.size() == limit) {
-                    break;
-                }
-            }
+        List<ListenHistoryDatabase.Row> rows = mHistory.getPlays(limit);
+        List<LogEntry> output = new ArrayList<>(rows.size());
+        for (ListenHistoryDatabase.Row row : rows) {
+            output.add(new LogEntry(row.songRef, row.provider, row.timestamp, 1));
         }
+        return output;
+    }
 
+    /**
+     * Returns the most played songs of the history
+     * @param limit The maximum number of songs to return
+     * @return A list of entries, most played first. The timestamp of the entries is the last
+     * time the song was played.
+     */
+    public List<LogEntry> getMostPlayedEntries(int limit) {
+        List<ListenHistoryDatabase.Row> rows = mHistory.getMostPlayed(limit);
+        List<LogEntry> output = new ArrayList<>(rows.size());
+        for (ListenHistoryDatabase.Row row : rows) {
+            output.add(new LogEntry(row.songRef, row.provider, row.timestamp, row.playCount));
+        }
         return output;
     }
 
@@ -217,7 +178,7 @@ public class ListenLogger {
                     String songRef = jsonObj.getString(KEY_SONG_REF);
                     String providerSerialized = jsonObj.getString(KEY_PROVIDER);
 
-                    output.add(new LogEntry(songRef, providerSerialized, 0));
+                    output.add(new LogEntry(songRef, providerSerialized, 0, 0));
                 } catch (JSONException e) {
                     Log.e(TAG, "JSON Exception while trying to get liked entries", e);
                 }
@@ -273,11 +234,14 @@ public class ListenLogger {
         private Date mTimestamp;
         private String mSongRef;
         private ProviderIdentifier mIdentifier;
+        private int mPlayCount;
 
-        private LogEntry(String songRef, String serializedProviderIdentifier, long timestamp) {
+        private LogEntry(String songRef, String serializedProviderIdentifier, long timestamp,
+                         int playCount) {
             mSongRef = songRef;
             mIdentifier = ProviderIdentifier.fromSerialized(serializedProviderIdentifier);
             mTimestamp = new Date(timestamp);
+            mPlayCount = playCount;
         }
 
         /**
@@ -300,5 +264,12 @@ public class ListenLogger {
         public Date getTimestamp() {
             return mTimestamp;
         }
+
+        /**
+         * @return The number of plays of the song (valid only for the most played entries)
+         */
+        public int getPlayCount() {
+            return mPlayCount;
+        }
     }
 }
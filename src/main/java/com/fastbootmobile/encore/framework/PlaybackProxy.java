@@ -28,6 +28,7 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 import com.fastbootmobile.encore.service.IPlaybackCallback;
 import com.fastbootmobile.encore.service.IPlaybackService;
+import com.fastbootmobile.encore.service.PlaybackQueueWindow;
 import com.fastbootmobile.encore.service.PlaybackService;
 
 import java.util.ArrayList;
@@ -63,6 +64,7 @@ public class PlaybackProxy {
     private static final int MSG_SET_SHUFFLE_MODE   = 19;
     private static final int MSG_PLAY_NEXT          = 20;
     private static final int MSG_SLEEP_TIMER        = 21;
+    private static final int MSG_SET_CAST_TRANSPORT = 22;
 
     private static class PlaybackProxyHandler extends Handler {
         public PlaybackProxyHandler(Looper looper) {
@@ -167,6 +169,11 @@ public class PlaybackProxy {
                     case MSG_SLEEP_TIMER:
                         getPlayback().setSleepTimer((Long) msg.obj);
                         break;
+
+                    case MSG_SET_CAST_TRANSPORT:
+                        String[] transport = (String[]) msg.obj;
+                        getPlayback().setCastTransport(transport[0], transport[1], msg.arg1);
+                        break;
                 }
             } catch (RemoteException e) {
                 Log.e(TAG, "Cannot run remote method", e);
@@ -282,6 +289,19 @@ public class PlaybackProxy {
         }
     }
 
+    /**
+     * Reads a range of the playback queue. This is a synchronous call to the service, see
+     * {@link PlaybackQueueMirror} to follow the queue from the UI.
+     * @return The window, or null if the service isn't available
+     */
+    public static PlaybackQueueWindow getPlaybackQueueWindow(int offset, int count) {
+        try {
+            return getPlayback().getPlaybackQueueWindow(offset, count);
+        } catch (RemoteException e) {
+            return null;
+        }
+    }
+
     public static int getCurrentTrackPosition() {
         try {
             return getPlayback().getCurrentTrackPosition();
@@ -366,6 +386,11 @@ public class PlaybackProxy {
         Message.obtain(sHandler, MSG_SLEEP_TIMER, uptime).sendToTarget();
     }
 
+    public static void setCastTransport(String receiver, String codec, int bitrate) {
+        Message.obtain(sHandler, MSG_SET_CAST_TRANSPORT, bitrate, 0,
+                new String[] {receiver, codec}).sendToTarget();
+    }
+
     public static long getSleepTimerEndTime() {
         try {
             return getPlayback().getSleepTimerEndTime();
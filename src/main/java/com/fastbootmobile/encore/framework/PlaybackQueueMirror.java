@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.framework;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.ProviderIdentifier;
+import com.fastbootmobile.encore.service.BasePlaybackCallback;
+import com.fastbootmobile.encore.service.PlaybackQueue;
+import com.fastbootmobile.encore.service.PlaybackQueueWindow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Local copy of the playback queue of the service. The structure of the queue is kept up to date
+ * from the changes sent by the service, and the songs themselves are only read from the service
+ * by windows of {@link #WINDOW_SIZE} songs, when a position of the queue is displayed. If changes
+ * are missed, the mirror reads the queue again.
+ *
+ * The mirror only follows the queue while it has listeners, and checks that its copy is still
+ * current when it gets a listener again. All the methods must be called from the main thread, and
+ * listeners are notified on the main thread, so the mirror can directly back adapters.
+ */
+public class PlaybackQueueMirror {
+    private static final String TAG = "PlaybackQueueMirror";
+
+    private static final int WINDOW_SIZE = 50;
+    private static final long VERSION_NONE = 0;
+
+    /**
+     * Interface notified when the content of the mirror changes
+     */
+    public interface Listener {
+        /**
+         * Called when the queue or the current track changed, or when songs of the queue have
+         * been read from the service
+         */
+        void onQueueMirrorChanged();
+    }
+
+    private static class Entry {
+        final String ref;
+        final ProviderIdentifier provider;
+
+        Entry(String ref, ProviderIdentifier provider) {
+            this.ref = ref;
+            this.provider = provider;
+        }
+    }
+
+    private static PlaybackQueueMirror sDefault;
+
+    private final Handler mHandler;
+    private final Handler mFetchHandler;
+    private final List<Listener> mListeners = new ArrayList<>();
+
+    // Null entries are songs which haven't been read yet
+    private final List<Entry> mEntries = new ArrayList<>();
+    private final Set<Integer> mPendingWindows = new HashSet<>();
+    private long mVersion = VERSION_NONE;
+    private long mLatestVersion = VERSION_NONE;
+    private int mCurrentIndex = -1;
+
+    private final BasePlaybackCallback mPlaybackCallback = new BasePlaybackCallback() {
+        @Override
+        public void onSongStarted(boolean buffering, Song s) throws RemoteException {
+            // The current track moved, which isn't a change of the queue
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mListeners.isEmpty()) {
+                        fetch(-1, mCurrentIndex, 0);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onPlaybackQueueDelta(final long fromVersion, final long toVersion,
+                                         final int[] ops, final int currentIndex)
+                throws RemoteException {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    applyChanges(fromVersion, toVersion, ops, currentIndex);
+                }
+            });
+        }
+    };
+
+    /**
+     * @return The mirror of the app. Must be called from the main thread.
+     */
+    public static PlaybackQueueMirror getDefault() {
+        if (sDefault == null) {
+            sDefault = new PlaybackQueueMirror();
+        }
+        return sDefault;
+    }
+
+    private PlaybackQueueMirror() {
+        mHandler = new Handler(Looper.getMainLooper());
+
+        HandlerThread thread = new HandlerThread("PlaybackQueueMirror");
+        thread.start();
+        mFetchHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Adds a listener. The mirror starts following the queue with its first listener.
+     */
+    public void addListener(Listener listener) {
+        if (mListeners.contains(listener)) {
+            return;
+        }
+
+        mListeners.add(listener);
+        if (mListeners.size() == 1) {
+            PlaybackProxy.addCallback(mPlaybackCallback);
+        }
+
+        // Changes might have been missed while we weren't listening
+        fetch(-1, mCurrentIndex, 0);
+    }
+
+    /**
+     * Removes a listener. The mirror stops following the queue when its last listener is removed.
+     */
+    public void removeListener(Listener listener) {
+        if (mListeners.remove(listener) && mListeners.isEmpty()) {
+            PlaybackProxy.removeCallback(mPlaybackCallback);
+            mPendingWindows.clear();
+        }
+    }
+
+    /**
+     * @return true once the queue has been read from the service
+     */
+    public boolean isSynced() {
+        return mVersion != VERSION_NONE;
+    }
+
+    /**
+     * @return The number of songs in the queue
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return The index of the current track in the queue, or -1
+     */
+    public int getCurrentIndex() {
+        return mCurrentIndex;
+    }
+
+    /**
+     * Returns the reference of a song of the queue. If the song hasn't been read from the service
+     * yet, the window around it is requested and listeners are notified once it's received.
+     * @param position The position in the queue
+     * @return The reference of the song, or null if not read yet
+     */
+    public String getRef(int position) {
+        final Entry entry = mEntries.get(position);
+        if (entry == null) {
+            requestWindow(position);
+            return null;
+        }
+        return entry.ref;
+    }
+
+    /**
+     * Returns a song of the queue, like {@link #getRef(int)}
+     * @param position The position in the queue
+     * @return The song from the ProviderAggregator, or null if not read yet
+     */
+    public Song getSong(int position) {
+        final Entry entry = mEntries.get(position);
+        if (entry == null) {
+            requestWindow(position);
+            return null;
+        } else if (entry.ref == null) {
+            return null;
+        }
+        return ProviderAggregator.getDefault().retrieveSong(entry.ref, entry.provider);
+    }
+
+    private void requestWindow(int position) {
+        final int window = position / WINDOW_SIZE;
+        if (mPendingWindows.add(window)) {
+            fetch(window, window * WINDOW_SIZE, WINDOW_SIZE);
+        }
+    }
+
+    /**
+     * Reads a window of the queue from the service
+     * @param window The index of the window, or -1 if the request isn't tracked
+     */
+    private void fetch(final int window, final int offset, final int count) {
+        mFetchHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final PlaybackQueueWindow result =
+                        PlaybackProxy.getPlaybackQueueWindow(Math.max(0, offset), count);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onWindowReceived(window, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onWindowReceived(int window, PlaybackQueueWindow result) {
+        if (window >= 0) {
+            mPendingWindows.remove(window);
+        }
+        if (result == null || mListeners.isEmpty()) {
+            return;
+        }
+
+        final long version = result.getVersion();
+        if (version < mVersion || version < mLatestVersion) {
+            // The queue changed while the window was read, read it again
+            if (window >= 0) {
+                requestWindow(window * WINDOW_SIZE);
+            }
+            return;
+        }
+
+        if (version != mVersion) {
+            // First read, or changes were missed: start again from this window. Whatever
+            // changes led to this version are covered, so older changes will be ignored.
+            mEntries.clear();
+            mEntries.addAll(Collections.<Entry>nCopies(result.getQueueSize(), null));
+            mPendingWindows.clear();
+            mVersion = version;
+        }
+
+        final int offset = result.getOffset();
+        final int count = result.getCount();
+        for (int i = 0; i < count; ++i) {
+            mEntries.set(offset + i, new Entry(result.getRef(i), result.getProvider(i)));
+        }
+        mCurrentIndex = result.getCurrentIndex();
+
+        notifyListeners();
+    }
+
+    private void applyChanges(long fromVersion, long toVersion, int[] ops, int currentIndex) {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+
+        mLatestVersion = Math.max(mLatestVersion, toVersion);
+        if (toVersion <= mVersion) {
+            // Already covered by a window read after these changes
+            return;
+        }
+
+        if (fromVersion != mVersion || ops == null || !applyOps(ops)) {
+            Log.d(TAG, "Missed changes of the playback queue, reading it again");
+            mVersion = VERSION_NONE;
+            fetch(-1, currentIndex, WINDOW_SIZE);
+            return;
+        }
+
+        mVersion = toVersion;
+        mCurrentIndex = currentIndex;
+        notifyListeners();
+    }
+
+    /**
+     * @return false if the changes don't match the mirror
+     */
+    private boolean applyOps(int[] ops) {
+        for (int i = 0; i + PlaybackQueue.OP_LENGTH <= ops.length; i += PlaybackQueue.OP_LENGTH) {
+            final int position = ops[i + 1];
+            final int count = ops[i + 2];
+            final int size = mEntries.size();
+
+            switch (ops[i]) {
+                case PlaybackQueue.OP_INSERT:
+                    if (position < 0 || position > size) {
+                        return false;
+                    }
+                    mEntries.addAll(position, Collections.<Entry>nCopies(count, null));
+                    break;
+
+                case PlaybackQueue.OP_REMOVE:
+                    if (position < 0 || position + count > size) {
+                        return false;
+                    }
+                    mEntries.subList(position, position + count).clear();
+                    break;
+
+                case PlaybackQueue.OP_MOVE:
+                    final int target = ops[i + 3];
+                    if (position < 0 || position + count > size || target < 0
+                            || target + count > size) {
+                        return false;
+                    }
+                    final List<Entry> range = mEntries.subList(position, position + count);
+                    final List<Entry> moved = new ArrayList<>(range);
+                    range.clear();
+                    mEntries.addAll(target, moved);
+                    break;
+
+                default:
+                    return false;
+            }
+        }
+
+        // Windows requested before the changes cover other positions now
+        mPendingWindows.clear();
+        return true;
+    }
+
+    private void notifyListeners() {
+        for (Listener listener : new ArrayList<>(mListeners)) {
+            listener.onQueueMirrorChanged();
+        }
+    }
+}
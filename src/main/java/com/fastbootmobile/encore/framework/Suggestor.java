@@ -15,11 +15,13 @@
 
 package com.fastbootmobile.encore.framework;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.providers.BatchResult;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 
 import java.util.ArrayList;
@@ -27,12 +29,16 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Class generating listening suggestions
  */
 public class Suggestor {
     private static final String TAG = "Suggestor";
+    // Songs not retrieved by then are left out of the radio
+    private static final long RETRIEVE_TIMEOUT_MS = 10000;
     private static final Suggestor INSTANCE = new Suggestor();
 
     public static Suggestor getInstance() {
@@ -53,20 +59,26 @@ public class Suggestor {
         final List<Song> allSongs = new ArrayList<>();
         final ProviderAggregator aggregator = ProviderAggregator.getDefault();
 
-
-
         // List all tracks from all albums, get 100 random
-        final List<String> albumReferences = artist.getAlbums();
-        for (String albumRef : albumReferences) {
-            Album album = aggregator.retrieveAlbum(albumRef, artist.getProvider());
-            if (album != null && album.isLoaded()) {
-                Iterator<String> songsIt = album.songs();
-                while (songsIt.hasNext()) {
-                    String songRef = songsIt.next();
-                    Song song = aggregator.retrieveSong(songRef, artist.getProvider());
-                    allSongs.add(song);
+        final long deadline = SystemClock.uptimeMillis() + RETRIEVE_TIMEOUT_MS;
+        try {
+            final List<Album> albums = waitForBatch(aggregator.retrieveAlbums(artist.getAlbums(),
+                    artist.getProvider()), deadline);
+
+            final List<String> songRefs = new ArrayList<>();
+            for (Album album : albums) {
+                if (album.isLoaded()) {
+                    Iterator<String> songsIt = album.songs();
+                    while (songsIt.hasNext()) {
+                        songRefs.add(songsIt.next());
+                    }
                 }
             }
+
+            allSongs.addAll(waitForBatch(aggregator.retrieveSongs(songRefs, artist.getProvider()),
+                    deadline));
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while building artist radio", e);
         }
 
         long seed = System.nanoTime();
@@ -83,6 +95,22 @@ public class Suggestor {
         return output;
     }
 
+    /**
+     * Waits for a batch until the deadline
+     * @return The entities retrieved, which might not be all of them if the deadline passed
+     */
+    private static <T> List<T> waitForBatch(BatchResult<T> batch, long deadline)
+            throws InterruptedException {
+        try {
+            return batch.get(Math.max(0, deadline - SystemClock.uptimeMillis()),
+                    TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Timed out while retrieving entities, using the ones retrieved so far");
+            batch.cancel(false);
+            return batch.getRetrieved();
+        }
+    }
+
     /**
      * Suggests the best song from an artist
      * @param artist The artist from which we want to suggest a song
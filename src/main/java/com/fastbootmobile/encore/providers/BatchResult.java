@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Result of a batched entity retrieval from {@link ProviderAggregator}. Each requested reference
+ * has a slot that is filled by the fetch workers; once all slots are filled, the result
+ * completes and the optional callback is invoked on the worker thread that finished last.
+ * The resulting list keeps the order of the requested references, and skips the entities
+ * that could not be retrieved.
+ */
+public class BatchResult<T> implements Future<List<T>> {
+    private final AtomicReferenceArray<T> mSlots;
+    private final AtomicInteger mPending;
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    private final AtomicBoolean mDone = new AtomicBoolean(false);
+    private final Callback<T> mCallback;
+    private volatile boolean mCancelled = false;
+
+    /**
+     * Interface notified when a batch is complete
+     */
+    public interface Callback<T> {
+        void onBatchRetrieved(List<T> entities);
+    }
+
+    BatchResult(int size, Callback<T> callback) {
+        mSlots = new AtomicReferenceArray<>(size);
+        mPending = new AtomicInteger(size);
+        mCallback = callback;
+        if (size == 0) {
+            complete();
+        }
+    }
+
+    /**
+     * Fills the slot at the provided index. Must be called exactly once per slot.
+     */
+    void set(int index, T entity) {
+        mSlots.set(index, entity);
+        if (mPending.decrementAndGet() == 0) {
+            complete();
+        }
+    }
+
+    private void complete() {
+        if (!mDone.compareAndSet(false, true)) {
+            // Cancelled in the meantime
+            return;
+        }
+
+        mLatch.countDown();
+        if (mCallback != null) {
+            mCallback.onBatchRetrieved(collect());
+        }
+    }
+
+    private List<T> collect() {
+        final int size = mSlots.length();
+        List<T> output = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            final T entity = mSlots.get(i);
+            if (entity != null) {
+                output.add(entity);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Returns the entities retrieved so far, in the order of the requested references, without
+     * waiting for the other ones. Useful after {@link #get(long, TimeUnit)} timed out.
+     */
+    public List<T> getRetrieved() {
+        return collect();
+    }
+
+    /**
+     * Cancels the batch: the fetches that didn't start yet are skipped, the callback isn't
+     * invoked, and the threads waiting in {@link #get()} are released with a
+     * {@link CancellationException}. Fetches already running aren't interrupted.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!mDone.compareAndSet(false, true)) {
+            return false;
+        }
+        mCancelled = true;
+        mLatch.countDown();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.get();
+    }
+
+    @Override
+    public List<T> get() throws InterruptedException {
+        mLatch.await();
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        return collect();
+    }
+
+    @Override
+    public List<T> get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!mLatch.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        return collect();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import com.fastbootmobile.encore.model.BoundEntity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent storage for one type of entity of the {@link ProviderCache}. Entries are indexed
+ * by reference and by provider, so that purging a provider only touches its own entries. Reads
+ * are lock-free. Loaded entries are kept until they are removed or their provider is purged, so
+ * that the library views always see everything; only unloaded entries (placeholders created by
+ * lookups) count towards the capacity, and the least recently used ones are evicted first.
+ */
+class EntityStore<T extends BoundEntity> {
+    private final ConcurrentHashMap<String, Entry<T>> mEntries;
+    private final ConcurrentHashMap<ProviderIdentifier, Set<String>> mProviderIndex;
+
+    /**
+     * Unloaded entries in insertion order. Entries that have since been loaded, replaced or
+     * removed are skipped when they reach the head of the queue, and entries read since they
+     * were queued get a second chance at the tail.
+     */
+    private final ConcurrentLinkedQueue<Entry<T>> mUnloaded = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mUnloadedCount = new AtomicInteger();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicBoolean mEvicting = new AtomicBoolean(false);
+    private volatile int mCapacity;
+
+    private static class Entry<T> {
+        final T mValue;
+        final ProviderIdentifier mProvider;
+        volatile boolean mReferenced;
+
+        Entry(T value, ProviderIdentifier provider) {
+            mValue = value;
+            mProvider = provider;
+        }
+    }
+
+    /**
+     * @param capacity The maximum number of unloaded entries before eviction kicks in
+     */
+    EntityStore(int capacity) {
+        mEntries = new ConcurrentHashMap<>();
+        mProviderIndex = new ConcurrentHashMap<>();
+        mCapacity = capacity;
+    }
+
+    void setCapacity(int capacity) {
+        mCapacity = capacity;
+        trimIfNeeded();
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Stores an entity. If the provider is null, the entity's own provider is used for indexing.
+     */
+    void put(ProviderIdentifier provider, T value) {
+        final String ref = value.getRef();
+        if (ref == null) {
+            return;
+        }
+
+        if (provider == null) {
+            provider = value.getProvider();
+        }
+
+        final Entry<T> entry = new Entry<>(value, provider);
+        Entry<T> previous = mEntries.put(ref, entry);
+        if (previous != null && previous.mProvider != null
+                && !previous.mProvider.equals(provider)) {
+            unindex(previous.mProvider, ref);
+        }
+
+        if (provider != null) {
+            Set<String> refs = mProviderIndex.get(provider);
+            if (refs == null) {
+                refs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                Set<String> raced = mProviderIndex.putIfAbsent(provider, refs);
+                if (raced != null) {
+                    refs = raced;
+                }
+            }
+            refs.add(ref);
+        }
+
+        if (!value.isLoaded()) {
+            mUnloaded.offer(entry);
+            mUnloadedCount.incrementAndGet();
+            trimIfNeeded();
+        }
+    }
+
+    /**
+     * Returns the entity for the provided reference, and marks it as recently used
+     */
+    T get(String ref) {
+        Entry<T> entry = mEntries.get(ref);
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        if (!entry.mReferenced) {
+            entry.mReferenced = true;
+        }
+        mHits.incrementAndGet();
+        return entry.mValue;
+    }
+
+    /**
+     * Returns the provider that stored the provided reference, without affecting statistics
+     */
+    ProviderIdentifier getProvider(String ref) {
+        Entry<T> entry = mEntries.get(ref);
+        return entry != null ? entry.mProvider : null;
+    }
+
+    void remove(String ref) {
+        Entry<T> entry = mEntries.remove(ref);
+        if (entry != null && entry.mProvider != null) {
+            unindex(entry.mProvider, ref);
+        }
+    }
+
+    /**
+     * Removes all the entries stored by the provided provider. Cost is proportional to the
+     * number of entries of that provider.
+     */
+    void purge(ProviderIdentifier provider) {
+        Set<String> refs = mProviderIndex.remove(provider);
+        if (refs == null) {
+            return;
+        }
+
+        for (String ref : refs) {
+            Entry<T> entry = mEntries.get(ref);
+            if (entry != null && provider.equals(entry.mProvider)) {
+                mEntries.remove(ref, entry);
+            }
+        }
+    }
+
+    List<T> values() {
+        List<T> output = new ArrayList<>(mEntries.size());
+        for (Entry<T> entry : mEntries.values()) {
+            output.add(entry.mValue);
+        }
+        return output;
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    private void unindex(ProviderIdentifier provider, String ref) {
+        Set<String> refs = mProviderIndex.get(provider);
+        if (refs != null) {
+            refs.remove(ref);
+        }
+    }
+
+    private void trimIfNeeded() {
+        if (mUnloadedCount.get() <= mCapacity || !mEvicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            // Every queued entry is looked at most twice: once to clear its referenced flag,
+            // and once more to evict it
+            int budget = 2 * mUnloadedCount.get();
+            while (mUnloadedCount.get() > mCapacity && budget-- > 0) {
+                final Entry<T> entry = mUnloaded.poll();
+                if (entry == null) {
+                    break;
+                }
+
+                final String ref = entry.mValue.getRef();
+                if (mEntries.get(ref) != entry || entry.mValue.isLoaded()) {
+                    // Replaced, removed or loaded since it was queued: not a candidate anymore
+                    mUnloadedCount.decrementAndGet();
+                } else if (entry.mReferenced) {
+                    entry.mReferenced = false;
+                    mUnloaded.offer(entry);
+                } else {
+                    mUnloadedCount.decrementAndGet();
+                    // Only remove the entry if it hasn't been replaced in the meantime
+                    if (mEntries.remove(ref, entry)) {
+                        if (entry.mProvider != null) {
+                            unindex(entry.mProvider, ref);
+                        }
+                        mEvictions.incrementAndGet();
+                    }
+                }
+            }
+        } finally {
+            mEvicting.set(false);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.Song;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Bulk transfer of the library of a provider. Paging through getSongs() costs one Binder
+ * transaction per page, and each page must fit in the Binder buffer. Instead, the host sends the
+ * write end of a pipe in a single {@link #TRANSACTION_SNAPSHOT} transaction, which providers
+ * handle in the onTransact method of their binder, and the provider streams its whole library
+ * into the pipe from a background thread.
+ *
+ * The stream starts with a header (magic, format version, library version), followed by
+ * sections of songs, albums and artists. A section is a sequence of chunks (item count, size in
+ * bytes, then the items marshalled as a typed list in a Parcel, the same encoding Binder uses),
+ * ended by a chunk of 0 items.
+ *
+ * The library version lets the host skip the transfer when nothing changed since its last
+ * snapshot. Providers which don't handle the transaction let Binder reject the unknown code, and
+ * the host falls back to paging.
+ */
+public class LibrarySnapshot {
+    private static final String TAG = "LibrarySnapshot";
+
+    /**
+     * Binder transaction code of snapshot requests. AIDL assigns codes upwards from
+     * {@link IBinder#FIRST_CALL_TRANSACTION}, one per method: this dedicated code ('SNP') stays
+     * in the user range, below {@link IBinder#LAST_CALL_TRANSACTION}, but far above the codes of
+     * IMusicProvider even as methods are added to it.
+     */
+    public static final int TRANSACTION_SNAPSHOT = ('S' << 16) | ('N' << 8) | 'P';
+    public static final String DESCRIPTOR = "com.fastbootmobile.encore.providers.LibrarySnapshot";
+
+    /**
+     * Content flags, to only request part of the library
+     */
+    public static final int CONTENT_SONGS = 1;
+    public static final int CONTENT_ALBUMS = 1 << 1;
+    public static final int CONTENT_ARTISTS = 1 << 2;
+    public static final int CONTENT_ALL = CONTENT_SONGS | CONTENT_ALBUMS | CONTENT_ARTISTS;
+
+    /**
+     * Version to request a full snapshot
+     */
+    public static final long VERSION_NONE = 0;
+
+    /**
+     * Returned by {@link #request(IBinder, int, long, Receiver)} if the provider doesn't support
+     * snapshots
+     */
+    public static final long VERSION_UNSUPPORTED = -1;
+
+    private static final int STATUS_UNCHANGED = 0;
+    private static final int STATUS_STREAMING = 1;
+
+    private static final int MAGIC = 0x454c4942;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int SECTION_END = 0;
+    private static final int SECTION_SONGS = 1;
+    private static final int SECTION_ALBUMS = 2;
+    private static final int SECTION_ARTISTS = 3;
+
+    private static final int CHUNK_ITEMS = 500;
+    private static final int MAX_CHUNK_SIZE = 32 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Interface implemented by providers to give the content of their library
+     */
+    public interface Source {
+        /**
+         * @return A number which changes every time the library changes. Must not be
+         * {@link #VERSION_NONE}.
+         */
+        long getLibraryVersion();
+
+        List<Song> getSongs();
+
+        List<Album> getAlbums();
+
+        List<Artist> getArtists();
+    }
+
+    /**
+     * Interface receiving the decoded chunks on the host side, on the thread which requested
+     * the snapshot
+     */
+    public interface Receiver {
+        void onSongs(List<Song> songs);
+
+        void onAlbums(List<Album> albums);
+
+        void onArtists(List<Artist> artists);
+    }
+
+    /**
+     * Receiver ignoring all the entities, to only override the needed methods
+     */
+    public static class BaseReceiver implements Receiver {
+        @Override
+        public void onSongs(List<Song> songs) {
+        }
+
+        @Override
+        public void onAlbums(List<Album> albums) {
+        }
+
+        @Override
+        public void onArtists(List<Artist> artists) {
+        }
+    }
+
+    /**
+     * Requests a snapshot of the library of a provider, and decodes it. Blocks until the whole
+     * library is received, so this must not be called from the UI thread.
+     * @param binder The binder of the provider
+     * @param content The parts of the library to transfer, a combination of the CONTENT_ flags
+     * @param sinceVersion The version of the last snapshot received from this provider, or
+     *                     {@link #VERSION_NONE} to always get the whole library
+     * @param receiver The receiver of the entities
+     * @return The version of the library, which is sinceVersion if nothing was transferred
+     * because the library didn't change, or {@link #VERSION_UNSUPPORTED}
+     * @throws IOException If the transfer failed midway. Some chunks might have been received.
+     */
+    public static long request(IBinder binder, int content, long sinceVersion, Receiver receiver)
+            throws RemoteException, IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final int status;
+        final long version;
+
+        try {
+            Parcel data = Parcel.obtain();
+            Parcel reply = Parcel.obtain();
+            try {
+                data.writeInterfaceToken(DESCRIPTOR);
+                data.writeInt(content);
+                data.writeLong(sinceVersion);
+                data.writeFileDescriptor(pipe[1].getFileDescriptor());
+
+                if (!binder.transact(TRANSACTION_SNAPSHOT, data, reply, 0)) {
+                    return VERSION_UNSUPPORTED;
+                }
+
+                reply.readException();
+                status = reply.readInt();
+                version = reply.readLong();
+            } finally {
+                data.recycle();
+                reply.recycle();
+
+                // The provider has its own copy of the write end: if it dies, we'll get EOF
+                closeQuietly(pipe[1]);
+            }
+
+            if (status == STATUS_UNCHANGED) {
+                return version;
+            }
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]), BUFFER_SIZE));
+            try {
+                readSnapshot(in, version, receiver);
+            } finally {
+                in.close();
+            }
+            return version;
+        } finally {
+            closeQuietly(pipe[0]);
+        }
+    }
+
+    /**
+     * Handles a snapshot request on the provider side. Call this from the onTransact method of
+     * the provider binder when the code is {@link #TRANSACTION_SNAPSHOT}. The library is written
+     * from a new thread, so this returns right away.
+     * @param data The transaction data
+     * @param reply The transaction reply
+     * @param source The library of the provider
+     * @return true
+     */
+    public static boolean onTransact(Parcel data, Parcel reply, final Source source) {
+        data.enforceInterface(DESCRIPTOR);
+        final int content = data.readInt();
+        final long sinceVersion = data.readLong();
+        final ParcelFileDescriptor fd = data.readFileDescriptor();
+        final long version = source.getLibraryVersion();
+
+        reply.writeNoException();
+        if (version == sinceVersion || fd == null) {
+            reply.writeInt(STATUS_UNCHANGED);
+            reply.writeLong(sinceVersion);
+            closeQuietly(fd);
+            return true;
+        }
+
+        reply.writeInt(STATUS_STREAMING);
+        reply.writeLong(version);
+
+        new Thread("Library snapshot") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new ParcelFileDescriptor.AutoCloseOutputStream(fd), BUFFER_SIZE));
+                try {
+                    writeSnapshot(out, content, version, source);
+                } catch (IOException e) {
+                    // The host went away or cancelled the transfer
+                    Log.w(TAG, "Library snapshot interrupted: " + e.getMessage());
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        }.start();
+
+        return true;
+    }
+
+    private static void writeSnapshot(DataOutputStream out, int content, long version,
+                                      Source source) throws IOException {
+        final long startTime = System.currentTimeMillis();
+
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(version);
+
+        int songs = 0, albums = 0, artists = 0;
+        if ((content & CONTENT_SONGS) != 0) {
+            songs = writeSection(out, SECTION_SONGS, source.getSongs());
+        }
+        if ((content & CONTENT_ALBUMS) != 0) {
+            albums = writeSection(out, SECTION_ALBUMS, source.getAlbums());
+        }
+        if ((content & CONTENT_ARTISTS) != 0) {
+            artists = writeSection(out, SECTION_ARTISTS, source.getArtists());
+        }
+        out.writeByte(SECTION_END);
+        out.flush();
+
+        Log.d(TAG, "Wrote " + songs + " songs, " + albums + " albums and " + artists
+                + " artists in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    private static int writeSection(DataOutputStream out, int section,
+                                    List<? extends Parcelable> items) throws IOException {
+        out.writeByte(section);
+
+        final int count = items != null ? items.size() : 0;
+        for (int start = 0; start < count; start += CHUNK_ITEMS) {
+            final List<? extends Parcelable> chunk =
+                    items.subList(start, Math.min(count, start + CHUNK_ITEMS));
+
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.writeTypedList(chunk);
+                final byte[] bytes = parcel.marshall();
+
+                out.writeInt(chunk.size());
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        out.writeInt(0);
+        return count;
+    }
+
+    private static void readSnapshot(DataInputStream in, long version, Receiver receiver)
+            throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Invalid library snapshot header");
+        }
+
+        final int format = in.readInt();
+        if (format != FORMAT_VERSION) {
+            throw new IOException("Unsupported library snapshot format " + format);
+        }
+
+        final long streamVersion = in.readLong();
+        if (streamVersion != version) {
+            throw new IOException("Snapshot version mismatch: " + streamVersion + " != " + version);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int section;
+        while ((section = in.readByte()) != SECTION_END) {
+            while (in.readInt() > 0) {
+                final int size = in.readInt();
+                if (size < 0 || size > MAX_CHUNK_SIZE) {
+                    throw new IOException("Invalid chunk size " + size);
+                }
+                if (buffer.length < size) {
+                    buffer = new byte[size];
+                }
+                in.readFully(buffer, 0, size);
+
+                Parcel parcel = Parcel.obtain();
+                try {
+                    parcel.unmarshall(buffer, 0, size);
+                    parcel.setDataPosition(0);
+
+                    switch (section) {
+                        case SECTION_SONGS:
+                            receiver.onSongs(parcel.createTypedArrayList(Song.CREATOR));
+                            break;
+
+                        case SECTION_ALBUMS:
+                            receiver.onAlbums(parcel.createTypedArrayList(Album.CREATOR));
+                            break;
+
+                        case SECTION_ARTISTS:
+                            receiver.onArtists(parcel.createTypedArrayList(Artist.CREATOR));
+                            break;
+
+                        default:
+                            // Section added by a newer format, skip it
+                            break;
+                    }
+                } finally {
+                    parcel.recycle();
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor fd) {
+        if (fd != null) {
+            try {
+                fd.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
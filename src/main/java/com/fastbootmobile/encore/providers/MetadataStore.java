@@ -0,0 +1,633 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.SearchResult;
+import com.fastbootmobile.encore.model.Song;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent snapshot of the metadata provided by the providers, so that the library is
+ * available at startup without waiting for every provider to reconnect. The snapshot is
+ * restored into the {@link ProviderCache} in the background, and is then kept up to date
+ * from the aggregator's update callbacks. Only loaded entities are persisted. Songs, albums and
+ * artists removed from a provider are dropped once its whole library has been listed again, see
+ * {@link #reconcile(ProviderIdentifier, Set, ProviderCache)}.
+ */
+public class MetadataStore extends SQLiteOpenHelper {
+    private static final String TAG = "MetadataStore";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String DATABASE_NAME = "metadata";
+
+    /**
+     * Number of row fingerprints kept in memory. A missing fingerprint only costs a rewrite.
+     */
+    private static final int MAX_FINGERPRINTS = 16384;
+
+    private static final String TABLE_SONGS = "songs";
+    private static final String TABLE_ALBUMS = "albums";
+    private static final String TABLE_ARTISTS = "artists";
+    private static final String TABLE_PLAYLISTS = "playlists";
+
+    private static final String KEY_REF = "ref";
+    private static final String KEY_PROVIDER = "provider";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_ARTIST = "artist";
+    private static final String KEY_ALBUM = "album";
+    private static final String KEY_DURATION = "duration";
+    private static final String KEY_YEAR = "year";
+    private static final String KEY_LOGO = "logo";
+    private static final String KEY_OFFLINE_STATUS = "offline_status";
+    private static final String KEY_OFFLINE_CAPABLE = "offline_capable";
+    private static final String KEY_AVAILABLE = "available";
+    private static final String KEY_CHILDREN = "children";
+
+    private static final String CREATE_TABLE_SONGS = "CREATE TABLE IF NOT EXISTS " + TABLE_SONGS
+            + "(" + KEY_REF + " TEXT PRIMARY KEY," + KEY_PROVIDER + " TEXT," + KEY_NAME + " TEXT,"
+            + KEY_ARTIST + " TEXT," + KEY_ALBUM + " TEXT," + KEY_DURATION + " INTEGER,"
+            + KEY_YEAR + " INTEGER," + KEY_LOGO + " TEXT," + KEY_OFFLINE_STATUS + " INTEGER,"
+            + KEY_AVAILABLE + " INTEGER)";
+    private static final String CREATE_TABLE_ALBUMS = "CREATE TABLE IF NOT EXISTS " + TABLE_ALBUMS
+            + "(" + KEY_REF + " TEXT PRIMARY KEY," + KEY_PROVIDER + " TEXT," + KEY_NAME + " TEXT,"
+            + KEY_YEAR + " INTEGER," + KEY_LOGO + " TEXT," + KEY_CHILDREN + " TEXT)";
+    private static final String CREATE_TABLE_ARTISTS = "CREATE TABLE IF NOT EXISTS " + TABLE_ARTISTS
+            + "(" + KEY_REF + " TEXT PRIMARY KEY," + KEY_PROVIDER + " TEXT," + KEY_NAME + " TEXT,"
+            + KEY_LOGO + " TEXT," + KEY_CHILDREN + " TEXT)";
+    private static final String CREATE_TABLE_PLAYLISTS = "CREATE TABLE IF NOT EXISTS " + TABLE_PLAYLISTS
+            + "(" + KEY_REF + " TEXT PRIMARY KEY," + KEY_PROVIDER + " TEXT," + KEY_NAME + " TEXT,"
+            + KEY_LOGO + " TEXT," + KEY_OFFLINE_CAPABLE + " INTEGER," + KEY_OFFLINE_STATUS + " INTEGER,"
+            + KEY_CHILDREN + " TEXT)";
+
+    private final Context mContext;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    /**
+     * Hash of the row last written (or read) for the most recently used references, so that
+     * unchanged entities aren't written again. Only accessed from the store thread.
+     */
+    private final LruCache<String, Integer> mFingerprints =
+            new LruCache<>(MAX_FINGERPRINTS);
+
+    /**
+     * References restored from the snapshot that no provider has confirmed yet, either through
+     * an update or a library listing. Only accessed from the store thread.
+     */
+    private final Set<String> mUnconfirmed = new HashSet<>();
+
+    /**
+     * Listener persisting the updated entities
+     */
+    private final ILocalCallback mUpdateListener = new ILocalCallback() {
+        @Override
+        public void onSongUpdate(final List<Song> s) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    writeAll(TABLE_SONGS, s);
+                }
+            });
+        }
+
+        @Override
+        public void onAlbumUpdate(final List<Album> a) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    writeAll(TABLE_ALBUMS, a);
+                }
+            });
+        }
+
+        @Override
+        public void onPlaylistUpdate(final List<Playlist> p) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    writeAll(TABLE_PLAYLISTS, p);
+                }
+            });
+        }
+
+        @Override
+        public void onPlaylistRemoved(final String ref) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    delete(TABLE_PLAYLISTS, ref);
+                }
+            });
+        }
+
+        @Override
+        public void onArtistUpdate(final List<Artist> a) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    writeAll(TABLE_ARTISTS, a);
+                }
+            });
+        }
+
+        @Override
+        public void onProviderConnected(IMusicProvider provider) {
+        }
+
+        @Override
+        public void onSearchResult(List<SearchResult> searchResult) {
+        }
+    };
+
+    public MetadataStore(Context ctx) {
+        super(ctx, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = ctx;
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_SONGS);
+        db.execSQL(CREATE_TABLE_ALBUMS);
+        db.execSQL(CREATE_TABLE_ARTISTS);
+        db.execSQL(CREATE_TABLE_PLAYLISTS);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // This is only a cache, we can simply start over
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_ALBUMS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_ARTISTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_PLAYLISTS);
+        onCreate(db);
+    }
+
+    /**
+     * @return The callback to register on the aggregator to persist updates
+     */
+    ILocalCallback getUpdateListener() {
+        return mUpdateListener;
+    }
+
+    /**
+     * Restores the snapshot into the cache in the background. Entities that are already in the
+     * cache (because their provider answered first) are left untouched. Restored entities are
+     * announced to the update callbacks in a single batch once everything is read, without going
+     * through the store itself: they stay unconfirmed until their provider lists them again.
+     *
+     * @param aggregator The aggregator to restore the entities into
+     */
+    void restore(final ProviderAggregator aggregator) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.currentTimeMillis();
+                try {
+                    final SQLiteDatabase db = getWritableDatabase();
+                    final ProviderCache cache = aggregator.getCache();
+                    final List<Artist> artists = restoreArtists(db, cache);
+                    final List<Album> albums = restoreAlbums(db, cache);
+                    final List<Song> songs = restoreSongs(db, cache);
+                    final List<Playlist> playlists = restorePlaylists(db, cache);
+                    aggregator.postRestoredEntities(songs, albums, artists, playlists);
+
+                    final int count = artists.size() + albums.size() + songs.size()
+                            + playlists.size();
+                    Log.i(TAG, "Restored " + count + " entities in "
+                            + (System.currentTimeMillis() - start) + "ms");
+                } catch (Exception e) {
+                    Log.e(TAG, "Cannot restore metadata snapshot", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes everything that has been stored for the provided provider
+     *
+     * @param id The identifier of the provider
+     */
+    public void purgeProvider(final ProviderIdentifier id) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                purgeProviderImpl(getWritableDatabase(), id.serialize());
+            }
+        });
+    }
+
+    private void purgeProviderImpl(SQLiteDatabase db, String provider) {
+        final String[] args = new String[]{provider};
+        for (String table : new String[]{TABLE_SONGS, TABLE_ALBUMS, TABLE_ARTISTS, TABLE_PLAYLISTS}) {
+            Cursor c = db.query(table, new String[]{KEY_REF}, KEY_PROVIDER + "=?", args,
+                    null, null, null);
+            while (c.moveToNext()) {
+                mFingerprints.remove(c.getString(0));
+                mUnconfirmed.remove(c.getString(0));
+            }
+            c.close();
+            db.delete(table, KEY_PROVIDER + "=?", args);
+        }
+    }
+
+    /**
+     * Drops the songs, albums and artists restored from the snapshot which the provider doesn't
+     * list anymore, and which no update confirmed since. Call this after the whole library of
+     * the provider has been listed. Entities that aren't part of the library (songs of search
+     * results for instance) are only kept if they were updated since the restore, as they will
+     * otherwise be fetched again when needed.
+     *
+     * @param id The identifier of the provider
+     * @param listed The references of all the songs, albums and artists listed by the provider
+     * @param cache The cache to remove the dropped entities from
+     */
+    void reconcile(final ProviderIdentifier id, final Set<String> listed,
+                   final ProviderCache cache) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final SQLiteDatabase db = getWritableDatabase();
+                    int count = reconcile(db, TABLE_SONGS, id, listed, cache);
+                    count += reconcile(db, TABLE_ALBUMS, id, listed, cache);
+                    count += reconcile(db, TABLE_ARTISTS, id, listed, cache);
+                    if (count > 0) {
+                        Log.i(TAG, "Dropped " + count + " entities removed from " + id);
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Cannot reconcile metadata snapshot", e);
+                }
+            }
+        });
+    }
+
+    private int reconcile(SQLiteDatabase db, String table, ProviderIdentifier id,
+                          Set<String> listed, ProviderCache cache) {
+        final List<String> removed = new ArrayList<>();
+        final Cursor c = db.query(table, new String[]{KEY_REF}, KEY_PROVIDER + "=?",
+                new String[]{id.serialize()}, null, null, null);
+        while (c.moveToNext()) {
+            final String ref = c.getString(0);
+            if (mUnconfirmed.remove(ref) && !listed.contains(ref)) {
+                removed.add(ref);
+            }
+        }
+        c.close();
+
+        if (removed.isEmpty()) {
+            return 0;
+        }
+
+        db.beginTransaction();
+        try {
+            for (String ref : removed) {
+                db.delete(table, KEY_REF + "=?", new String[]{ref});
+                mFingerprints.remove(ref);
+
+                if (TABLE_SONGS.equals(table)) {
+                    cache.removeSong(ref);
+                } else if (TABLE_ALBUMS.equals(table)) {
+                    cache.removeAlbum(ref);
+                } else {
+                    cache.removeArtist(ref);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return removed.size();
+    }
+
+    private List<Song> restoreSongs(SQLiteDatabase db, ProviderCache cache) {
+        final Map<String, ProviderIdentifier> providers = new HashMap<>();
+        final Cursor c = db.query(TABLE_SONGS, null, null, null, null, null, null);
+        final int ciRef = c.getColumnIndex(KEY_REF);
+        final int ciProvider = c.getColumnIndex(KEY_PROVIDER);
+        final int ciName = c.getColumnIndex(KEY_NAME);
+        final int ciArtist = c.getColumnIndex(KEY_ARTIST);
+        final int ciAlbum = c.getColumnIndex(KEY_ALBUM);
+        final int ciDuration = c.getColumnIndex(KEY_DURATION);
+        final int ciYear = c.getColumnIndex(KEY_YEAR);
+        final int ciLogo = c.getColumnIndex(KEY_LOGO);
+        final int ciOffline = c.getColumnIndex(KEY_OFFLINE_STATUS);
+        final int ciAvailable = c.getColumnIndex(KEY_AVAILABLE);
+
+        final List<Song> restored = new ArrayList<>();
+        while (c.moveToNext()) {
+            final String ref = c.getString(ciRef);
+            final ProviderIdentifier provider = getInstalledProvider(db, providers,
+                    c.getString(ciProvider));
+            if (provider == null || cache.getRefProvider(ref) != null) {
+                continue;
+            }
+
+            Song song = new Song(ref);
+            song.setProvider(provider);
+            song.setTitle(c.getString(ciName));
+            song.setArtist(c.getString(ciArtist));
+            song.setAlbum(c.getString(ciAlbum));
+            song.setDuration(c.getInt(ciDuration));
+            song.setYear(c.getInt(ciYear));
+            song.setSourceLogo(c.getString(ciLogo));
+            song.setOfflineStatus(c.getInt(ciOffline));
+            song.setAvailable(c.getInt(ciAvailable) != 0);
+            song.setIsLoaded(true);
+
+            mFingerprints.put(ref, toValues(song).hashCode());
+            mUnconfirmed.add(ref);
+            cache.putSong(provider, song);
+            restored.add(song);
+        }
+        c.close();
+        return restored;
+    }
+
+    private List<Album> restoreAlbums(SQLiteDatabase db, ProviderCache cache) {
+        final Map<String, ProviderIdentifier> providers = new HashMap<>();
+        final Cursor c = db.query(TABLE_ALBUMS, null, null, null, null, null, null);
+        final int ciRef = c.getColumnIndex(KEY_REF);
+        final int ciProvider = c.getColumnIndex(KEY_PROVIDER);
+        final int ciName = c.getColumnIndex(KEY_NAME);
+        final int ciYear = c.getColumnIndex(KEY_YEAR);
+        final int ciLogo = c.getColumnIndex(KEY_LOGO);
+        final int ciChildren = c.getColumnIndex(KEY_CHILDREN);
+
+        final List<Album> restored = new ArrayList<>();
+        while (c.moveToNext()) {
+            final String ref = c.getString(ciRef);
+            final ProviderIdentifier provider = getInstalledProvider(db, providers,
+                    c.getString(ciProvider));
+            if (provider == null || cache.getRefProvider(ref) != null) {
+                continue;
+            }
+
+            Album album = new Album(ref);
+            album.setProvider(provider);
+            album.setName(c.getString(ciName));
+            album.setYear(c.getInt(ciYear));
+            album.setSourceLogo(c.getString(ciLogo));
+            for (String song : fromJson(c.getString(ciChildren))) {
+                album.addSong(song);
+            }
+            album.setIsLoaded(true);
+
+            mFingerprints.put(ref, toValues(album).hashCode());
+            mUnconfirmed.add(ref);
+            cache.putAlbum(provider, album);
+            restored.add(album);
+        }
+        c.close();
+        return restored;
+    }
+
+    private List<Artist> restoreArtists(SQLiteDatabase db, ProviderCache cache) {
+        final Map<String, ProviderIdentifier> providers = new HashMap<>();
+        final Cursor c = db.query(TABLE_ARTISTS, null, null, null, null, null, null);
+        final int ciRef = c.getColumnIndex(KEY_REF);
+        final int ciProvider = c.getColumnIndex(KEY_PROVIDER);
+        final int ciName = c.getColumnIndex(KEY_NAME);
+        final int ciLogo = c.getColumnIndex(KEY_LOGO);
+        final int ciChildren = c.getColumnIndex(KEY_CHILDREN);
+
+        final List<Artist> restored = new ArrayList<>();
+        while (c.moveToNext()) {
+            final String ref = c.getString(ciRef);
+            final ProviderIdentifier provider = getInstalledProvider(db, providers,
+                    c.getString(ciProvider));
+            if (provider == null || cache.getRefProvider(ref) != null) {
+                continue;
+            }
+
+            Artist artist = new Artist(ref);
+            artist.setProvider(provider);
+            artist.setName(c.getString(ciName));
+            artist.setSourceLogo(c.getString(ciLogo));
+            for (String album : fromJson(c.getString(ciChildren))) {
+                artist.addAlbum(album);
+            }
+            artist.setIsLoaded(true);
+
+            mFingerprints.put(ref, toValues(artist).hashCode());
+            mUnconfirmed.add(ref);
+            cache.putArtist(provider, artist);
+            restored.add(artist);
+        }
+        c.close();
+        return restored;
+    }
+
+    private List<Playlist> restorePlaylists(SQLiteDatabase db, ProviderCache cache) {
+        final Map<String, ProviderIdentifier> providers = new HashMap<>();
+        final Cursor c = db.query(TABLE_PLAYLISTS, null, null, null, null, null, null);
+        final int ciRef = c.getColumnIndex(KEY_REF);
+        final int ciProvider = c.getColumnIndex(KEY_PROVIDER);
+        final int ciName = c.getColumnIndex(KEY_NAME);
+        final int ciLogo = c.getColumnIndex(KEY_LOGO);
+        final int ciOfflineCapable = c.getColumnIndex(KEY_OFFLINE_CAPABLE);
+        final int ciOffline = c.getColumnIndex(KEY_OFFLINE_STATUS);
+        final int ciChildren = c.getColumnIndex(KEY_CHILDREN);
+
+        final List<Playlist> restored = new ArrayList<>();
+        while (c.moveToNext()) {
+            final String ref = c.getString(ciRef);
+            final ProviderIdentifier provider = getInstalledProvider(db, providers,
+                    c.getString(ciProvider));
+            if (provider == null || cache.getRefProvider(ref) != null) {
+                continue;
+            }
+
+            Playlist playlist = new Playlist(ref);
+            playlist.setProvider(provider);
+            playlist.setName(c.getString(ciName));
+            playlist.setSourceLogo(c.getString(ciLogo));
+            playlist.setOfflineCapable(c.getInt(ciOfflineCapable) != 0);
+            playlist.setOfflineStatus(c.getInt(ciOffline));
+            for (String song : fromJson(c.getString(ciChildren))) {
+                playlist.addSong(song);
+            }
+            playlist.setIsLoaded(true);
+
+            mFingerprints.put(ref, toValues(playlist).hashCode());
+            cache.putPlaylist(provider, playlist);
+            restored.add(playlist);
+        }
+        c.close();
+        return restored;
+    }
+
+    /**
+     * Returns the identifier matching the serialized provider, or null if the provider's package
+     * isn't installed anymore (in which case its entries are purged).
+     */
+    private ProviderIdentifier getInstalledProvider(SQLiteDatabase db,
+                                                    Map<String, ProviderIdentifier> resolved,
+                                                    String serialized) {
+        if (resolved.containsKey(serialized)) {
+            return resolved.get(serialized);
+        }
+
+        ProviderIdentifier id = null;
+        try {
+            id = ProviderIdentifier.fromSerialized(serialized);
+            mContext.getPackageManager().getPackageInfo(id.mPackage, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.i(TAG, "Provider " + serialized + " is gone, purging its metadata");
+            purgeProviderImpl(db, serialized);
+            id = null;
+        } catch (Exception e) {
+            Log.e(TAG, "Invalid provider identifier " + serialized, e);
+            id = null;
+        }
+
+        resolved.put(serialized, id);
+        return id;
+    }
+
+    private void writeAll(String table, List<? extends BoundEntity> entities) {
+        final SQLiteDatabase db;
+        try {
+            db = getWritableDatabase();
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot get writable database", e);
+            return;
+        }
+
+        db.beginTransaction();
+        try {
+            for (BoundEntity entity : entities) {
+                if (!entity.isLoaded() || entity.getProvider() == null) {
+                    continue;
+                }
+
+                mUnconfirmed.remove(entity.getRef());
+
+                ContentValues values = toValues(entity);
+                Integer previous = mFingerprints.get(entity.getRef());
+                int fingerprint = values.hashCode();
+
+                if (previous == null || previous != fingerprint) {
+                    db.insertWithOnConflict(table, null, values,
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                    mFingerprints.put(entity.getRef(), fingerprint);
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot persist metadata", e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void delete(String table, String ref) {
+        if (ref == null) {
+            return;
+        }
+        getWritableDatabase().delete(table, KEY_REF + "=?", new String[]{ref});
+        mFingerprints.remove(ref);
+        mUnconfirmed.remove(ref);
+    }
+
+    private static ContentValues toValues(BoundEntity entity) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_REF, entity.getRef());
+        values.put(KEY_PROVIDER, entity.getProvider().serialize());
+        values.put(KEY_LOGO, entity.getLogo());
+
+        if (entity instanceof Song) {
+            Song song = (Song) entity;
+            values.put(KEY_NAME, song.getTitle());
+            values.put(KEY_ARTIST, song.getArtist());
+            values.put(KEY_ALBUM, song.getAlbum());
+            values.put(KEY_DURATION, song.getDuration());
+            values.put(KEY_YEAR, song.getYear());
+            values.put(KEY_OFFLINE_STATUS, song.getOfflineStatus());
+            values.put(KEY_AVAILABLE, song.isAvailable() ? 1 : 0);
+        } else if (entity instanceof Album) {
+            Album album = (Album) entity;
+            values.put(KEY_NAME, album.getName());
+            values.put(KEY_YEAR, album.getYear());
+            values.put(KEY_CHILDREN, toJson(album.songs()));
+        } else if (entity instanceof Artist) {
+            Artist artist = (Artist) entity;
+            values.put(KEY_NAME, artist.getName());
+            values.put(KEY_CHILDREN, toJson(artist.albums()));
+        } else if (entity instanceof Playlist) {
+            Playlist playlist = (Playlist) entity;
+            values.put(KEY_NAME, playlist.getName());
+            values.put(KEY_OFFLINE_CAPABLE, playlist.isOfflineCapable() ? 1 : 0);
+            values.put(KEY_OFFLINE_STATUS, playlist.getOfflineStatus());
+            values.put(KEY_CHILDREN, toJson(playlist.songs()));
+        }
+
+        return values;
+    }
+
+    private static String toJson(Iterator<String> refs) {
+        JSONArray array = new JSONArray();
+        while (refs.hasNext()) {
+            array.put(refs.next());
+        }
+        return array.toString();
+    }
+
+    private static String[] fromJson(String json) {
+        if (json == null) {
+            return new String[0];
+        }
+
+        try {
+            JSONArray array = new JSONArray(json);
+            String[] output = new String[array.length()];
+            for (int i = 0; i < output.length; ++i) {
+                output[i] = array.getString(i);
+            }
+            return output;
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid list of references", e);
+            return new String[0];
+        }
+    }
+}
@@ -30,101 +30,136 @@ import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
 import com.fastbootmobile.encore.model.Genre;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class federating all the information from providers
  */
 public class ProviderAggregator extends IProviderCallback.Stub {
     private static final String TAG = "ProviderAggregator";
-    private static final int PROPAGATION_DELAY = 200;
     private static final boolean DEBUG = false;
+    private static final int MAX_FETCHES_PER_PROVIDER = 3;
+    private static final int FETCH_POOL_SIZE = 4;
 
-    private final Map<String, List<SearchResult>> mCachedSearches;
-    private final List<ILocalCallback> mUpdateCallbacks;
+    private final SearchCoordinator mSearchCoordinator;
     private final List<ProviderConnection> mProviders;
     private ProviderCache mCache;
     private Handler mMainHandler;
     private HandlerThread mBackHandlerThread;
     private Handler mBackHandler;
-    private final List<Song> mPostedUpdateSongs = new ArrayList<>();
-    private final List<Album> mPostedUpdateAlbums = new ArrayList<>();
-    private final List<Artist> mPostedUpdateArtists = new ArrayList<>();
-    private final List<Playlist> mPostedUpdatePlaylists = new ArrayList<>();
+    private UpdateDispatcher mDispatcher;
     private List<String> mRosettaStonePrefix = new ArrayList<>();
     private Map<String, ProviderIdentifier> mRosettaStoneMap = new HashMap<>();
     private ThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(4);
     private Context mContext;
+    private MetadataStore mMetadataStore;
     private boolean mIsOfflineMode = false;
     private List<OfflineModeListener> mOfflineModeListeners = new ArrayList<>();
+    private ThreadPoolExecutor mFetchExecutor;
+    private final Map<ProviderIdentifier, FetchLane> mFetchLanes = new HashMap<>();
+    private final SingleFlight<Song> mSongFlights = new SingleFlight<>();
+    private final SingleFlight<Album> mAlbumFlights = new SingleFlight<>();
+    private final SingleFlight<Artist> mArtistFlights = new SingleFlight<>();
 
-    private Runnable mPostSongsRunnable = new Runnable() {
-        @Override
-        public void run() {
-            synchronized (mPostedUpdateSongs) {
-                synchronized (mUpdateCallbacks) {
-                    for (ILocalCallback cb : mUpdateCallbacks) {
-                        cb.onSongUpdate(new ArrayList<>(mPostedUpdateSongs));
+    /**
+     * Reads and fetches one type of entity for batched retrievals
+     */
+    private interface EntityResolver<T> {
+        T getCached(String ref);
+        T fetch(String ref, ProviderIdentifier provider);
+    }
+
+    /**
+     * Queue of the fetches of one provider. At most {@link #MAX_FETCHES_PER_PROVIDER} of them
+     * run at once on the shared fetch pool, across all the batches; the other ones wait in the
+     * lane rather than holding a pool thread, so that a slow provider can't starve the others.
+     */
+    private class FetchLane {
+        private final Queue<Runnable> mPending = new ArrayDeque<>();
+        private int mRunning = 0;
+
+        synchronized void submit(Runnable task) {
+            mPending.add(task);
+            drainLocked();
+        }
+
+        private synchronized void onTaskDone() {
+            mRunning--;
+            drainLocked();
+        }
+
+        private void drainLocked() {
+            while (mRunning < MAX_FETCHES_PER_PROVIDER && !mPending.isEmpty()) {
+                final Runnable task = mPending.poll();
+                mRunning++;
+                mFetchExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } finally {
+                            onTaskDone();
+                        }
                     }
-                }
-                mPostedUpdateSongs.clear();
+                });
             }
         }
-    };
+    }
 
-    private Runnable mPostAlbumsRunnable = new Runnable() {
+    private final EntityResolver<Song> mSongResolver = new EntityResolver<Song>() {
         @Override
-        public void run() {
-            synchronized (mPostedUpdateAlbums) {
-                synchronized (mUpdateCallbacks) {
-                    for (ILocalCallback cb : mUpdateCallbacks) {
-                        cb.onAlbumUpdate(new ArrayList<>(mPostedUpdateAlbums));
-                    }
-                }
-                mPostedUpdateAlbums.clear();
-            }
+        public Song getCached(String ref) {
+            return mCache.getSong(ref);
         }
-    };
 
-    private Runnable mPostArtistsRunnable = new Runnable() {
         @Override
-        public void run() {
-            synchronized (mPostedUpdateArtists) {
-                synchronized (mUpdateCallbacks) {
-                    for (ILocalCallback cb : mUpdateCallbacks) {
-                        cb.onArtistUpdate(new ArrayList<>(mPostedUpdateArtists));
-                    }
-                }
-                mPostedUpdateArtists.clear();
-            }
+        public Song fetch(String ref, ProviderIdentifier provider) {
+            return fetchSong(ref, provider);
         }
     };
 
-    private Runnable mPostPlaylistsRunnable = new Runnable() {
+    private final EntityResolver<Album> mAlbumResolver = new EntityResolver<Album>() {
         @Override
-        public void run() {
-            synchronized (mPostedUpdatePlaylists) {
-                synchronized (mUpdateCallbacks) {
-                    for (ILocalCallback cb : mUpdateCallbacks) {
-                        cb.onPlaylistUpdate(new ArrayList<>(mPostedUpdatePlaylists));
-                    }
-                }
-                mPostedUpdatePlaylists.clear();
-            }
+        public Album getCached(String ref) {
+            return mCache.getAlbum(ref);
+        }
+
+        @Override
+        public Album fetch(String ref, ProviderIdentifier provider) {
+            return fetchAlbum(ref, provider);
         }
     };
 
+    private final EntityResolver<Artist> mArtistResolver = new EntityResolver<Artist>() {
+        @Override
+        public Artist getCached(String ref) {
+            return mCache.getArtist(ref);
+        }
+
+        @Override
+        public Artist fetch(String ref, ProviderIdentifier provider) {
+            return fetchArtist(ref, provider);
+        }
+    };
 
     private Runnable mUpdatePlaylistsRunnable = new Runnable() {
         @Override
@@ -143,7 +178,18 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                         List<Playlist> playlist = binder.getPlaylists();
                         ensurePlaylistsSongsCached(conn, playlist);
 
-                        // Cache all songs in batch
+                        // Get the whole library in one transfer if the provider supports it,
+                        // otherwise cache all songs in batch
+                        final long version = conn.getLibraryVersion();
+                        final LibraryListing listing = new LibraryListing();
+                        if (fetchLibrary(conn, LibrarySnapshot.CONTENT_ALL, true, listing)) {
+                            if (version == LibrarySnapshot.VERSION_NONE
+                                    || version != conn.getLibraryVersion()) {
+                                reconcileLibrary(conn, listing.mRefs);
+                            }
+                            continue;
+                        }
+
                         int offset = 0;
                         int limit = 100;
                         boolean goForIt = true;
@@ -156,6 +202,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                                     goForIt = false;
                                 } else {
                                     cacheSongs(conn, songs);
+                                    listing.onSongs(songs);
 
                                     if (songs.size() < limit) {
                                         goForIt = false;
@@ -169,8 +216,16 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                             }
                         }
 
-                        cacheAlbums(conn, binder.getAlbums());
-                        cacheArtists(conn, binder.getArtists());
+                        List<Album> albums = binder.getAlbums();
+                        List<Artist> artists = binder.getArtists();
+                        cacheAlbums(conn, albums);
+                        cacheArtists(conn, artists);
+
+                        if (albums != null && artists != null) {
+                            listing.onAlbums(albums);
+                            listing.onArtists(artists);
+                            reconcileLibrary(conn, listing.mRefs);
+                        }
                     } else if (conn.getBinder() != null) {
                         Log.i(TAG, "Skipping a providers because it is not setup or authenticated" +
                                 " ==> binder=" + binder + " ; isSetup=" +
@@ -198,14 +253,17 @@ public class ProviderAggregator extends IProviderCallback.Stub {
      * Default constructor
      */
     private ProviderAggregator() {
-        mUpdateCallbacks = new ArrayList<>();
         mProviders = new ArrayList<>();
         mCache = new ProviderCache();
         mMainHandler = new Handler();
-        mCachedSearches = new HashMap<>();
         mBackHandlerThread = new HandlerThread("ProviderAggregator");
         mBackHandlerThread.start();
         mBackHandler = new Handler(mBackHandlerThread.getLooper());
+        mDispatcher = new UpdateDispatcher(mBackHandler);
+        mSearchCoordinator = new SearchCoordinator(mBackHandler, mCache, mDispatcher);
+        mFetchExecutor = new ThreadPoolExecutor(FETCH_POOL_SIZE, FETCH_POOL_SIZE,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        mFetchExecutor.allowCoreThreadTimeOut(true);
     }
 
     @Override
@@ -216,6 +274,20 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
     public void setContext(Context ctx) {
         mContext = ctx;
+
+        if (mMetadataStore == null) {
+            // Warm up the cache with what the providers gave us last time
+            mMetadataStore = new MetadataStore(ctx);
+            addUpdateCallback(mMetadataStore.getUpdateListener());
+            mMetadataStore.restore(this);
+        }
+    }
+
+    /**
+     * @return The persistent metadata store, or null if no context has been set
+     */
+    public MetadataStore getMetadataStore() {
+        return mMetadataStore;
     }
 
     /**
@@ -232,9 +304,18 @@ public class ProviderAggregator extends IProviderCallback.Stub {
      * @param cb The callback to add
      */
     public void addUpdateCallback(ILocalCallback cb) {
-        synchronized (mUpdateCallbacks) {
-            mUpdateCallbacks.add(cb);
-        }
+        mDispatcher.addListener(cb, null);
+    }
+
+    /**
+     * Registers a LocalCallback class which will only be notified of the entity updates
+     * accepted by the provided filter. Other events are always delivered.
+     *
+     * @param cb     The callback to add
+     * @param filter The filter to apply to entity updates
+     */
+    public void addUpdateCallback(ILocalCallback cb, UpdateFilter filter) {
+        mDispatcher.addListener(cb, filter);
     }
 
     /**
@@ -243,9 +324,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
      * @param cb The callback to remove
      */
     public void removeUpdateCallback(ILocalCallback cb) {
-        synchronized (mUpdateCallbacks) {
-            mUpdateCallbacks.remove(cb);
-        }
+        mDispatcher.removeListener(cb);
     }
 
     public void cacheSongs(final ProviderConnection provider, final List<Song> songs) {
@@ -296,6 +375,100 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         });
     }
 
+    /**
+     * Receives the whole library of a provider in one bulk transfer, and caches it as it is
+     * decoded. This blocks until the transfer is over, and must not be called from the UI thread.
+     *
+     * @param provider      The provider
+     * @param content       The parts of the library to transfer, a combination of the
+     *                      {@link LibrarySnapshot} CONTENT_ flags
+     * @param onlyIfChanged true to skip the transfer if the library of the provider didn't
+     *                      change since the last complete one
+     * @param receiver      An optional receiver which gets the entities once they're cached
+     * @return false if the provider doesn't support bulk transfers, or the transfer failed. The
+     * library should then be paged through {@link IMusicProvider#getSongs(int, int)}.
+     */
+    public boolean fetchLibrary(final ProviderConnection provider, int content,
+                                boolean onlyIfChanged, final LibrarySnapshot.Receiver receiver) {
+        return provider.readLibrarySnapshot(content, onlyIfChanged,
+                new LibrarySnapshot.Receiver() {
+            @Override
+            public void onSongs(List<Song> songs) {
+                final ProviderIdentifier id = provider.getIdentifier();
+                for (Song song : songs) {
+                    mCache.putSong(id, song);
+                }
+                if (receiver != null) {
+                    receiver.onSongs(songs);
+                }
+            }
+
+            @Override
+            public void onAlbums(List<Album> albums) {
+                final ProviderIdentifier id = provider.getIdentifier();
+                for (Album album : albums) {
+                    mCache.putAlbum(id, album);
+                }
+                if (receiver != null) {
+                    receiver.onAlbums(albums);
+                }
+            }
+
+            @Override
+            public void onArtists(List<Artist> artists) {
+                final ProviderIdentifier id = provider.getIdentifier();
+                for (Artist artist : artists) {
+                    try {
+                        onArtistUpdate(id, artist);
+                    } catch (RemoteException e) {
+                        // ignore
+                    }
+                }
+                if (receiver != null) {
+                    receiver.onArtists(artists);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops from the metadata store and the cache the entities the provider doesn't list
+     * anymore, once its whole library has been listed
+     */
+    private void reconcileLibrary(ProviderConnection provider, Set<String> refs) {
+        if (mMetadataStore != null) {
+            mMetadataStore.reconcile(provider.getIdentifier(), refs, mCache);
+        }
+    }
+
+    /**
+     * Receiver collecting the references of a complete library listing
+     */
+    private static class LibraryListing implements LibrarySnapshot.Receiver {
+        private final Set<String> mRefs = new HashSet<>();
+
+        @Override
+        public void onSongs(List<Song> songs) {
+            for (Song song : songs) {
+                mRefs.add(song.getRef());
+            }
+        }
+
+        @Override
+        public void onAlbums(List<Album> albums) {
+            for (Album album : albums) {
+                mRefs.add(album.getRef());
+            }
+        }
+
+        @Override
+        public void onArtists(List<Artist> artists) {
+            for (Artist artist : artists) {
+                mRefs.add(artist.getRef());
+            }
+        }
+    }
+
     /**
      * Retrieves a song from the provider, and put it in the cache
      *
@@ -319,29 +492,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
         if (output == null && provider != null) {
             // Get from provider then
-            ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
-            if (pc != null) {
-                IMusicProvider binder = pc.getBinder();
-
-                if (binder != null) {
-                    try {
-                        output = binder.getSong(ref);
-                        if (output != null) {
-                            onSongUpdate(provider, output);
-                        }
-                    } catch (DeadObjectException e) {
-                        Log.e(TAG, "Provider died while retrieving song");
-                        return null;
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Unable to retrieve the song", e);
-                        return null;
-                    }
-                } else {
-                    if (DEBUG) Log.e(TAG, "Binder null: provider not yet connected?");
-                }
-            } else {
-                Log.e(TAG, "Unknown provider identifier: " + provider);
-            }
+            output = fetchSong(ref, provider);
         }
 
         if (output == null && provider != null) {
@@ -372,23 +523,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         // Try from cache
         Artist output = mCache.getArtist(ref);
         if (output == null && provider != null) {
-            ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
-            if (pc != null) {
-                IMusicProvider binder = pc.getBinder();
-
-                if (binder != null) {
-                    try {
-                        output = binder.getArtist(ref);
-                        onArtistUpdate(provider, output);
-                    } catch (DeadObjectException e) {
-                        Log.e(TAG, "Provider died while retrieving artist");
-                        return null;
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Unable to retrieve the artist", e);
-                        return null;
-                    }
-                }
-            }
+            output = fetchArtist(ref, provider);
         }
 
         return output;
@@ -416,24 +551,250 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         Album output = mCache.getAlbum(ref);
 
         if (output == null && provider != null) {
-            ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
-            if (pc != null) {
-                IMusicProvider binder = pc.getBinder();
+            output = fetchAlbum(ref, provider);
+        }
 
-                if (binder != null) {
-                    try {
-                        output = binder.getAlbum(ref);
-                        onAlbumUpdate(provider, output);
-                    } catch (DeadObjectException e) {
-                        Log.e(TAG, "Provider died while retrieving album");
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Unable to retrieve the album", e);
-                    }
+        return output;
+    }
+
+    /**
+     * Retrieves a list of songs from the same provider. See
+     * {@link #retrieveSongs(java.util.List, java.util.List, BatchResult.Callback)}.
+     *
+     * @param refs     The references of the songs
+     * @param provider The provider from which retrieve the songs
+     * @return A future holding the retrieved songs
+     */
+    public BatchResult<Song> retrieveSongs(final List<String> refs,
+                                           final ProviderIdentifier provider) {
+        return retrieveSongs(refs, Collections.nCopies(refs.size(), provider), null);
+    }
+
+    /**
+     * Retrieves a list of songs. Loaded songs are served from the cache, and the other ones are
+     * fetched in parallel from their providers on a background executor.
+     *
+     * @param refs      The references of the songs
+     * @param providers The provider of each reference, in the same order as refs
+     * @param callback  An optional callback, called from a background thread once all the songs
+     *                  have been retrieved
+     * @return A future holding the retrieved songs, in the order of refs. Songs that couldn't
+     * be retrieved are skipped.
+     */
+    public BatchResult<Song> retrieveSongs(final List<String> refs,
+                                           final List<ProviderIdentifier> providers,
+                                           final BatchResult.Callback<Song> callback) {
+        return retrieveBatch(mSongResolver, refs, providers, callback);
+    }
+
+    /**
+     * Retrieves a list of albums from the same provider. See
+     * {@link #retrieveSongs(java.util.List, java.util.List, BatchResult.Callback)}.
+     *
+     * @param refs     The references of the albums
+     * @param provider The provider from which retrieve the albums
+     * @return A future holding the retrieved albums
+     */
+    public BatchResult<Album> retrieveAlbums(final List<String> refs,
+                                             final ProviderIdentifier provider) {
+        return retrieveAlbums(refs, Collections.nCopies(refs.size(), provider), null);
+    }
+
+    /**
+     * Retrieves a list of albums. See
+     * {@link #retrieveSongs(java.util.List, java.util.List, BatchResult.Callback)}.
+     */
+    public BatchResult<Album> retrieveAlbums(final List<String> refs,
+                                             final List<ProviderIdentifier> providers,
+                                             final BatchResult.Callback<Album> callback) {
+        return retrieveBatch(mAlbumResolver, refs, providers, callback);
+    }
+
+    /**
+     * Retrieves a list of artists from the same provider. See
+     * {@link #retrieveSongs(java.util.List, java.util.List, BatchResult.Callback)}.
+     *
+     * @param refs     The references of the artists
+     * @param provider The provider from which retrieve the artists
+     * @return A future holding the retrieved artists
+     */
+    public BatchResult<Artist> retrieveArtists(final List<String> refs,
+                                               final ProviderIdentifier provider) {
+        return retrieveArtists(refs, Collections.nCopies(refs.size(), provider), null);
+    }
+
+    /**
+     * Retrieves a list of artists. See
+     * {@link #retrieveSongs(java.util.List, java.util.List, BatchResult.Callback)}.
+     */
+    public BatchResult<Artist> retrieveArtists(final List<String> refs,
+                                               final List<ProviderIdentifier> providers,
+                                               final BatchResult.Callback<Artist> callback) {
+        return retrieveBatch(mArtistResolver, refs, providers, callback);
+    }
+
+    private <T extends BoundEntity> BatchResult<T> retrieveBatch(final EntityResolver<T> resolver,
+                                                                 List<String> refs,
+                                                                 List<ProviderIdentifier> providers,
+                                                                 BatchResult.Callback<T> callback) {
+        final List<String> refsCopy = new ArrayList<>(refs);
+        final int count = refsCopy.size();
+        final BatchResult<T> result = new BatchResult<>(count, callback);
+        // Unloaded cached entities, returned if they can't be fetched again
+        final List<T> stale = new ArrayList<>(Collections.<T>nCopies(count, null));
+
+        // Serve what we can from the cache, and group the misses per provider
+        Map<ProviderIdentifier, List<Integer>> misses = new HashMap<>();
+        for (int i = 0; i < count; ++i) {
+            final String ref = refsCopy.get(i);
+            final ProviderIdentifier provider = providers.get(i);
+            final T cached = (ref != null ? resolver.getCached(ref) : null);
+
+            if (ref == null || provider == null || (cached != null && cached.isLoaded())) {
+                result.set(i, cached);
+            } else {
+                stale.set(i, cached);
+                List<Integer> group = misses.get(provider);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    misses.put(provider, group);
                 }
+                group.add(i);
             }
         }
 
-        return output;
+        // Queue the fetches in their provider's lane, which bounds the parallel fetches per
+        // provider across all the batches in flight
+        for (Map.Entry<ProviderIdentifier, List<Integer>> group : misses.entrySet()) {
+            final ProviderIdentifier provider = group.getKey();
+            final FetchLane lane = getFetchLane(provider);
+
+            for (final int index : group.getValue()) {
+                lane.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        T entity = null;
+                        try {
+                            if (!result.isCancelled()) {
+                                entity = resolver.fetch(refsCopy.get(index), provider);
+                            }
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error while fetching " + refsCopy.get(index), e);
+                        } finally {
+                            result.set(index, entity != null ? entity : stale.get(index));
+                        }
+                    }
+                });
+            }
+        }
+
+        return result;
+    }
+
+    private FetchLane getFetchLane(ProviderIdentifier provider) {
+        synchronized (mFetchLanes) {
+            FetchLane lane = mFetchLanes.get(provider);
+            if (lane == null) {
+                lane = new FetchLane();
+                mFetchLanes.put(provider, lane);
+            }
+            return lane;
+        }
+    }
+
+    private Song fetchSong(final String ref, final ProviderIdentifier provider) {
+        ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
+        if (pc == null) {
+            Log.e(TAG, "Unknown provider identifier: " + provider);
+            return null;
+        }
+
+        final IMusicProvider binder = pc.getBinder();
+        if (binder == null) {
+            if (DEBUG) Log.e(TAG, "Binder null: provider not yet connected?");
+            return null;
+        }
+
+        try {
+            return mSongFlights.run(SingleFlight.key(provider, ref), new SingleFlight.Fetcher<Song>() {
+                @Override
+                public Song fetch() throws RemoteException, SingleFlight.NotFoundException {
+                    Song output = binder.getSong(ref);
+                    if (output == null) {
+                        throw new SingleFlight.NotFoundException();
+                    }
+                    onSongUpdate(provider, output);
+                    return output;
+                }
+            });
+        } catch (DeadObjectException e) {
+            Log.e(TAG, "Provider died while retrieving song");
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to retrieve the song", e);
+        }
+        return null;
+    }
+
+    private Artist fetchArtist(final String ref, final ProviderIdentifier provider) {
+        ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
+        if (pc == null) {
+            return null;
+        }
+
+        final IMusicProvider binder = pc.getBinder();
+        if (binder == null) {
+            return null;
+        }
+
+        try {
+            return mArtistFlights.run(SingleFlight.key(provider, ref), new SingleFlight.Fetcher<Artist>() {
+                @Override
+                public Artist fetch() throws RemoteException, SingleFlight.NotFoundException {
+                    Artist output = binder.getArtist(ref);
+                    if (output == null) {
+                        throw new SingleFlight.NotFoundException();
+                    }
+                    onArtistUpdate(provider, output);
+                    return output;
+                }
+            });
+        } catch (DeadObjectException e) {
+            Log.e(TAG, "Provider died while retrieving artist");
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to retrieve the artist", e);
+        }
+        return null;
+    }
+
+    private Album fetchAlbum(final String ref, final ProviderIdentifier provider) {
+        ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
+        if (pc == null) {
+            return null;
+        }
+
+        final IMusicProvider binder = pc.getBinder();
+        if (binder == null) {
+            return null;
+        }
+
+        try {
+            return mAlbumFlights.run(SingleFlight.key(provider, ref), new SingleFlight.Fetcher<Album>() {
+                @Override
+                public Album fetch() throws RemoteException, SingleFlight.NotFoundException {
+                    Album output = binder.getAlbum(ref);
+                    if (output == null) {
+                        throw new SingleFlight.NotFoundException();
+                    }
+                    onAlbumUpdate(provider, output);
+                    return output;
+                }
+            });
+        } catch (DeadObjectException e) {
+            Log.e(TAG, "Provider died while retrieving album");
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to retrieve the album", e);
+        }
+        return null;
     }
 
     /**
@@ -494,11 +855,13 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         mExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                IMusicProvider binder = provider.getBinder();
-                if (binder == null) {
+                if (provider.getBinder() == null) {
                     return;
                 }
 
+                final ProviderIdentifier id = provider.getIdentifier();
+                final List<String> missingRefs = new ArrayList<>();
+
                 for (Playlist p : playlist) {
                     if (p == null || p.getName() == null) {
                         continue;
@@ -508,7 +871,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                         Log.w(TAG, "Playlist '" + p.getRef() + "' cached without identifier!");
                     }
 
-                    mCache.putPlaylist(provider.getIdentifier(), p);
+                    mCache.putPlaylist(id, p);
 
                     // Make sure we have references to all the songs in the playlist
                     Iterator<String> songs = p.songs();
@@ -518,31 +881,16 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                         // We first check that we don't already have the song in the cache
                         Song cachedSong = mCache.getSong(songRef);
 
-                        if (cachedSong != null && cachedSong.isLoaded()) {
-                            // We already have that song, continue to the next one
-                            continue;
-                        }
-
-                        // Get the song from the provider
-                        Song song = null;
-                        try {
-                            song = binder.getSong(songRef);
-                        } catch (RemoteException e) {
-                            // ignore, provider likely died, we just skip its song
-                        }
-
-                        if (song != null) {
-                            mCache.putSong(provider.getIdentifier(), song);
-
-                            // We call the songUpdate callback only if the track has been loaded.
-                            // If it's not, we assume that the provider will call songUpdated
-                            // here when it has the data for the track.
-                            if (song.isLoaded()) {
-                                postSongForUpdate(song);
-                            }
+                        if (cachedSong == null || !cachedSong.isLoaded()) {
+                            missingRefs.add(songRef);
                         }
                     }
                 }
+
+                // Get the missing songs from the provider in one batch. Songs that get loaded
+                // are posted to the callbacks through onSongUpdate. If they're not loaded, we
+                // assume that the provider will call songUpdated when it has the data.
+                retrieveSongs(missingRefs, id);
             }
         });
     }
@@ -560,6 +908,11 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                     mProviders.add(provider);
                 }
 
+                // The provider may now know entities it couldn't resolve before
+                mSongFlights.clearNegatives();
+                mAlbumFlights.clearNegatives();
+                mArtistFlights.clearNegatives();
+
                 try {
                     IMusicProvider binder = provider.getBinder();
 
@@ -580,10 +933,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                         }
 
                         // Notify subclasses of the new provider
-                        synchronized (mUpdateCallbacks) {
-                            for (ILocalCallback cb : mUpdateCallbacks) {
-                                cb.onProviderConnected(binder);
-                            }
+                        for (ILocalCallback cb : mDispatcher.getListeners()) {
+                            cb.onProviderConnected(binder);
                         }
                     }
                 } catch (RemoteException e) {
@@ -683,11 +1034,21 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     }
 
     /**
-     * Starts a search. Results will be given in onSearchResults
+     * Starts a search. Results will be streamed to the callbacks' onSearchResult as providers
+     * answer, results of the previous searches being discarded.
      * @param query The terms to look for
+     * @return The generation of the search, see {@link #isSearchComplete(int)}
      */
-    public void startSearch(final String query) {
+    public int startSearch(final String query) {
         List<ProviderConnection> providers = PluginsLookup.getDefault().getAvailableProviders();
+        List<ProviderIdentifier> identifiers = new ArrayList<>(providers.size());
+        for (ProviderConnection providerConnection : providers) {
+            if (providerConnection.getBinder() != null) {
+                identifiers.add(providerConnection.getIdentifier());
+            }
+        }
+        final int generation = mSearchCoordinator.start(query, identifiers);
+
         for (ProviderConnection providerConnection : providers) {
             try {
                 final IMusicProvider binder = providerConnection.getBinder();
@@ -700,6 +1061,28 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                 Log.e(TAG, "Cannot run search on a provider", e);
             }
         }
+
+        return generation;
+    }
+
+    /**
+     * @param generation The generation returned by {@link #startSearch(String)}
+     * @return True if all the providers answered that search, or if they didn't answer in time,
+     * or if another search started since
+     */
+    public boolean isSearchComplete(final int generation) {
+        return mSearchCoordinator.isComplete(generation);
+    }
+
+    /**
+     * Registers a listener notified once a search is complete, from a background thread
+     */
+    public void registerSearchCompleteListener(SearchCompleteListener listener) {
+        mSearchCoordinator.addCompleteListener(listener);
+    }
+
+    public void unregisterSearchCompleteListener(SearchCompleteListener listener) {
+        mSearchCoordinator.removeCompleteListener(listener);
     }
 
     /**
@@ -720,35 +1103,30 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     }
 
     public void postSongForUpdate(Song s) {
-        mBackHandler.removeCallbacks(mPostSongsRunnable);
-        synchronized (mPostedUpdateSongs) {
-            mPostedUpdateSongs.add(s);
-        }
-        mBackHandler.postDelayed(mPostSongsRunnable, PROPAGATION_DELAY);
+        mDispatcher.postSong(s);
     }
 
     public void postAlbumForUpdate(Album a) {
-        mBackHandler.removeCallbacks(mPostAlbumsRunnable);
-        synchronized (mPostedUpdateAlbums) {
-            mPostedUpdateAlbums.add(a);
-        }
-        mBackHandler.postDelayed(mPostAlbumsRunnable, PROPAGATION_DELAY);
+        mDispatcher.postAlbum(a);
     }
 
     public void postArtistForUpdate(Artist a) {
-        mBackHandler.removeCallbacks(mPostArtistsRunnable);
-        synchronized (mPostedUpdateArtists) {
-            mPostedUpdateArtists.add(a);
-        }
-        mBackHandler.postDelayed(mPostArtistsRunnable, PROPAGATION_DELAY);
+        mDispatcher.postArtist(a);
     }
 
     public void postPlaylistForUpdate(Playlist p) {
-        mBackHandler.removeCallbacks(mPostPlaylistsRunnable);
-        synchronized (mPostedUpdatePlaylists) {
-            mPostedUpdatePlaylists.add(p);
-        }
-        mBackHandler.postDelayed(mPostPlaylistsRunnable, PROPAGATION_DELAY);
+        mDispatcher.postPlaylist(p);
+    }
+
+    /**
+     * Notifies the update callbacks, in a single batch, of the entities restored from the
+     * metadata snapshot. The metadata store isn't notified, so that restored entities stay
+     * unconfirmed until their provider lists them again.
+     */
+    void postRestoredEntities(List<Song> songs, List<Album> albums, List<Artist> artists,
+                              List<Playlist> playlists) {
+        mDispatcher.postBatch(songs, albums, artists, playlists,
+                mMetadataStore != null ? mMetadataStore.getUpdateListener() : null);
     }
 
     public List<String> getRosettaStonePrefix() {
@@ -864,21 +1242,22 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
             // If something has actually changed
             if (notify) {
-                mExecutor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        // First, we try to check if we need information for some of the songs
-                        // TODO(xplodwild): Is this really needed in a properly designed provider?
-                        Iterator<String> it = finalCachedPlaylist.songs();
-                        while (it.hasNext()) {
-                            String ref = it.next();
-                            retrieveSong(ref, provider);
-                        }
+                // First, we try to check if we need information for some of the songs
+                // TODO(xplodwild): Is this really needed in a properly designed provider?
+                List<String> refs = new ArrayList<>();
+                Iterator<String> it = finalCachedPlaylist.songs();
+                while (it.hasNext()) {
+                    refs.add(it.next());
+                }
 
-                        // Then we notify the callbacks
-                        postPlaylistForUpdate(finalCachedPlaylist);
-                    }
-                });
+                // Then we notify the callbacks
+                retrieveSongs(refs, Collections.nCopies(refs.size(), provider),
+                        new BatchResult.Callback<Song>() {
+                            @Override
+                            public void onBatchRetrieved(List<Song> entities) {
+                                postPlaylistForUpdate(finalCachedPlaylist);
+                            }
+                        });
             }
         } catch (Exception e) {
             Log.e(TAG, "FUUUU", e);
@@ -897,10 +1276,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             mCache.removePlaylist(ref);
         }
 
-        synchronized (mUpdateCallbacks) {
-            for (ILocalCallback cb : mUpdateCallbacks) {
-                cb.onPlaylistRemoved(ref);
-            }
+        for (ILocalCallback cb : mDispatcher.getListeners()) {
+            cb.onPlaylistRemoved(ref);
         }
     }
 
@@ -914,6 +1291,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return;
         }
 
+        mSongFlights.forget(SingleFlight.key(provider, s.getRef()));
+
         try {
             Song cached = mCache.getSong(s.getRef());
             boolean wasLoaded = false;
@@ -981,6 +1360,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return;
         }
 
+        mAlbumFlights.forget(SingleFlight.key(provider, a.getRef()));
+
         Album cached = mCache.getAlbum(a.getRef());
         boolean modified = false;
 
@@ -1049,6 +1430,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return;
         }
 
+        mArtistFlights.forget(SingleFlight.key(provider, a.getRef()));
+
         Artist cached = mCache.getArtist(a.getRef());
 
         if (cached == null) {
@@ -1092,68 +1475,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
         Log.d(TAG, "Got new search results for '" + searchResult.getQuery()
                 + "' from " + searchResult.getIdentifier().mName);
-
-        final String query = searchResult.getQuery();
-
-        if (!mCachedSearches.containsKey(query)) {
-            // No cached results for this query, add this one
-            Log.d(TAG, "New search cache for '" + query + "'");
-            List<SearchResult> results = new ArrayList<>();
-            results.add(searchResult);
-            mCachedSearches.put(query, results);
-
-            // Feed results to the callback
-            synchronized (mUpdateCallbacks) {
-                for (ILocalCallback cb : mUpdateCallbacks) {
-                    cb.onSearchResult(results);
-                }
-            }
-        } else {
-            // We already have cached results for this query, add new results
-            Log.d(TAG, "Updating search result for '" + query + "'");
-            List<SearchResult> cachedResults = mCachedSearches.get(query);
-
-            SearchResult cachedResult = null;
-            for (SearchResult tmpResult : cachedResults) {
-                if (tmpResult.getIdentifier().equals(searchResult.getIdentifier())) {
-                    cachedResult = tmpResult;
-                }
-            }
-
-            if (cachedResult == null) {
-                cachedResults.add(searchResult);
-            } else {
-                cachedResult.setIdentifier(searchResult.getIdentifier());
-                for (String song : searchResult.getSongsList()) {
-                    if (!cachedResult.getSongsList().contains(song)) {
-                        cachedResult.getSongsList().add(song);
-                    }
-                }
-                for (String artist : searchResult.getArtistList()) {
-                    if (!cachedResult.getArtistList().contains(artist)) {
-                        cachedResult.getArtistList().add(artist);
-                    }
-                }
-                for (String album : searchResult.getAlbumsList()) {
-                    if (!cachedResult.getAlbumsList().contains(album)) {
-                        cachedResult.getAlbumsList().add(album);
-                    }
-                }
-                for (String playlist : searchResult.getPlaylistList()) {
-                    if (!cachedResult.getPlaylistList().contains(playlist)) {
-                        cachedResult.getPlaylistList().add(playlist);
-                    }
-                }
-            }
-
-            // Feed updated results to the callbacks
-            synchronized (mUpdateCallbacks) {
-                for (ILocalCallback cb : mUpdateCallbacks) {
-                    cb.onSearchResult(cachedResults);
-                }
-            }
-        }
-
+        mSearchCoordinator.onResult(searchResult);
     }
 
     /**
@@ -1162,4 +1484,11 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     public interface OfflineModeListener {
         void onOfflineModeChange(boolean enabled);
     }
+
+    /**
+     * Interface for search completion, see {@link #isSearchComplete(int)}
+     */
+    public interface SearchCompleteListener {
+        void onSearchComplete(int generation);
+    }
 }
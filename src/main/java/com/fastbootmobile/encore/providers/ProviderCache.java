@@ -5,117 +5,81 @@ import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Caches information gotten by providers
+ * Caches information gotten by providers. Entities are kept in concurrent stores indexed by
+ * provider. Loaded entities are kept until their provider removes them, while the unloaded
+ * songs, albums and artists created by lookups are bounded: once a store holds more of them than
+ * its capacity, the least recently used are evicted (they will be fetched again from their
+ * provider when needed).
  */
 public class ProviderCache {
-    private final Map<String, Playlist> mPlaylists;
-    private final Map<String, Song> mSongs;
-    private final Map<String, ProviderIdentifier> mRefProvider;
-    private final Map<String, Album> mAlbums;
-    private final Map<String, Artist> mArtists;
+    private static final int DEFAULT_MAX_UNLOADED_SONGS = 20000;
+    private static final int DEFAULT_MAX_UNLOADED_ALBUMS = 5000;
+    private static final int DEFAULT_MAX_UNLOADED_ARTISTS = 5000;
+
+    private final EntityStore<Playlist> mPlaylists;
+    private final EntityStore<Song> mSongs;
+    private final EntityStore<Album> mAlbums;
+    private final EntityStore<Artist> mArtists;
     private final List<Playlist> mMultiProviderPlaylists;
 
     /**
      * Default constructor
      */
     public ProviderCache() {
-        mPlaylists = new HashMap<>();
-        mSongs = new HashMap<>();
-        mRefProvider = new HashMap<>();
-        mAlbums = new HashMap<>();
-        mArtists = new HashMap<>();
-        mMultiProviderPlaylists = new ArrayList<>();
+        mPlaylists = new EntityStore<>(Integer.MAX_VALUE);
+        mSongs = new EntityStore<>(DEFAULT_MAX_UNLOADED_SONGS);
+        mAlbums = new EntityStore<>(DEFAULT_MAX_UNLOADED_ALBUMS);
+        mArtists = new EntityStore<>(DEFAULT_MAX_UNLOADED_ARTISTS);
+        mMultiProviderPlaylists = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * Changes the maximum number of unloaded entries kept in cache for each type of entity.
+     * Loaded entities and playlists are never evicted.
+     * @param maxSongs The maximum number of unloaded songs
+     * @param maxAlbums The maximum number of unloaded albums
+     * @param maxArtists The maximum number of unloaded artists
+     */
+    public void setCapacity(int maxSongs, int maxAlbums, int maxArtists) {
+        mSongs.setCapacity(maxSongs);
+        mAlbums.setCapacity(maxAlbums);
+        mArtists.setCapacity(maxArtists);
     }
 
     /**
      * Purges the cache in case the provider may change for the specified provider
      */
     public void purgeCacheForProvider(ProviderIdentifier id) {
-        List<String> keysToRemove;
-
-        // Playlists
-        synchronized (mPlaylists) {
-            Set<Map.Entry<String, Playlist>> playlists = mPlaylists.entrySet();
-            keysToRemove = new ArrayList<>();
-
-            for (Map.Entry<String, Playlist> item : playlists) {
-                if (item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
-            }
-
-
-            for (String key : keysToRemove) {
-                mPlaylists.remove(key);
-            }
+        if (id == null) {
+            return;
         }
 
-        // Songs
-        synchronized (mSongs) {
-            Set<Map.Entry<String, Song>> songs = mSongs.entrySet();
-            keysToRemove.clear();
-
-            for (Map.Entry<String, Song> item : songs) {
-                if (item.getValue().getProvider() != null
-                        && item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
-            }
-
+        mPlaylists.purge(id);
+        mSongs.purge(id);
+        mAlbums.purge(id);
+        mArtists.purge(id);
+    }
 
-            for (String key : keysToRemove) {
-                mSongs.remove(key);
-            }
+    public ProviderIdentifier getRefProvider(final String ref) {
+        ProviderIdentifier id = mPlaylists.getProvider(ref);
+        if (id == null) {
+            id = mSongs.getProvider(ref);
         }
-
-        // Albums
-        synchronized (mAlbums) {
-            Set<Map.Entry<String, Album>> albums = mAlbums.entrySet();
-            keysToRemove.clear();
-
-            for (Map.Entry<String, Album> item : albums) {
-                if (item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
-            }
-            for (String key : keysToRemove) {
-                mAlbums.remove(key);
-            }
+        if (id == null) {
+            id = mAlbums.getProvider(ref);
         }
-
-        // Artists
-        synchronized (mArtists) {
-            Set<Map.Entry<String, Artist>> artists = mArtists.entrySet();
-            keysToRemove.clear();
-
-            for (Map.Entry<String, Artist> item : artists) {
-                if (item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
-            }
-
-            for (String key : keysToRemove) {
-                mArtists.remove(key);
-            }
+        if (id == null) {
+            id = mArtists.getProvider(ref);
         }
-    }
-
-    public ProviderIdentifier getRefProvider(final String ref) {
-        return mRefProvider.get(ref);
+        return id;
     }
 
     public void putPlaylist(final ProviderIdentifier provider, final Playlist pl) {
-        synchronized (mPlaylists) {
-            mPlaylists.put(pl.getRef(), pl);
-        }
-        mRefProvider.put(pl.getRef(), provider);
+        mPlaylists.put(provider, pl);
     }
 
     public void putAllProviderPlaylist(List<Playlist> playlists) {
@@ -123,21 +87,15 @@ public class ProviderCache {
     }
 
     Playlist getPlaylist(final String ref) {
-        synchronized(mPlaylists) {
-            return mPlaylists.get(ref);
-        }
+        return mPlaylists.get(ref);
     }
 
     public List<Playlist> getAllPlaylists() {
-        synchronized (mPlaylists) {
-            return new ArrayList<>(mPlaylists.values());
-        }
+        return mPlaylists.values();
     }
 
     public void removePlaylist(String ref) {
-        synchronized (mPlaylists) {
-            mPlaylists.remove(ref);
-        }
+        mPlaylists.remove(ref);
     }
 
     public List<Playlist> getAllMultiProviderPlaylists() {
@@ -145,58 +103,82 @@ public class ProviderCache {
     }
 
     public List<Song> getAllSongs() {
-        return new ArrayList<>(mSongs.values());
+        return mSongs.values();
     }
 
     public List<Artist> getAllArtists() {
-        synchronized (mArtists) {
-            return new ArrayList<>(mArtists.values());
-        }
+        return mArtists.values();
     }
 
     public List<Album> getAllAlbums() {
-        synchronized (mAlbums) {
-            return new ArrayList<>(mAlbums.values());
-        }
+        return mAlbums.values();
     }
 
     public void putSong(final ProviderIdentifier provider, final Song song) {
-        synchronized (mSongs) {
-            mSongs.put(song.getRef(), song);
-        }
-        mRefProvider.put(song.getRef(), provider);
+        mSongs.put(provider, song);
     }
 
     Song getSong(final String ref) {
-        synchronized (mSongs) {
-            return mSongs.get(ref);
-        }
+        return mSongs.get(ref);
+    }
+
+    void removeSong(String ref) {
+        mSongs.remove(ref);
     }
 
     public void putAlbum(final ProviderIdentifier provider, final Album album) {
-        synchronized (mAlbums) {
-            mAlbums.put(album.getRef(), album);
-            mRefProvider.put(album.getRef(), provider);
-        }
+        mAlbums.put(provider, album);
     }
 
     Album getAlbum(final String ref) {
-        synchronized (mAlbums) {
-            return mAlbums.get(ref);
-        }
+        return mAlbums.get(ref);
+    }
+
+    void removeAlbum(String ref) {
+        mAlbums.remove(ref);
     }
 
     public void putArtist(final ProviderIdentifier provider, final Artist artist) {
-        synchronized (mArtists) {
-            mArtists.put(artist.getRef(), artist);
-            mRefProvider.put(artist.getRef(), provider);
-        }
+        mArtists.put(provider, artist);
     }
 
     Artist getArtist(final String ref) {
-        synchronized (mArtists) {
-            return mArtists.get(ref);
-        }
+        return mArtists.get(ref);
     }
 
+    void removeArtist(String ref) {
+        mArtists.remove(ref);
+    }
+
+    /**
+     * @return The number of lookups that were served from the cache
+     */
+    public long getHitCount() {
+        return mPlaylists.getHitCount() + mSongs.getHitCount() + mAlbums.getHitCount()
+                + mArtists.getHitCount();
+    }
+
+    /**
+     * @return The number of lookups that weren't in the cache
+     */
+    public long getMissCount() {
+        return mPlaylists.getMissCount() + mSongs.getMissCount() + mAlbums.getMissCount()
+                + mArtists.getMissCount();
+    }
+
+    /**
+     * @return The number of entries that have been evicted because a store was full
+     */
+    public long getEvictionCount() {
+        return mSongs.getEvictionCount() + mAlbums.getEvictionCount()
+                + mArtists.getEvictionCount();
+    }
+
+    @Override
+    public String toString() {
+        return "ProviderCache{songs=" + mSongs.size() + ", albums=" + mAlbums.size()
+                + ", artists=" + mArtists.size() + ", playlists=" + mPlaylists.size()
+                + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "}";
+    }
 }
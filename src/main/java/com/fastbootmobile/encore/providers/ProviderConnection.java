@@ -25,6 +25,8 @@ import android.util.Log;
 
 import com.fastbootmobile.encore.service.NativeHub;
 
+import java.io.IOException;
+
 /**
  * Represents a connection to an audio provider (music source) service
  */
@@ -37,6 +39,7 @@ public class ProviderConnection extends AbstractProviderConnection
     private static final boolean ALLOW_BINDER_ON_UI_THREAD = true;
 
     private IMusicProvider mBinder;
+    private long mLibraryVersion = LibrarySnapshot.VERSION_NONE;
 
     /**
      * Constructor
@@ -95,6 +98,62 @@ public class ProviderConnection extends AbstractProviderConnection
         return mBinder;
     }
 
+    /**
+     * @return The version of the last complete library snapshot received through this
+     * connection, or {@link LibrarySnapshot#VERSION_NONE}
+     */
+    public synchronized long getLibraryVersion() {
+        return mLibraryVersion;
+    }
+
+    /**
+     * Receives the whole library of the provider in one bulk transfer, see
+     * {@link LibrarySnapshot}. This blocks until the transfer is over, and must not be called
+     * from the UI thread.
+     * @param content The parts of the library to transfer, a combination of the
+     *                {@link LibrarySnapshot} CONTENT_ flags
+     * @param onlyIfChanged true to skip the transfer if the library didn't change since the last
+     *                      complete snapshot received through this connection
+     * @param receiver The receiver of the entities
+     * @return false if the provider doesn't support snapshots or the transfer failed, in which
+     * case the library should be paged through the binder instead
+     */
+    public boolean readLibrarySnapshot(int content, boolean onlyIfChanged,
+                                       LibrarySnapshot.Receiver receiver) {
+        final IMusicProvider binder = getBinder();
+        if (binder == null) {
+            return false;
+        }
+
+        // Partial snapshots don't update the version, which tracks what the cache holds
+        final boolean complete = content == LibrarySnapshot.CONTENT_ALL;
+        final long sinceVersion;
+        synchronized (this) {
+            sinceVersion = complete && onlyIfChanged ? mLibraryVersion : LibrarySnapshot.VERSION_NONE;
+        }
+
+        try {
+            final long version = LibrarySnapshot.request(binder.asBinder(), content,
+                    sinceVersion, receiver);
+            if (version == LibrarySnapshot.VERSION_UNSUPPORTED) {
+                return false;
+            }
+
+            if (complete) {
+                synchronized (this) {
+                    mLibraryVersion = version;
+                }
+            }
+            return true;
+        } catch (RemoteException e) {
+            Log.e(TAG, "Cannot request the library of " + getProviderName(), e);
+        } catch (IOException e) {
+            Log.e(TAG, "Library transfer from " + getProviderName() + " failed", e);
+        }
+
+        return false;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -141,6 +200,9 @@ public class ProviderConnection extends AbstractProviderConnection
     public void onServiceDisconnected(ComponentName name) {
         // Release the binder
         mBinder = null;
+        synchronized (this) {
+            mLibraryVersion = LibrarySnapshot.VERSION_NONE;
+        }
         super.onServiceDisconnected(name);
     }
 
@@ -0,0 +1,505 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.SearchResult;
+import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Coordinates a search across all the providers. Each search gets a generation, and results
+ * belonging to a previous generation are dropped as soon as they come in. Providers only echo
+ * the query, so the searches sent to each provider are remembered in order, and a result
+ * belongs to the oldest outstanding search of its provider with the same query. Results of all
+ * the providers are merged incrementally into one ranked set per type of entity, the same track
+ * returned by several providers is only kept once, and the merged results are streamed to the
+ * listeners at a fixed cadence. Providers have a time budget to answer: once it has expired, the
+ * search is considered complete even though late answers are still merged in.
+ */
+class SearchCoordinator {
+    private static final String TAG = "SearchCoordinator";
+    private static final int STREAM_INTERVAL = 250;
+    private static final int PROVIDER_TIMEOUT = 4000;
+    private static final int MAX_OUTSTANDING = 8;
+
+    /**
+     * Durations reported by different providers for the same track are rarely identical to the
+     * millisecond: tracks with the same artist and title are the same if their durations are
+     * within this tolerance.
+     */
+    private static final int DURATION_TOLERANCE = 2000;
+
+    private static final int RANK_EXACT = 0;
+    private static final int RANK_START = 1;
+    private static final int RANK_CONTAINS = 2;
+    private static final int RANK_OTHER = 3;
+
+    private static final int TYPE_SONG = 0;
+    private static final int TYPE_ALBUM = 1;
+    private static final int TYPE_ARTIST = 2;
+    private static final int TYPE_PLAYLIST = 3;
+
+    private final Handler mHandler;
+    private final ProviderCache mCache;
+    private final UpdateDispatcher mDispatcher;
+    private final Object mLock = new Object();
+    private final List<ProviderAggregator.SearchCompleteListener> mCompleteListeners =
+            new CopyOnWriteArrayList<>();
+
+    private int mGeneration = 0;
+    private Search mSearch;
+
+    /**
+     * Searches sent to each provider which may still be answered, oldest first
+     */
+    private final Map<ProviderIdentifier, Deque<Search>> mOutstanding = new HashMap<>();
+
+    private static class Search {
+        final int mGeneration;
+        final String mQuery;
+        final String mNormalizedQuery;
+        final long mDeadline;
+        final Set<ProviderIdentifier> mPending;
+        // Entries of all the providers by reference, in the order they came in
+        final Map<String, Entry> mSongs = new LinkedHashMap<>();
+        final Map<String, Entry> mAlbums = new LinkedHashMap<>();
+        final Map<String, Entry> mArtists = new LinkedHashMap<>();
+        final Map<String, Entry> mPlaylists = new LinkedHashMap<>();
+        boolean mDirty = false;
+        boolean mComplete = false;
+
+        Search(int generation, String query, Set<ProviderIdentifier> providers) {
+            mGeneration = generation;
+            mQuery = query;
+            mNormalizedQuery = Utils.normalizeSearchTerms(query);
+            mDeadline = SystemClock.elapsedRealtime() + PROVIDER_TIMEOUT;
+            mPending = providers;
+        }
+    }
+
+    /**
+     * A result of the search. Its rank is computed once its entity is loaded, and kept for the
+     * following streams.
+     */
+    private static class Entry {
+        final String mRef;
+        final ProviderIdentifier mProvider;
+        final int mOrder;
+        boolean mResolved = false;
+        int mRank = RANK_OTHER;
+        // Songs only: normalized artist and title, and duration, to find duplicates
+        String mTrackKey;
+        int mDuration;
+
+        Entry(String ref, ProviderIdentifier provider, int order) {
+            mRef = ref;
+            mProvider = provider;
+            mOrder = order;
+        }
+    }
+
+    private static final Comparator<Entry> RANK_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.mRank != rhs.mRank) {
+                return lhs.mRank < rhs.mRank ? -1 : 1;
+            }
+            return lhs.mOrder < rhs.mOrder ? -1 : (lhs.mOrder == rhs.mOrder ? 0 : 1);
+        }
+    };
+
+    private final Runnable mStreamRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stream();
+        }
+    };
+
+    SearchCoordinator(Handler handler, ProviderCache cache, UpdateDispatcher dispatcher) {
+        mHandler = handler;
+        mCache = cache;
+        mDispatcher = dispatcher;
+    }
+
+    void addCompleteListener(ProviderAggregator.SearchCompleteListener listener) {
+        mCompleteListeners.add(listener);
+    }
+
+    void removeCompleteListener(ProviderAggregator.SearchCompleteListener listener) {
+        mCompleteListeners.remove(listener);
+    }
+
+    /**
+     * Starts a new search generation. Results of the previous searches will be dropped.
+     *
+     * @param query     The terms to look for
+     * @param providers The providers the query is sent to
+     * @return The generation of the search
+     */
+    int start(String query, List<ProviderIdentifier> providers) {
+        final int generation;
+        int superseded = -1;
+        synchronized (mLock) {
+            if (mSearch != null && !mSearch.mComplete) {
+                superseded = mSearch.mGeneration;
+            }
+
+            generation = ++mGeneration;
+            mSearch = new Search(generation, query, new HashSet<>(providers));
+
+            for (ProviderIdentifier id : providers) {
+                Deque<Search> outstanding = mOutstanding.get(id);
+                if (outstanding == null) {
+                    outstanding = new ArrayDeque<>();
+                    mOutstanding.put(id, outstanding);
+                } else if (outstanding.size() >= MAX_OUTSTANDING) {
+                    // The provider doesn't answer some searches
+                    outstanding.pollFirst();
+                }
+                outstanding.addLast(mSearch);
+            }
+            Log.d(TAG, "Search #" + generation + " for '" + query + "' on "
+                    + providers.size() + " providers");
+        }
+
+        if (superseded >= 0) {
+            // Outdated searches are complete
+            notifyComplete(superseded);
+        }
+
+        mHandler.removeCallbacks(mStreamRunnable);
+        mHandler.postDelayed(mStreamRunnable, STREAM_INTERVAL);
+        return generation;
+    }
+
+    /**
+     * Merges the results of a provider into the current search
+     *
+     * @param result The results of the provider
+     * @return False if the results were dropped because they belong to an outdated search
+     */
+    boolean onResult(SearchResult result) {
+        synchronized (mLock) {
+            final ProviderIdentifier id = result.getIdentifier();
+            final Search search = mSearch;
+            if (search == null || findOrigin(id, result.getQuery()) != search) {
+                Log.d(TAG, "Dropping outdated results for '" + result.getQuery() + "' from "
+                        + id.mName);
+                return false;
+            }
+
+            mergeInto(search.mSongs, result.getSongsList(), id);
+            mergeInto(search.mAlbums, result.getAlbumsList(), id);
+            mergeInto(search.mArtists, result.getArtistList(), id);
+            mergeInto(search.mPlaylists, result.getPlaylistList(), id);
+
+            search.mPending.remove(id);
+            if (search.mComplete && !search.mDirty) {
+                // Late answer, the stream already stopped
+                mHandler.postDelayed(mStreamRunnable, STREAM_INTERVAL);
+            }
+            search.mDirty = true;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the search a result of a provider answers. The searches sent to that provider
+     * before this one are considered answered (or lost), and are forgotten. The search itself
+     * is kept, as providers may answer in several parts.
+     *
+     * @return The search, or null if no outstanding search of that provider has that query
+     */
+    private Search findOrigin(ProviderIdentifier id, String query) {
+        final Deque<Search> outstanding = mOutstanding.get(id);
+        if (outstanding == null) {
+            return null;
+        }
+
+        for (Search search : outstanding) {
+            if (search.mQuery.equals(query)) {
+                while (outstanding.peekFirst() != search) {
+                    outstanding.pollFirst();
+                }
+                return search;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param generation The generation returned by {@link #start(String, List)}
+     * @return True if the search is outdated, or if all the providers answered it, or if their
+     * time budget expired
+     */
+    boolean isComplete(int generation) {
+        synchronized (mLock) {
+            return mSearch == null || mSearch.mGeneration != generation || mSearch.mComplete;
+        }
+    }
+
+    private void stream() {
+        final List<SearchResult> output;
+        final int generation;
+        boolean completed = false;
+
+        synchronized (mLock) {
+            final Search search = mSearch;
+            if (search == null) {
+                return;
+            }
+
+            if (!search.mComplete && (search.mPending.isEmpty()
+                    || SystemClock.elapsedRealtime() >= search.mDeadline)) {
+                if (!search.mPending.isEmpty()) {
+                    Log.w(TAG, "Search #" + search.mGeneration + ": no answer in time from "
+                            + search.mPending.size() + " providers");
+                }
+                search.mComplete = true;
+                search.mDirty = true;
+                completed = true;
+            }
+
+            if (search.mDirty) {
+                search.mDirty = false;
+                output = rank(search);
+            } else {
+                output = null;
+            }
+            generation = search.mGeneration;
+
+            if (!search.mComplete) {
+                mHandler.postDelayed(mStreamRunnable, STREAM_INTERVAL);
+            }
+        }
+
+        if (output != null && !output.isEmpty()) {
+            Log.d(TAG, "Streaming " + output.size() + " result runs of search #" + generation);
+            for (ILocalCallback cb : mDispatcher.getListeners()) {
+                cb.onSearchResult(output);
+            }
+        }
+
+        if (completed) {
+            notifyComplete(generation);
+        }
+    }
+
+    private void notifyComplete(int generation) {
+        for (ProviderAggregator.SearchCompleteListener listener : mCompleteListeners) {
+            listener.onSearchComplete(generation);
+        }
+    }
+
+    /**
+     * Builds the ranked and deduplicated results of the search, across all the providers. Only
+     * the entries which weren't loaded at the previous stream are looked up again; the others
+     * keep their rank. Songs from different providers with the same artist and title, and
+     * durations within {@link #DURATION_TOLERANCE}, are only kept for the first provider that
+     * answered. Entities that aren't loaded yet are ranked after the others.
+     *
+     * As a {@link SearchResult} belongs to one provider, each ranked list is cut into runs of
+     * consecutive entries of the same provider, one result per run: reading the results in order
+     * gives the ranked list back.
+     */
+    private List<SearchResult> rank(Search search) {
+        final String query = search.mNormalizedQuery;
+
+        for (Entry entry : search.mSongs.values()) {
+            if (!entry.mResolved) {
+                final Song song = mCache.getSong(entry.mRef);
+                if (song != null && song.isLoaded()) {
+                    entry.mRank = rankOf(song.getTitle(), query);
+                    entry.mTrackKey = trackKey(song);
+                    entry.mDuration = song.getDuration();
+                    entry.mResolved = true;
+                }
+            }
+        }
+
+        for (Entry entry : search.mAlbums.values()) {
+            if (!entry.mResolved) {
+                final Album album = mCache.getAlbum(entry.mRef);
+                if (album != null && album.isLoaded()) {
+                    entry.mRank = rankOf(album.getName(), query);
+                    entry.mResolved = true;
+                }
+            }
+        }
+
+        for (Entry entry : search.mArtists.values()) {
+            if (!entry.mResolved) {
+                final Artist artist = mCache.getArtist(entry.mRef);
+                if (artist != null && artist.isLoaded()) {
+                    entry.mRank = rankOf(artist.getName(), query);
+                    entry.mResolved = true;
+                }
+            }
+        }
+
+        for (Entry entry : search.mPlaylists.values()) {
+            if (!entry.mResolved) {
+                final Playlist playlist = mCache.getPlaylist(entry.mRef);
+                if (playlist != null && playlist.isLoaded()) {
+                    entry.mRank = rankOf(playlist.getName(), query);
+                    entry.mResolved = true;
+                }
+            }
+        }
+
+        // Drop the duplicate tracks, the first provider to answer wins
+        final Map<String, List<Integer>> durations = new HashMap<>();
+        final List<Entry> songs = new ArrayList<>(search.mSongs.size());
+        for (Entry entry : search.mSongs.values()) {
+            if (entry.mTrackKey != null) {
+                List<Integer> known = durations.get(entry.mTrackKey);
+                if (known == null) {
+                    known = new ArrayList<>(1);
+                    durations.put(entry.mTrackKey, known);
+                } else if (hasDurationNear(known, entry.mDuration)) {
+                    continue;
+                }
+                known.add(entry.mDuration);
+            }
+            songs.add(entry);
+        }
+
+        final List<SearchResult> output = new ArrayList<>();
+        addRuns(output, search.mQuery, sorted(search.mArtists.values()), TYPE_ARTIST);
+        addRuns(output, search.mQuery, sorted(search.mAlbums.values()), TYPE_ALBUM);
+        addRuns(output, search.mQuery, sorted(songs), TYPE_SONG);
+        addRuns(output, search.mQuery, sorted(search.mPlaylists.values()), TYPE_PLAYLIST);
+        return output;
+    }
+
+    private static void addRuns(List<SearchResult> output, String query, List<Entry> ranked,
+                                int type) {
+        SearchResult run = null;
+        List<String> refs = null;
+        for (Entry entry : ranked) {
+            if (run == null || !entry.mProvider.equals(run.getIdentifier())) {
+                run = new SearchResult(query);
+                run.setIdentifier(entry.mProvider);
+                run.setSongsList(new ArrayList<String>());
+                run.setAlbumsList(new ArrayList<String>());
+                run.setArtistList(new ArrayList<String>());
+                run.setPlaylistList(new ArrayList<String>());
+                output.add(run);
+
+                switch (type) {
+                    case TYPE_SONG:
+                        refs = run.getSongsList();
+                        break;
+                    case TYPE_ALBUM:
+                        refs = run.getAlbumsList();
+                        break;
+                    case TYPE_ARTIST:
+                        refs = run.getArtistList();
+                        break;
+                    default:
+                        refs = run.getPlaylistList();
+                        break;
+                }
+            }
+            refs.add(entry.mRef);
+        }
+    }
+
+    private static boolean hasDurationNear(List<Integer> durations, int duration) {
+        for (int known : durations) {
+            if (Math.abs(known - duration) <= DURATION_TOLERANCE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String trackKey(Song song) {
+        if (song.getTitle() == null) {
+            return null;
+        }
+
+        String artistName = song.getArtist();
+        if (artistName != null) {
+            final Artist artist = mCache.getArtist(artistName);
+            if (artist != null && artist.getName() != null) {
+                artistName = artist.getName();
+            }
+        }
+
+        return Utils.normalizeSearchTerms(artistName) + '|'
+                + Utils.normalizeSearchTerms(song.getTitle());
+    }
+
+    private static int rankOf(String name, String query) {
+        if (name == null) {
+            return RANK_OTHER;
+        }
+
+        final String normalized = Utils.normalizeSearchTerms(name);
+        if (normalized.equals(query)) {
+            return RANK_EXACT;
+        } else if (normalized.startsWith(query)) {
+            return RANK_START;
+        } else if (normalized.contains(query)) {
+            return RANK_CONTAINS;
+        } else {
+            return RANK_OTHER;
+        }
+    }
+
+    private static List<Entry> sorted(Iterable<Entry> entries) {
+        List<Entry> output = new ArrayList<>();
+        for (Entry entry : entries) {
+            output.add(entry);
+        }
+        Collections.sort(output, RANK_COMPARATOR);
+        return output;
+    }
+
+    private static void mergeInto(Map<String, Entry> merged, List<String> incoming,
+                                  ProviderIdentifier id) {
+        if (incoming == null) {
+            return;
+        }
+
+        for (String ref : incoming) {
+            if (!merged.containsKey(ref)) {
+                merged.put(ref, new Entry(ref, id, merged.size()));
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deduplicates concurrent lookups of the same entity: while a fetch for a key is in flight,
+ * other callers for that key wait for it and share its result instead of issuing their own
+ * provider call. Keys the provider explicitly reported as unknown are remembered for a short
+ * time so that they're not requested over and over. Failures are never remembered.
+ */
+class SingleFlight<T> {
+    private static final long NEGATIVE_TTL_MS = 30000;
+    private static final int MAX_NEGATIVE_ENTRIES = 2048;
+
+    private final ConcurrentHashMap<String, Call<T>> mInFlight = new ConcurrentHashMap<>();
+    private final AtomicLong mSharedCount = new AtomicLong();
+
+    /**
+     * Expiry time of the keys the provider doesn't know, least recently used first
+     */
+    private final LinkedHashMap<String, Long> mNegatives =
+            new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > MAX_NEGATIVE_ENTRIES;
+                }
+            };
+
+    /**
+     * A fetch. Throws {@link NotFoundException} when the provider answered that it doesn't know
+     * the entity, which is remembered, or any other exception when the provider couldn't be
+     * reached, which isn't. A null result is returned as is, and isn't remembered either.
+     */
+    interface Fetcher<T> {
+        T fetch() throws Exception;
+    }
+
+    /**
+     * Thrown by a {@link Fetcher} when the provider doesn't know the entity
+     */
+    static class NotFoundException extends Exception {
+    }
+
+    private static class Call<T> {
+        final Thread mOwner = Thread.currentThread();
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile T mResult;
+        volatile Exception mFailure;
+
+        T await() throws Exception {
+            try {
+                mLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            return mResult;
+        }
+
+        void set(T result, Exception failure) {
+            mResult = result;
+            mFailure = failure;
+            mLatch.countDown();
+        }
+    }
+
+    /**
+     * Builds a key for the provided entity reference
+     */
+    static String key(ProviderIdentifier provider, String ref) {
+        if (provider == null) {
+            return "|" + ref;
+        }
+        return provider.mPackage + '/' + provider.mService + '/' + provider.mName + '|' + ref;
+    }
+
+    /**
+     * Runs the fetcher, or waits for the fetch of the same key that is already running
+     *
+     * @param key     The key of the entity, see {@link #key(ProviderIdentifier, String)}
+     * @param fetcher The fetch to run if none is in flight
+     * @return The entity, or null if the provider doesn't know it
+     * @throws Exception If the fetch failed, including the fetch of another caller
+     */
+    T run(String key, Fetcher<T> fetcher) throws Exception {
+        synchronized (mNegatives) {
+            Long expiry = mNegatives.get(key);
+            if (expiry != null) {
+                if (expiry > SystemClock.elapsedRealtime()) {
+                    return null;
+                }
+                mNegatives.remove(key);
+            }
+        }
+
+        Call<T> call = new Call<>();
+        Call<T> existing = mInFlight.putIfAbsent(key, call);
+        if (existing != null) {
+            if (existing.mOwner == Thread.currentThread()) {
+                // Re-entrant lookup from the fetch itself (e.g. through an update callback),
+                // waiting would deadlock.
+                try {
+                    return fetcher.fetch();
+                } catch (NotFoundException e) {
+                    return null;
+                }
+            }
+            mSharedCount.incrementAndGet();
+            return existing.await();
+        }
+
+        T result = null;
+        Exception failure = null;
+        try {
+            result = fetcher.fetch();
+            return result;
+        } catch (NotFoundException e) {
+            synchronized (mNegatives) {
+                mNegatives.put(key, SystemClock.elapsedRealtime() + NEGATIVE_TTL_MS);
+            }
+            return null;
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            mInFlight.remove(key, call);
+            call.set(result, failure);
+        }
+    }
+
+    /**
+     * Forgets that the provided key couldn't be resolved, e.g. when the provider pushed it
+     */
+    void forget(String key) {
+        synchronized (mNegatives) {
+            mNegatives.remove(key);
+        }
+    }
+
+    /**
+     * Forgets all the keys that couldn't be resolved
+     */
+    void clearNegatives() {
+        synchronized (mNegatives) {
+            mNegatives.clear();
+        }
+    }
+
+    /**
+     * @return The number of callers that reused an in-flight fetch
+     */
+    long getSharedCount() {
+        return mSharedCount.get();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.Song;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Coalesces entity updates and delivers them to the {@link ILocalCallback}s. Updates posted
+ * within the same frame window are deduplicated by reference and delivered as one batch per
+ * type and per listener, after applying the listener's {@link UpdateFilter}. Listeners are
+ * never called while holding internal locks.
+ */
+class UpdateDispatcher {
+    private static final String TAG = "UpdateDispatcher";
+    private static final int FRAME_WINDOW = 200;
+
+    private final Handler mHandler;
+    private final List<Registration> mListeners = new CopyOnWriteArrayList<>();
+    private final Object mPendingLock = new Object();
+    private Map<String, Song> mPendingSongs = new LinkedHashMap<>();
+    private Map<String, Album> mPendingAlbums = new LinkedHashMap<>();
+    private Map<String, Artist> mPendingArtists = new LinkedHashMap<>();
+    private Map<String, Playlist> mPendingPlaylists = new LinkedHashMap<>();
+    private boolean mFlushScheduled = false;
+
+    private static class Registration {
+        final ILocalCallback mCallback;
+        final UpdateFilter mFilter;
+
+        Registration(ILocalCallback callback, UpdateFilter filter) {
+            mCallback = callback;
+            mFilter = filter;
+        }
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param handler The handler on which updates are delivered
+     */
+    UpdateDispatcher(Handler handler) {
+        mHandler = handler;
+    }
+
+    void addListener(ILocalCallback cb, UpdateFilter filter) {
+        removeListener(cb);
+        mListeners.add(new Registration(cb, filter != null ? filter : UpdateFilter.ALL));
+    }
+
+    void removeListener(ILocalCallback cb) {
+        for (Registration reg : mListeners) {
+            if (reg.mCallback == cb) {
+                mListeners.remove(reg);
+            }
+        }
+    }
+
+    /**
+     * @return A snapshot of the registered listeners, for events that aren't coalesced
+     */
+    List<ILocalCallback> getListeners() {
+        List<ILocalCallback> output = new ArrayList<>(mListeners.size());
+        for (Registration reg : mListeners) {
+            output.add(reg.mCallback);
+        }
+        return output;
+    }
+
+    void postSong(Song s) {
+        synchronized (mPendingLock) {
+            mPendingSongs.put(s.getRef(), s);
+            scheduleFlushLocked();
+        }
+    }
+
+    void postAlbum(Album a) {
+        synchronized (mPendingLock) {
+            mPendingAlbums.put(a.getRef(), a);
+            scheduleFlushLocked();
+        }
+    }
+
+    void postArtist(Artist a) {
+        synchronized (mPendingLock) {
+            mPendingArtists.put(a.getRef(), a);
+            scheduleFlushLocked();
+        }
+    }
+
+    void postPlaylist(Playlist p) {
+        synchronized (mPendingLock) {
+            mPendingPlaylists.put(p.getRef(), p);
+            scheduleFlushLocked();
+        }
+    }
+
+    /**
+     * Delivers a batch of entities in one go, outside of the frame window, to every listener but
+     * the excluded one. Used to announce entities restored from the metadata snapshot without
+     * echoing them back to the store that restored them.
+     *
+     * @param exclude The listener that shouldn't receive the batch, or null
+     */
+    void postBatch(List<Song> songs, List<Album> albums, List<Artist> artists,
+                   List<Playlist> playlists, final ILocalCallback exclude) {
+        final Map<String, Song> songMap = new LinkedHashMap<>();
+        final Map<String, Album> albumMap = new LinkedHashMap<>();
+        final Map<String, Artist> artistMap = new LinkedHashMap<>();
+        final Map<String, Playlist> playlistMap = new LinkedHashMap<>();
+        for (Song s : songs) {
+            songMap.put(s.getRef(), s);
+        }
+        for (Album a : albums) {
+            albumMap.put(a.getRef(), a);
+        }
+        for (Artist a : artists) {
+            artistMap.put(a.getRef(), a);
+        }
+        for (Playlist p : playlists) {
+            playlistMap.put(p.getRef(), p);
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Registration reg : mListeners) {
+                    if (reg.mCallback == exclude) {
+                        continue;
+                    }
+                    try {
+                        deliver(reg, songMap, albumMap, artistMap, playlistMap);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error while delivering batch to " + reg.mCallback, e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void scheduleFlushLocked() {
+        // The window isn't pushed back by new updates, so that a continuous stream of updates
+        // (e.g. a library sync) is still delivered at a steady pace.
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, FRAME_WINDOW);
+        }
+    }
+
+    private void flush() {
+        final Map<String, Song> songs;
+        final Map<String, Album> albums;
+        final Map<String, Artist> artists;
+        final Map<String, Playlist> playlists;
+
+        synchronized (mPendingLock) {
+            songs = mPendingSongs;
+            albums = mPendingAlbums;
+            artists = mPendingArtists;
+            playlists = mPendingPlaylists;
+            mPendingSongs = new LinkedHashMap<>();
+            mPendingAlbums = new LinkedHashMap<>();
+            mPendingArtists = new LinkedHashMap<>();
+            mPendingPlaylists = new LinkedHashMap<>();
+            mFlushScheduled = false;
+        }
+
+        for (Registration reg : mListeners) {
+            try {
+                deliver(reg, songs, albums, artists, playlists);
+            } catch (Exception e) {
+                Log.e(TAG, "Error while delivering updates to " + reg.mCallback, e);
+            }
+        }
+    }
+
+    private void deliver(Registration reg, Map<String, Song> songs, Map<String, Album> albums,
+                         Map<String, Artist> artists, Map<String, Playlist> playlists) {
+        final UpdateFilter filter = reg.mFilter;
+        final ILocalCallback cb = reg.mCallback;
+
+        if (!songs.isEmpty()) {
+            List<Song> batch = new ArrayList<>(songs.size());
+            for (Song s : songs.values()) {
+                if (filter.acceptSong(s)) {
+                    batch.add(s);
+                }
+            }
+            if (!batch.isEmpty()) {
+                cb.onSongUpdate(batch);
+            }
+        }
+
+        if (!albums.isEmpty()) {
+            List<Album> batch = new ArrayList<>(albums.size());
+            for (Album a : albums.values()) {
+                if (filter.acceptAlbum(a)) {
+                    batch.add(a);
+                }
+            }
+            if (!batch.isEmpty()) {
+                cb.onAlbumUpdate(batch);
+            }
+        }
+
+        if (!artists.isEmpty()) {
+            List<Artist> batch = new ArrayList<>(artists.size());
+            for (Artist a : artists.values()) {
+                if (filter.acceptArtist(a)) {
+                    batch.add(a);
+                }
+            }
+            if (!batch.isEmpty()) {
+                cb.onArtistUpdate(batch);
+            }
+        }
+
+        if (!playlists.isEmpty()) {
+            List<Playlist> batch = new ArrayList<>(playlists.size());
+            for (Playlist p : playlists.values()) {
+                if (filter.acceptPlaylist(p)) {
+                    batch.add(p);
+                }
+            }
+            if (!batch.isEmpty()) {
+                cb.onPlaylistUpdate(batch);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.Song;
+
+/**
+ * Filter restricting the updates delivered to an {@link ILocalCallback}. Updated entities are
+ * only delivered if the filter accepts them, and a callback is not called at all if none of
+ * the entities of a batch are accepted. Filters are evaluated on the aggregator's background
+ * thread, shared by all the callbacks: they must not block, so they should only look at the
+ * cache, never retrieve entities, and accept what they can't decide on. By default, all entities
+ * are accepted.
+ */
+public class UpdateFilter {
+    /**
+     * A filter accepting everything
+     */
+    public static final UpdateFilter ALL = new UpdateFilter();
+
+    public boolean acceptSong(Song song) {
+        return true;
+    }
+
+    public boolean acceptAlbum(Album album) {
+        return true;
+    }
+
+    public boolean acceptArtist(Artist artist) {
+        return true;
+    }
+
+    public boolean acceptPlaylist(Playlist playlist) {
+        return true;
+    }
+}
@@ -0,0 +1,153 @@
+package com.fastbootmobile.encore.providers.bassboost;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.fastbootmobile.encore.service.DSPEffect;
+
+import java.nio.ShortBuffer;
+
+/**
+ * The bass boost filter. It runs in process within the playback service, and is also used by
+ * {@link PluginService} for hosts feeding it through the DSP socket.
+ */
+public class BassBoostEffect implements DSPEffect,
+        SharedPreferences.OnSharedPreferenceChangeListener {
+
+    /**
+     * The name of the service declaring the effect as a DSP plugin
+     */
+    public static final String SERVICE_NAME = PluginService.class.getName();
+
+    /**
+     * Settings of the filter. Snapshots are immutable, and replaced as a whole when the
+     * preferences or the format change, so that the processing thread never has to lock.
+     */
+    private static class Settings {
+        final int mSampleRate;
+        final int mChannels;
+        final double mFrequency;
+        final double mGain;
+
+        Settings(int sampleRate, int channels, double frequency, double gain) {
+            mSampleRate = sampleRate;
+            mChannels = channels;
+            mFrequency = frequency;
+            mGain = gain;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final Object mSettingsLock = new Object();
+    private volatile Settings mSettings = new Settings(44100, 2, 55, 0);
+
+    // Only used by the processing thread
+    private final BiQuadFilter mFilter = new BiQuadFilter();
+    private Settings mAppliedSettings;
+
+    public BassBoostEffect(Context ctx) {
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        mPrefs.registerOnSharedPreferenceChangeListener(this);
+        updateFilterSettings();
+    }
+
+    public void updateFilterSettings() {
+        String frequency = mPrefs.getString("center_frequency", "55");
+        String gain = mPrefs.getString("gain", "0");
+        double dfrequency = Double.parseDouble(frequency);
+        double dgain = Double.parseDouble(gain);
+
+        synchronized (mSettingsLock) {
+            final Settings current = mSettings;
+            mSettings = new Settings(current.mSampleRate, current.mChannels, dfrequency, dgain);
+        }
+    }
+
+    @Override
+    public void setFormat(int sampleRate, int channels) {
+        synchronized (mSettingsLock) {
+            final Settings current = mSettings;
+            if (sampleRate != current.mSampleRate || channels != current.mChannels) {
+                mSettings = new Settings(sampleRate, channels, current.mFrequency,
+                        current.mGain);
+            }
+        }
+    }
+
+    /**
+     * Picks up the latest settings. The coefficients are recomputed on the processing thread,
+     * and only when the settings changed, so that the filter state is never shared.
+     * @return The settings to process the block with
+     */
+    private Settings applySettings() {
+        final Settings settings = mSettings;
+        if (settings != mAppliedSettings) {
+            mFilter.setLowPass(10, settings.mFrequency, settings.mSampleRate,
+                    settings.mGain / 666.0);
+            mAppliedSettings = settings;
+        }
+        return settings;
+    }
+
+    @Override
+    public void process(ShortBuffer samples, int count) {
+        if (samples.hasArray() && samples.arrayOffset() == 0) {
+            process(samples.array(), count);
+            return;
+        }
+
+        // Direct buffers have no backing array, work on them in place rather than copying
+        if (applySettings().mChannels == 2) {
+            for (int i = 0; i < count - 1; i += 2) {
+                int inL = samples.get(i);
+                int inR = samples.get(i + 1);
+
+                int boost = mFilter.process(inL + inR);
+
+                samples.put(i, BiQuadFilter.clamp16(inL + boost));
+                samples.put(i + 1, BiQuadFilter.clamp16(inR + boost));
+            }
+        } else {
+            for (int i = 0; i < count; ++i) {
+                int in = samples.get(i);
+                samples.put(i, BiQuadFilter.clamp16(in + mFilter.process(in * 2)));
+            }
+        }
+    }
+
+    /**
+     * Processes a block of interleaved samples in place. Blocks must always be processed from
+     * the same thread.
+     * @param samples The samples
+     * @param count The number of samples (not frames) to process
+     */
+    public void process(short[] samples, int count) {
+        if (applySettings().mChannels == 2) {
+            for (int i = 0; i < count - 1; i += 2) {
+                int inL = samples[i];
+                int inR = samples[i + 1];
+
+                int boost = mFilter.process(inL + inR);
+
+                samples[i] = BiQuadFilter.clamp16(inL + boost);
+                samples[i + 1] = BiQuadFilter.clamp16(inR + boost);
+            }
+        } else {
+            for (int i = 0; i < count; ++i) {
+                int in = samples[i];
+                samples[i] = BiQuadFilter.clamp16(in + mFilter.process(in * 2));
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        mPrefs.unregisterOnSharedPreferenceChangeListener(this);
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String s) {
+        updateFilterSettings();
+    }
+}
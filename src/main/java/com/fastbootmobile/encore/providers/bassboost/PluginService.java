@@ -2,10 +2,8 @@ package com.fastbootmobile.encore.providers.bassboost;
 
 import android.app.Service;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.IBinder;
 import android.os.RemoteException;
-import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.fastbootmobile.encore.providers.AudioClientSocket;
@@ -20,13 +18,13 @@ import java.nio.ShortBuffer;
 
 import omnimusic.Plugin;
 
-public class PluginService extends Service implements SharedPreferences.OnSharedPreferenceChangeListener {
+public class PluginService extends Service {
 
     private static final String TAG = "PluginService";
 
     private ProviderIdentifier mIdentifier;
     private AudioSocket mSocket;
-    private static BiQuadFilter mFilterL = new BiQuadFilter();
+    private BassBoostEffect mEffect;
 
     short[] mSamplesBuffer = new short[16384];
     byte[] mBytesBuffer = new byte[32768];
@@ -45,16 +43,7 @@ public class PluginService extends Service implements SharedPreferences.OnShared
 
             shortBuf.get(mSamplesBuffer, 0, numShorts);
 
-
-            for (int i = 0; i < numShorts; i += 2) {
-                int inL = mSamplesBuffer[i];
-                int inR = mSamplesBuffer[i + 1];
-
-                int boost = mFilterL.process(inL + inR);
-
-                mSamplesBuffer[i] = BiQuadFilter.clamp16(inL + boost);
-                mSamplesBuffer[i + 1] = BiQuadFilter.clamp16(inR + boost);
-            }
+            mEffect.process(mSamplesBuffer, numShorts);
 
             // push it back
             try {
@@ -100,19 +89,7 @@ public class PluginService extends Service implements SharedPreferences.OnShared
     @Override
     public void onCreate() {
         super.onCreate();
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(PluginService.this);
-        prefs.registerOnSharedPreferenceChangeListener(this);
-        updateFilterSettings();
-    }
-
-    public void updateFilterSettings() {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(PluginService.this);
-        String frequency = prefs.getString("center_frequency", "55");
-        String gain = prefs.getString("gain", "0");
-        double dfrequency = Double.parseDouble(frequency);
-        double dgain = Double.parseDouble(gain);
-
-        mFilterL.setLowPass(10, dfrequency, 44100.0, dgain / 666.0);
+        mEffect = new BassBoostEffect(this);
     }
 
     @Override
@@ -127,6 +104,7 @@ public class PluginService extends Service implements SharedPreferences.OnShared
 
     @Override
     public void onDestroy() {
+        mEffect.release();
         super.onDestroy();
     }
 
@@ -162,9 +140,4 @@ public class PluginService extends Service implements SharedPreferences.OnShared
         }
 
     };
-
-    @Override
-    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String s) {
-        updateFilterSettings();
-    }
 }
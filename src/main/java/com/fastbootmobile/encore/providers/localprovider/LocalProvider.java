@@ -33,13 +33,21 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class LocalProvider {
     private static final String TAG = "LocalProvider";
+    private static final long RING_WAIT_MS = 100;
+    private static final long DECODER_IDLE_MS = 5;
 
     private static final String PREFIX_SONG = "local:song:";
     private static final String PREFIX_ALBUM = "local:album:";
@@ -47,7 +55,8 @@ public class LocalProvider {
     private static final String PREFIX_PLAYLIST = "local:playlist:";
 
     private Uri mUri;
-    private HashMap<String, LocalSong> mSongs;
+    private final HashMap<String, LocalSong> mSongs;
+    private final AtomicLong mLibraryVersion = new AtomicLong(1);
     private ContentResolver mContentResolver;
     private HashMap<String, Playlist> mPlaylists;
     private LocalSong mCurrentSong;
@@ -68,10 +77,24 @@ public class LocalProvider {
     private Handler mHandler = new Handler();
     private boolean mSetup;
     private boolean mPaused;
-    private SearchResult mSearchResult;
+    private volatile SearchResult mSearchResult;
     private boolean mIsEOS;
-    private int mPendingOutIndex = -1;
-    private int mPendingSize;
+    private boolean mInputEOS;
+    private NextTrack mNextTrack;
+    private String mSplicedRef;
+    private final PcmRing mAudioRing = new PcmRing();
+
+    /**
+     * Copy of the last decoder output, to be queued in the ring. Only used by the decoder thread.
+     */
+    private ByteBuffer mPcmBuffer = ByteBuffer.allocate(PcmRing.SLOT_SIZE);
+
+    private final SearchIndex mSongIndex = new SearchIndex();
+    private final SearchIndex mAlbumIndex = new SearchIndex();
+    private final SearchIndex mArtistIndex = new SearchIndex();
+    private final SearchIndex mPlaylistIndex = new SearchIndex();
+    private final ExecutorService mSearchExecutor = Executors.newSingleThreadExecutor();
+    private Future<?> mPendingSearch;
 
 
     private final ContentObserver mAlbumContentObserver = new ContentObserver(mHandler) {
@@ -128,22 +151,25 @@ public class LocalProvider {
     }
 
     public void notifyIdentifier(final ProviderIdentifier id) {
-        Set<String> keys = mSongs.keySet();
-        for (String key : keys) {
-            mSongs.get(key).getSong().setProvider(id);
+        synchronized (mSongs) {
+            for (LocalSong song : mSongs.values()) {
+                song.getSong().setProvider(id);
+            }
         }
 
-        keys = mAlbums.keySet();
-        for (String key : keys) {
-            mAlbums.get(key).setProvider(id);
+        synchronized (mAlbums) {
+            for (Album album : mAlbums.values()) {
+                album.setProvider(id);
+            }
         }
 
-        keys = mArtists.keySet();
-        for (String key : keys) {
-            mArtists.get(key).setProvider(id);
+        synchronized (mArtists) {
+            for (Artist artist : mArtists.values()) {
+                artist.setProvider(id);
+            }
         }
 
-        keys = mPlaylists.keySet();
+        Set<String> keys = mPlaylists.keySet();
         for (String key : keys) {
             mPlaylists.get(key).setProvider(id);
         }
@@ -180,8 +206,10 @@ public class LocalProvider {
 
     private void fetchAlbums() {
         final String[] proj = {"*"};
+        boolean changed = false;
         final Cursor cur = mContentResolver.query(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, proj, null, null, null);
         if (cur != null) {
+            final Set<String> listed = new HashSet<>();
             final int albumName = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ALBUM);
             final int artistName = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ARTIST);
             final int albumKey = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ALBUM_KEY);
@@ -197,11 +225,24 @@ public class LocalProvider {
                     album.setYear(cur.getInt(yearKey));
 
                     // we get the contents of the album
-                    mAlbums.put(album.getRef(), album);
+                    synchronized (mAlbums) {
+                        changed |= mAlbums.put(album.getRef(), album) == null;
+                    }
+                    mAlbumIndex.put(album.getRef(), album.getName());
                     mAlbumsId.put(album.getRef(), cur.getLong(idKey));
+                    listed.add(album.getRef());
                 } while (cur.moveToNext());
             }
             cur.close();
+
+            synchronized (mAlbums) {
+                changed |= removeUnlisted(mAlbums, mAlbumIndex, listed);
+            }
+            mAlbumsId.keySet().retainAll(listed);
+        }
+
+        if (changed) {
+            mLibraryVersion.incrementAndGet();
         }
 
         // first we poll all the musics
@@ -214,8 +255,7 @@ public class LocalProvider {
         final Cursor cur = mContentResolver.query(mUri, null,
                 MediaStore.Audio.Media.IS_MUSIC + " = 1", null, null);
 
-        if (cur == null || !cur.moveToFirst()) {
-            // there is no song to iterate over
+        if (cur == null) {
             return;
         }
 
@@ -229,8 +269,10 @@ public class LocalProvider {
         int durationColumn = cur.getColumnIndex(MediaStore.Audio.Media.DURATION);//I keep it for later use
         int idColumn = cur.getColumnIndex(MediaStore.Audio.Media._ID);
         int yearColumn = cur.getColumnIndex(MediaStore.Audio.Media.YEAR);
+        final Set<String> listed = new HashSet<>();
+        boolean changed = false;
 
-        do {
+        while (cur.moveToNext()) {
             // We create the unique ID the song have
             final String uniquename = getSongUniqueName(cur.getString(artistKey), cur.getString(albumKey), cur.getString(titleKey));
 
@@ -241,7 +283,10 @@ public class LocalProvider {
             s.setDuration((int) cur.getLong(durationColumn));
             s.setAlbum(PREFIX_ALBUM + getAlbumUniqueName(cur.getString(albumKey), cur.getString(artistColumn)));
 
-            Album album = mAlbums.get(s.getAlbum());
+            final Album album;
+            synchronized (mAlbums) {
+                album = mAlbums.get(s.getAlbum());
+            }
             if (album != null) {
                 album.addSong(s.getRef());
             }
@@ -255,13 +300,23 @@ public class LocalProvider {
             final Long id = cur.getLong(idColumn);
             final Long albumId = cur.getLong(albumIdColumn);
 
-            mSongs.put(s.getRef(), new LocalSong(s, id, albumId));
+            synchronized (mSongs) {
+                changed |= mSongs.put(s.getRef(), new LocalSong(s, id, albumId)) == null;
+            }
+            mSongIndex.put(s.getRef(), s.getTitle());
+            listed.add(s.getRef());
             mCallback.songUpdated(s);
-        } while (cur.moveToNext());
+        }
 
         cur.close();
+        synchronized (mSongs) {
+            changed |= removeUnlisted(mSongs, mSongIndex, listed);
+        }
+        if (changed) {
+            mLibraryVersion.incrementAndGet();
+        }
 
-        for (Album album : mAlbums.values()) {
+        for (Album album : getAlbums()) {
             mCallback.albumUpdated(album);
         }
     }
@@ -270,11 +325,13 @@ public class LocalProvider {
         final String[] proj = {"*"};
 
         // we poll the artists
+        boolean changed = false;
         final Cursor cur = mContentResolver.query(MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI, proj, null, null, null);
         if (cur != null) {
             final int artistName = cur.getColumnIndex(MediaStore.Audio.ArtistColumns.ARTIST);
             final int artistKey = cur.getColumnIndex(MediaStore.Audio.ArtistColumns.ARTIST_KEY);
             final int artistId = cur.getColumnIndex(MediaStore.Audio.Artists._ID);
+            final Set<String> listed = new HashSet<>();
             if ( cur.moveToFirst()) {
                 do {
                     Artist artist = new Artist(PREFIX_ARTIST + getArtistUniqueName(cur.getString(artistKey)));
@@ -285,16 +342,47 @@ public class LocalProvider {
                     artist = getAlbumsArtists(artist, MediaStore.Audio.Artists.Albums.getContentUri("external", cur.getLong(artistId)));
                     if (artist != null) {
                         artist.setSourceLogo(PluginService.LOGO_REF);
-                        mArtists.put(artist.getRef(), artist);
+                        synchronized (mArtists) {
+                            changed |= mArtists.put(artist.getRef(), artist) == null;
+                        }
+                        mArtistIndex.put(artist.getRef(), artist.getName());
+                        listed.add(artist.getRef());
                         mCallback.artistUpdated(artist);
                     }
                 } while (cur.moveToNext());
             }
 
             cur.close();
+            synchronized (mArtists) {
+                changed |= removeUnlisted(mArtists, mArtistIndex, listed);
+            }
+        }
+
+        if (changed) {
+            mLibraryVersion.incrementAndGet();
         }
     }
 
+    /**
+     * Drops the entities which the last full query of the media store didn't list anymore, along
+     * with their search index entries. The app drops them once they aren't listed either.
+     * @return true if entities were removed
+     */
+    private static boolean removeUnlisted(Map<String, ?> entities, SearchIndex index,
+                                          Set<String> listed) {
+        boolean removed = false;
+        final Iterator<String> it = entities.keySet().iterator();
+        while (it.hasNext()) {
+            final String ref = it.next();
+            if (!listed.contains(ref)) {
+                it.remove();
+                index.remove(ref);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
     public void fetchPlaylists(String idPlaylist) {
         Uri uri;
 
@@ -325,6 +413,7 @@ public class LocalProvider {
                 play = getPlaylist(MediaStore.Audio.Playlists.Members.getContentUri("external", id), play);
                 if (play != null) {
                     mPlaylists.put(play.getRef(), play);
+                    mPlaylistIndex.put(play.getRef(), play.getName());
 
                     // we give to the app the new playlists when we finish polling it
                     mCallback.playlistUpdated(play);
@@ -568,7 +657,10 @@ public class LocalProvider {
      */
     public List<Song> getSongs(int offset, int range) {
         final ArrayList<Song> songs = new ArrayList<Song>();
-        final Collection<LocalSong> localSongs = new ArrayList<>(mSongs.values());
+        final Collection<LocalSong> localSongs;
+        synchronized (mSongs) {
+            localSongs = new ArrayList<>(mSongs.values());
+        }
 
         int index = 0;
         for (LocalSong song : localSongs) {
@@ -591,6 +683,34 @@ public class LocalProvider {
         return songs;
     }
 
+    /**
+     * @return All the songs, at once
+     */
+    public List<Song> getAllSongs() {
+        final Collection<LocalSong> localSongs;
+        synchronized (mSongs) {
+            localSongs = new ArrayList<>(mSongs.values());
+        }
+        final ArrayList<Song> songs = new ArrayList<>(localSongs.size());
+
+        for (LocalSong song : localSongs) {
+            Song s = song.getSong();
+            if (s != null) {
+                s.setSourceLogo(PluginService.LOGO_REF);
+                songs.add(s);
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * @return A number which changes every time songs, albums or artists are added to the
+     * library
+     */
+    public long getLibraryVersion() {
+        return mLibraryVersion.get();
+    }
+
     /**
      * @return A list of all genres
      */
@@ -602,14 +722,18 @@ public class LocalProvider {
      * @return returns a list of the Artists
      */
     public List<Artist> getArtists() {
-        return new ArrayList<Artist>(mArtists.values());
+        synchronized (mArtists) {
+            return new ArrayList<Artist>(mArtists.values());
+        }
     }
 
     /**
      * @return returns a list of the Albums
      */
     public List<Album> getAlbums() {
-        return new ArrayList<Album>(mAlbums.values());
+        synchronized (mAlbums) {
+            return new ArrayList<Album>(mAlbums.values());
+        }
     }
 
     /**
@@ -650,12 +774,15 @@ public class LocalProvider {
         }
 
         try {
-            LocalSong lS = mSongs.get(ref);
+            LocalSong lS;
+            synchronized (mSongs) {
+                lS = mSongs.get(ref);
+            }
             if (lS != null) {
                 s = lS.getSong();
                 if (s != null) {
                     s.setSourceLogo(PluginService.LOGO_REF);
-                    mCallback.artistUpdated(mArtists.get(s.getArtist()));
+                    mCallback.artistUpdated(getArtist(s.getArtist()));
                 }
             }
         } catch (Exception e) {
@@ -666,7 +793,10 @@ public class LocalProvider {
     }
 
     public Artist getArtist(String ref) {
-        Artist a = mArtists.get(ref);
+        final Artist a;
+        synchronized (mArtists) {
+            a = mArtists.get(ref);
+        }
         if (a != null) {
             a.setSourceLogo(PluginService.LOGO_REF);
         }
@@ -674,7 +804,10 @@ public class LocalProvider {
     }
 
     public Album getAlbum(String ref) {
-        Album a = mAlbums.get(ref);
+        final Album a;
+        synchronized (mAlbums) {
+            a = mAlbums.get(ref);
+        }
         if (a != null) {
             a.setSourceLogo(PluginService.LOGO_REF);
         }
@@ -689,7 +822,9 @@ public class LocalProvider {
     public LocalSong getLocalSong(String ref) {
         LocalSong s = null;
         try {
-            s = mSongs.get(ref);
+            synchronized (mSongs) {
+                s = mSongs.get(ref);
+            }
             if (s.getSong() != null) {
                 s.getSong().setSourceLogo(PluginService.LOGO_REF);
             }
@@ -786,6 +921,7 @@ public class LocalProvider {
         mContentResolver.delete(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, where, whereVal);
 
         mPlaylists.remove(playlistRef);
+        mPlaylistIndex.remove(playlistRef);
         mCallback.playlistRemoved(playlistRef);
 
         // Errors aren't supported for now
@@ -809,6 +945,7 @@ public class LocalProvider {
 
         Playlist playlist = mPlaylists.get(playlistRef);
         playlist.setName(title);
+        mPlaylistIndex.put(playlistRef, title);
 
         mCallback.playlistUpdated(playlist);
 
@@ -907,6 +1044,7 @@ public class LocalProvider {
             pl.setName(playlistName);
             pl.setIsLoaded(true);
             mPlaylists.put(ref, pl);
+            mPlaylistIndex.put(ref, playlistName);
             mCallback.playlistUpdated(pl);
 
             return ref;
@@ -919,6 +1057,21 @@ public class LocalProvider {
      * @param ref the unique reference of the song
      */
     public void playSong(String ref) {
+        final boolean spliced;
+        synchronized (this) {
+            // The decoder may already have moved on to this song when the previous one ended
+            spliced = ref.equals(mSplicedRef) && !mIsEOS;
+            if (spliced) {
+                mSplicedRef = null;
+                mPaused = false;
+            }
+        }
+
+        if (spliced) {
+            mCallback.songPlaying();
+            return;
+        }
+
         // Pause the current song (if any), without notifying the app
         pause(false);
 
@@ -927,13 +1080,24 @@ public class LocalProvider {
         mCurrentSong = getLocalSong(ref);//we set the new song
 
         synchronized (this) {
+            mSplicedRef = null;
+
             // We reset the decoder for this song
             if (mDecoder != null) {
                 mDecoder.stop();
                 mDecoder.release();
             }
-            getCurrentDecoder();
-            mPendingOutIndex = -1;
+
+            if (mNextTrack != null && mNextTrack.mSong == mCurrentSong) {
+                // The song was prepared ahead, use its decoder
+                mChangeMusic = false;
+                switchToNextTrack();
+            } else {
+                releaseNextTrack();
+                getCurrentDecoder();
+                mInputEOS = false;
+            }
+            mAudioRing.clear();
         }
 
         mPaused = false;
@@ -942,7 +1106,6 @@ public class LocalProvider {
         // we resume the decoder thread
         synchronized (mAudioPushRunnable) {
             mAudioPushRunnable.notify();
-            mPendingOutIndex = -1;
         }
 
 
@@ -965,7 +1128,10 @@ public class LocalProvider {
             if (mIsEOS && mCurrentSong != null) {
                 playSong(mCurrentSong.getSong().getRef());
             } else if (mCurrentSong != null) {
-                mDecoder.flush();
+                synchronized (this) {
+                    mDecoder.flush();
+                    mInputEOS = false;
+                }
 
                 synchronized (mAudioPushRunnable) {
                     mAudioPushRunnable.notifyAll();
@@ -1024,15 +1190,166 @@ public class LocalProvider {
     }
 
     public void seekTo(long timeMs) {
-        mExtractor.seekTo(timeMs * 1000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        synchronized (this) {
+            mExtractor.seekTo(timeMs * 1000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+            if (mDecoder != null) {
+                // Drop what was decoded before the seek point
+                mDecoder.flush();
+                mInputEOS = false;
+            }
+            mAudioRing.clear();
+        }
+    }
+
+    /**
+     * Opens and pre-rolls the decoder of the song that is likely to be played next, so that it
+     * can be spliced right after the current song without any gap
+     *
+     * @param ref The unique reference of the song
+     */
+    public void prepareNextSong(String ref) {
+        final LocalSong song = getLocalSong(ref);
+        if (song == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mNextTrack != null && mNextTrack.mSong == song) {
+                return;
+            }
+        }
+
+        final long start = System.currentTimeMillis();
+        final NextTrack next = new NextTrack(song);
+        try {
+            next.mExtractor.setDataSource(mContext, song.getURI(), null);
+            if (next.mExtractor.getTrackCount() == 0) {
+                Log.e(TAG, "No track in the source file");
+                next.mExtractor.release();
+                return;
+            }
+            next.mFormat = next.mExtractor.getTrackFormat(0);
+            next.mExtractor.selectTrack(0);
+
+            next.mDecoder = MediaCodec.createDecoderByType(next.mFormat.getString(MediaFormat.KEY_MIME));
+            next.mDecoder.configure(next.mFormat, null, null, 0);
+            next.mDecoder.start();
+            next.mInputBuffers = next.mDecoder.getInputBuffers();
+
+            // Pre-roll: fill the decoder input so that it has output ready as soon as it's used
+            int inIndex;
+            while ((inIndex = next.mDecoder.dequeueInputBuffer(0)) >= 0) {
+                int sampleSize = next.mExtractor.readSampleData(next.mInputBuffers[inIndex], 0);
+                if (sampleSize < 0) {
+                    // The whole song fits in the pre-roll: signal its end, as the decoder
+                    // won't take more input
+                    next.mDecoder.queueInputBuffer(inIndex, 0, 0, 0,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    next.mInputEOS = true;
+                    break;
+                }
+                next.mDecoder.queueInputBuffer(inIndex, 0, sampleSize, 0, 0);
+                next.mExtractor.advance();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to prepare the next song", e);
+            next.release();
+            return;
+        }
+
+        synchronized (this) {
+            releaseNextTrack();
+            mNextTrack = next;
+        }
+        Log.d(TAG, "Prepared next song in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void switchToNextTrack() {
+        mExtractor.release();
+
+        mCurrentSong = mNextTrack.mSong;
+        mExtractor = mNextTrack.mExtractor;
+        mDecoder = mNextTrack.mDecoder;
+        mFormat = mNextTrack.mFormat;
+        mInputBuffers = mNextTrack.mInputBuffers;
+        mOutputBuffers = mDecoder.getOutputBuffers();
+        mInfo = new MediaCodec.BufferInfo();
+        mInputEOS = mNextTrack.mInputEOS;
+        mNextTrack = null;
+    }
+
+    private void releaseNextTrack() {
+        if (mNextTrack != null) {
+            mNextTrack.release();
+            mNextTrack = null;
+        }
+    }
+
+    /**
+     * Called from the decoder thread once all the output of the current song has been decoded.
+     * The end of the song is only reported once its last samples were written out, see
+     * {@link #onTrackWritten()}.
+     */
+    private void onOutputEnded() {
+        final String finishedRef = mCurrentSong.getSong().getRef();
+
+        if (mNextTrack != null && !isSameAudioFormat(mFormat, mNextTrack.mFormat)) {
+            // The app would have to switch formats in the middle of the stream, the next song
+            // will be decoded again when it's played
+            Log.d(TAG, "Not splicing " + mNextTrack.mSong.getSong().getRef()
+                    + ", its format differs");
+            releaseNextTrack();
+        }
+
+        if (mNextTrack != null) {
+            // Splice the next song right after this one: its samples follow in the ring
+            Log.d(TAG, "Gapless switch from " + finishedRef + " to "
+                    + mNextTrack.mSong.getSong().getRef());
+            try {
+                mDecoder.stop();
+                mDecoder.release();
+            } catch (IllegalStateException ignored) {
+            }
+            switchToNextTrack();
+            mSplicedRef = mCurrentSong.getSong().getRef();
+        } else {
+            mIsEOS = true;
+        }
+    }
+
+    /**
+     * Called by the audio writer once the last samples of a song were accepted by the app, so
+     * that the app gets the end of the song when it matches what it received
+     */
+    void onTrackWritten() {
+        mCallback.songFinished();
+    }
+
+    private static boolean isSameAudioFormat(MediaFormat a, MediaFormat b) {
+        return a.getInteger(MediaFormat.KEY_SAMPLE_RATE) == b.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                && a.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+                == b.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+    }
+
+    /**
+     * @return The ring into which decoded audio is pushed, to be written out to the audio socket
+     */
+    PcmRing getAudioRing() {
+        return mAudioRing;
     }
 
     private final Thread mAudioPushRunnable = new Thread() {
         public void run() {
             mIsEOS = false;
-            byte[] outArray = new byte[8192];
 
             while (!isInterrupted()) {
+                boolean hasPcm = false;
+                boolean endOfTrack = false;
+                int channels = 0;
+                int sampleRate = 0;
+                int epoch = 0;
+                boolean decoderBusy = false;
+
                 synchronized (mAudioPushRunnable) {
                     if (mIsEOS || mCurrentSong == null || mPaused) {
                         try {
@@ -1041,186 +1358,211 @@ public class LocalProvider {
                             Log.e(TAG, e.getMessage());
                         }
                     }
+                }
 
-                    synchronized (LocalProvider.this) {
-                        // if we did not finish the file
-                        if (!mIsEOS && !mPaused && mDecoder != null) {
-
-                            // Input decoding
-                            int inIndex = -2;
-                            try {
-                                // Try to dequeue an output buffer (timeout 30ms)
-                                inIndex = mDecoder.dequeueInputBuffer(TimeUnit.MILLISECONDS.toMicros(30));
-                            } catch (IllegalStateException ignored) {
-                            }
+                synchronized (LocalProvider.this) {
+                    // if we did not finish the file
+                    if (!mIsEOS && !mPaused && mDecoder != null) {
 
-                            // if we have a buffer available
-                            if (inIndex >= 0) {
-                                // we get the buffer
-                                ByteBuffer buffer = mInputBuffers[inIndex];
-
-                                // we retrieve the current encoded sample size
-                                int sampleSize = mExtractor.readSampleData(buffer, 0);
-                                if (sampleSize < 0) {
-                                    // we are at the end of the file
-                                    mDecoder.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                                    mIsEOS = true;
-                                    mCallback.songFinished();
-                                } else {
-                                    //we queue the encoded sample in the decoder
-                                    try {
-                                        mDecoder.queueInputBuffer(inIndex, 0, sampleSize, 0, 0);
-                                        mExtractor.advance();
-                                    } catch (Exception e) {
-                                        Log.d(TAG, e.toString());
-                                        continue;
-                                    }
-                                }
+                        // Input decoding
+                        int inIndex = -2;
+                        try {
+                            // Try to dequeue an input buffer, without waiting under the lock
+                            if (!mInputEOS) {
+                                inIndex = mDecoder.dequeueInputBuffer(0);
                             }
+                        } catch (IllegalStateException ignored) {
+                        }
 
-                            // Output processing
-                            int outIndex = -1;
-                            if (mPendingOutIndex >= 0) {
-                                // We have a pending buffer, we'll dequeue later, but for now try
-                                // to write the sample again
-                                outIndex = MediaCodec.INFO_TRY_AGAIN_LATER;
+                        // if we have a buffer available
+                        if (inIndex >= 0) {
+                            // we get the buffer
+                            ByteBuffer buffer = mInputBuffers[inIndex];
+
+                            // we retrieve the current encoded sample size
+                            int sampleSize = mExtractor.readSampleData(buffer, 0);
+                            if (sampleSize < 0) {
+                                // we are at the end of the file
+                                // we are at the end of the file, the song ends once the
+                                // decoder output is drained
+                                mDecoder.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                                mInputEOS = true;
                             } else {
+                                //we queue the encoded sample in the decoder
                                 try {
-                                    // Try to dequeue an output buffer (timeout 30ms)
-                                    outIndex = mDecoder.dequeueOutputBuffer(mInfo, TimeUnit.MILLISECONDS.toMicros(30));
-                                } catch (IllegalStateException ignored) {
+                                    mDecoder.queueInputBuffer(inIndex, 0, sampleSize, 0, 0);
+                                    mExtractor.advance();
+                                } catch (Exception e) {
+                                    Log.d(TAG, e.toString());
+                                    continue;
                                 }
                             }
+                        }
 
-                            switch (outIndex) {//we act according to the decoder output
-                                case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                                    mOutputBuffers = mDecoder.getOutputBuffers();
-                                    break;
+                        // Output processing
+                        int outIndex = -1;
+                        try {
+                            // Try to dequeue an output buffer, without waiting under the lock
+                            outIndex = mDecoder.dequeueOutputBuffer(mInfo, 0);
+                        } catch (IllegalStateException ignored) {
+                        }
 
-                                case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                                    mFormat = mDecoder.getOutputFormat();
-                                    break;
+                        decoderBusy = inIndex < 0 && outIndex == MediaCodec.INFO_TRY_AGAIN_LATER;
 
-                                case MediaCodec.INFO_TRY_AGAIN_LATER:
-                                    // No buffer is available. This might be due to the upstream
-                                    // app buffers being full and returning 0 on write operations.
-                                    // We ping it and retry to write what we had.
-                                    if (mPendingOutIndex >= 0) {
-                                        int written = mCallback.musicDelivery(outArray, mPendingSize,
-                                                mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
-                                                mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
-
-                                        if (written > 0 || written == -1) {
-                                            try {
-                                                // We don't need this buffer anymore
-                                                mDecoder.releaseOutputBuffer(mPendingOutIndex, true);
-                                            } catch (IllegalStateException ignored) {
-                                            }
-                                            mPendingOutIndex = -1;
-                                        }
-                                    }
+                        switch (outIndex) {//we act according to the decoder output
+                            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                                mOutputBuffers = mDecoder.getOutputBuffers();
+                                break;
+
+                            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                                mFormat = mDecoder.getOutputFormat();
+                                break;
+
+                            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                                break;
+
+                            default:
+                                if (outIndex < 0) {
                                     break;
+                                }
 
-                                default:
+                                endOfTrack = (mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                                if (mInfo.size > 0 || endOfTrack) {
+                                    // We copy the decoded buffer, it is queued in the ring
+                                    // once we released the locks. The end of the track is
+                                    // queued even if empty, to tell when it's written out.
                                     ByteBuffer out = mOutputBuffers[outIndex];
-                                    int size = mInfo.size;
-                                    if (size > 0) {
-                                        if (outArray.length < mInfo.offset + mInfo.size) {
-                                            outArray = new byte[mInfo.offset + mInfo.size];
-                                        }
-
-                                        out.position(mInfo.offset);
-                                        out.limit(mInfo.offset + mInfo.size);
-                                        out.get(outArray, 0, mInfo.size);
-
-                                        // We deliver the array
-                                        int written = mCallback.musicDelivery(outArray, size,
-                                                mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
-                                                mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
-
-                                        if (written > 0) {
-                                            try {
-                                                // We don't need this buffer anymore
-                                                mDecoder.releaseOutputBuffer(outIndex, true);
-                                            } catch (IllegalStateException ignored) {
-                                            }
-                                        } else {
-                                            mPendingOutIndex = outIndex;
-                                            mPendingSize = mInfo.size;
-                                        }
+                                    out.position(mInfo.offset);
+                                    out.limit(mInfo.offset + mInfo.size);
+                                    if (mPcmBuffer.capacity() < mInfo.size) {
+                                        mPcmBuffer = ByteBuffer.allocate(mInfo.size);
                                     }
-                                    break;
-                            }
+                                    mPcmBuffer.clear();
+                                    mPcmBuffer.put(out);
+
+                                    hasPcm = true;
+                                    channels = mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                                    sampleRate = mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                                    epoch = mAudioRing.getEpoch();
+                                }
+
+                                try {
+                                    // We don't need this buffer anymore
+                                    mDecoder.releaseOutputBuffer(outIndex, true);
+                                } catch (IllegalStateException ignored) {
+                                }
+
+                                if (endOfTrack) {
+                                    onOutputEnded();
+                                }
+                                break;
                         }
                     }
                 }
+
+                // The decoder had neither room for input nor output ready: give it some time
+                // outside of the lock, so that playSong, seekTo and pause are never held up by
+                // the decoder
+                if (decoderBusy) {
+                    try {
+                        Thread.sleep(DECODER_IDLE_MS);
+                    } catch (InterruptedException e) {
+                        interrupt();
+                    }
+                }
+
+                // Wait for the socket writer to free a slot without holding any lock, so that
+                // playSong, seekTo and pause don't wait behind a full ring. Data decoded before
+                // the ring got cleared is dropped by the ring.
+                while (hasPcm && !isInterrupted()) {
+                    try {
+                        ByteBuffer spare = mAudioRing.write(mPcmBuffer, channels, sampleRate,
+                                endOfTrack, epoch, RING_WAIT_MS);
+                        if (spare != null) {
+                            mPcmBuffer = spare;
+                            hasPcm = false;
+                        }
+                    } catch (InterruptedException e) {
+                        interrupt();
+                    }
+                }
             }
         }
     };
 
+    /**
+     * Starts a search on the local library. Searches run one at a time on the search executor,
+     * and starting a new search cancels the previous one if it didn't complete yet.
+     *
+     * @param query The terms to look for
+     */
     public void startSearch(final String query) {
         Log.d(TAG, "Starting search for " + query);
 
-        final Thread searchThread = new Thread() {
-            public void run() {
-                mSearchResult = new SearchResult(query);
-
-                final List<String> songsList = new ArrayList<String>();
-                final List<String> albumList = new ArrayList<String>();
-                final List<String> playlistList = new ArrayList<String>();
-                final List<String> artistList = new ArrayList<String>();
-
-                final String queryUpper = query.toUpperCase();
-
-                for (LocalSong song : mSongs.values()) {
-                    if (song.getSong().getTitle().equalsIgnoreCase(query)) {
-                        songsList.add(0, song.getSong().getRef());
-                    } else if (song.getSong().getTitle().toUpperCase().contains(queryUpper)) {
-                        songsList.add(song.getSong().getRef());
-                    }
-                }
+        synchronized (mSearchExecutor) {
+            if (mPendingSearch != null) {
+                mPendingSearch.cancel(true);
+            }
 
-                for (Album album : mAlbums.values()) {
-                    if (album.getName().equalsIgnoreCase(query)) {
-                        albumList.add(0, album.getRef());
-                    } else if (album.getName().toUpperCase().contains(queryUpper)) {
-                        albumList.add(album.getRef());
-                    }
-                }
-                for (Playlist playlist : mPlaylists.values()) {
-                    if (playlist.getName().equalsIgnoreCase(query)) {
-                        playlistList.add(0, playlist.getRef());
-                    } else if (playlist.getName().toUpperCase().contains(queryUpper)) {
-                        playlistList.add(playlist.getRef());
-                    }
-                }
-                for (Artist artist : mArtists.values()) {
-                    if (artist.getName().equalsIgnoreCase(query)) {
-                        artistList.add(0, artist.getRef());
-                    } else if (artist.getName().toUpperCase().contains(queryUpper)) {
-                        artistList.add(artist.getRef());
+            mPendingSearch = mSearchExecutor.submit(new Runnable() {
+                public void run() {
+                    final long start = System.currentTimeMillis();
+                    final SearchResult result = new SearchResult(query);
+                    mSearchResult = result;
+
+                    final List<String> songsList = mSongIndex.search(query);
+                    final List<String> albumList = mAlbumIndex.search(query);
+                    final List<String> playlistList = mPlaylistIndex.search(query);
+                    final List<String> artistList = mArtistIndex.search(query);
+
+                    if (!Thread.currentThread().isInterrupted() && mSearchResult == result) {
+                        Log.d(TAG, "Sending result size: "
+                                + (songsList.size() + albumList.size() + artistList.size()
+                                + playlistList.size()) + " (" + mSongIndex.size() + " songs "
+                                + "indexed, " + (System.currentTimeMillis() - start) + "ms)");
+
+                        result.setSongsList(songsList);
+                        result.setAlbumsList(albumList);
+                        result.setArtistList(artistList);
+                        result.setPlaylistList(playlistList);
+
+                        mCallback.searchFinished(result);
+                    } else {
+                        Log.d(TAG, "Query results dumped - outdated");
                     }
                 }
+            });
+        }
+    }
 
-                if (mSearchResult.getQuery().equals(query)) {
-                    Log.d(TAG, "Sending result size: "
-                            + (songsList.size() + albumList.size() + artistList.size() + playlistList.size()));
 
-                    mSearchResult.setSongsList(songsList);
-                    mSearchResult.setAlbumsList(albumList);
-                    mSearchResult.setArtistList(artistList);
-                    mSearchResult.setPlaylistList(playlistList);
+    /**
+     * The decoder of the song that is likely to be played next, prepared ahead of time
+     */
+    private static class NextTrack {
+        final LocalSong mSong;
+        final MediaExtractor mExtractor = new MediaExtractor();
+        MediaCodec mDecoder;
+        MediaFormat mFormat;
+        ByteBuffer[] mInputBuffers;
+        boolean mInputEOS;
+
+        NextTrack(LocalSong song) {
+            mSong = song;
+        }
 
-                    mCallback.searchFinished(mSearchResult);
-                } else {
-                    Log.d(TAG, "Query results dumped - outdated");
+        void release() {
+            if (mDecoder != null) {
+                try {
+                    mDecoder.stop();
+                } catch (IllegalStateException ignored) {
                 }
+                mDecoder.release();
             }
-        };
-        searchThread.start();
+            mExtractor.release();
+        }
     }
 
-
     /**
      * A little class to store ids and retrieve uri of a song
      */
@@ -1269,7 +1611,6 @@ public class LocalProvider {
      * Callback interface to communicate with the service
      */
     public interface LocalCallback {
-        int musicDelivery(byte[] data, int frames, int channels, int sampleRate);
         void artistUpdated(final Artist artist);
         void albumUpdated(final Album album);
         void songUpdated(final Song song);
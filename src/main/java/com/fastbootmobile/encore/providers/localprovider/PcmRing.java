@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring of preallocated PCM buffers between the decoder and the audio socket writer. The decoder
+ * copies its output buffers into a spare buffer which is then swapped with a free slot, and the
+ * writer hands the slot's backing array to the socket, so that PCM data is copied only once on
+ * our side. The ring also carries back-pressure: the decoder waits for a free slot when the
+ * writer is behind, and the writer waits for a filled slot when the decoder is behind.
+ */
+class PcmRing {
+    private static final int SLOT_COUNT = 8;
+    static final int SLOT_SIZE = 16384;
+
+    private final Slot[] mSlots;
+    private final Object mLock = new Object();
+    private int mReadIndex = 0;
+    private int mWriteIndex = 0;
+    private int mCount = 0;
+    private int mEpoch = 0;
+    private Slot mBusySlot;
+
+    /**
+     * A buffer of PCM data, along with its format
+     */
+    static class Slot {
+        private ByteBuffer mBuffer;
+        private int mChannels;
+        private int mSampleRate;
+        private boolean mEndOfTrack;
+
+        Slot() {
+            mBuffer = ByteBuffer.allocate(SLOT_SIZE);
+        }
+
+        /**
+         * @return The array backing the PCM data, starting at offset 0
+         */
+        byte[] array() {
+            return mBuffer.array();
+        }
+
+        /**
+         * @return The size of the PCM data, in bytes
+         */
+        int size() {
+            return mBuffer.position();
+        }
+
+        int getChannels() {
+            return mChannels;
+        }
+
+        int getSampleRate() {
+            return mSampleRate;
+        }
+
+        /**
+         * @return True if this is the last data of a track, which may be empty
+         */
+        boolean isEndOfTrack() {
+            return mEndOfTrack;
+        }
+    }
+
+    PcmRing() {
+        mSlots = new Slot[SLOT_COUNT];
+        for (int i = 0; i < SLOT_COUNT; ++i) {
+            mSlots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Queues a buffer of PCM data in the next free slot, waiting for one to be available if the
+     * ring is full. The buffer is handed over to the ring, and the buffer it replaces is
+     * returned to be filled next. Data decoded before the ring was cleared is dropped.
+     *
+     * @param data       The PCM data, from offset 0 to the position of the buffer
+     * @param channels   The number of channels of the data
+     * @param sampleRate The sample rate of the data
+     * @param endOfTrack True if this is the last data of the track
+     * @param epoch      The value of {@link #getEpoch()} when the data was decoded
+     * @param timeoutMs  The maximum time to wait for a free slot
+     * @return The empty buffer to use for the next write, or null if no slot got free in time,
+     * in which case the data must be written again
+     */
+    ByteBuffer write(ByteBuffer data, int channels, int sampleRate, boolean endOfTrack,
+                     int epoch, long timeoutMs) throws InterruptedException {
+        synchronized (mLock) {
+            final long deadline = System.currentTimeMillis() + timeoutMs;
+            while (epoch == mEpoch && isFullLocked()) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                mLock.wait(remaining);
+            }
+
+            if (epoch != mEpoch) {
+                data.clear();
+                return data;
+            }
+
+            final Slot slot = mSlots[mWriteIndex];
+            final ByteBuffer spare = slot.mBuffer;
+            slot.mBuffer = data;
+            slot.mChannels = channels;
+            slot.mSampleRate = sampleRate;
+            slot.mEndOfTrack = endOfTrack;
+
+            mWriteIndex = (mWriteIndex + 1) % SLOT_COUNT;
+            mCount++;
+            mLock.notifyAll();
+
+            spare.clear();
+            return spare;
+        }
+    }
+
+    /**
+     * @return The current epoch of the ring, which changes every time the ring is cleared
+     */
+    int getEpoch() {
+        synchronized (mLock) {
+            return mEpoch;
+        }
+    }
+
+    /**
+     * Returns the oldest filled slot, waiting for one if the ring is empty. The slot stays in
+     * the ring until it's released.
+     *
+     * @param timeoutMs The maximum time to wait for data
+     * @return The slot, or null if no data came in time
+     */
+    Slot peek(long timeoutMs) throws InterruptedException {
+        synchronized (mLock) {
+            final long deadline = System.currentTimeMillis() + timeoutMs;
+            while (mCount == 0) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                mLock.wait(remaining);
+            }
+            mBusySlot = mSlots[mReadIndex];
+            return mBusySlot;
+        }
+    }
+
+    /**
+     * Releases a slot obtained from {@link #peek(long)} once its data has been consumed
+     */
+    void release(Slot slot) {
+        synchronized (mLock) {
+            if (mBusySlot == slot) {
+                mBusySlot = null;
+            }
+            if (mCount > 0 && mSlots[mReadIndex] == slot) {
+                mReadIndex = (mReadIndex + 1) % SLOT_COUNT;
+                mCount--;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Drops all the queued data, e.g. when the track changes or when seeking
+     */
+    void clear() {
+        synchronized (mLock) {
+            mReadIndex = mWriteIndex;
+            mCount = 0;
+            mEpoch++;
+            mLock.notifyAll();
+        }
+    }
+
+    private boolean isFullLocked() {
+        // The slot being written out by the reader can't be reused until it's released, even if
+        // the ring was cleared in between
+        return mCount == SLOT_COUNT || mSlots[mWriteIndex] == mBusySlot;
+    }
+}
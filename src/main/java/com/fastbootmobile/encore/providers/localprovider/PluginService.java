@@ -24,6 +24,7 @@ import com.fastbootmobile.encore.providers.Constants;
 import com.fastbootmobile.encore.providers.IArtCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.IProviderCallback;
+import com.fastbootmobile.encore.providers.LibrarySnapshot;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
 import java.io.IOException;
@@ -34,6 +35,8 @@ import omnimusic.Plugin;
 
 public class PluginService extends Service implements AudioSocket.ISocketCallback {
     private static final String TAG = "OmniMusic-LocalService";
+    private static final long RING_WAIT_MS = 500;
+    private static final long WRITE_RETRY_DELAY = 10;
     public static final String LOGO_REF = "LOCAL_PROVIDER";
 
 
@@ -41,41 +44,91 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
     private ProviderIdentifier mIdentifier;
     private final List<IProviderCallback> mCallbacks;
     private final List<IProviderCallback> mCallbacksRemoval;
-    private AudioClientSocket mAudioSocket;
+    private volatile AudioClientSocket mAudioSocket;
     private LocalProvider mLocalProvider;
     private int mRate;
     private int mAudioWritten;
     private final Object mAudioWrittenLock = new Object();
-    private byte[] mAudioBuffer;
-    private int mAudioBufferIndex = 0;
 
     private final Thread mWriteAudioThread = new Thread() {
         @Override
         public void run() {
             android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            final PcmRing ring = mLocalProvider.getAudioRing();
+
             while (!isInterrupted()) {
-                synchronized (mWriteAudioThread) {
-                    try {
-                        mWriteAudioThread.wait();
-                    } catch (InterruptedException e) {
+                final PcmRing.Slot slot;
+                try {
+                    // Wait for the decoder to fill a slot
+                    slot = ring.peek(RING_WAIT_MS);
+                    if (slot == null) {
                         continue;
                     }
-                    try {
-                        try {
-                            mAudioSocket.writeAudioData(mAudioBuffer, 0, mAudioBufferIndex);
-                        } catch (IOException e) {
-                            e.printStackTrace();
+
+                    if (writeAudioSlot(slot)) {
+                        final boolean endOfTrack = slot.isEndOfTrack();
+                        ring.release(slot);
+                        if (endOfTrack) {
+                            mLocalProvider.onTrackWritten();
                         }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error while writing audio data", e);
-                        mAudioSocket = null;
-                        mLocalProvider.pause(false);
+                    } else {
+                        // The app's buffers are full (or there's no socket yet), the slot stays
+                        // in the ring and the decoder will wait for us
+                        Thread.sleep(WRITE_RETRY_DELAY);
                     }
+                } catch (InterruptedException e) {
+                    break;
                 }
             }
         }
     };
 
+    /**
+     * Writes the contents of a ring slot to the audio socket
+     *
+     * @return True if the app accepted the data, false if it should be written again later
+     */
+    private boolean writeAudioSlot(PcmRing.Slot slot) throws InterruptedException {
+        final AudioClientSocket socket = mAudioSocket;
+        if (socket == null) {
+            return false;
+        } else if (slot.size() == 0) {
+            // End of a track without data
+            return true;
+        }
+
+        try {
+            // If the sample rate changed, update it
+            if (mRate != slot.getSampleRate()) {
+                mRate = slot.getSampleRate();
+                socket.writeFormatData(slot.getChannels(), slot.getSampleRate());
+            }
+
+            synchronized (mAudioWrittenLock) {
+                mAudioWritten = -1;
+            }
+
+            socket.writeAudioData(slot.array(), 0, slot.size());
+
+            synchronized (mAudioWrittenLock) {
+                if (mAudioWritten == -1) {
+                    // Wait 500ms for a reply
+                    mAudioWrittenLock.wait(500);
+                }
+
+                // No response in time, assume the audio wasn't written
+                return mAudioWritten > 0;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "IO error while pushing audio data", e);
+            // Error while pushing audio to the socket, we stop the playback and
+            // turn off the socket
+            mAudioSocket = null;
+            mLocalProvider.pause(false);
+            return false;
+        }
+    }
+
     public PluginService() {
         mCallbacks = new ArrayList<>();
         mCallbacksRemoval = new ArrayList<>();
@@ -130,67 +183,6 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
     };
 
     private LocalProvider.LocalCallback providerCallback = new LocalProvider.LocalCallback() {
-        @Override
-        public int musicDelivery(byte[] data, int frames, int channels, int sampleRate) {
-            if (mAudioSocket == null) {
-                Log.w(TAG, "Got music delivery without an audio socket set!");
-                return 0;
-            }
-
-            // If the sample rate changed, update it
-            if (mRate != sampleRate) {
-                mRate = sampleRate;
-
-                try {
-                    mAudioSocket.writeFormatData(channels, sampleRate);
-                } catch (IOException e) {
-                    Log.e(TAG, "IO error while pushing audio data", e);
-                    // Error while pushing audio to the socket, we stop the playback and
-                    // turn off the socket
-                    mAudioSocket = null;
-                    return 0;
-                }
-            }
-
-
-            // First, we try to copy the frames to our local buffer. If the local buffer is full,
-            // try to send it and empty it - and retry to write the current frames into the buffer
-            // on next loop.
-            //if (mAudioBufferIndex + frames < mAudioBuffer.length) {
-            mAudioBuffer = data;
-            mAudioBufferIndex = frames;
-
-            // There's enough data in the buffer, try to send it over to the app
-            mAudioWritten = -1;
-
-            synchronized (mWriteAudioThread) {
-                mWriteAudioThread.notifyAll();
-            }
-
-            synchronized (mAudioWrittenLock) {
-                if (mAudioWritten == -1) {
-                    // Wait 500ms for a reply
-                    try {
-                        mAudioWrittenLock.wait(500);
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Interrupted while waiting for audio written response");
-                    }
-                }
-            }
-
-            // No response in time, assume the audio wasn't written
-            if (mAudioWritten == -1) {
-                mAudioWritten = 0;
-            }
-
-            if (mAudioWritten > 0) {
-                // We could write it, so reset our local buffer
-                mAudioBufferIndex = 0;
-            }
-
-            return mAudioWritten;
-        }
-
         @Override
         public void artistUpdated(final Artist artist) {
             if (mIdentifier == null) {
@@ -362,22 +354,19 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
 
         @Override
         public void songFinished() {
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    synchronized (mCallbacks) {
-                        for (IProviderCallback cb : mCallbacks) {
-                            try {
-                                cb.onTrackEnded(mIdentifier);
-                            } catch (DeadObjectException e) {
-                                removeCallback(cb);
-                            } catch (RemoteException e) {
-                                Log.e(TAG, "RemoteException when notifying a callback", e);
-                            }
-                        }
+            // Called from the audio writer: the app must get the end of the track before the
+            // data of the next one, so we don't post this
+            synchronized (mCallbacks) {
+                for (IProviderCallback cb : mCallbacks) {
+                    try {
+                        cb.onTrackEnded(mIdentifier);
+                    } catch (DeadObjectException e) {
+                        removeCallback(cb);
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "RemoteException when notifying a callback", e);
                     }
                 }
-            });
+            }
         }
 
         @Override
@@ -426,6 +415,49 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
         return mBinder;
     }
 
+    /**
+     * The library streamed to the host through {@link LibrarySnapshot}
+     */
+    private final LibrarySnapshot.Source mSnapshotSource = new LibrarySnapshot.Source() {
+        @Override
+        public long getLibraryVersion() {
+            return mLocalProvider.getLibraryVersion();
+        }
+
+        @Override
+        public List<Song> getSongs() {
+            List<Song> songs = mLocalProvider.getAllSongs();
+            for (Song song : songs) {
+                if (song.getProvider() == null && mIdentifier != null) {
+                    song.setProvider(mIdentifier);
+                }
+            }
+            return songs;
+        }
+
+        @Override
+        public List<Album> getAlbums() {
+            List<Album> albums = mLocalProvider.getAlbums();
+            for (Album album : albums) {
+                if (album.getProvider() == null && mIdentifier != null) {
+                    album.setProvider(mIdentifier);
+                }
+            }
+            return albums;
+        }
+
+        @Override
+        public List<Artist> getArtists() {
+            List<Artist> artists = mLocalProvider.getArtists();
+            for (Artist artist : artists) {
+                if (artist.getProvider() == null && mIdentifier != null) {
+                    artist.setProvider(mIdentifier);
+                }
+            }
+            return artists;
+        }
+    };
+
     /*
     * Binder Stub implementation
     */
@@ -761,7 +793,7 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
          */
         @Override
         public void prefetchSong(String ref) throws RemoteException {
-            // TODO
+            mLocalProvider.prepareNextSong(ref);
         }
 
         /**
@@ -836,6 +868,16 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
         public void seek(long timeMs) {
           mLocalProvider.seekTo(timeMs);
         }
+
+        @Override
+        public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+                throws RemoteException {
+            if (code == LibrarySnapshot.TRANSACTION_SNAPSHOT) {
+                // Bulk library transfer, which isn't part of the AIDL interface
+                return LibrarySnapshot.onTransact(data, reply, mSnapshotSource);
+            }
+            return super.onTransact(code, data, reply, flags);
+        }
     };
 
     @Override
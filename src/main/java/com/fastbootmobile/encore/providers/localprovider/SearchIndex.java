@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import com.fastbootmobile.encore.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Incremental inverted index of entity names, used to search the local library. Names are
+ * normalized once when they're indexed (case and accent folding), and indexed both by word
+ * (for prefix matching) and by trigram (for substring matching), so that queries don't scan
+ * the whole library. Queries shorter than a trigram have no trigram to look up: their substring
+ * matches are found by scanning the indexed names, which is only done for these short queries.
+ * Results are ranked exact matches first, then names starting with the query, then names with
+ * words starting with the query words, then other substring matches.
+ */
+class SearchIndex {
+    private static final int GRAM = 3;
+
+    private static final int RANK_EXACT = 0;
+    private static final int RANK_START = 1;
+    private static final int RANK_WORDS = 2;
+    private static final int RANK_SUBSTRING = 3;
+
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final Map<String, String> mNames = new HashMap<>();
+    private final TreeMap<String, Set<String>> mWords = new TreeMap<>();
+    private final Map<String, Set<String>> mGrams = new HashMap<>();
+
+    /**
+     * Normalizes a string for indexing and searching, see {@link Utils#normalizeSearchTerms}
+     */
+    static String normalize(String input) {
+        return Utils.normalizeSearchTerms(input);
+    }
+
+    /**
+     * Indexes (or re-indexes) the name of the provided reference
+     */
+    void put(String ref, String name) {
+        final String normalized = normalize(name);
+
+        mLock.writeLock().lock();
+        try {
+            String previous = mNames.get(ref);
+            if (normalized.equals(previous)) {
+                return;
+            }
+            if (previous != null) {
+                unindex(ref, previous);
+            }
+
+            mNames.put(ref, normalized);
+            for (String word : words(normalized)) {
+                addTo(mWords, word, ref);
+            }
+            for (String gram : grams(normalized)) {
+                addTo(mGrams, gram, ref);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the provided reference from the index
+     */
+    void remove(String ref) {
+        mLock.writeLock().lock();
+        try {
+            String previous = mNames.remove(ref);
+            if (previous != null) {
+                unindex(ref, previous);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        mLock.readLock().lock();
+        try {
+            return mNames.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Searches the index
+     *
+     * @param query The raw query, as typed by the user
+     * @return The matching references, best matches first
+     */
+    List<String> search(String query) {
+        final String normalized = normalize(query);
+        if (normalized.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        final String[] queryWords = normalized.split(" ");
+        final Map<String, Integer> ranks = new HashMap<>();
+
+        mLock.readLock().lock();
+        try {
+            // Names with words starting with every query word
+            Set<String> candidates = null;
+            for (String queryWord : queryWords) {
+                Set<String> matching = new HashSet<>();
+                SortedMap<String, Set<String>> prefixed =
+                        mWords.subMap(queryWord, queryWord + Character.MAX_VALUE);
+                for (Set<String> refs : prefixed.values()) {
+                    matching.addAll(refs);
+                }
+
+                if (candidates == null) {
+                    candidates = matching;
+                } else {
+                    candidates.retainAll(matching);
+                }
+
+                if (candidates.isEmpty()) {
+                    break;
+                }
+            }
+
+            for (String ref : candidates) {
+                ranks.put(ref, rank(mNames.get(ref), normalized, RANK_WORDS));
+            }
+
+            // Substring matches, candidates being the names having all the query trigrams
+            if (normalized.length() >= GRAM) {
+                Set<String> substrings = null;
+                for (String gram : grams(normalized)) {
+                    Set<String> refs = mGrams.get(gram);
+                    if (refs == null) {
+                        substrings = null;
+                        break;
+                    }
+
+                    if (substrings == null) {
+                        substrings = new HashSet<>(refs);
+                    } else {
+                        substrings.retainAll(refs);
+                    }
+
+                    if (substrings.isEmpty()) {
+                        break;
+                    }
+                }
+
+                if (substrings != null) {
+                    for (String ref : substrings) {
+                        if (!ranks.containsKey(ref) && mNames.get(ref).contains(normalized)) {
+                            ranks.put(ref, rank(mNames.get(ref), normalized, RANK_SUBSTRING));
+                        }
+                    }
+                }
+            } else {
+                // Too short for the trigrams, scan the names
+                for (Map.Entry<String, String> entry : mNames.entrySet()) {
+                    final String ref = entry.getKey();
+                    if (!ranks.containsKey(ref) && entry.getValue().contains(normalized)) {
+                        ranks.put(ref, rank(entry.getValue(), normalized, RANK_SUBSTRING));
+                    }
+                }
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        List<String> output = new ArrayList<>(ranks.keySet());
+        Collections.sort(output, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                int lhsRank = ranks.get(lhs);
+                int rhsRank = ranks.get(rhs);
+                return lhsRank < rhsRank ? -1 : (lhsRank == rhsRank ? 0 : 1);
+            }
+        });
+        return output;
+    }
+
+    private static int rank(String name, String query, int fallback) {
+        if (name.equals(query)) {
+            return RANK_EXACT;
+        } else if (name.startsWith(query)) {
+            return RANK_START;
+        } else {
+            return fallback;
+        }
+    }
+
+    private void unindex(String ref, String normalized) {
+        for (String word : words(normalized)) {
+            removeFrom(mWords, word, ref);
+        }
+        for (String gram : grams(normalized)) {
+            removeFrom(mGrams, gram, ref);
+        }
+    }
+
+    private static Set<String> words(String normalized) {
+        Set<String> output = new HashSet<>();
+        if (!normalized.isEmpty()) {
+            Collections.addAll(output, normalized.split(" "));
+        }
+        return output;
+    }
+
+    private static Set<String> grams(String normalized) {
+        Set<String> output = new HashSet<>();
+        for (int i = 0; i + GRAM <= normalized.length(); ++i) {
+            output.add(normalized.substring(i, i + GRAM));
+        }
+        return output;
+    }
+
+    private static void addTo(Map<String, Set<String>> index, String key, String ref) {
+        Set<String> refs = index.get(key);
+        if (refs == null) {
+            refs = new HashSet<>();
+            index.put(key, refs);
+        }
+        refs.add(ref);
+    }
+
+    private static void removeFrom(Map<String, Set<String>> index, String key, String ref) {
+        Set<String> refs = index.get(key);
+        if (refs != null) {
+            refs.remove(ref);
+            if (refs.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
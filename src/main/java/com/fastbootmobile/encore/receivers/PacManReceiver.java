@@ -76,7 +76,11 @@ public class PacManReceiver extends BroadcastReceiver {
                     ProviderIdentifier id = stopPlayingTrack(packages);
 
                     if (id != null) {
-                        ProviderAggregator.getDefault().getCache().purgeCacheForProvider(id);
+                        ProviderAggregator aggregator = ProviderAggregator.getDefault();
+                        aggregator.getCache().purgeCacheForProvider(id);
+                        if (aggregator.getMetadataStore() != null) {
+                            aggregator.getMetadataStore().purgeProvider(id);
+                        }
                     }
                 }
             }
@@ -49,6 +49,19 @@ public interface AudioSink {
      */
     long getWrittenSamples();
 
+    /**
+     * Returns the duration of the audio written to this sink since the last call to flushSamples(),
+     * including the audio that is still buffered and hasn't been played yet
+     * @return A duration in milliseconds
+     */
+    long getWrittenDuration();
+
+    /**
+     * Returns the duration of the audio actually played since the last call to flushSamples()
+     * @return A duration in milliseconds
+     */
+    long getPlayedDuration();
+
     /**
      * Returns the number of dropouts/stutters (buffer underflow) that occurred since the last flush
      * @return Number of dropouts
@@ -52,4 +52,10 @@ public class BasePlaybackCallback extends IPlaybackCallback.Stub {
     public void onPlaybackQueueChanged() throws RemoteException {
 
     }
+
+    @Override
+    public void onPlaybackQueueDelta(long fromVersion, long toVersion, int[] ops,
+                                     int currentIndex) throws RemoteException {
+
+    }
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.service;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Interface for the DSP effects running inside the playback service process. Unlike the DSP
+ * plugins, which receive the audio through a socket, these effects are called directly from the
+ * audio thread of the {@link NativeHub} and process the samples in place. Only the effects
+ * bundled with the app can run this way, see {@link DSPProcessor}.
+ */
+public interface DSPEffect {
+    /**
+     * Called before the first block, and every time the format of the stream changes
+     * @param sampleRate The sample rate, in Hz
+     * @param channels The number of interleaved channels
+     */
+    void setFormat(int sampleRate, int channels);
+
+    /**
+     * Processes a block of audio in place. Called on the audio thread: this must not block.
+     * @param samples The 16-bits interleaved samples, starting at index 0
+     * @param count The number of samples (not frames) in the block
+     */
+    void process(ShortBuffer samples, int count);
+
+    /**
+     * Called when the effect is removed from the chain
+     */
+    void release();
+}
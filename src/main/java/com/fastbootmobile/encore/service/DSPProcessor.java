@@ -22,15 +22,20 @@ import android.util.Log;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.providers.DSPConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
+import com.fastbootmobile.encore.providers.bassboost.BassBoostEffect;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
 /**
  * Class responsible for grabbing the audio from a provider, pushing it through the DSP chain,
- * and playing it to a sink
+ * and playing it to a sink. The effects bundled with the app run in process as
+ * {@link DSPEffect}s, without binding their service: the audio doesn't leave the audio thread.
+ * Other DSP plugins receive the audio through their socket.
  */
 public class DSPProcessor {
     private static final String TAG = "DSPProcessor";
@@ -41,6 +46,7 @@ public class DSPProcessor {
 
     private List<ProviderIdentifier> mDSPChain;
     private PlaybackService mPlaybackService;
+    private final Map<String, DSPEffect> mEffects = new HashMap<>();
 
     /**
      * Default constructor
@@ -85,8 +91,10 @@ public class DSPProcessor {
         final List<DSPConnection> list = new ArrayList<>(plugins.getAvailableDSPs());
         for (ProviderIdentifier id : chain) {
             DSPConnection conn = plugins.getDSP(id);
-            conn.bindService();
-            list.remove(conn);
+            if (!isInProcess(conn)) {
+                conn.bindService();
+                list.remove(conn);
+            }
         }
 
         for (DSPConnection conn : list) {
@@ -122,7 +130,9 @@ public class DSPProcessor {
                     DSPConnection connection = plugins.getDSP(identifier);
                     if (connection != null) {
                         mDSPChain.add(identifier);
-                        connection.bindService();
+                        if (!isInProcess(connection)) {
+                            connection.bindService();
+                        }
                     }
                 } else {
                     Log.e(TAG, "Cannot restore from serialized string " + id);
@@ -138,16 +148,48 @@ public class DSPProcessor {
         }.start();
     }
 
+    /**
+     * @return true if the DSP is bundled with the app and can run in process
+     */
+    private boolean isInProcess(DSPConnection conn) {
+        return mPlaybackService.getPackageName().equals(conn.getPackage())
+                && BassBoostEffect.SERVICE_NAME.equals(conn.getServiceName());
+    }
+
+    /**
+     * Returns the in-process effect of a DSP, creating it if needed
+     * @return The effect, or null if the DSP must run out of process
+     */
+    private DSPEffect getEffect(ProviderIdentifier id, DSPConnection conn) {
+        if (!isInProcess(conn)) {
+            return null;
+        }
+
+        final String key = id.serialize();
+        DSPEffect effect = mEffects.get(key);
+        if (effect == null) {
+            effect = new BassBoostEffect(mPlaybackService);
+            mEffects.put(key, effect);
+        }
+        return effect;
+    }
+
     /**
      * Updates the DSP chain on the native hub
      */
-    private void updateHubDspChain() {
+    private synchronized void updateHubDspChain() {
         NativeHub hub = mPlaybackService.getNativeHub();
         String[] sockets = new String[mDSPChain.size()];
+        DSPEffect[] effects = new DSPEffect[mDSPChain.size()];
+        Map<String, DSPEffect> activeEffects = new HashMap<>();
         int index = 0;
         for (ProviderIdentifier id : mDSPChain) {
             DSPConnection conn = PluginsLookup.getDefault().getDSP(id);
-            if (conn != null) {
+            if (conn != null && isInProcess(conn)) {
+                effects[index] = getEffect(id, conn);
+                activeEffects.put(id.serialize(), effects[index]);
+                if (DEBUG) Log.d(TAG, "EFFECT " + index + ": " + conn.getProviderName());
+            } else if (conn != null) {
                 String socketName = conn.getAudioSocketName();
                 if (socketName == null) {
                     socketName = mPlaybackService.assignProviderAudioSocket(conn);
@@ -170,6 +212,10 @@ public class DSPProcessor {
             index++;
         }
 
-        hub.setDSPChain(sockets);
+        // The hub releases the effects which left the chain
+        mEffects.clear();
+        mEffects.putAll(activeEffects);
+
+        hub.setDSPChain(sockets, effects);
     }
 }
@@ -51,6 +51,16 @@ public class NativeAudioSink implements AudioSink {
         return mPlayer.getTotalWrittenSamples();
     }
 
+    @Override
+    public long getWrittenDuration() {
+        return mPlayer.getEnqueuedDuration();
+    }
+
+    @Override
+    public long getPlayedDuration() {
+        return mPlayer.getPlaybackPosition();
+    }
+
     @Override
     public int getDropouts() {
         return mPlayer.getUnderflowCount();
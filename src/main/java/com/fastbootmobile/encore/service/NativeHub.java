@@ -18,6 +18,7 @@ package com.fastbootmobile.encore.service;
 import android.content.Context;
 import android.util.Log;
 
+import com.fastbootmobile.encore.cast.CastEncoder;
 import com.fastbootmobile.encore.cast.WSStreamer;
 
 import org.java_websocket.WebSocketImpl;
@@ -25,12 +26,21 @@ import org.java_websocket.server.DefaultSSLWebSocketServerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -42,6 +52,12 @@ import javax.net.ssl.TrustManagerFactory;
 public class NativeHub {
     private static final String TAG = "NativeHub";
 
+    /**
+     * Prefix of the DSP chain elements processed in process by a {@link DSPEffect}, followed by
+     * the index of the element in the chain. Must match IN_PROCESS_DSP_PREFIX in NativeHub.h.
+     */
+    private static final String IN_PROCESS_DSP_PREFIX = "inprocess:";
+
     static {
         System.loadLibrary("c++_shared");
         System.loadLibrary("protobuf");
@@ -50,11 +66,37 @@ public class NativeHub {
 
     private WSStreamer mStreamer;
     private WSStreamer mInsecureStreamer;
-    private OnSampleWrittenListener mWrittenListener;
+
+    // Each receiver negotiates its own transport. The encoders are only used from the audio
+    // thread, transport changes are handed over to it (a null encoder meaning PCM).
+    private final Object mTransportLock = new Object();
+    private final Map<InetAddress, CastEncoder> mEncoders = new HashMap<>();
+    private final Map<InetAddress, CastEncoder> mPendingEncoders = new HashMap<>();
+
+    // In-process effects of the current chain, indexed by their position in the chain
+    private volatile DSPEffect[] mEffects = new DSPEffect[0];
+    private ShortBuffer mDspSamples;
+    private ByteBuffer mDspSamplesSource;
+    private int mDspSampleRate = 44100;
+    private int mDspChannels = 2;
+
+    private volatile OnSinkFormatChangeListener mSinkFormatListener;
 
     // Used in native code
     private long mHandle;
     private byte[] mAudioMirrorBuffer;
+    private ByteBuffer mDspBuffer;
+
+    /**
+     * Interface notified when the audio sink is about to switch to another format
+     */
+    public interface OnSinkFormatChangeListener {
+        /**
+         * Called from the audio thread right before the sink drops its buffers and restarts its
+         * written and played durations from zero
+         */
+        void onSinkFormatChange();
+    }
 
     /**
      * Default constructor
@@ -137,14 +179,71 @@ public class NativeHub {
         mInsecureStreamer = null;
 
         nativeShutdown();
+
+        // The native buffer is gone
+        mDspBuffer = null;
+        mDspSamples = null;
+        mDspSamplesSource = null;
+        for (DSPEffect effect : mEffects) {
+            if (effect != null) {
+                effect.release();
+            }
+        }
+        mEffects = new DSPEffect[0];
+
+        synchronized (mTransportLock) {
+            for (CastEncoder encoder : mEncoders.values()) {
+                encoder.release();
+            }
+            mEncoders.clear();
+            for (CastEncoder encoder : mPendingEncoders.values()) {
+                if (encoder != null) {
+                    encoder.release();
+                }
+            }
+            mPendingEncoders.clear();
+        }
     }
 
     /**
      * Sets the currently active DSP chain to use to route the audio signal
-     * @param chain The chain to set
+     * @param sockets The sockets of the DSP plugins of the chain
+     * @param effects The in-process effects of the chain. When an element is not null, the
+     *                audio is processed by the effect instead of being sent to the socket at
+     *                the same index.
      */
-    public void setDSPChain(String[] chain) {
+    public void setDSPChain(String[] sockets, DSPEffect[] effects) {
+        final String[] chain = new String[sockets.length];
+        for (int i = 0; i < chain.length; ++i) {
+            if (effects[i] != null) {
+                effects[i].setFormat(mDspSampleRate, mDspChannels);
+                chain[i] = IN_PROCESS_DSP_PREFIX + i;
+            } else {
+                chain[i] = sockets[i];
+            }
+        }
+
+        // Switch the native chain first: until the effects are swapped, the new chain can only
+        // reach effects which aren't released yet
+        final DSPEffect[] oldEffects = mEffects;
         nativeSetDSPChain(chain);
+        mEffects = effects.clone();
+
+        // The native chain lock is released, the old effects won't be called anymore
+        for (DSPEffect effect : oldEffects) {
+            if (effect != null && !contains(effects, effect)) {
+                effect.release();
+            }
+        }
+    }
+
+    private static boolean contains(DSPEffect[] effects, DSPEffect effect) {
+        for (DSPEffect e : effects) {
+            if (e == effect) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -173,6 +272,14 @@ public class NativeHub {
         nativeSetSinkPointer(handle);
     }
 
+    /**
+     * Sets the listener notified when the sink changes format
+     * @param listener The listener, or null
+     */
+    public void setOnSinkFormatChangeListener(OnSinkFormatChangeListener listener) {
+        mSinkFormatListener = listener;
+    }
+
     /**
      * Reduce the volume because some other priority operation is happening
      * @param duck True to reduce volume, false to restore
@@ -180,23 +287,150 @@ public class NativeHub {
     public void setDucking(boolean duck) { nativeSetDucking(duck); }
 
     /**
-     * Sets the listener that will be called when samples are written to the sink
-     * @param listener The listener to use
+     * Sets the format of the audio sent to a cast receiver. The other receivers keep their own
+     * format.
+     * @param receiver The IP address of the receiver
+     * @param codec The codec to use, which must be one of
+     *              {@link CastEncoder#getSupportedCodecs()}, or null to send raw PCM
+     * @param bitrate The bitrate to encode at, or 0 for the codec default
      */
-    public void setOnAudioWrittenListener(OnSampleWrittenListener listener) {
-        mWrittenListener = listener;
+    public void setCastTransport(String receiver, String codec, int bitrate) {
+        final InetAddress address;
+        try {
+            address = InetAddress.getByName(receiver);
+        } catch (UnknownHostException e) {
+            Log.e(TAG, "Invalid cast receiver address: " + receiver, e);
+            return;
+        }
+
+        CastEncoder encoder = null;
+        if (codec != null && !CastEncoder.CODEC_PCM.equals(codec)) {
+            if (!Arrays.asList(CastEncoder.getSupportedCodecs()).contains(codec)) {
+                Log.e(TAG, "Receiver " + receiver + " asked for " + codec
+                        + ", which wasn't offered. Keeping PCM.");
+            } else {
+                try {
+                    encoder = new CastEncoder(codec, bitrate, new ReceiverPacketListener(address));
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Cannot set cast transport, falling back to PCM", e);
+                }
+            }
+        }
+
+        Log.d(TAG, "Cast transport of " + receiver + ": "
+                + (encoder != null ? codec : CastEncoder.CODEC_PCM));
+
+        synchronized (mTransportLock) {
+            CastEncoder previous = mPendingEncoders.put(address, encoder);
+            if (previous != null) {
+                // Superseded before the audio thread picked it up
+                previous.release();
+            }
+        }
+    }
+
+    /**
+     * Sends the packets of an encoder to the receiver which negotiated it
+     */
+    private class ReceiverPacketListener implements CastEncoder.PacketListener {
+        private final InetAddress mReceiver;
+
+        ReceiverPacketListener(InetAddress receiver) {
+            mReceiver = receiver;
+        }
+
+        @Override
+        public void onPacket(byte[] packet, int length) {
+            final WSStreamer streamer = mStreamer;
+            final WSStreamer insecureStreamer = mInsecureStreamer;
+            if (streamer != null) {
+                streamer.write(mReceiver, packet, length);
+            }
+            if (insecureStreamer != null) {
+                insecureStreamer.write(mReceiver, packet, length);
+            }
+        }
+    }
+
+    // Called from native code, with the native chain lock held
+    public void onInProcessDsp(int index, int len, int sampleRate, int channels) {
+        final DSPEffect[] effects = mEffects;
+        if (index >= effects.length || effects[index] == null || mDspBuffer == null) {
+            return;
+        }
+
+        if (mDspSamplesSource != mDspBuffer) {
+            // The native buffer grew, wrap the new one
+            mDspSamplesSource = mDspBuffer;
+            mDspSamples = mDspBuffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+        }
+
+        if (sampleRate != mDspSampleRate || channels != mDspChannels) {
+            mDspSampleRate = sampleRate;
+            mDspChannels = channels;
+            for (DSPEffect effect : effects) {
+                if (effect != null) {
+                    effect.setFormat(sampleRate, channels);
+                }
+            }
+        }
+
+        try {
+            effects[index].process(mDspSamples, len / 2);
+        } catch (RuntimeException e) {
+            // Let the audio through unprocessed rather than killing the audio thread
+            Log.e(TAG, "Error in in-process DSP effect " + index, e);
+        }
     }
 
     // Called from native code
     public void onAudioMirrorWritten(int len, int sampleRate, int channels) {
-        if (mAudioMirrorBuffer != null) {
-            mStreamer.write(mAudioMirrorBuffer, len);
-            mInsecureStreamer.write(mAudioMirrorBuffer, len);
+        synchronized (mTransportLock) {
+            if (!mPendingEncoders.isEmpty()) {
+                for (Map.Entry<InetAddress, CastEncoder> entry : mPendingEncoders.entrySet()) {
+                    CastEncoder previous;
+                    if (entry.getValue() != null) {
+                        previous = mEncoders.put(entry.getKey(), entry.getValue());
+                    } else {
+                        previous = mEncoders.remove(entry.getKey());
+                    }
+                    if (previous != null) {
+                        previous.release();
+                    }
+                }
+                mPendingEncoders.clear();
+            }
+        }
 
-            // We use audio mirroring writing for tracking track elapsed time
-            if (mWrittenListener != null) {
-                mWrittenListener.onSampleWritten(mAudioMirrorBuffer, len, sampleRate, channels);
+        if (mAudioMirrorBuffer != null) {
+            if (!mEncoders.isEmpty()) {
+                Iterator<Map.Entry<InetAddress, CastEncoder>> it = mEncoders.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<InetAddress, CastEncoder> entry = it.next();
+                    if (!entry.getValue().write(mAudioMirrorBuffer, len, sampleRate, channels)) {
+                        // The receiver expects compressed packets, it can't be switched to PCM
+                        // under its feet: close its stream, so that it reconnects and gets PCM
+                        // until it negotiates another format
+                        Log.e(TAG, "Cast encoder of " + entry.getKey() + " failed, closing its"
+                                + " stream");
+                        entry.getValue().release();
+                        it.remove();
+                        mStreamer.close(entry.getKey(), "Encoder failed");
+                        mInsecureStreamer.close(entry.getKey(), "Encoder failed");
+                    }
+                }
             }
+
+            mStreamer.write(mAudioMirrorBuffer, len, mEncoders.keySet());
+            mInsecureStreamer.write(mAudioMirrorBuffer, len, mEncoders.keySet());
+        }
+    }
+
+    // Called from native code
+    public void onSinkFormatChange() {
+        final OnSinkFormatChangeListener listener = mSinkFormatListener;
+        if (listener != null) {
+            listener.onSinkFormatChange();
         }
     }
 
@@ -208,9 +442,4 @@ public class NativeHub {
     private native void nativeReleaseHostSocket(String name);
     private native void nativeSetSinkPointer(long handle);
     private native void nativeSetDucking(boolean duck);
-
-
-    public interface OnSampleWrittenListener {
-        void onSampleWritten(byte[] bytes, int len, int sampleRate, int channels);
-    }
 }
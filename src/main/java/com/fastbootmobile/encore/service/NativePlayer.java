@@ -77,6 +77,22 @@ public class NativePlayer {
         return nativeGetTotalWrittenSamples();
     }
 
+    /**
+     * @return The duration, in milliseconds, of the audio accepted by {@link #enqueue(byte[], int)}
+     * since the last call to flush, including what is still buffered
+     */
+    public long getEnqueuedDuration() {
+        return nativeGetEnqueuedDuration();
+    }
+
+    /**
+     * @return The duration, in milliseconds, of the audio actually rendered by the output since the
+     * last call to flush
+     */
+    public long getPlaybackPosition() {
+        return nativeGetPlaybackPosition();
+    }
+
     /**
      * Flushes the output (clears all pending buffers, etc).
      */
@@ -104,6 +120,8 @@ public class NativePlayer {
     private native int nativeGetBufferedCount();
     private native int nativeGetUnderflowCount();
     private native long nativeGetTotalWrittenSamples();
+    private native long nativeGetEnqueuedDuration();
+    private native long nativeGetPlaybackPosition();
     private native void nativeFlush();
     private native void nativeSetPaused(boolean pause);
     private native void nativeShutdown();
@@ -15,26 +15,120 @@
 
 package com.fastbootmobile.encore.service;
 
-import android.content.SharedPreferences;
 import android.util.Log;
 
 import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.providers.BatchResult;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * Handles the playback of a list of songs
+ * Handles the playback of a list of songs. The queue has a version, which changes on every
+ * modification, and records the structural changes made since they were last taken with
+ * {@link #takeChanges()}, so that clients can mirror the queue instead of reading it again.
+ * Iterators, bulk removals and sub lists go through the same tracked methods, sub lists being
+ * read-only.
+ *
+ * The queue is stored in a {@link PlaybackQueueDatabase}: each song has a sparse position, and
+ * modifications only queue writes for the songs they touch, which {@link #save} hands over to the
+ * database. Restored songs are placeholders until {@link #resolve} retrieves them.
+ *
+ * The queue also keeps the order in which songs are played in shuffle mode, a permutation of the
+ * queue made with {@link #shuffle(int, long)}. Songs queued later are inserted at random in the
+ * part of the order which hasn't been played yet, and removed songs are dropped from it, so the
+ * order is stable and the next song is known in advance. Songs picked by the user are moved right
+ * after the current track with {@link #playNextInShuffle(int)}.
  */
 public class PlaybackQueue extends ArrayList<Song> {
     private static final String TAG = "PlaybackQueue";
-    private static final String KEY_SONGS = "songlist";
+
+    /**
+     * Songs inserted: position, count
+     */
+    public static final int OP_INSERT = 1;
+
+    /**
+     * Songs removed: position, count
+     */
+    public static final int OP_REMOVE = 2;
+
+    /**
+     * Songs moved: position, count, and the position of the first song once moved
+     */
+    public static final int OP_MOVE = 3;
+
+    /**
+     * The number of ints of each change: operation, position, count, target position
+     */
+    public static final int OP_LENGTH = 4;
+
+    private static final int MAX_PENDING_OPS = 32;
+
+    // Songs around the current track resolved before playback can resume
+    private static final int RESOLVE_BEFORE_CURRENT = 2;
+    private static final int RESOLVE_AFTER_CURRENT = 10;
+    private static final long RESOLVE_TIMEOUT_MS = 5000;
+
+    /**
+     * Changes of the queue since the last call to {@link #takeChanges()}
+     */
+    public static class Changes {
+        public final long fromVersion;
+        public final long toVersion;
+        public final int[] ops;
+
+        Changes(long fromVersion, long toVersion, int[] ops) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.ops = ops;
+        }
+    }
+
+    // Start from the clock so that the versions of a restarted service don't match the versions
+    // seen by clients of the previous instance
+    private long mVersion = System.currentTimeMillis();
+    private long mTakenVersion = mVersion;
+    private final int[] mOps = new int[MAX_PENDING_OPS * OP_LENGTH];
+    private int mOpsLength;
+    private boolean mOpsOverflow;
+
+    // Stored position of each song, ascending, and the writes not saved yet
+    private final List<Long> mPositions = new ArrayList<>();
+    private List<PlaybackQueueDatabase.Write> mPendingWrites = new ArrayList<>();
+
+    // Queue indices in shuffle order, the stored rank of each song (ascending along the shuffle
+    // order), the slot in the order of each song (rebuilt when null) and the slot of the current
+    // track
+    private final List<Integer> mShuffleOrder = new ArrayList<>();
+    private final List<Long> mShuffleRanks = new ArrayList<>();
+    private int[] mShuffleSlots;
+    private int mShuffleCursor = -1;
+    private Random mShuffleRandom = new Random();
+
+    // Restored songs not retrieved yet
+    private final Set<Song> mPlaceholders =
+            Collections.newSetFromMap(new IdentityHashMap<Song, Boolean>());
+    // Placeholders which couldn't be retrieved, to be removed by removeMissing
+    private final Set<Song> mMissing =
+            Collections.newSetFromMap(new IdentityHashMap<Song, Boolean>());
 
     /**
      * Adds a song to the queue
@@ -49,63 +143,872 @@ public class PlaybackQueue extends ArrayList<Song> {
         }
     }
 
+    @Override
+    public synchronized boolean add(Song song) {
+        super.add(song);
+        onInserted(size() - 1, 1);
+        return true;
+    }
+
+    @Override
+    public synchronized void add(int index, Song song) {
+        super.add(index, song);
+        onInserted(index, 1);
+    }
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends Song> collection) {
+        return addAll(size(), collection);
+    }
+
+    @Override
+    public synchronized boolean addAll(int index, Collection<? extends Song> collection) {
+        if (super.addAll(index, collection)) {
+            onInserted(index, collection.size());
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized Song set(int index, Song song) {
+        final Song previous = super.set(index, song);
+        mPlaceholders.remove(previous);
+        mPendingWrites.add(putWrite(mPositions.get(index), index));
+        recordChange(OP_REMOVE, index, 1);
+        recordChange(OP_INSERT, index, 1);
+        return previous;
+    }
+
+    @Override
+    public synchronized Song remove(int index) {
+        final Song song = super.remove(index);
+        final long position = mPositions.remove(index);
+        removeFromShuffle(index, index + 1);
+        mPlaceholders.remove(song);
+        mPendingWrites.add(PlaybackQueueDatabase.Write.delete(position, position));
+        recordChange(OP_REMOVE, index, 1);
+        return song;
+    }
+
+    @Override
+    public synchronized boolean remove(Object object) {
+        final int index = indexOf(object);
+        if (index >= 0) {
+            remove(index);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected synchronized void removeRange(int fromIndex, int toIndex) {
+        if (toIndex > fromIndex) {
+            // Stored positions are in the same order as the songs, and nothing else is stored
+            // between them
+            mPendingWrites.add(PlaybackQueueDatabase.Write.delete(mPositions.get(fromIndex),
+                    mPositions.get(toIndex - 1)));
+            mPositions.subList(fromIndex, toIndex).clear();
+            removeFromShuffle(fromIndex, toIndex);
+        }
+        super.removeRange(fromIndex, toIndex);
+        if (toIndex > fromIndex) {
+            recordChange(OP_REMOVE, fromIndex, toIndex - fromIndex);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        final int size = size();
+        super.clear();
+        mPositions.clear();
+        mShuffleOrder.clear();
+        mShuffleRanks.clear();
+        mShuffleSlots = null;
+        mShuffleCursor = -1;
+        mPlaceholders.clear();
+        mMissing.clear();
+        mPendingWrites.add(PlaybackQueueDatabase.Write.deleteAll());
+        if (size > 0) {
+            recordChange(OP_REMOVE, 0, size);
+        }
+    }
+
+    @Override
+    public synchronized boolean removeAll(Collection<?> collection) {
+        return removeMatching(collection, true);
+    }
+
+    @Override
+    public synchronized boolean retainAll(Collection<?> collection) {
+        return removeMatching(collection, false);
+    }
+
     /**
-     * Saves the playback queue into the specified SharedPreferences editor
-     *
-     * @param editor The editor in which write the data
+     * Removes the songs which are (or aren't) in the collection, one run of consecutive songs at
+     * a time
      */
-    public void save(SharedPreferences.Editor editor) {
-        // Avoid concurrent modification errors
-        List<Song> copy = new ArrayList<>(this);
+    private boolean removeMatching(Collection<?> collection, boolean contained) {
+        boolean modified = false;
+        int end = size();
+        while (end > 0) {
+            if (collection.contains(get(end - 1)) != contained) {
+                --end;
+                continue;
+            }
 
-        // Save it!
-        JSONArray array = new JSONArray();
-        for (Song song : copy) {
-            if (song == null) continue;
+            int start = end - 1;
+            while (start > 0 && collection.contains(get(start - 1)) == contained) {
+                --start;
+            }
+            removeRange(start, end);
+            modified = true;
+            end = start;
+        }
+        return modified;
+    }
 
-            JSONObject object = new JSONObject();
-            try {
-                object.put("r", song.getRef());
-                object.put("p", song.getProvider().serialize());
-            } catch (NullPointerException | JSONException e) {
-                Log.e(TAG, "Cannot save playback queue entry", e);
+    @Override
+    public Iterator<Song> iterator() {
+        return listIterator(0);
+    }
+
+    @Override
+    public ListIterator<Song> listIterator() {
+        return listIterator(0);
+    }
+
+    @Override
+    public ListIterator<Song> listIterator(int index) {
+        if (index < 0 || index > size()) {
+            throw new IndexOutOfBoundsException("Invalid index " + index + ", size is " + size());
+        }
+        return new QueueIterator(index);
+    }
+
+    @Override
+    public List<Song> subList(int fromIndex, int toIndex) {
+        // Sub lists of ArrayList write into its array directly
+        return Collections.unmodifiableList(super.subList(fromIndex, toIndex));
+    }
+
+    /**
+     * Iterator modifying the queue through its tracked methods
+     */
+    private class QueueIterator implements ListIterator<Song> {
+        private int mCursor;
+        private int mLastReturned = -1;
+        private int mExpectedModCount = modCount;
+
+        QueueIterator(int index) {
+            mCursor = index;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mCursor < size();
+        }
+
+        @Override
+        public boolean hasPrevious() {
+            return mCursor > 0;
+        }
+
+        @Override
+        public int nextIndex() {
+            return mCursor;
+        }
+
+        @Override
+        public int previousIndex() {
+            return mCursor - 1;
+        }
+
+        @Override
+        public Song next() {
+            checkModCount();
+            if (mCursor >= size()) {
+                throw new NoSuchElementException();
+            }
+            mLastReturned = mCursor++;
+            return get(mLastReturned);
+        }
+
+        @Override
+        public Song previous() {
+            checkModCount();
+            if (mCursor <= 0) {
+                throw new NoSuchElementException();
+            }
+            mLastReturned = --mCursor;
+            return get(mLastReturned);
+        }
+
+        @Override
+        public void remove() {
+            if (mLastReturned < 0) {
+                throw new IllegalStateException();
+            }
+            checkModCount();
+            PlaybackQueue.this.remove(mLastReturned);
+            mCursor = mLastReturned;
+            mLastReturned = -1;
+            mExpectedModCount = modCount;
+        }
+
+        @Override
+        public void set(Song song) {
+            if (mLastReturned < 0) {
+                throw new IllegalStateException();
+            }
+            checkModCount();
+            PlaybackQueue.this.set(mLastReturned, song);
+        }
+
+        @Override
+        public void add(Song song) {
+            checkModCount();
+            PlaybackQueue.this.add(mCursor++, song);
+            mLastReturned = -1;
+            mExpectedModCount = modCount;
+        }
+
+        private void checkModCount() {
+            if (modCount != mExpectedModCount) {
+                throw new ConcurrentModificationException();
             }
+        }
+    }
+
+    /**
+     * @return The version of the queue, which changes every time the queue is modified
+     */
+    public synchronized long getVersion() {
+        return mVersion;
+    }
 
-            array.put(object);
+    /**
+     * Returns the changes made since the last call, and starts recording again
+     * @return The changes, or null if the queue didn't change. The ops are null if there were
+     * too many changes to record them all.
+     */
+    public synchronized Changes takeChanges() {
+        if (mVersion == mTakenVersion) {
+            return null;
         }
 
-        editor.putString(KEY_SONGS, array.toString());
-        editor.apply();
+        final Changes changes = new Changes(mTakenVersion, mVersion,
+                mOpsOverflow ? null : Arrays.copyOf(mOps, mOpsLength));
+        mTakenVersion = mVersion;
+        mOpsLength = 0;
+        mOpsOverflow = false;
+        return changes;
     }
 
     /**
-     * Reads and restores the playback queue from the specified SharedPreferences.
-     *
-     * @param prefs The preferences to read from
+     * Returns a range of the queue
+     * @param offset The index of the first song
+     * @param count The maximum number of songs
+     * @param currentIndex The index of the current track, sent along with the songs
      */
-    public void restore(SharedPreferences prefs) {
-        String entries = prefs.getString(KEY_SONGS, null);
+    public synchronized PlaybackQueueWindow getWindow(int offset, int count, int currentIndex) {
+        return new PlaybackQueueWindow(mVersion, currentIndex, this, offset, count);
+    }
 
-        if (entries != null) {
-            try {
-                JSONArray array = new JSONArray(entries);
-                final int len = array.length();
-                for (int i = 0; i < len; ++i) {
-                    JSONObject obj = array.getJSONObject(i);
-                    String ref = obj.getString("r");
-                    String provider = obj.getString("p");
-
-                    Song song = ProviderAggregator.getDefault().retrieveSong(ref,
-                            ProviderIdentifier.fromSerialized(provider));
-                    if (song != null) {
-                        addSong(song, false);
+    /**
+     * Records a change, merging it with the previous one when the two touch the same range
+     */
+    private void recordChange(int op, int position, int count) {
+        mVersion++;
+        if (mOpsOverflow) {
+            return;
+        }
+
+        final int last = mOpsLength - OP_LENGTH;
+        if (last >= 0 && mOps[last] == op) {
+            final int lastPosition = mOps[last + 1];
+            final int lastCount = mOps[last + 2];
+
+            // Songs inserted within or right next to the previous inserted range: clients only
+            // see placeholders there anyway, so it's the same as one bigger insertion
+            if (op == OP_INSERT && position >= lastPosition
+                    && position <= lastPosition + lastCount) {
+                mOps[last + 2] += count;
+                return;
+            }
+
+            // Songs removed right after or before the previous removed range
+            if (op == OP_REMOVE && (position == lastPosition || position + count == lastPosition)) {
+                mOps[last + 1] = Math.min(position, lastPosition);
+                mOps[last + 2] += count;
+                return;
+            }
+        }
+
+        if (mOpsLength == mOps.length) {
+            mOpsOverflow = true;
+            return;
+        }
+
+        mOps[mOpsLength] = op;
+        mOps[mOpsLength + 1] = position;
+        mOps[mOpsLength + 2] = count;
+        mOps[mOpsLength + 3] = 0;
+        mOpsLength += OP_LENGTH;
+    }
+
+    /**
+     * Updates the stored positions and the shuffle order once songs have been inserted
+     */
+    private void onInserted(int index, int count) {
+        final boolean shuffleRenumbered = insertIntoShuffle(index, count);
+        insertPositions(index, count);
+        if (shuffleRenumbered) {
+            writeShuffleRanks();
+        }
+        recordChange(OP_INSERT, index, count);
+    }
+
+    /**
+     * Returns evenly spaced sparse keys for items inserted between two others
+     * @param previous The key of the item before, or null
+     * @param next The key of the item after, or null
+     * @param count The number of inserted items
+     * @return The first key and the step between keys, or null if there's no room left
+     */
+    private static long[] keysBetween(Long previous, Long next, int count) {
+        final long gap = PlaybackQueueDatabase.POSITION_GAP;
+
+        if (previous != null && next != null) {
+            final long step = (next - previous) / (count + 1);
+            return step >= 1 ? new long[]{previous + step, step} : null;
+        } else if (previous != null) {
+            return new long[]{previous + gap, gap};
+        } else if (next != null) {
+            return new long[]{next - count * gap, gap};
+        } else {
+            return new long[]{0, gap};
+        }
+    }
+
+    /**
+     * Assigns stored positions to songs which have just been inserted, between the positions of
+     * their neighbours. If there's no room left between them, the whole queue is numbered again.
+     * @param index The index of the first inserted song
+     * @param count The number of inserted songs
+     */
+    private void insertPositions(int index, int count) {
+        final long[] keys = keysBetween(index > 0 ? mPositions.get(index - 1) : null,
+                index < mPositions.size() ? mPositions.get(index) : null, count);
+        if (keys == null) {
+            renumber();
+            return;
+        }
+
+        final List<Long> positions = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            final long position = keys[0] + i * keys[1];
+            positions.add(position);
+            mPendingWrites.add(putWrite(position, index + i));
+        }
+        mPositions.addAll(index, positions);
+    }
+
+    /**
+     * Stores the whole queue again, with evenly spaced positions
+     */
+    private void renumber() {
+        Log.d(TAG, "Renumbering the " + size() + " songs of the queue");
+
+        final int size = size();
+        mPositions.clear();
+        mPendingWrites.add(PlaybackQueueDatabase.Write.deleteAll());
+        for (int i = 0; i < size; ++i) {
+            final long position = i * PlaybackQueueDatabase.POSITION_GAP;
+            mPositions.add(position);
+            mPendingWrites.add(putWrite(position, i));
+        }
+    }
+
+    private PlaybackQueueDatabase.Write putWrite(long position, int index) {
+        final Song song = get(index);
+        final long shuffleRank = mShuffleRanks.get(index);
+        if (song == null) {
+            return PlaybackQueueDatabase.Write.put(position, null, null, shuffleRank);
+        }
+
+        final ProviderIdentifier provider = song.getProvider();
+        return PlaybackQueueDatabase.Write.put(position, song.getRef(),
+                provider != null ? provider.serialize() : null, shuffleRank);
+    }
+
+    /**
+     * Inserts songs which have just been added to the queue at random slots of the shuffle order,
+     * after the current track, and gives them ranks between the ranks of their neighbours
+     * @return true if there was no room left between ranks and all the songs got a new rank
+     */
+    private boolean insertIntoShuffle(int index, int count) {
+        final int size = mShuffleOrder.size();
+        for (int slot = 0; slot < size; ++slot) {
+            final int songIndex = mShuffleOrder.get(slot);
+            if (songIndex >= index) {
+                mShuffleOrder.set(slot, songIndex + count);
+            }
+        }
+        mShuffleRanks.addAll(index, Collections.<Long>nCopies(count, null));
+
+        final int firstSlot = mShuffleCursor + 1;
+        for (int i = 0; i < count; ++i) {
+            final int slot = firstSlot
+                    + mShuffleRandom.nextInt(mShuffleOrder.size() - firstSlot + 1);
+            mShuffleOrder.add(slot, index + i);
+        }
+        mShuffleSlots = null;
+
+        // Give ranks to each run of new songs
+        final int orderSize = mShuffleOrder.size();
+        int slot = firstSlot;
+        while (slot < orderSize) {
+            if (mShuffleRanks.get(mShuffleOrder.get(slot)) != null) {
+                ++slot;
+                continue;
+            }
+
+            int end = slot + 1;
+            while (end < orderSize && mShuffleRanks.get(mShuffleOrder.get(end)) == null) {
+                ++end;
+            }
+
+            final long[] keys = keysBetween(
+                    slot > 0 ? mShuffleRanks.get(mShuffleOrder.get(slot - 1)) : null,
+                    end < orderSize ? mShuffleRanks.get(mShuffleOrder.get(end)) : null,
+                    end - slot);
+            if (keys == null) {
+                for (int i = 0; i < orderSize; ++i) {
+                    mShuffleRanks.set(mShuffleOrder.get(i), i * PlaybackQueueDatabase.POSITION_GAP);
+                }
+                return true;
+            }
+
+            for (int i = slot; i < end; ++i) {
+                mShuffleRanks.set(mShuffleOrder.get(i), keys[0] + (i - slot) * keys[1]);
+            }
+            slot = end;
+        }
+
+        return false;
+    }
+
+    /**
+     * Drops removed songs from the shuffle order. If the current track is removed, the song
+     * before it in the order becomes current, so that the next song doesn't change.
+     */
+    private void removeFromShuffle(int fromIndex, int toIndex) {
+        final int count = toIndex - fromIndex;
+        final int size = mShuffleOrder.size();
+        int cursor = mShuffleCursor;
+        int kept = 0;
+
+        for (int slot = 0; slot < size; ++slot) {
+            final int songIndex = mShuffleOrder.get(slot);
+            if (songIndex >= fromIndex && songIndex < toIndex) {
+                if (slot <= mShuffleCursor) {
+                    --cursor;
+                }
+            } else {
+                mShuffleOrder.set(kept++, songIndex >= toIndex ? songIndex - count : songIndex);
+            }
+        }
+
+        mShuffleOrder.subList(kept, size).clear();
+        mShuffleRanks.subList(fromIndex, toIndex).clear();
+        mShuffleSlots = null;
+        mShuffleCursor = cursor;
+    }
+
+    private void writeShuffleRanks() {
+        final int size = size();
+        for (int i = 0; i < size; ++i) {
+            mPendingWrites.add(PlaybackQueueDatabase.Write.shuffle(mPositions.get(i),
+                    mShuffleRanks.get(i)));
+        }
+    }
+
+    private int[] getShuffleSlots() {
+        if (mShuffleSlots == null) {
+            mShuffleSlots = new int[mShuffleOrder.size()];
+            for (int slot = 0; slot < mShuffleSlots.length; ++slot) {
+                mShuffleSlots[mShuffleOrder.get(slot)] = slot;
+            }
+        }
+        return mShuffleSlots;
+    }
+
+    /**
+     * Makes a new shuffle order, with the Fisher-Yates algorithm
+     * @param first The index of the song to put first in the order, usually the current track,
+     *              or -1
+     * @param seed The seed of the order. Songs queued later are inserted at random positions
+     *             drawn from the same generator while the queue is alive; the generator isn't
+     *             stored, so insertions after a restore aren't reproducible.
+     */
+    public synchronized void shuffle(int first, long seed) {
+        final int size = size();
+        final int[] order = new int[size];
+        for (int i = 0; i < size; ++i) {
+            order[i] = i;
+        }
+
+        mShuffleRandom = new Random(seed);
+        for (int i = size - 1; i > 0; --i) {
+            final int j = mShuffleRandom.nextInt(i + 1);
+            final int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+
+        mShuffleCursor = -1;
+        if (first >= 0 && first < size) {
+            for (int slot = 0; slot < size; ++slot) {
+                if (order[slot] == first) {
+                    order[slot] = order[0];
+                    order[0] = first;
+                    break;
+                }
+            }
+            mShuffleCursor = 0;
+        }
+
+        mShuffleOrder.clear();
+        for (int slot = 0; slot < size; ++slot) {
+            mShuffleOrder.add(order[slot]);
+            mShuffleRanks.set(order[slot], slot * PlaybackQueueDatabase.POSITION_GAP);
+        }
+        mShuffleSlots = null;
+
+        writeShuffleRanks();
+    }
+
+    /**
+     * Sets the current track in the shuffle order. Songs queued afterwards are only inserted
+     * after it.
+     * @param index The index of the current track, or -1
+     */
+    public synchronized void setShuffleCursor(int index) {
+        mShuffleCursor = index >= 0 && index < size() ? getShuffleSlots()[index] : -1;
+    }
+
+    /**
+     * Returns the next songs in shuffle order
+     * @param index The index of the current track, or -1 to start from the beginning of the order
+     * @param count The maximum number of songs to return
+     * @return The indexes of the songs following the current track in shuffle order. There are
+     * less than count songs at the end of the order.
+     */
+    public synchronized int[] getShuffleNext(int index, int count) {
+        final int firstSlot = index >= 0 && index < size() ? getShuffleSlots()[index] + 1 : 0;
+        final int end = Math.min(mShuffleOrder.size(), firstSlot + Math.max(0, count));
+
+        final int[] output = new int[Math.max(0, end - firstSlot)];
+        for (int i = 0; i < output.length; ++i) {
+            output[i] = mShuffleOrder.get(firstSlot + i);
+        }
+        return output;
+    }
+
+    /**
+     * @param index The index of the current track, or -1 to get the first song of the order
+     * @return The index of the next song in shuffle order, or -1 at the end of the order
+     */
+    public synchronized int getShuffleNext(int index) {
+        final int[] next = getShuffleNext(index, 1);
+        return next.length > 0 ? next[0] : -1;
+    }
+
+    /**
+     * Moves a song right after the current track in the shuffle order, so that it's the next one
+     * played. The songs which were after the current track keep their order.
+     * @param index The index of the song
+     */
+    public synchronized void playNextInShuffle(int index) {
+        if (index < 0 || index >= size()) {
+            return;
+        }
+
+        final int from = getShuffleSlots()[index];
+        int cursor = mShuffleCursor;
+        if (from <= cursor) {
+            // Played already, the current track moves back by one slot along with the others
+            --cursor;
+        }
+        final int to = cursor + 1;
+
+        mShuffleOrder.remove(from);
+        mShuffleOrder.add(to, index);
+        mShuffleCursor = cursor;
+        mShuffleSlots = null;
+
+        final long[] keys = keysBetween(
+                to > 0 ? mShuffleRanks.get(mShuffleOrder.get(to - 1)) : null,
+                to + 1 < mShuffleOrder.size() ? mShuffleRanks.get(mShuffleOrder.get(to + 1)) : null,
+                1);
+        if (keys == null) {
+            final int orderSize = mShuffleOrder.size();
+            for (int i = 0; i < orderSize; ++i) {
+                mShuffleRanks.set(mShuffleOrder.get(i), i * PlaybackQueueDatabase.POSITION_GAP);
+            }
+            writeShuffleRanks();
+        } else {
+            mShuffleRanks.set(index, keys[0]);
+            mPendingWrites.add(PlaybackQueueDatabase.Write.shuffle(mPositions.get(index),
+                    keys[0]));
+        }
+    }
+
+    /**
+     * @param index The index of the current track
+     * @return The index of the previous song in shuffle order, or -1 at the beginning of the order
+     */
+    public synchronized int getShufflePrevious(int index) {
+        if (index < 0 || index >= size()) {
+            return -1;
+        }
+
+        final int slot = getShuffleSlots()[index];
+        return slot > 0 ? mShuffleOrder.get(slot - 1) : -1;
+    }
+
+    /**
+     * Saves the modifications made since the last call into the database. Only the songs which
+     * changed are written.
+     * @param database The database to write to
+     */
+    public synchronized void save(PlaybackQueueDatabase database) {
+        if (mPendingWrites.isEmpty()) {
+            return;
+        }
+
+        // Hand the writes over while holding the lock, so that they're applied in order
+        database.write(mPendingWrites);
+        mPendingWrites = new ArrayList<>();
+    }
+
+    /**
+     * Restores the queue stored in the database. The songs aren't retrieved from their providers
+     * yet: songs which aren't loaded in the cache are added as placeholders, to be retrieved by
+     * {@link #resolve(int, Runnable)}.
+     * @param rows The rows read by {@link PlaybackQueueDatabase#readRows}
+     * @return false if the queue has been modified since the rows were read. The stored queue is
+     * then replaced by the current one.
+     */
+    public synchronized boolean restore(List<PlaybackQueueDatabase.Row> rows) {
+        if (!isEmpty() || !mPendingWrites.isEmpty()) {
+            Log.w(TAG, "Queue modified before being restored, dropping the stored queue");
+            renumber();
+            return false;
+        }
+
+        if (rows.isEmpty()) {
+            return true;
+        }
+
+        final ProviderAggregator aggregator = ProviderAggregator.getDefault();
+        boolean hasShuffleOrder = true;
+        for (PlaybackQueueDatabase.Row row : rows) {
+            Song song = null;
+            if (row.songRef != null) {
+                song = aggregator.getCache().getSong(row.songRef);
+                if (song == null) {
+                    song = new Song(row.songRef);
+                    if (row.provider != null) {
+                        song.setProvider(ProviderIdentifier.fromSerialized(row.provider));
+                    }
+                    mPlaceholders.add(song);
+                } else if (!song.isLoaded()) {
+                    // Cached, but its metadata hasn't been retrieved yet
+                    mPlaceholders.add(song);
+                }
+            }
+
+            // The rows are already stored: no write
+            super.add(song);
+            mPositions.add(row.position);
+            mShuffleRanks.add(row.shuffleRank);
+            hasShuffleOrder &= row.shuffleRank != null;
+        }
+
+        if (hasShuffleOrder) {
+            for (int i = 0; i < rows.size(); ++i) {
+                mShuffleOrder.add(i);
+            }
+            Collections.sort(mShuffleOrder, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    final int result = mShuffleRanks.get(lhs).compareTo(mShuffleRanks.get(rhs));
+                    return result != 0 ? result : lhs.compareTo(rhs);
+                }
+            });
+        } else {
+            // Some songs have no rank: make a new order
+            shuffle(-1, System.currentTimeMillis());
+        }
+
+        recordChange(OP_INSERT, 0, rows.size());
+        Log.d(TAG, "Restored " + rows.size() + " songs, " + mPlaceholders.size()
+                + " to retrieve");
+        return true;
+    }
+
+    /**
+     * Retrieves the placeholder songs added by {@link #restore(List)}. The songs
+     * around the current track are retrieved before this returns, waiting at most
+     * {@link #RESOLVE_TIMEOUT_MS}, so this must not be called from the main thread. The rest of
+     * the queue, and the songs around the current track which took too long, are retrieved in
+     * the background. Songs which can't be retrieved stay in the queue until
+     * {@link #removeMissing(int)} is called.
+     * @param currentIndex The index of the current track
+     * @param callback Called from a background thread once the whole queue has been retrieved,
+     *                 or null
+     */
+    public void resolve(int currentIndex, final Runnable callback) {
+        final List<Song> current = new ArrayList<>();
+        final List<Song> others = new ArrayList<>();
+
+        synchronized (this) {
+            final int size = size();
+            for (int i = 0; i < size; ++i) {
+                final Song song = get(i);
+                if (song != null && mPlaceholders.contains(song)) {
+                    if (i >= currentIndex - RESOLVE_BEFORE_CURRENT
+                            && i <= currentIndex + RESOLVE_AFTER_CURRENT) {
+                        current.add(song);
                     } else {
-                        Log.e(TAG, "Cannot retrieve song " + ref + " from " + provider);
+                        others.add(song);
+                    }
+                }
+            }
+        }
+
+        if (!current.isEmpty()) {
+            final BatchResult<Song> result = retrieve(current, null);
+            try {
+                replacePlaceholders(current, result.get(RESOLVE_TIMEOUT_MS,
+                        TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                // Keep what's there, and wait for the others along with the rest of the queue
+                final List<Song> retrieved = result.getRetrieved();
+                Log.w(TAG, "Timed out retrieving the current songs of the queue, "
+                        + retrieved.size() + "/" + current.size() + " retrieved");
+                result.cancel(false);
+                replacePlaceholders(current, retrieved, false);
+                synchronized (this) {
+                    for (Song song : current) {
+                        if (mPlaceholders.contains(song)) {
+                            others.add(song);
+                        }
                     }
                 }
-            } catch (JSONException e) {
-                Log.e(TAG, "Cannot restore playback queue entry", e);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while restoring playback queue", e);
             }
         }
+
+        if (others.isEmpty()) {
+            if (callback != null) {
+                callback.run();
+            }
+            return;
+        }
+
+        retrieve(others, new BatchResult.Callback<Song>() {
+            @Override
+            public void onBatchRetrieved(List<Song> songs) {
+                replacePlaceholders(others, songs);
+                if (callback != null) {
+                    callback.run();
+                }
+            }
+        });
+    }
+
+    private static BatchResult<Song> retrieve(List<Song> placeholders,
+                                              BatchResult.Callback<Song> callback) {
+        final List<String> refs = new ArrayList<>(placeholders.size());
+        final List<ProviderIdentifier> providers = new ArrayList<>(placeholders.size());
+        for (Song song : placeholders) {
+            refs.add(song.getRef());
+            providers.add(song.getProvider());
+        }
+        return ProviderAggregator.getDefault().retrieveSongs(refs, providers, callback);
+    }
+
+    /**
+     * Replaces placeholders by the retrieved songs, wherever they are in the queue now. As the
+     * references don't change, clients aren't notified. Placeholders which couldn't be retrieved
+     * are marked as missing.
+     */
+    private void replacePlaceholders(List<Song> placeholders, List<Song> songs) {
+        replacePlaceholders(placeholders, songs, true);
+    }
+
+    /**
+     * @param dropMissing Whether the placeholders which aren't in the retrieved songs are marked
+     *                    as missing, or kept to be retrieved again
+     */
+    private synchronized void replacePlaceholders(List<Song> placeholders, List<Song> songs,
+                                                  boolean dropMissing) {
+        final Map<String, Song> songsByRef = new HashMap<>(songs.size());
+        for (Song song : songs) {
+            songsByRef.put(song.getRef(), song);
+        }
+
+        final Map<Song, Song> replacements = new IdentityHashMap<>(placeholders.size());
+        for (Song placeholder : placeholders) {
+            final Song song = songsByRef.get(placeholder.getRef());
+            if (song == null) {
+                if (dropMissing && mPlaceholders.remove(placeholder)) {
+                    mMissing.add(placeholder);
+                }
+            } else if (mPlaceholders.remove(placeholder)) {
+                replacements.put(placeholder, song);
+            }
+        }
+
+        final int size = size();
+        for (int i = 0; i < size && !replacements.isEmpty(); ++i) {
+            final Song song = replacements.remove(get(i));
+            if (song != null) {
+                super.set(i, song);
+            }
+        }
+
+        if (!mMissing.isEmpty()) {
+            Log.e(TAG, "Cannot retrieve " + mMissing.size() + " songs of the queue");
+        }
+    }
+
+    /**
+     * Removes the restored songs which couldn't be retrieved, through the tracked removals so
+     * that they're dropped from the database and the shuffle order as well
+     * @param currentIndex The index of the current track
+     * @return The index of the current track once the songs are removed. If the current track
+     * itself is removed, the song which took its place, or -1 if the queue is now empty.
+     */
+    public synchronized int removeMissing(int currentIndex) {
+        if (mMissing.isEmpty()) {
+            return currentIndex;
+        }
+
+        for (int i = size() - 1; i >= 0; --i) {
+            if (mMissing.contains(get(i))) {
+                remove(i);
+                if (i < currentIndex) {
+                    --currentIndex;
+                }
+            }
+        }
+        mMissing.clear();
+
+        return Math.min(currentIndex, size() - 1);
     }
 }
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Database storing the playback queue. Each song is a row keyed by a sparse position: songs
+ * inserted between two others get a position between theirs, so that queueing or removing songs
+ * only writes the affected rows, whatever the size of the queue. Positions are assigned by
+ * {@link PlaybackQueue}, which renumbers the whole queue when there's no room left between two
+ * songs.
+ *
+ * The shuffle order is stored the same way: each song has a sparse rank, and songs are played by
+ * ascending rank in shuffle mode.
+ *
+ * Reads and writes are applied in order on a background thread, writes in one transaction per
+ * batch. Creating or upgrading the database, and importing the legacy queue, happen there too.
+ */
+class PlaybackQueueDatabase extends SQLiteOpenHelper {
+    private static final String TAG = "PlaybackQueueDatabase";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String DATABASE_NAME = "playback_queue";
+
+    private static final String TABLE_QUEUE = "queue";
+
+    private static final String KEY_POSITION = "position";
+    private static final String KEY_SONG_REF = "song_ref";
+    private static final String KEY_PROVIDER = "provider";
+    private static final String KEY_SHUFFLE = "shuffle";
+
+    private static final String CREATE_TABLE_QUEUE = "CREATE TABLE IF NOT EXISTS " + TABLE_QUEUE
+            + "(" + KEY_POSITION + " INTEGER PRIMARY KEY," + KEY_SONG_REF + " TEXT,"
+            + KEY_PROVIDER + " TEXT," + KEY_SHUFFLE + " INTEGER)";
+
+    private static final String SQL_REPLACE_SONG = "INSERT OR REPLACE INTO " + TABLE_QUEUE + "("
+            + KEY_POSITION + "," + KEY_SONG_REF + "," + KEY_PROVIDER + "," + KEY_SHUFFLE
+            + ") VALUES (?,?,?,?)";
+    private static final String SQL_UPDATE_SHUFFLE = "UPDATE " + TABLE_QUEUE + " SET "
+            + KEY_SHUFFLE + "=? WHERE " + KEY_POSITION + "=?";
+    private static final String SQL_DELETE_RANGE = "DELETE FROM " + TABLE_QUEUE + " WHERE "
+            + KEY_POSITION + " BETWEEN ? AND ?";
+
+    /**
+     * Space between the positions of consecutive songs when the queue is numbered from scratch
+     */
+    static final long POSITION_GAP = 1 << 16;
+
+    // Legacy storage of the queue, imported when the database is created
+    private static final String LEGACY_PREFS = "PlaybackQueueMemory";
+    private static final String LEGACY_PREF_SONGS = "songlist";
+
+    /**
+     * A song of the queue
+     */
+    static class Row {
+        final long position;
+        final String songRef;
+        final String provider;
+        // Null if the song has no rank, in which case a new shuffle order is made
+        final Long shuffleRank;
+
+        Row(long position, String songRef, String provider, Long shuffleRank) {
+            this.position = position;
+            this.songRef = songRef;
+            this.provider = provider;
+            this.shuffleRank = shuffleRank;
+        }
+    }
+
+    /**
+     * Interface receiving the stored queue
+     */
+    interface RowsListener {
+        /**
+         * Called from the database thread
+         * @param rows The songs of the queue, in order
+         */
+        void onRowsRead(List<Row> rows);
+    }
+
+    /**
+     * A change of the stored queue
+     */
+    static class Write {
+        private static final int TYPE_PUT = 1;
+        private static final int TYPE_DELETE = 2;
+        private static final int TYPE_SHUFFLE = 3;
+
+        final int type;
+        final long position;
+        final long toPosition;
+        final String songRef;
+        final String provider;
+        final long shuffleRank;
+
+        private Write(int type, long position, long toPosition, String songRef, String provider,
+                      long shuffleRank) {
+            this.type = type;
+            this.position = position;
+            this.toPosition = toPosition;
+            this.songRef = songRef;
+            this.provider = provider;
+            this.shuffleRank = shuffleRank;
+        }
+
+        /**
+         * Inserts or replaces the song at a position
+         */
+        static Write put(long position, String songRef, String provider, long shuffleRank) {
+            return new Write(TYPE_PUT, position, position, songRef, provider, shuffleRank);
+        }
+
+        /**
+         * Changes the shuffle rank of the song at a position
+         */
+        static Write shuffle(long position, long shuffleRank) {
+            return new Write(TYPE_SHUFFLE, position, position, null, null, shuffleRank);
+        }
+
+        /**
+         * Removes the songs between two positions, inclusive
+         */
+        static Write delete(long fromPosition, long toPosition) {
+            return new Write(TYPE_DELETE, fromPosition, toPosition, null, null, 0);
+        }
+
+        /**
+         * Removes all the songs
+         */
+        static Write deleteAll() {
+            return delete(Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mWriteHandler;
+
+    PlaybackQueueDatabase(Context ctx) {
+        super(ctx, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = ctx;
+
+        HandlerThread thread = new HandlerThread("PlaybackQueueDatabase");
+        thread.start();
+        mWriteHandler = new Handler(thread.getLooper());
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(CREATE_TABLE_QUEUE);
+        importLegacyQueue(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // We have no migrating plan for now
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_QUEUE);
+        onCreate(db);
+    }
+
+    /**
+     * @return The songs of the queue, in order
+     */
+    private synchronized List<Row> getRows() {
+        final Cursor c = getReadableDatabase().query(TABLE_QUEUE,
+                new String[]{KEY_POSITION, KEY_SONG_REF, KEY_PROVIDER, KEY_SHUFFLE}, null, null,
+                null, null, KEY_POSITION);
+
+        List<Row> output = new ArrayList<>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                output.add(new Row(c.getLong(0), c.getString(1), c.getString(2),
+                        c.isNull(3) ? null : c.getLong(3)));
+            }
+        } finally {
+            c.close();
+        }
+        return output;
+    }
+
+    /**
+     * Reads the stored queue in the background, once the pending writes are applied
+     * @param listener The listener receiving the rows. If the database can't be read, it
+     *                 receives an empty list.
+     */
+    void readRows(final RowsListener listener) {
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<Row> rows;
+                try {
+                    rows = getRows();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Cannot read the playback queue", e);
+                    rows = new ArrayList<>();
+                }
+                listener.onRowsRead(rows);
+            }
+        });
+    }
+
+    /**
+     * Applies changes to the stored queue, in the background
+     * @param writes The changes, in order
+     */
+    void write(final List<Write> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    applyWrites(writes);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Cannot save the playback queue", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the database once the pending writes are done
+     */
+    void release() {
+        mWriteHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                close();
+                mWriteHandler.getLooper().quit();
+            }
+        });
+    }
+
+    private synchronized void applyWrites(List<Write> writes) {
+        final SQLiteDatabase db = getWritableDatabase();
+        final SQLiteStatement put = db.compileStatement(SQL_REPLACE_SONG);
+        final SQLiteStatement delete = db.compileStatement(SQL_DELETE_RANGE);
+        final SQLiteStatement shuffle = db.compileStatement(SQL_UPDATE_SHUFFLE);
+
+        db.beginTransaction();
+        try {
+            for (Write write : writes) {
+                switch (write.type) {
+                    case Write.TYPE_PUT:
+                        put.bindLong(1, write.position);
+                        bindStringOrNull(put, 2, write.songRef);
+                        bindStringOrNull(put, 3, write.provider);
+                        put.bindLong(4, write.shuffleRank);
+                        put.executeInsert();
+                        break;
+
+                    case Write.TYPE_SHUFFLE:
+                        shuffle.bindLong(1, write.shuffleRank);
+                        shuffle.bindLong(2, write.position);
+                        shuffle.executeUpdateDelete();
+                        break;
+
+                    case Write.TYPE_DELETE:
+                        delete.bindLong(1, write.position);
+                        delete.bindLong(2, write.toPosition);
+                        delete.executeUpdateDelete();
+                        break;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            put.close();
+            delete.close();
+            shuffle.close();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    /**
+     * Moves the queue stored by previous versions in the preferences into the database
+     */
+    private void importLegacyQueue(SQLiteDatabase db) {
+        final SharedPreferences prefs = mContext.getSharedPreferences(LEGACY_PREFS,
+                Context.MODE_PRIVATE);
+        final String entries = prefs.getString(LEGACY_PREF_SONGS, null);
+        if (entries == null) {
+            return;
+        }
+
+        final SQLiteStatement put = db.compileStatement(SQL_REPLACE_SONG);
+        int imported = 0;
+
+        try {
+            JSONArray array = new JSONArray(entries);
+            final int len = array.length();
+            for (int i = 0; i < len; ++i) {
+                try {
+                    JSONObject obj = array.getJSONObject(i);
+                    put.bindLong(1, imported * POSITION_GAP);
+                    put.bindString(2, obj.getString("r"));
+                    put.bindString(3, obj.getString("p"));
+                    put.bindNull(4);
+                    put.executeInsert();
+                    ++imported;
+                } catch (JSONException e) {
+                    Log.w(TAG, "Cannot parse legacy playback queue entry", e);
+                }
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Cannot parse legacy playback queue", e);
+        }
+
+        put.close();
+
+        prefs.edit().remove(LEGACY_PREF_SONGS).apply();
+        Log.i(TAG, "Imported " + imported + " legacy playback queue entries");
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.service;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.providers.ProviderIdentifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of the playback queue, as returned by IPlaybackService.getPlaybackQueueWindow. Only the
+ * references of the songs are sent, clients get the songs themselves from their
+ * ProviderAggregator. Each provider is only sent once per window.
+ */
+public class PlaybackQueueWindow implements Parcelable {
+    private final long mVersion;
+    private final int mQueueSize;
+    private final int mCurrentIndex;
+    private final int mOffset;
+    private final String[] mRefs;
+    private final int[] mProviderIndexes;
+    private final String[] mProviders;
+    private ProviderIdentifier[] mProviderIdentifiers;
+
+    /**
+     * Creates a window of the provided queue. The caller must prevent changes of the queue.
+     * @param version The version of the queue
+     * @param currentIndex The index of the current track
+     * @param queue The queue
+     * @param offset The index of the first song of the window
+     * @param count The maximum number of songs in the window
+     */
+    PlaybackQueueWindow(long version, int currentIndex, List<Song> queue, int offset, int count) {
+        final int size = queue.size();
+        offset = Math.max(0, Math.min(offset, size));
+        count = Math.max(0, Math.min(count, size - offset));
+
+        mVersion = version;
+        mQueueSize = size;
+        mCurrentIndex = currentIndex;
+        mOffset = offset;
+        mRefs = new String[count];
+        mProviderIndexes = new int[count];
+
+        final List<ProviderIdentifier> providers = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            final Song song = queue.get(offset + i);
+            final ProviderIdentifier provider = song != null ? song.getProvider() : null;
+
+            mRefs[i] = song != null ? song.getRef() : null;
+            if (provider != null) {
+                int index = providers.indexOf(provider);
+                if (index < 0) {
+                    index = providers.size();
+                    providers.add(provider);
+                }
+                mProviderIndexes[i] = index;
+            } else {
+                mProviderIndexes[i] = -1;
+            }
+        }
+
+        mProviders = new String[providers.size()];
+        for (int i = 0; i < mProviders.length; ++i) {
+            mProviders[i] = providers.get(i).serialize();
+        }
+    }
+
+    private PlaybackQueueWindow(Parcel in) {
+        mVersion = in.readLong();
+        mQueueSize = in.readInt();
+        mCurrentIndex = in.readInt();
+        mOffset = in.readInt();
+        mRefs = in.createStringArray();
+        mProviderIndexes = in.createIntArray();
+        mProviders = in.createStringArray();
+    }
+
+    /**
+     * @return The version of the queue this window was taken from
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return The number of songs in the whole queue
+     */
+    public int getQueueSize() {
+        return mQueueSize;
+    }
+
+    /**
+     * @return The index of the current track in the whole queue
+     */
+    public int getCurrentIndex() {
+        return mCurrentIndex;
+    }
+
+    /**
+     * @return The index in the queue of the first song of this window
+     */
+    public int getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return The number of songs in this window
+     */
+    public int getCount() {
+        return mRefs.length;
+    }
+
+    /**
+     * @param index The index of the song in this window
+     * @return The reference of the song, or null if the song couldn't be retrieved by the service
+     */
+    public String getRef(int index) {
+        return mRefs[index];
+    }
+
+    /**
+     * @param index The index of the song in this window
+     * @return The provider of the song, or null if unknown
+     */
+    public ProviderIdentifier getProvider(int index) {
+        final int providerIndex = mProviderIndexes[index];
+        if (providerIndex < 0) {
+            return null;
+        }
+
+        if (mProviderIdentifiers == null) {
+            mProviderIdentifiers = new ProviderIdentifier[mProviders.length];
+        }
+        if (mProviderIdentifiers[providerIndex] == null) {
+            mProviderIdentifiers[providerIndex] =
+                    ProviderIdentifier.fromSerialized(mProviders[providerIndex]);
+        }
+        return mProviderIdentifiers[providerIndex];
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mVersion);
+        dest.writeInt(mQueueSize);
+        dest.writeInt(mCurrentIndex);
+        dest.writeInt(mOffset);
+        dest.writeStringArray(mRefs);
+        dest.writeIntArray(mProviderIndexes);
+        dest.writeStringArray(mProviders);
+    }
+
+    public static final Parcelable.Creator<PlaybackQueueWindow> CREATOR =
+            new Parcelable.Creator<PlaybackQueueWindow>() {
+                public PlaybackQueueWindow createFromParcel(Parcel in) {
+                    return new PlaybackQueueWindow(in);
+                }
+
+                public PlaybackQueueWindow[] newArray(int size) {
+                    return new PlaybackQueueWindow[size];
+                }
+            };
+}
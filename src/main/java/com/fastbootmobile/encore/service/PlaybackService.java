@@ -53,7 +53,6 @@ import com.fastbootmobile.encore.providers.ProviderIdentifier;
 import com.fastbootmobile.encore.receivers.PacManReceiver;
 import com.fastbootmobile.encore.receivers.RemoteControlReceiver;
 import com.fastbootmobile.encore.utils.SettingsKeys;
-import com.fastbootmobile.encore.utils.Utils;
 import com.squareup.leakcanary.RefWatcher;
 
 import java.lang.ref.WeakReference;
@@ -66,7 +65,7 @@ import java.util.List;
  */
 public class PlaybackService extends Service
         implements PluginsLookup.ConnectionListener, ILocalCallback,
-        AudioManager.OnAudioFocusChangeListener, NativeHub.OnSampleWrittenListener {
+        AudioManager.OnAudioFocusChangeListener {
 
     private static final String TAG = "PlaybackService";
 
@@ -91,18 +90,44 @@ public class PlaybackService extends Service
     private Runnable mNotifyQueueChangedRunnable = new Runnable() {
         @Override
         public void run() {
-            mNotification.setHasNext(mPlaybackQueue.size() > 1 || (mPlaybackQueue.size() > 0 && mRepeatMode));
+            dispatchQueueChanged();
 
-            for (IPlaybackCallback cb : mCallbacks) {
-                try {
-                    cb.onPlaybackQueueChanged();
-                } catch (RemoteException e) {
-                    Log.e(TAG, "Cannot notify playback queue changed", e);
-                }
+            // Save the queue as well
+            savePlaybackQueue();
+        }
+    };
+
+    private Runnable mQueueResolvedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsDestroyed) {
+                // Posted by the background retrieval after the service was destroyed
+                return;
             }
 
-            // Save the queue as well
+            // Drop the songs which couldn't be retrieved, from the stored queue as well
+            mCurrentTrack = mPlaybackQueue.removeMissing(mCurrentTrack);
+            mPlaybackQueue.setShuffleCursor(mCurrentTrack);
+            dispatchQueueChanged();
             savePlaybackQueue();
+
+            // Playback might be waiting for a song which was a placeholder
+            if (mCurrentTrackWaitLoading && mCurrentTrack >= 0) {
+                requestStartPlayback();
+            }
+        }
+    };
+
+    private Runnable mResolveQueueRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPlaybackQueue.resolve(mCurrentTrack, new Runnable() {
+                @Override
+                public void run() {
+                    mHandler.post(mQueueResolvedRunnable);
+                }
+            });
+            mHandler.post(mQueueResolvedRunnable);
         }
     };
 
@@ -124,13 +149,19 @@ public class PlaybackService extends Service
     private NativeHub mNativeHub;
     private DSPProcessor mDSPProcessor;
     private PlaybackQueue mPlaybackQueue;
+    private PlaybackQueueDatabase mQueueDatabase;
     private List<IPlaybackCallback> mCallbacks;
     private ServiceNotification mNotification;
     private int mCurrentTrack = -1;
-    private long mCurrentTrackElapsedMs;
+    // The current track was at position mTrackBaseMs when the sink had played mTrackStartMs
+    private volatile long mTrackStartMs;
+    private volatile long mTrackBaseMs;
+    // Sink written duration when the provider reported the end of the previous track, -1 if none
+    private volatile long mNextTrackStartMs = -1;
     private int mState = STATE_STOPPED;
     private boolean mIsResuming;
     private boolean mIsStopping;
+    private boolean mIsDestroyed;
     private boolean mCurrentTrackWaitLoading;
     private ProviderIdentifier mCurrentPlayingProvider;
     private boolean mHasAudioFocus;
@@ -199,7 +230,7 @@ public class PlaybackService extends Service
                     break;
 
                 case MSG_FLUSH_BUFFERS:
-                    service.mNativeSink.flushSamples();
+                    service.flushSink();
                     break;
 
                 case MSG_STOP_SERVICE:
@@ -255,12 +286,29 @@ public class PlaybackService extends Service
         mNativeHub = new NativeHub(getApplicationContext());
         mNativeSink = new NativeAudioSink();
         mNativeHub.setSinkPointer(mNativeSink.getPlayer().getHandle());
-        mNativeHub.setOnAudioWrittenListener(this);
+        mNativeHub.setOnSinkFormatChangeListener(mSinkFormatChangeListener);
         mNativeHub.onStart();
 
         mDSPProcessor = new DSPProcessor(this);
         mDSPProcessor.restoreChain(this);
 
+        // Restore the playback queue. The database is read in the background, and songs are
+        // only placeholders until the providers are up.
+        mQueueDatabase = new PlaybackQueueDatabase(this);
+        mQueueDatabase.readRows(new PlaybackQueueDatabase.RowsListener() {
+            @Override
+            public void onRowsRead(final List<PlaybackQueueDatabase.Row> rows) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mIsDestroyed) {
+                            restorePlaybackQueue(rows);
+                        }
+                    }
+                });
+            }
+        });
+
         // Plugins initialization
         PluginsLookup.getDefault().initialize(getApplicationContext());
         PluginsLookup.getDefault().registerProviderListener(this);
@@ -323,21 +371,35 @@ public class PlaybackService extends Service
         mRepeatMode = prefs.getBoolean(PREF_KEY_REPEAT, false);
         mShuffleMode = prefs.getBoolean(PREF_KEY_SHUFFLE, false);
 
+    }
+
+    /**
+     * Restores the playback queue read from the database, and schedules the retrieval of its
+     * songs
+     */
+    private void restorePlaybackQueue(List<PlaybackQueueDatabase.Row> rows) {
+        if (!mPlaybackQueue.restore(rows)) {
+            // The queue has been modified in the meantime, it's more recent than the stored one
+            return;
+        }
+
+        mCurrentTrack = getSharedPreferences(QUEUE_SHARED_PREFS, MODE_PRIVATE)
+                .getInt("current", -1);
+        if (mCurrentTrack >= mPlaybackQueue.size()) {
+            mCurrentTrack = -1;
+        }
+        mPlaybackQueue.setShuffleCursor(mCurrentTrack);
+        dispatchQueueChanged();
+
         // TODO: Use callbacks
-        // Restore playback queue after one second - we have multiple things to wait here:
+        // Retrieve the songs of the playback queue after one second - we have multiple things to
+        // wait here:
         //  - The callbacks of the main app's UI
         //  - The providers connecting
         //  - The providers ready to send us data
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                SharedPreferences queuePrefs = getSharedPreferences(QUEUE_SHARED_PREFS, MODE_PRIVATE);
-                mPlaybackQueue.restore(queuePrefs);
-                mCurrentTrack = queuePrefs.getInt("current", -1);
-                mCurrentTrackLoaded = false;
-                mNotification.setHasNext(mPlaybackQueue.size() > 1 || (mPlaybackQueue.size() > 0 && mRepeatMode));
-            }
-        }, 1000);
+        // The songs around the current track are waited for on the commands thread, so that
+        // playback commands are handled once they're there.
+        mCommandsHandler.postDelayed(mResolveQueueRunnable, 1000);
     }
 
     /**
@@ -351,6 +413,9 @@ public class PlaybackService extends Service
         mRemoteMetadata.release();
 
         // Cancel prefetching
+        mIsDestroyed = true;
+        mCommandsHandler.removeCallbacks(mResolveQueueRunnable);
+        mHandler.removeCallbacks(mQueueResolvedRunnable);
         mHandler.removeCallbacks(mPrefetcher);
         mPrefetcher.cancel();
         mPrefetcher = null;
@@ -380,10 +445,11 @@ public class PlaybackService extends Service
 
         // Store the playback queue
         savePlaybackQueue();
+        mQueueDatabase.release();
 
         // Shutdown DSP chain
+        mNativeHub.setOnSinkFormatChangeListener(null);
         mNativeHub.onStop();
-        mNativeHub.setOnAudioWrittenListener(null);
         mNativeSink.release();
 
         mCommandsHandlerThread.interrupt();
@@ -539,9 +605,9 @@ public class PlaybackService extends Service
      * Saves the playback queue in the local storage
      */
     private void savePlaybackQueue() {
-        SharedPreferences queuePrefs = getSharedPreferences(QUEUE_SHARED_PREFS, MODE_PRIVATE);
-        mPlaybackQueue.save(queuePrefs.edit());
-        queuePrefs.edit().putInt("current", mCurrentTrack).apply();
+        mPlaybackQueue.save(mQueueDatabase);
+        getSharedPreferences(QUEUE_SHARED_PREFS, MODE_PRIVATE).edit()
+                .putInt("current", mCurrentTrack).apply();
     }
 
     /**
@@ -634,6 +700,7 @@ public class PlaybackService extends Service
             if (mCurrentTrack < 0) {
                 mCurrentTrack = 0;
             }
+            mPlaybackQueue.setShuffleCursor(mCurrentTrack);
 
             final Song next = mPlaybackQueue.get(mCurrentTrack);
             if (next == null) {
@@ -754,6 +821,27 @@ public class PlaybackService extends Service
         mHandler.post(mNotifyQueueChangedRunnable);
     }
 
+    /**
+     * Sends the changes of the playback queue to the listeners. Must be called from the handler
+     * thread, see {@link #notifyQueueChanged()}.
+     */
+    private void dispatchQueueChanged() {
+        mNotification.setHasNext(mPlaybackQueue.size() > 1 || (mPlaybackQueue.size() > 0 && mRepeatMode));
+
+        final PlaybackQueue.Changes changes = mPlaybackQueue.takeChanges();
+        for (IPlaybackCallback cb : mCallbacks) {
+            try {
+                if (changes != null) {
+                    cb.onPlaybackQueueDelta(changes.fromVersion, changes.toVersion,
+                            changes.ops, mCurrentTrack);
+                }
+                cb.onPlaybackQueueChanged();
+            } catch (RemoteException e) {
+                Log.e(TAG, "Cannot notify playback queue changed", e);
+            }
+        }
+    }
+
     /**
      * If a song is currently playing, returns the Song in the playback queue at the index
      * corresponding to mCurrentTrack
@@ -782,20 +870,22 @@ public class PlaybackService extends Service
     void nextImpl() {
         boolean hasNext = mCurrentTrack < mPlaybackQueue.size() - 1;
         if (mPlaybackQueue.size() > 1 && mShuffleMode) {
-            // Shuffle mode is enabled, play any track but not the one we just played
-            int previousTrack = mCurrentTrack;
-            while (previousTrack == mCurrentTrack) {
-                mCurrentTrack = Utils.getRandom(mPlaybackQueue.size());
-            }
+            // Shuffle mode is enabled, play the next track of the shuffle order
+            rollShuffleOrderIfNeeded();
+            final int next = mPlaybackQueue.getShuffleNext(mCurrentTrack);
+            if (next >= 0) {
+                mCurrentTrack = next;
+                rollShuffleOrderIfNeeded();
 
-            mNativeSink.setPaused(true);
-            mShouldFlushBuffers = true;
+                mNativeSink.setPaused(true);
+                mShouldFlushBuffers = true;
 
-            requestStartPlayback();
-            mNotification.setHasNext(true);
+                requestStartPlayback();
+                mNotification.setHasNext(mRepeatMode || mPlaybackQueue.getShuffleNext(next) >= 0);
+            }
         } else if (mPlaybackQueue.size() > 0 && hasNext) {
             mCurrentTrack++;
-            mNativeSink.flushSamples();
+            flushSink();
             requestStartPlayback();
 
             hasNext = mCurrentTrack < mPlaybackQueue.size() - 1;
@@ -838,12 +928,21 @@ public class PlaybackService extends Service
 
             while (retry) {
                 // Go to the previous track
-                mCurrentTrack--;
-                if (mCurrentTrack < 0) {
-                    if (mRepeatMode) {
-                        mCurrentTrack = mPlaybackQueue.size() - 1;
-                    } else {
-                        mCurrentTrack = 0;
+                if (mPlaybackQueue.size() > 1 && mShuffleMode) {
+                    final int previous = mPlaybackQueue.getShufflePrevious(mCurrentTrack);
+                    if (previous < 0) {
+                        // First track of the shuffle order, restart it
+                        break;
+                    }
+                    mCurrentTrack = previous;
+                } else {
+                    mCurrentTrack--;
+                    if (mCurrentTrack < 0) {
+                        if (mRepeatMode) {
+                            mCurrentTrack = mPlaybackQueue.size() - 1;
+                        } else {
+                            mCurrentTrack = 0;
+                        }
                     }
                 }
 
@@ -985,6 +1084,11 @@ public class PlaybackService extends Service
     private void playAtIndexImpl(int index) {
         Log.d(TAG, "Playing track " + (index + 1) + "/" + mPlaybackQueue.size());
         mCurrentTrack = index;
+        if (mShuffleMode) {
+            // Play the rest of the order after the picked song, without skipping any
+            mPlaybackQueue.playNextInShuffle(index);
+            rollShuffleOrderIfNeeded();
+        }
 
         mNativeSink.setPaused(true);
         mShouldFlushBuffers = true;
@@ -993,24 +1097,100 @@ public class PlaybackService extends Service
     }
 
     /**
-     * @return The reference to the next track in the queue
+     * Called by the track change paths once the current track changed. When the current track
+     * is the last one of the shuffle order and repeat mode is enabled, the next order is made
+     * right away, starting with the current track so that it doesn't play again first. The track
+     * following the current one is then known in advance, and can be prefetched.
+     */
+    private void rollShuffleOrderIfNeeded() {
+        if (mShuffleMode && mRepeatMode && mPlaybackQueue.size() > 1
+                && mPlaybackQueue.getShuffleNext(mCurrentTrack) < 0) {
+            mPlaybackQueue.shuffle(mCurrentTrack, System.nanoTime());
+        }
+    }
+
+    /**
+     * Starts a new shuffle order from the current track when a new queue starts playing in
+     * shuffle mode, so that no song is skipped
+     */
+    private void startShuffleOrder() {
+        if (mShuffleMode) {
+            mPlaybackQueue.shuffle(mCurrentTrack, System.nanoTime());
+        }
+    }
+
+    /**
+     * @return The reference to the next track in the queue, in shuffle order in shuffle mode. In
+     * repeat mode, the queue starts again after the last track. Doesn't change the queue.
      */
     public Song getNextTrack() {
-        if (mCurrentTrack < mPlaybackQueue.size() - 1) {
+        if (mPlaybackQueue.size() > 1 && mShuffleMode) {
+            final int[] next = mPlaybackQueue.getShuffleNext(mCurrentTrack, 1);
+            return next.length > 0 ? mPlaybackQueue.get(next[0]) : null;
+        } else if (mCurrentTrack < mPlaybackQueue.size() - 1) {
             return mPlaybackQueue.get(mCurrentTrack + 1);
+        } else if (mRepeatMode && mPlaybackQueue.size() > 0) {
+            return mPlaybackQueue.get(0);
         } else {
             // No more tracks
             return null;
         }
     }
 
+    /**
+     * Returns the position in the current track, based on what the sink actually played
+     */
     public int getCurrentTrackPositionImpl() {
-        return (int) mCurrentTrackElapsedMs;
+        final long played = mNativeSink.getPlayedDuration();
+        return (int) (mTrackBaseMs + Math.max(0, played - mTrackStartMs));
+    }
+
+    /**
+     * Returns whether the provider whose track ended may have spliced another song than the new
+     * current track right after it, in which case the sink must be flushed rather than play it
+     *
+     * @param provider The provider whose track ended
+     * @param prefetched The last song pre-fetched, or null
+     */
+    private boolean isSpliceMismatch(ProviderIdentifier provider, Song prefetched) {
+        if (prefetched == null || !provider.equals(prefetched.getProvider())) {
+            return false;
+        }
+
+        final Song current = getCurrentSong();
+        return current == null || !prefetched.getRef().equals(current.getRef());
+    }
+
+    /**
+     * Listener moving the track start points to the new sink timeline when the sink switches
+     * format, as it then restarts its durations from zero like a flush does
+     */
+    private final NativeHub.OnSinkFormatChangeListener mSinkFormatChangeListener =
+            new NativeHub.OnSinkFormatChangeListener() {
+        @Override
+        public void onSinkFormatChange() {
+            mTrackBaseMs = getCurrentTrackPositionImpl();
+            mTrackStartMs = 0;
+            if (mNextTrackStartMs >= 0) {
+                // The next track starts with the new format
+                mNextTrackStartMs = 0;
+            }
+        }
+    };
+
+    /**
+     * Clears the sink buffers. The sink playback position restarts from zero.
+     */
+    private void flushSink() {
+        mNativeSink.flushSamples();
+        mTrackStartMs = 0;
+        mNextTrackStartMs = -1;
     }
 
     void seekImpl(final long timeMs) {
-        // First, unpause if paused
+        // First, unpause if paused, and drop what was buffered before the seek point
         mNativeSink.setPaused(false);
+        flushSink();
 
         // Then seek on the provider
         final Song currentSong = getCurrentSong();
@@ -1024,7 +1204,7 @@ public class PlaybackService extends Service
                     try {
                         provider.seek(timeMs);
                         success = true;
-                        mCurrentTrackElapsedMs = timeMs;
+                        mTrackBaseMs = timeMs;
                     } catch (RemoteException e) {
                         Log.e(TAG, "Cannot seek to time", e);
                     } catch (Exception e) {
@@ -1098,6 +1278,7 @@ public class PlaybackService extends Service
                 service.mCurrentTrack = 0;
                 service.mPlaybackQueue.clear();
                 queuePlaylist(p, false);
+                service.startShuffleOrder();
                 service. requestStartPlayback();
             }
         }
@@ -1111,6 +1292,7 @@ public class PlaybackService extends Service
                 service.mCurrentTrack = 0;
                 service. mPlaybackQueue.clear();
                 queueSong(s, true);
+                service.startShuffleOrder();
                 service.requestStartPlayback();
             }
         }
@@ -1124,6 +1306,7 @@ public class PlaybackService extends Service
                 service.mCurrentTrack = 0;
                 service.mPlaybackQueue.clear();
                 queueAlbum(a, false);
+                service.startShuffleOrder();
                 service.requestStartPlayback();
             }
         }
@@ -1178,11 +1361,12 @@ public class PlaybackService extends Service
             PlaybackService service = mParent.get();
 
             if (service != null) {
-                if (service.mCurrentTrack >= 0) {
-                    service.mPlaybackQueue.add(service.mCurrentTrack + 1, s);
-                } else {
-                    service.mPlaybackQueue.add(0, s);
+                final int index = service.mCurrentTrack >= 0 ? service.mCurrentTrack + 1 : 0;
+                service.mPlaybackQueue.add(index, s);
+                if (service.mShuffleMode) {
+                    service.mPlaybackQueue.playNextInShuffle(index);
                 }
+                service.notifyQueueChanged();
             }
         }
 
@@ -1278,6 +1462,17 @@ public class PlaybackService extends Service
             }
         }
 
+        @Override
+        public PlaybackQueueWindow getPlaybackQueueWindow(int offset, int count) {
+            PlaybackService service = mParent.get();
+
+            if (service != null) {
+                return service.mPlaybackQueue.getWindow(offset, count, service.mCurrentTrack);
+            } else {
+                return new PlaybackQueueWindow(0, -1, new ArrayList<Song>(), 0, 0);
+            }
+        }
+
         @Override
         public int getCurrentRms() throws RemoteException {
             PlaybackService service = mParent.get();
@@ -1383,6 +1578,12 @@ public class PlaybackService extends Service
             PlaybackService service = mParent.get();
 
             if (service != null) {
+                if (shuffle && !service.mShuffleMode) {
+                    // Start a new shuffle order from the current track
+                    service.mPlaybackQueue.shuffle(service.mCurrentTrack, System.nanoTime());
+                    service.savePlaybackQueue();
+                }
+
                 service.mShuffleMode = shuffle;
                 SharedPreferences prefs = service.getSharedPreferences(SERVICE_SHARED_PREFS, MODE_PRIVATE);
                 SharedPreferences.Editor editor = prefs.edit();
@@ -1408,6 +1609,7 @@ public class PlaybackService extends Service
 
             if (service != null) {
                 service.mPlaybackQueue.clear();
+                service.notifyQueueChanged();
             }
         }
 
@@ -1430,6 +1632,16 @@ public class PlaybackService extends Service
                 return 0;
             }
         }
+
+        @Override
+        public void setCastTransport(String receiver, String codec, int bitrate)
+                throws RemoteException {
+            PlaybackService service = mParent.get();
+
+            if (service != null && service.mNativeHub != null) {
+                service.mNativeHub.setCastTransport(receiver, codec, bitrate);
+            }
+        }
     };
 
     @Override
@@ -1497,12 +1709,17 @@ public class PlaybackService extends Service
                 if (wasPaused) {
                     service.mIsResuming = false;
                 } else {
-                    service.mCurrentTrackElapsedMs = 0;
-
                     // Flush and unpause the sink to clear previous track data (if from user action)
                     if (service.mShouldFlushBuffers) {
-                        service.mNativeSink.flushSamples();
+                        service.flushSink();
+                    } else if (service.mNextTrackStartMs >= 0) {
+                        // The track follows the previous one in the sink
+                        service.mTrackStartMs = service.mNextTrackStartMs;
+                    } else {
+                        service.mTrackStartMs = service.mNativeSink.getWrittenDuration();
                     }
+                    service.mTrackBaseMs = 0;
+                    service.mNextTrackStartMs = -1;
                     service.mNativeSink.setPaused(false);
                 }
 
@@ -1595,27 +1812,42 @@ public class PlaybackService extends Service
                 // try to play a track here while still being in the callstack of the endOfTrack
                 // callback.
 
+                // Providers report the end of a track once its last samples were accepted by
+                // the sink, so what's written from now on belongs to the next track: the boundary
+                // is what the sink played plus what it still has queued.
+                service.mNextTrackStartMs = service.mNativeSink.getWrittenDuration();
+                final Song prefetched = service.mPrefetcher != null
+                        ? service.mPrefetcher.takePrefetchedSong() : null;
+
                 if (service.mPlaybackQueue.size() > 1 && service.mShuffleMode) {
-                    // Shuffle mode is enabled, play any track but not the one we just played
-                    int previousTrack = service.mCurrentTrack;
-                    while (previousTrack == service.mCurrentTrack) {
-                        service.mCurrentTrack = Utils.getRandom(service.mPlaybackQueue.size());
+                    // Shuffle mode is enabled, move to the next track of the shuffle order
+                    service.rollShuffleOrderIfNeeded();
+                    final int next = service.mPlaybackQueue.getShuffleNext(service.mCurrentTrack);
+                    if (next >= 0) {
+                        service.mCurrentTrack = next;
+                        service.rollShuffleOrderIfNeeded();
+                        service.mShouldFlushBuffers = service.isSpliceMismatch(provider,
+                                prefetched);
+                        service.requestStartPlayback();
+                    } else {
+                        // Every track has been played, stop after a little while to allow the
+                        // buffers to empty
+                        service.mHandler.sendEmptyMessageDelayed(CommandHandler.MSG_STOP_SERVICE,
+                                2000);
                     }
-
-                    service.mShouldFlushBuffers = false;
-                    service.requestStartPlayback();
                 } else if (service.mPlaybackQueue.size() > 0 && service.mCurrentTrack < service.mPlaybackQueue.size() - 1) {
                     // Regular sequential mode, not at the end, move to the next track
                     service.mCurrentTrack++;
 
-                    service.mShouldFlushBuffers = false;
+                    service.mShouldFlushBuffers = service.isSpliceMismatch(provider, prefetched);
                     service.requestStartPlayback();
                 } else if (service.mPlaybackQueue.size() > 0 && service.mCurrentTrack == service.mPlaybackQueue.size() - 1) {
                     // Regular sequential mode, at the end of the queue
                     if (service.mRepeatMode) {
                         // We're repeating, go back to the first track and play it
                         service.mCurrentTrack = 0;
-                        service.mShouldFlushBuffers = false;
+                        service.mShouldFlushBuffers = service.isSpliceMismatch(provider,
+                                prefetched);
                         service.requestStartPlayback();
                     } else {
                         // Not repeating and at the end of the playlist, stop after a little while
@@ -1663,11 +1895,4 @@ public class PlaybackService extends Service
         }
     }
 
-
-    @Override
-    public void onSampleWritten(byte[] bytes, int len, int sampleRate, int channels) {
-        len = len / 2; // first, we want the number of samples, and we assume 16 bits audio
-        len = len / channels; // then, we count "mono"
-        mCurrentTrackElapsedMs += len * 1000 / sampleRate;
-    }
 }
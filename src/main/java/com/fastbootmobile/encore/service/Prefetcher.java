@@ -23,14 +23,22 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
- * Runnable handling the pre-fetch of the next track
+ * Runnable handling the pre-fetch of the next track. Providers supporting it use the pre-fetch
+ * to prepare the decoding of the next track, so that it can start right after the current one.
  */
 public class Prefetcher implements Runnable {
     private static final String TAG = "Prefetcher";
 
-    private PlaybackService mService;
+    // We prefetch on a background thread, as if the provider blocks, this is blocking the UI.
+    // A single thread is enough since there's only one next track at a time.
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
 
+    private PlaybackService mService;
+    private volatile Song mPrefetchedSong;
 
     public Prefetcher(PlaybackService service) {
         mService = service;
@@ -49,8 +57,8 @@ public class Prefetcher implements Runnable {
             if (conn != null) {
                 final IMusicProvider provider = conn.getBinder();
                 if (provider != null) {
-                    // We prefetch in a thread, as if the provider blocks, this is blocking the UI
-                    new Thread() {
+                    mPrefetchedSong = nextSong;
+                    sExecutor.execute(new Runnable() {
                         public void run() {
                             try {
                                 provider.prefetchSong(nextSong.getRef());
@@ -58,12 +66,22 @@ public class Prefetcher implements Runnable {
                                 Log.e(TAG, "Cannot pre-fetch song", e);
                             }
                         }
-                    }.start();
+                    });
                 }
             }
         }
     }
 
+    /**
+     * Returns the last song that was pre-fetched, which the provider may have already started
+     * to play after the current one, and forgets it
+     */
+    public Song takePrefetchedSong() {
+        final Song song = mPrefetchedSong;
+        mPrefetchedSong = null;
+        return song;
+    }
+
     public void cancel() {
         mService = null;
     }
@@ -56,13 +56,16 @@ import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
 import java.lang.reflect.Method;
+import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
  * Utilities class used throughout the app
@@ -70,6 +73,9 @@ import java.util.concurrent.TimeUnit;
 public class Utils {
     private static final String TAG = "Utils";
 
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+
     private static final Map<String, Bitmap> mBitmapQueue = new HashMap<>();
 
     /**
@@ -662,6 +668,20 @@ public class Utils {
         return 1.0f - ((float) distance(a, b)) / max;
     }
 
+    /**
+     * Normalizes a string for searching: accents are removed, case is folded and separators are
+     * collapsed into single spaces.
+     */
+    public static String normalizeSearchTerms(String input) {
+        if (input == null) {
+            return "";
+        }
+        String output = Normalizer.normalize(input, Normalizer.Form.NFD);
+        output = DIACRITICS.matcher(output).replaceAll("");
+        output = SEPARATORS.matcher(output.toLowerCase(Locale.ROOT)).replaceAll(" ");
+        return output.trim();
+    }
+
     public static List<Song> refIteratorToSongList(Iterator<String> it, ProviderIdentifier id) {
         ProviderAggregator aggr = ProviderAggregator.getDefault();
         List<Song> output = new ArrayList<>();
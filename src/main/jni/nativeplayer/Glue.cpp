@@ -38,6 +38,10 @@ static JNINativeMethod gMethodsNativePlayer[] = {
             reinterpret_cast<void*>(om_NativePlayer_getUnderflowCount)},
     {"nativeGetTotalWrittenSamples", "()J",
             reinterpret_cast<void*>(om_NativePlayer_getTotalWrittenSamples)},
+    {"nativeGetEnqueuedDuration", "()J",
+            reinterpret_cast<void*>(om_NativePlayer_getEnqueuedDuration)},
+    {"nativeGetPlaybackPosition", "()J",
+            reinterpret_cast<void*>(om_NativePlayer_getPlaybackPosition)},
     {"nativeFlush", "()V",
             reinterpret_cast<void*>(om_NativePlayer_flush)},
     {"nativeSetPaused", "(Z)V",
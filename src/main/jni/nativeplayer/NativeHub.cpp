@@ -18,14 +18,20 @@
 #include "Log.h"
 #include "jni_NativeHub.h"
 #include <algorithm>
+#include <cstdlib>
+#include <cstring>
 #include <string>
 #include <list>
 
 #define LOG_TAG "NativeHub"
 
+// Initial size of the buffer shared with the in-process effects
+#define IN_PROCESS_BUFFER_SIZE 32768
+
 // -------------------------------------------------------------------------------------
 NativeHub::NativeHub(void* userdata) : m_pSink(nullptr), m_pLastProviderSocket(nullptr),
-        m_iSampleRate(44100), m_iChannels(2), m_pUserData(userdata), m_iBuffersInDSP(0) {
+        m_iSampleRate(44100), m_iChannels(2), m_pUserData(userdata), m_iBuffersInDSP(0),
+        m_pInProcessBuffer(nullptr), m_iInProcessBufferSize(0) {
 }
 // -------------------------------------------------------------------------------------
 NativeHub::~NativeHub() {
@@ -47,6 +53,9 @@ NativeHub::~NativeHub() {
     }
 
     m_ProviderSockets.clear();
+
+    free(m_pInProcessBuffer);
+    m_pInProcessBuffer = nullptr;
 }
 // -------------------------------------------------------------------------------------
 void NativeHub::setSink(INativeSink* sink) {
@@ -136,11 +145,21 @@ void NativeHub::writeAudioToDsp(int chain_index, const uint8_t* data, const uint
 
         while (iter != m_DSPChain.end() && !success) {
             std::string name = (*iter);
+
+            if (isInProcessDsp(name)) {
+                // Built-in effect: processed in place, the audio stays on this thread
+                data = processInProcessDsp(chain_index, data, len);
+                ++iter;
+                ++chain_index;
+                continue;
+            }
+
             SocketHost* next_socket = m_DSPSockets[name];
 
-            if (next_socket->writeAudioData(data, len, false) == -1) {
+            if (!next_socket || next_socket->writeAudioData(data, len, false) == -1) {
                 // Some error occurred while writing to this DSP, forward to the next valid one
                 ++iter;
+                ++chain_index;
             } else {
                 success = true;
                 m_iBuffersInDSP += len;
@@ -154,6 +173,40 @@ void NativeHub::writeAudioToDsp(int chain_index, const uint8_t* data, const uint
     }
 }
 // -------------------------------------------------------------------------------------
+bool NativeHub::isInProcessDsp(const std::string& name) {
+    return name.compare(0, sizeof(IN_PROCESS_DSP_PREFIX) - 1, IN_PROCESS_DSP_PREFIX) == 0;
+}
+// -------------------------------------------------------------------------------------
+const uint8_t* NativeHub::processInProcessDsp(int chain_index, const uint8_t* data,
+        const uint32_t len) {
+    bool buffer_changed = false;
+
+    if (len > m_iInProcessBufferSize) {
+        uint32_t size = std::max(len, (uint32_t) IN_PROCESS_BUFFER_SIZE);
+        uint8_t* buffer = reinterpret_cast<uint8_t*>(realloc(m_pInProcessBuffer, size));
+        if (!buffer) {
+            ALOGE("Cannot allocate %u bytes for in-process DSP, skipping effect", size);
+            return data;
+        }
+
+        m_pInProcessBuffer = buffer;
+        m_iInProcessBufferSize = size;
+        buffer_changed = true;
+    }
+
+    // Consecutive in-process effects work on the same buffer without any copy
+    if (data != m_pInProcessBuffer) {
+        memcpy(m_pInProcessBuffer, data, len);
+    }
+
+    const int32_t sample_rate = m_pSink ? m_pSink->getSampleRate() : m_iSampleRate;
+    const int32_t channels = m_pSink ? m_pSink->getChannels() : m_iChannels;
+    om_NativeHub_onInProcessDsp(this, m_pInProcessBuffer, m_iInProcessBufferSize, buffer_changed,
+            chain_index, len, sample_rate, channels);
+
+    return m_pInProcessBuffer;
+}
+// -------------------------------------------------------------------------------------
 void NativeHub::writeAudioToSink(const uint8_t* data, const uint32_t len) {
     if (m_pSink) {
         writeAudioResponse(m_pSink->enqueue(data, len));
@@ -200,13 +253,18 @@ void NativeHub::onFormatInfo(SocketCommon* socket, const int32_t sample_rate,
     m_iChannels = channels;
 
     if (m_pSink) {
+        if (m_pSink->getSampleRate() != sample_rate || m_pSink->getChannels() != channels) {
+            om_NativeHub_onSinkFormatChange(this);
+        }
         m_pSink->setAudioFormat(sample_rate, 16, channels);
     }
 
-    // Notify DSP plugins of format info
+    // Notify DSP plugins of format info. In-process effects get it with each block.
     for (auto it = m_DSPChain.begin(); it != m_DSPChain.end(); ++it) {
         SocketCommon* socket = m_DSPSockets[*it];
-        if (m_pSink) {
+        if (!socket) {
+            continue;
+        } else if (m_pSink) {
             socket->writeFormatInfo(m_pSink->getChannels(), m_pSink->getSampleRate());
         } else {
             // Default values
@@ -25,6 +25,10 @@
 
 class INativeSink;
 
+// Prefix of the chain elements processed in process by the Java DSPEffects, followed by the
+// index of the element in the chain. Must match NativeHub.IN_PROCESS_DSP_PREFIX in Java.
+#define IN_PROCESS_DSP_PREFIX "inprocess:"
+
 class NativeHub : public SocketCallbacks {
  public:
     // ctor
@@ -57,6 +61,8 @@ class NativeHub : public SocketCallbacks {
  protected:
     SocketHost* findSocketByName(const std::string& name);
     void writeAudioToDsp(int chain_index, const uint8_t* data, const uint32_t len);
+    const uint8_t* processInProcessDsp(int chain_index, const uint8_t* data, const uint32_t len);
+    static bool isInProcessDsp(const std::string& name);
     void writeAudioToSink(const uint8_t* data, const uint32_t len);
     void writeAudioResponse(const uint32_t written);
 
@@ -112,6 +118,8 @@ class NativeHub : public SocketCallbacks {
     int32_t m_iSampleRate;
     int32_t m_iChannels;
     int32_t m_iBuffersInDSP;
+    uint8_t* m_pInProcessBuffer;
+    uint32_t m_iInProcessBufferSize;
     void* m_pUserData;
     std::recursive_mutex m_ChainMutex;
 };
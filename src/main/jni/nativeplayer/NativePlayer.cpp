@@ -32,7 +32,7 @@
 NativePlayer::NativePlayer() : m_pEngineObj(nullptr), m_pEngine(nullptr),
         m_pOutputMixObj(nullptr), m_pPlayerObj(nullptr), m_pPlayer(nullptr), m_pPlayerVol(nullptr),
         m_pBufferQueue(nullptr), m_iSampleRate(-1), m_iChannels(-1), m_iSampleFormat(-1),
-        m_iWrittenSamples(0), m_iUnderflowCount(0),
+        m_iWrittenSamples(0), m_iEnqueuedFrames(0), m_iUnderflowCount(0),
         m_pPlayingBuffer(nullptr), m_iActiveBuffersTotalSize(0), m_fVolume(1.0f),
         m_pNativeHub(nullptr), m_bUseResampler(false), m_LastBuffersCheckUfCount(0),
         m_bPaused(false) {
@@ -277,6 +277,9 @@ bool NativePlayer::setAudioFormat(uint32_t sample_rate, uint32_t sample_format,
             // min playback = 1 second, max size = 5 seconds
             m_iBufferMinPlayback = sample_rate * channels;
             m_iBufferMaxSize = m_iBufferMinPlayback * 5;
+
+            // The new player starts from a zero position
+            m_iEnqueuedFrames = 0;
         }
 
         switch (sample_rate) {
@@ -409,6 +412,14 @@ uint32_t NativePlayer::enqueue(const void* data, uint32_t len) {
         // ALOGD("Buffers full, returning 0");
         return 0;
     } else if (len < MAX_BUFFER_SIZE) {
+        // Keep track of the number of frames we accepted, in the format they're rendered with
+        // (the resampler outputs 16 bits samples). They're only converted to a duration when
+        // read, so that rounding errors don't add up buffer after buffer.
+        const int64_t frame_size = m_iChannels * (m_bUseResampler ? 2 : m_iSampleFormat / 8);
+        if (frame_size > 0) {
+            m_iEnqueuedFrames += len / frame_size;
+        }
+
         // If there's room for a buffer
         if (qstate.count == 0 && m_ActiveBuffers.size() == 0) {
                 // We have no buffer pending, enqueue it directly
@@ -459,12 +470,38 @@ int64_t NativePlayer::getTotalWrittenSamples() const {
     return m_iWrittenSamples;
 }
 // -------------------------------------------------------------------------------------
+int64_t NativePlayer::getEnqueuedDuration() const {
+    const int64_t sample_rate = m_iSampleRate;
+    if (sample_rate <= 0) {
+        return 0;
+    }
+    return m_iEnqueuedFrames * 1000LL / sample_rate;
+}
+// -------------------------------------------------------------------------------------
+int64_t NativePlayer::getPlaybackPosition() const {
+    if (m_pPlayer == nullptr) {
+        return 0;
+    }
+
+    // The OpenSL position only moves while audio is rendered, and goes back to 0 when the player
+    // is stopped (which we do when flushing)
+    SLmillisecond position = 0;
+    SLresult result = (*m_pPlayer)->GetPosition(m_pPlayer, &position);
+    if (result != SL_RESULT_SUCCESS) {
+        ALOGE("Cannot get player position: %d", result);
+        return 0;
+    }
+
+    return position;
+}
+// -------------------------------------------------------------------------------------
 void NativePlayer::flush() {
     std::lock_guard<std::mutex> lock(m_QueueMutex);
 
     setPlayState(SL_PLAYSTATE_STOPPED);
     (*m_pBufferQueue)->Clear(m_pBufferQueue);
     m_iWrittenSamples = 0;
+    m_iEnqueuedFrames = 0;
     m_iUnderflowCount = 0;
     m_LastBuffersCheckUfCount = 0;
     m_iActiveBuffersTotalSize = 0;
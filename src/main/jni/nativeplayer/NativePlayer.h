@@ -74,6 +74,14 @@ class NativePlayer : public INativeSink {
     // Returns the number of samples written since the last flush operation (or start if none)
     int64_t getTotalWrittenSamples() const;
 
+    // Returns the duration of audio accepted by enqueue since the last flush operation, in
+    // milliseconds. This includes the audio still buffered and not played yet.
+    int64_t getEnqueuedDuration() const;
+
+    // Returns the duration of audio actually rendered by OpenSL since the last flush operation,
+    // in milliseconds
+    int64_t getPlaybackPosition() const;
+
     // Flush the audio output
     void flush();
 
@@ -109,6 +117,7 @@ class NativePlayer : public INativeSink {
     std::atomic<uint32_t> m_iSampleFormat;
     std::atomic<uint32_t> m_iChannels;
     std::atomic<int64_t> m_iWrittenSamples;
+    std::atomic<int64_t> m_iEnqueuedFrames;
     std::atomic<int32_t> m_iUnderflowCount;
     std::atomic<float> m_fVolume;
 
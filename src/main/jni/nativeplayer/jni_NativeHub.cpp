@@ -27,9 +27,12 @@ jclass clazz_NativeHub;
 
 jfieldID field_NativeHub_mHandle;
 jfieldID field_NativeHub_mAudioMirrorBuffer;
+jfieldID field_NativeHub_mDspBuffer;
 
 // Functions
 jmethodID method_NativeHub_onAudioMirrorWritten;
+jmethodID method_NativeHub_onInProcessDsp;
+jmethodID method_NativeHub_onSinkFormatChange;
 
 // -------------------------------------------------------------------------------------
 NativeHub* get_hub_from_object(JNIEnv* env, jobject javaObject) {
@@ -57,12 +60,30 @@ int JNI_NativeHub_SetupFields(JNIEnv* env) {
         return -1;
     }
 
+    field_NativeHub_mDspBuffer = env->GetFieldID(clazz, "mDspBuffer", "Ljava/nio/ByteBuffer;");
+    if (field_NativeHub_mDspBuffer == NULL) {
+        ALOGE("Can't find NativeHub.mDspBuffer");
+        return -1;
+    }
+
     method_NativeHub_onAudioMirrorWritten = env->GetMethodID(clazz, "onAudioMirrorWritten", "(III)V");
     if (method_NativeHub_onAudioMirrorWritten == NULL) {
         ALOGE("Can't find NativeHub.onAudioMirrorWritten");
         return -1;
     }
 
+    method_NativeHub_onInProcessDsp = env->GetMethodID(clazz, "onInProcessDsp", "(IIII)V");
+    if (method_NativeHub_onInProcessDsp == NULL) {
+        ALOGE("Can't find NativeHub.onInProcessDsp");
+        return -1;
+    }
+
+    method_NativeHub_onSinkFormatChange = env->GetMethodID(clazz, "onSinkFormatChange", "()V");
+    if (method_NativeHub_onSinkFormatChange == NULL) {
+        ALOGE("Can't find NativeHub.onSinkFormatChange");
+        return -1;
+    }
+
     clazz_NativeHub = (jclass) env->NewGlobalRef(clazz);
 
     return 0;
@@ -157,3 +178,35 @@ void om_NativeHub_onAudioMirrorWritten(NativeHub* hub, const uint8_t* data, jint
     }
 }
 // -------------------------------------------------------------------------------------
+void om_NativeHub_onInProcessDsp(NativeHub* hub, uint8_t* buffer, uint32_t capacity,
+        bool buffer_changed, jint index, jint len, jint sampleRate, jint channels) {
+    JNIEnv* env;
+    bool release_jni = JNI_GetEnv(&env);
+    jobject thiz = (jobject) hub->getUserData();
+
+    if (buffer_changed) {
+        // The buffer is shared with Java, which processes it in place
+        jobject byteBuffer = env->NewDirectByteBuffer(buffer, capacity);
+        env->SetObjectField(thiz, field_NativeHub_mDspBuffer, byteBuffer);
+        env->DeleteLocalRef(byteBuffer);
+    }
+
+    env->CallVoidMethod(thiz, method_NativeHub_onInProcessDsp, index, len, sampleRate, channels);
+
+    if (release_jni) {
+        JNI_ReleaseEnv();
+    }
+}
+// -------------------------------------------------------------------------------------
+void om_NativeHub_onSinkFormatChange(NativeHub* hub) {
+    JNIEnv* env;
+    bool release_jni = JNI_GetEnv(&env);
+    jobject thiz = (jobject) hub->getUserData();
+
+    env->CallVoidMethod(thiz, method_NativeHub_onSinkFormatChange);
+
+    if (release_jni) {
+        JNI_ReleaseEnv();
+    }
+}
+// -------------------------------------------------------------------------------------
@@ -56,4 +56,12 @@ void om_NativeHub_setDucking(JNIEnv* env, jobject thiz, jboolean duck);
 void om_NativeHub_onAudioMirrorWritten(NativeHub* hub, const uint8_t* data, jint len,
         jint sampleRate, jint channels);
 
+// Processes the buffer in place with the Java DSPEffect at the provided chain index. When
+// buffer_changed is true, the buffer is first wrapped into NativeHub.mDspBuffer.
+void om_NativeHub_onInProcessDsp(NativeHub* hub, uint8_t* buffer, uint32_t capacity,
+        bool buffer_changed, jint index, jint len, jint sampleRate, jint channels);
+
+// Tells Java the sink is about to change format, which drops its buffers and resets its clocks
+void om_NativeHub_onSinkFormatChange(NativeHub* hub);
+
 #endif  // SRC_MAIN_JNI_NATIVEPLAYER_JNI_NATIVEHUB_H_
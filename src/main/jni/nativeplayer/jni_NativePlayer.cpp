@@ -117,6 +117,16 @@ jlong om_NativePlayer_getTotalWrittenSamples(JNIEnv* env, jobject thiz) {
     return player->getTotalWrittenSamples();
 }
 // -------------------------------------------------------------------------------------
+jlong om_NativePlayer_getEnqueuedDuration(JNIEnv* env, jobject thiz) {
+    NativePlayer* player = get_layer_from_object(env, thiz);
+    return player->getEnqueuedDuration();
+}
+// -------------------------------------------------------------------------------------
+jlong om_NativePlayer_getPlaybackPosition(JNIEnv* env, jobject thiz) {
+    NativePlayer* player = get_layer_from_object(env, thiz);
+    return player->getPlaybackPosition();
+}
+// -------------------------------------------------------------------------------------
 void om_NativePlayer_flush(JNIEnv* env, jobject thiz) {
     NativePlayer* player = get_layer_from_object(env, thiz);
     player->flush();
@@ -47,6 +47,12 @@ jint om_NativePlayer_getBufferedCount(JNIEnv* env, jobject thiz);
 // NativePlayer.nativeGetTotalWrittenSamples ==> NativePlayer::getTotalWrittenSamples
 jlong om_NativePlayer_getTotalWrittenSamples(JNIEnv* env, jobject thiz);
 
+// NativePlayer.nativeGetEnqueuedDuration ==> NativePlayer::getEnqueuedDuration
+jlong om_NativePlayer_getEnqueuedDuration(JNIEnv* env, jobject thiz);
+
+// NativePlayer.nativeGetPlaybackPosition ==> NativePlayer::getPlaybackPosition
+jlong om_NativePlayer_getPlaybackPosition(JNIEnv* env, jobject thiz);
+
 // NativePlayer.nativeGetUnderflowCount ==> NativePlayer::getUnderflowCount
 jint om_NativePlayer_getUnderflowCount(JNIEnv* env, jobject thiz);
 